@@ -95,7 +95,7 @@ import com.android.camera.data.LocalDataAdapter;
 import com.android.camera.data.LocalMediaObserver;
 import com.android.camera.data.MediaDetails;
 import com.android.camera.data.SimpleViewData;
-import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifProbe;
 import com.android.camera.tinyplanet.TinyPlanetFragment;
 import com.android.camera.ui.DetailsDialog;
 import com.android.camera.ui.FilmStripView;
@@ -2227,14 +2227,10 @@ public class CameraActivity extends Activity
             // saves jpeg with orientation tag set.
             int orientation = 0;
             if (mCheckOrientation) {
-                ExifInterface exif = new ExifInterface();
                 try {
-                    if (mJpegData != null) {
-                        exif.readExif(mJpegData);
-                    } else {
-                        exif.readExif(path);
-                    }
-                    orientation = Exif.getOrientation(exif);
+                    ExifProbe probe = mJpegData != null ? ExifProbe.probe(mJpegData)
+                            : ExifProbe.probe(new File(path));
+                    orientation = probe.getRotation();
                 } catch (IOException e) {
                     // ignore
                 }
@@ -91,7 +91,6 @@ import android.widget.Toast;
 
 import com.android.camera.PhotoModule.NamedImages;
 import com.android.camera.PhotoModule.NamedImages.NamedEntity;
-import com.android.camera.exif.ExifInterface;
 import com.android.camera.imageprocessor.FrameProcessor;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.imageprocessor.filter.BlurbusterFilter;
@@ -1632,14 +1631,12 @@ public class CaptureModule implements CameraModule, PhotoController,
                                     String title = (name == null) ? null : name.title;
                                     long date = (name == null) ? -1 : name.date;
 
-                                    byte[] bytes = getJpegData(image);
-
                                     if (image.getFormat() == ImageFormat.RAW10) {
-                                        mActivity.getMediaSaveService().addRawImage(bytes, title,
+                                        mActivity.getMediaSaveService().addRawImage(image, title,
                                                 "raw");
                                     } else {
-                                        ExifInterface exif = Exif.getExif(bytes);
-                                        int orientation = Exif.getOrientation(exif);
+                                        byte[] bytes = getJpegData(image);
+                                        int orientation = Exif.getOrientation(bytes);
 
                                         if (mIntentMode != CaptureModule.INTENT_MODE_NORMAL) {
                                             mJpegImageData = bytes;
@@ -1652,7 +1649,9 @@ public class CaptureModule implements CameraModule, PhotoController,
                                         } else {
                                             mActivity.getMediaSaveService().addImage(bytes, title, date,
                                                     null, image.getWidth(), image.getHeight(), orientation, null,
-                                                    mOnMediaSavedListener, mContentResolver, "jpeg");
+                                                    mOnMediaSavedListener, mContentResolver, "jpeg",
+                                                    mLongshotActive ? MediaSaveService.PRIORITY_BURST
+                                                            : MediaSaveService.PRIORITY_USER_VISIBLE);
 
                                             if (mLongshotActive) {
                                                 mLastJpegData = bytes;
@@ -1702,8 +1701,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                     byte[] bytes = new byte[buffer.remaining()];
                     buffer.get(bytes);
 
-                    ExifInterface exif = Exif.getExif(bytes);
-                    int orientation = Exif.getOrientation(exif);
+                    int orientation = Exif.getOrientation(bytes);
 
                     mActivity.getMediaSaveService().addImage(bytes, title, date,
                             null, image.getWidth(), image.getHeight(), orientation, null,
@@ -2435,8 +2433,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                     CameraUtil.closeSilently(outputStream);
                 }
             } else {
-                ExifInterface exif = Exif.getExif(data);
-                int orientation = Exif.getOrientation(exif);
+                int orientation = Exif.getOrientation(data);
                 Bitmap bitmap = CameraUtil.makeBitmap(data, 50 * 1024);
                 bitmap = CameraUtil.rotate(bitmap, orientation);
                 mActivity.setResultEx(Activity.RESULT_OK,
@@ -4057,6 +4054,13 @@ public class CaptureModule implements CameraModule, PhotoController,
         mActivity.runOnUiThread(() -> mUI.enableShutter(!full));
     }
 
+    @Override
+    public void onQueueStatus(SaveScheduler.Stats stats) {
+        if (DEBUG) {
+            Log.d(TAG, "save queue " + stats);
+        }
+    }
+
     public void triggerFocusAtPoint(float x, float y, int id) {
         if (DEBUG) {
             Log.d(TAG, "triggerFocusAtPoint " + x + " " + y + " " + id);
@@ -4701,8 +4705,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             byte[] bayerBytes = getJpegData(bayerImage);
             byte[] monoBytes = getJpegData(monoImage);
 
-            ExifInterface exif = Exif.getExif(bayerBytes);
-            int orientation = Exif.getOrientation(exif);
+            int orientation = Exif.getOrientation(bayerBytes);
 
             mActivity.getMediaSaveService().addMpoImage(
                     null, bayerBytes, monoBytes, width, height, title,
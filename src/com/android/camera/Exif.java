@@ -19,6 +19,7 @@ package com.android.camera;
 import android.util.Log;
 
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifProbe;
 
 import java.io.IOException;
 
@@ -45,10 +46,10 @@ public class Exif {
         }
     }
 
+    // Reads only the orientation tag, without building an ExifInterface.
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        return ExifProbe.probe(jpegData).getRotation();
     }
 }
@@ -0,0 +1,155 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes RAW planes by preallocating the target file, mapping it and copying the plane
+ * straight into the mapping, so no heap copy of the frame is ever made. The plane is
+ * written with its row stride unless the caller asks for packed rows.
+ */
+public class MappedRawWriter {
+    private static final String TAG = "MappedRawWriter";
+    private static final boolean DEBUG =
+            (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
+                    (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
+
+    private static long sBytesWritten;
+    private static long sWriteNs;
+    private static long sPeakHeapBytes;
+
+    /**
+     * Returns the number of pixel bytes in one row of plane 0, or 0 if the format has no
+     * fixed bits per pixel.
+     */
+    public static int getPackedRowBytes(Image image) {
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(image.getFormat());
+        return bitsPerPixel > 0 ? image.getWidth() * bitsPerPixel / 8 : 0;
+    }
+
+    /**
+     * Writes rows of rowBytes taken every rowStride bytes from the remaining bytes of src.
+     * If rowBytes is 0 or the geometry does not fit the buffer the remaining bytes are
+     * written as is. The position of src is not changed.
+     *
+     * @return the number of bytes written, or 0 on failure.
+     */
+    public static long write(String path, ByteBuffer src, int rowBytes, int rowStride,
+            int rows) {
+        ByteBuffer in = src.duplicate();
+        int base = in.position();
+        int available = in.remaining();
+        boolean packed = rowBytes > 0 && rows > 0 && rowStride >= rowBytes
+                && (long) rowStride * (rows - 1) + rowBytes <= available;
+        long size = packed ? (long) rowBytes * rows : available;
+
+        long start = System.nanoTime();
+        RandomAccessFile file = null;
+        try {
+            File parent = new File(path).getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(size);
+            MappedByteBuffer out = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!packed || rowStride == rowBytes) {
+                in.limit(base + (int) size);
+                out.put(in);
+            } else {
+                for (int row = 0; row < rows; row++) {
+                    int pos = base + row * rowStride;
+                    in.limit(pos + rowBytes);
+                    in.position(pos);
+                    out.put(in);
+                }
+            }
+            // Only report success once the pages have reached the file.
+            out.force();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + path, e);
+            size = 0;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close " + path, e);
+                }
+            }
+        }
+        record(size, System.nanoTime() - start);
+        return size;
+    }
+
+    private static synchronized void record(long bytes, long ns) {
+        sBytesWritten += bytes;
+        sWriteNs += ns;
+        Runtime rt = Runtime.getRuntime();
+        long heap = rt.totalMemory() - rt.freeMemory();
+        if (heap > sPeakHeapBytes) {
+            sPeakHeapBytes = heap;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "wrote " + bytes + " bytes in " + ns / 1000 + " us, "
+                    + getBytesPerSecond() / 1024 + " KB/s overall, peak heap "
+                    + sPeakHeapBytes / 1024 + " KB");
+        }
+    }
+
+    public static synchronized long getBytesWritten() {
+        return sBytesWritten;
+    }
+
+    public static synchronized long getBytesPerSecond() {
+        return sWriteNs == 0 ? 0 : (long) (sBytesWritten * 1e9 / sWriteNs);
+    }
+
+    public static synchronized long getPeakHeapBytes() {
+        return sPeakHeapBytes;
+    }
+
+    public static synchronized void resetStats() {
+        sBytesWritten = 0;
+        sWriteNs = 0;
+        sPeakHeapBytes = 0;
+    }
+}
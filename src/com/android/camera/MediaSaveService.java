@@ -23,10 +23,12 @@ import android.content.Intent;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.location.Location;
+import android.media.Image;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 
@@ -36,14 +38,19 @@ import com.android.camera.exif.ExifInterface;
 import com.android.camera.mpo.MpoData;
 import com.android.camera.mpo.MpoImageData;
 import com.android.camera.mpo.MpoInterface;
+import com.android.camera.util.ExtendedXmpWriter;
+import com.android.camera.util.PersistUtil;
 import com.android.camera.util.XmpUtil;
 
 import org.fusion.sdcam.filter.GDepth;
 import org.fusion.sdcam.filter.GImage;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 
@@ -53,16 +60,21 @@ import java.nio.ByteOrder;
 public class MediaSaveService extends Service {
     public static final String VIDEO_BASE_URI = "content://media/external/video/media";
 
+    public static final int PRIORITY_USER_VISIBLE = SaveScheduler.PRIORITY_USER_VISIBLE;
+    public static final int PRIORITY_BURST = SaveScheduler.PRIORITY_BURST;
+
     // The memory limit for unsaved image is 50MB.
     private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
             android.os.SystemProperties.getInt("persist.camera.perf.memlimit", 60);
     private static final int SAVE_TASK_MEMORY_LIMIT = SAVE_TASK_MEMORY_LIMIT_IN_MB * 1024 * 1024;
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
+    private static final int XMP_WRITE_BUFFER_SIZE = 64 * 1024;
 
     private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private Listener mListener;
-    // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    private SaveScheduler mScheduler;
+    private boolean mQueueFull;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -76,15 +88,24 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        mScheduler.setCallback(null);
+        mScheduler.shutdown();
     }
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        mQueueFull = false;
+        mScheduler = new SaveScheduler(PersistUtil.getSaveWriterThreads(),
+                SAVE_TASK_MEMORY_LIMIT, mHandler::post);
+        mScheduler.setCallback(this::onSchedulerStatus);
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return mScheduler.isFull();
+    }
+
+    public SaveScheduler.Stats getQueueStats() {
+        return mScheduler.getStats();
     }
 
     public void addMpoImage(final byte[] csImage,
@@ -93,74 +114,77 @@ public class MediaSaveService extends Service {
                             String title, long date, Location loc, int orientation,
                             OnMediaSavedListener l, ContentResolver resolver,
                             String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
-
         MpoSaveTask t = new MpoSaveTask(csImage, bayerImg, monoImg,
                 width, height, title, date, loc, orientation, l,
                 resolver, pictureFormat);
-
-        long size = (csImage == null ? 0
-                : csImage.length)
-                + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        submit(t);
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
                          int width, int height, int orientation, ExifInterface exif,
                          OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
+        addImage(data, title, date, loc, width, height, orientation, exif, l, resolver,
+                pictureFormat, PRIORITY_USER_VISIBLE);
+    }
+
+    public void addImage(final byte[] data, String title, long date, Location loc,
+                         int width, int height, int orientation, ExifInterface exif,
+                         OnMediaSavedListener l, ContentResolver resolver, String pictureFormat,
+                         int priority) {
         ImageSaveTask t = new ImageSaveTask(data, title, date,
                 (loc == null) ? null : new Location(loc),
-                width, height, orientation, exif, resolver, l, pictureFormat);
+                width, height, orientation, exif, resolver, l, pictureFormat, priority);
+        submit(t);
+    }
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
+    public void addRawImage(final byte[] data, String title, String pictureFormat) {
+        RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
+        submit(t);
+    }
+
+    /**
+     * Queues plane 0 of a RAW image and takes ownership of the image, which is closed
+     * once it has been written or refused.
+     */
+    public void addRawImage(Image image, String title, String pictureFormat) {
+        Image.Plane plane = image.getPlanes()[0];
+        RawPlaneSaveTask t = new RawPlaneSaveTask(plane.getBuffer(), getRawRowBytes(image),
+                plane.getRowStride(), image.getHeight(), image, title, pictureFormat);
+        if (!submit(t)) {
+            image.close();
         }
-        t.execute();
     }
 
-    public void addRawImage(final byte[] data, String title, String pictureFormat) {
-        if (isQueueFull()) {
+    /**
+     * Queues plane 0 of a RAW image the caller keeps owning, such as one still held by
+     * the ZSL queue. The plane is copied outside the Java heap first.
+     */
+    public void copyRawImage(Image image, String title, String pictureFormat) {
+        if (!mScheduler.canAccept(PRIORITY_USER_VISIBLE)) {
             Log.e(TAG, "Cannot add image when the queue is full");
             return;
         }
-        RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer src = plane.getBuffer().duplicate();
+        ByteBuffer copy = ByteBuffer.allocateDirect(src.remaining());
+        copy.put(src);
+        copy.flip();
+        submit(new RawPlaneSaveTask(copy, getRawRowBytes(image), plane.getRowStride(),
+                image.getHeight(), null, title, pictureFormat));
+    }
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+    private static int getRawRowBytes(Image image) {
+        return PersistUtil.isRawRowPackingEnabled() ? MappedRawWriter.getPackedRowBytes(image) : 0;
     }
 
     public void addXmpImage(byte[] mainImage, GImage bayer, GDepth gDepth,
                             String title, long date, Location loc, int width, int height,
                             int orientation, ExifInterface exif,
                             OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
         XmpImageSaveTask t = new XmpImageSaveTask(mainImage, bayer, gDepth,
                 title, date, (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
-
-        mMemoryUse += mainImage.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        submit(t);
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -183,25 +207,45 @@ public class MediaSaveService extends Service {
                          OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, duration, values, l, resolver).execute();
+        mScheduler.submitInsert(new VideoSaveTask(path, duration, values, l, resolver));
     }
 
     public void setListener(Listener l) {
         mListener = l;
         if (l == null) return;
-        l.onQueueStatus(isQueueFull());
+        mQueueFull = isQueueFull();
+        l.onQueueStatus(mQueueFull);
     }
 
-    private void onQueueFull() {
-        if (mListener != null) mListener.onQueueStatus(true);
+    private boolean submit(SaveScheduler.SaveRequest t) {
+        if (!mScheduler.submit(t)) {
+            Log.e(TAG, "Cannot add image when the queue is full");
+            return false;
+        }
+        return true;
     }
 
-    private void onQueueAvailable() {
-        if (mListener != null) mListener.onQueueStatus(false);
+    private void onSchedulerStatus(boolean full, SaveScheduler.Stats stats) {
+        if (mListener == null) return;
+        if (full != mQueueFull) {
+            mQueueFull = full;
+            mListener.onQueueStatus(full);
+        }
+        mListener.onQueueStatus(stats);
+    }
+
+    private static long sizeOf(byte[] data) {
+        return data == null ? 0 : data.length;
     }
 
     public interface Listener {
         void onQueueStatus(boolean full);
+
+        /**
+         * Reports queue depth, bytes in flight and per-stage latency after every change
+         * to the save queue.
+         */
+        void onQueueStatus(SaveScheduler.Stats stats);
     }
 
     public interface OnMediaSavedListener {
@@ -214,7 +258,7 @@ public class MediaSaveService extends Service {
         }
     }
 
-    private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class MpoSaveTask extends SaveScheduler.SaveRequest {
         private byte[] csImage;
         private byte[] bayerImage;
         private byte[] monoImage;
@@ -226,11 +270,14 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private String path;
+        private int size;
 
         public MpoSaveTask(byte[] csImage, byte[] bayerImg,
                            byte[] monoImg, int width, int height, String title, long date,
                            Location loc, int orientation, OnMediaSavedListener listener,
                            ContentResolver resolver, String pictureFormat) {
+            super(PRIORITY_USER_VISIBLE, sizeOf(csImage) + sizeOf(bayerImg) + sizeOf(monoImg));
             this.csImage = csImage;
             this.bayerImage = bayerImg;
             this.monoImage = monoImg;
@@ -246,7 +293,7 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected boolean writeFile() {
             // encode jpeg and add exif for all images
             MpoData mpo = new MpoData();
             MpoImageData bayer = new MpoImageData(bayerImage,
@@ -268,63 +315,81 @@ public class MediaSaveService extends Service {
             }
 
             // combine to single mpo
-            String path = Storage.generateFilepath(title, pictureFormat);
-            int size = MpoInterface.writeMpo(mpo, path);
+            path = Storage.generateFilepath(title, pictureFormat);
+            size = MpoInterface.writeMpo(mpo, path);
             // Try to get the real image size after add exif.
             File f = new File(path);
             if (f.exists() && f.isFile()) {
                 size = (int) f.length();
             }
+            return true;
+        }
+
+        @Override
+        protected Uri insert() {
             return Storage.addImage(resolver, title, date, loc, orientation,
                     size, path, width, height, pictureFormat);
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
+        protected void onSaved(Uri uri) {
             if (listener != null)
                 listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
         }
     }
 
-    private class RawImageSaveTask extends AsyncTask<Void, Void, Long> {
+    private class RawImageSaveTask extends SaveScheduler.SaveRequest {
         private byte[] data;
         private String title;
         private String pictureFormat;
 
         public RawImageSaveTask(byte[] data, String title, String pictureFormat) {
+            super(PRIORITY_USER_VISIBLE, sizeOf(data));
             this.data = data;
             this.title = title;
             this.pictureFormat = pictureFormat;
         }
 
         @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
+        protected boolean writeFile() {
+            Storage.addRawImage(title, data, pictureFormat);
+            return false;
         }
+    }
 
-        @Override
-        protected Long doInBackground(Void... params) {
-            long length = Storage.addRawImage(title, data, pictureFormat);
-            return length;
+    private class RawPlaneSaveTask extends SaveScheduler.SaveRequest {
+        private ByteBuffer plane;
+        private int rowBytes, rowStride, rows;
+        private Image image;
+        private String title;
+        private String pictureFormat;
+
+        public RawPlaneSaveTask(ByteBuffer plane, int rowBytes, int rowStride, int rows,
+                                Image image, String title, String pictureFormat) {
+            super(PRIORITY_USER_VISIBLE, plane.remaining());
+            this.plane = plane;
+            this.rowBytes = rowBytes;
+            this.rowStride = rowStride;
+            this.rows = rows;
+            this.image = image;
+            this.title = title;
+            this.pictureFormat = pictureFormat;
         }
 
         @Override
-        protected void onPostExecute(Long l) {
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        protected boolean writeFile() {
+            try {
+                Storage.addRawImage(title, plane, rowBytes, rowStride, rows, pictureFormat);
+            } finally {
+                if (image != null) {
+                    image.close();
+                }
+            }
+            return false;
         }
     }
 
-    private class ImageSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class ImageSaveTask extends SaveScheduler.SaveRequest {
         private byte[] data;
         private String title;
         private long date;
@@ -335,10 +400,14 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private String path;
+        private int size;
 
         public ImageSaveTask(byte[] data, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
-                             ContentResolver resolver, OnMediaSavedListener listener, String pictureFormat) {
+                             ContentResolver resolver, OnMediaSavedListener listener,
+                             String pictureFormat, int priority) {
+            super(priority, sizeOf(data));
             this.data = data;
             this.title = title;
             this.date = date;
@@ -353,13 +422,8 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
-            if (width == 0 || height == 0) {
+        protected boolean writeFile() {
+            if ((width == 0 || height == 0) && data != null) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
@@ -367,24 +431,38 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            path = Storage.generateFilepath(title, pictureFormat);
+            size = Storage.writeImageFile(path, data, exif, pictureFormat);
+            return true;
+        }
+
+        @Override
+        protected Uri insert() {
+            return Storage.addImage(resolver, title, date, loc, orientation,
+                    size, path, width, height, pictureFormat);
+        }
+
+        @Override
+        protected void insert(SaveScheduler.InsertDone done) {
+            if (getPriority() == PRIORITY_BURST) {
+                // Burst frames share MediaStore transactions.
+                Storage.addImageBatched(resolver, title, date, loc, orientation,
+                        size, path, width, height, pictureFormat, done::onInserted);
+            } else {
+                super.insert(done);
+            }
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
+        protected void onSaved(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
     }
 
-    private class XmpImageSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class XmpImageSaveTask extends SaveScheduler.SaveRequest {
         private byte[] mainImage;
         private GImage bayer;
         private GDepth gDepth;
-        private byte[] data;
         private String title;
         private long date;
         private Location loc;
@@ -394,12 +472,15 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private String path;
+        private int size;
 
         public XmpImageSaveTask(byte[] mainImage, GImage bayer, GDepth gDepth,
                                 String title, long date, Location loc,
                                 int width, int height, int orientation,
                                 ExifInterface exif, ContentResolver resolver,
                                 OnMediaSavedListener listener, String pictureFormat) {
+            super(PRIORITY_USER_VISIBLE, sizeOf(mainImage));
             this.mainImage = mainImage;
             this.gDepth = gDepth;
             this.bayer = bayer;
@@ -416,44 +497,44 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
-            data = embedGDepthAndBayerInClearSight(mainImage);
-            if (data == null) {
-                data = mainImage;
-                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
-            }
-
+        protected boolean writeFile() {
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                BitmapFactory.decodeByteArray(mainImage, 0, mainImage.length, options);
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            path = Storage.generateFilepath(title, pictureFormat);
+            size = writeGDepthAndBayerInClearSight(mainImage);
+            if (size <= 0) {
+                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
+                size = Storage.writeImageFile(path, mainImage, exif, pictureFormat);
+            }
+            return true;
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        protected Uri insert() {
+            return Storage.addImage(resolver, title, date, loc, orientation,
+                    size, path, width, height, pictureFormat);
         }
 
+        @Override
+        protected void onSaved(Uri uri) {
+            if (listener != null) listener.onMediaSaved(uri);
+        }
 
-        private byte[] embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes) {
+        /*
+         * Writes the image with the depth map and the bayer image in its extended XMP
+         * straight to the file. Returns the file size, or 0 if nothing was written.
+         */
+        private int writeGDepthAndBayerInClearSight(byte[] clearSightImageBytes) {
             Log.d(TAG, "embedGDepthInClearSight");
             if (clearSightImageBytes == null || (gDepth == null && bayer == null)) {
                 Log.d(TAG, "clearSightImageBytes is null");
-                return null;
+                return 0;
             }
 
             XMPMeta xmpMeta = XmpUtil.createXMPMeta();
@@ -478,36 +559,55 @@ public class MediaSaveService extends Service {
 
             } catch (XMPException exception) {
                 Log.d(TAG, "create XMPMeta error", exception);
-                return null;
+                return 0;
             }
 
-            XMPMeta extendXmpMeta = XmpUtil.createXMPMeta();
-            try {
-                if (gDepth != null) {
-                    extendXmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA, gDepth.getData());
-                }
+            // Base64 encoded on the fly while the segments are written
+            ExtendedXmpWriter extended = new ExtendedXmpWriter();
+            if (gDepth != null && gDepth.getJpegData() != null) {
+                extended.addProperty(GDepth.NAMESPACE_URL, GDepth.PREFIX, GDepth.PROPERTY_DATA,
+                        gDepth.getJpegData());
+            }
+            if (bayer != null) {
+                extended.addProperty(GImage.NAMESPACE_URL, GImage.PREFIX, GImage.PROPERTY_DATA,
+                        bayer.getBytes());
+            }
 
-                if (bayer != null) {
-                    extendXmpMeta.setProperty(GImage.NAMESPACE_URL, GImage.PROPERTY_DATA, bayer.getData());
+            byte[] jpeg = clearSightImageBytes;
+            if (exif != null) {
+                try {
+                    jpeg = exif.writeExif(clearSightImageBytes);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to add exif", e);
+                    return 0;
                 }
-            } catch (XMPException exception) {
-                Log.d(TAG, "create extended XMPMeta error", exception);
             }
-
-
-            ByteArrayInputStream bais = new ByteArrayInputStream(clearSightImageBytes);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            if (XmpUtil.writeXMPMeta(bais, baos, xmpMeta, extendXmpMeta)) {
-                return baos.toByteArray();
-            } else {
-                Log.e(TAG, "embedGDepthInClearSight failure ");
-                return null;
+            OutputStream out = null;
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(path), XMP_WRITE_BUFFER_SIZE);
+                if (!XmpUtil.writeXMPMeta(jpeg, out, xmpMeta, extended)) {
+                    Log.e(TAG, "embedGDepthInClearSight failure ");
+                    return 0;
+                }
+                out.close();
+                out = null;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + path, e);
+                return 0;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
             }
-
+            return (int) new File(path).length();
         }
     }
 
-    private class VideoSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class VideoSaveTask extends SaveScheduler.SaveRequest {
         private String path;
         private long duration;
         private ContentValues values;
@@ -516,6 +616,7 @@ public class MediaSaveService extends Service {
 
         public VideoSaveTask(String path, long duration, ContentValues values,
                              OnMediaSavedListener l, ContentResolver r) {
+            super(PRIORITY_USER_VISIBLE, 0);
             this.path = path;
             this.duration = duration;
             this.values = new ContentValues(values);
@@ -524,7 +625,12 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected boolean writeFile() {
+            return true;
+        }
+
+        @Override
+        protected Uri insert() {
             values.put(Video.Media.SIZE, new File(path).length());
             values.put(Video.Media.DURATION, duration);
             Uri uri = null;
@@ -554,7 +660,7 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
+        protected void onSaved(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
         }
     }
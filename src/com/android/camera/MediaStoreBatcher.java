@@ -0,0 +1,214 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BaseColumns;
+import android.provider.MediaStore.MediaColumns;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces MediaStore inserts into applyBatch() calls of at most maxBatch rows. Pending
+ * rows are flushed once maxBatch of them are queued or windowMs after the first one
+ * arrived, whichever comes first. Callbacks run on the flushing thread in the order the
+ * rows were queued. If a batch is rejected the rows it did not insert are retried one by
+ * one so every caller still gets its own result.
+ */
+public class MediaStoreBatcher {
+    private static final String TAG = "MediaStoreBatcher";
+
+    private final Uri mTable;
+    private final int mMaxBatch;
+    private final long mWindowMs;
+    private final Handler mHandler;
+    private final Object mFlushLock = new Object();
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private ArrayList<PendingInsert> mPending = new ArrayList<>();
+    private final AtomicInteger mBatchCount = new AtomicInteger();
+    private final AtomicInteger mRowCount = new AtomicInteger();
+
+    public interface Callback {
+        void onInserted(Uri uri);
+    }
+
+    private static class PendingInsert {
+        final ContentResolver resolver;
+        final ContentValues values;
+        final Callback callback;
+
+        PendingInsert(ContentResolver r, ContentValues v, Callback c) {
+            resolver = r;
+            values = v;
+            callback = c;
+        }
+    }
+
+    public MediaStoreBatcher(Uri table, int maxBatch, long windowMs, Looper looper) {
+        mTable = table;
+        mMaxBatch = Math.max(1, maxBatch);
+        mWindowMs = windowMs;
+        mHandler = new Handler(looper);
+    }
+
+    public void insert(ContentResolver resolver, ContentValues values, Callback callback) {
+        int size;
+        synchronized (this) {
+            mPending.add(new PendingInsert(resolver, values, callback));
+            size = mPending.size();
+        }
+        if (size >= mMaxBatch) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+        } else if (size == 1) {
+            mHandler.postDelayed(mFlushRunnable, mWindowMs);
+        }
+    }
+
+    /**
+     * Inserts everything queued so far on the calling thread.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            ArrayList<PendingInsert> batch;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                batch = mPending;
+                mPending = new ArrayList<>();
+            }
+            int start = 0;
+            while (start < batch.size()) {
+                // Rows for another resolver or past mMaxBatch start a new batch.
+                int end = start + 1;
+                ContentResolver resolver = batch.get(start).resolver;
+                while (end < batch.size() && end - start < mMaxBatch
+                        && batch.get(end).resolver == resolver) {
+                    end++;
+                }
+                apply(resolver, batch, start, end);
+                start = end;
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public int getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    public int getRowCount() {
+        return mRowCount.get();
+    }
+
+    private void apply(ContentResolver resolver, ArrayList<PendingInsert> batch,
+            int start, int end) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            ops.add(ContentProviderOperation.newInsert(mTable)
+                    .withValues(batch.get(i).values).build());
+        }
+        ContentProviderResult[] results = null;
+        try {
+            results = resolver.applyBatch(mTable.getAuthority(), ops);
+            mBatchCount.incrementAndGet();
+        } catch (Throwable th) {
+            Log.w(TAG, "Batch insert of " + ops.size() + " rows failed, retrying singly", th);
+            results = findInserted(resolver, batch, start, end);
+        }
+        for (int i = start; i < end; i++) {
+            PendingInsert p = batch.get(i);
+            Uri uri = null;
+            if (results != null && i - start < results.length && results[i - start] != null) {
+                uri = results[i - start].uri;
+            }
+            if (uri == null) {
+                try {
+                    uri = resolver.insert(mTable, p.values);
+                } catch (Throwable th) {
+                    Log.e(TAG, "Failed to write MediaStore" + th);
+                }
+            }
+            mRowCount.incrementAndGet();
+            if (p.callback != null) {
+                p.callback.onInserted(uri);
+            }
+        }
+    }
+
+    /*
+     * A provider that does not run the batch in a transaction keeps the rows it inserted
+     * before failing. They are looked up by file path so they are not inserted twice.
+     */
+    private ContentProviderResult[] findInserted(ContentResolver resolver,
+            ArrayList<PendingInsert> batch, int start, int end) {
+        ContentProviderResult[] results = new ContentProviderResult[end - start];
+        for (int i = start; i < end; i++) {
+            String path = batch.get(i).values.getAsString(MediaColumns.DATA);
+            if (path == null) {
+                continue;
+            }
+            Cursor cursor = null;
+            try {
+                cursor = resolver.query(mTable, new String[] {BaseColumns._ID},
+                        MediaColumns.DATA + "=?", new String[] {path}, null);
+                if (cursor != null && cursor.moveToFirst()) {
+                    results[i - start] = new ContentProviderResult(
+                            ContentUris.withAppendedId(mTable, cursor.getLong(0)));
+                }
+            } catch (Throwable th) {
+                Log.w(TAG, "Failed to look up " + path + ": " + th);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return results;
+    }
+}
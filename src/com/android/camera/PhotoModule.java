@@ -1553,8 +1553,7 @@ public class PhotoModule
                     CameraUtil.closeSilently(outputStream);
                 }
             } else {
-                ExifInterface exif = Exif.getExif(data);
-                int orientation = Exif.getOrientation(exif);
+                int orientation = Exif.getOrientation(data);
                 Bitmap bitmap = CameraUtil.makeBitmap(data, 50 * 1024);
                 bitmap = CameraUtil.rotate(bitmap, orientation);
                 mActivity.setResultEx(Activity.RESULT_OK,
@@ -4237,6 +4236,11 @@ public class PhotoModule
         mUI.enableShutter(!full);
     }
 
+    @Override
+    public void onQueueStatus(SaveScheduler.Stats stats) {
+        Log.v(TAG, "save queue " + stats);
+    }
+
     @Override
     public void onMediaSaveServiceConnected(MediaSaveService s) {
         // We set the listener only when both service and shutterbutton
@@ -4768,7 +4772,8 @@ public class PhotoModule
                 Log.d(TAG, "capture:" + title + "." + pictureFormat);
                 mActivity.getMediaSaveService().addImage(
                         null, title, date, mLocation, s.width, s.height,
-                        0, null, mOnMediaSavedListener, mContentResolver, pictureFormat);
+                        0, null, mOnMediaSavedListener, mContentResolver, pictureFormat,
+                        MediaSaveService.PRIORITY_BURST);
             } else {
                 Log.e(TAG, "Failed to move jpeg file");
             }
@@ -0,0 +1,488 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two stage save pipeline used by MediaSaveService. Requests are written to storage by a
+ * pool of writer threads and then inserted into the media database by a single database
+ * thread so slow provider calls never hold up disk writes. Both stages take requests by
+ * priority and then arrival. Admission is weighted by the bytes each request keeps alive;
+ * burst frames are refused before user-visible shots so a normal capture always finds room.
+ * Completion callbacks are delivered in submission order within a priority, no matter
+ * which writer finishes first, so a user-visible shot never waits for earlier burst frames.
+ * A request that does not complete within the delivery timeout is skipped so it cannot
+ * hold up the callbacks behind it; its own callback is delivered whenever it finishes.
+ */
+public class SaveScheduler {
+    private static final String TAG = "SaveScheduler";
+
+    public static final int PRIORITY_USER_VISIBLE = 0;
+    public static final int PRIORITY_BURST = 1;
+
+    // Share of the memory limit burst frames may use.
+    private static final int BURST_MEMORY_PERCENT = 75;
+    private static final long DEFAULT_DELIVERY_TIMEOUT_MS = 10000;
+
+    private final long mMemoryLimit;
+    private final long mBurstMemoryLimit;
+    private final Executor mCallbackExecutor;
+    private final ThreadPoolExecutor mWriters;
+    private final ThreadPoolExecutor mDatabase;
+    private final ScheduledThreadPoolExecutor mTimeouts;
+    private final long mDeliveryTimeoutMs;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mBytesInFlight = new AtomicLong();
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final StageTimer mQueueTimer = new StageTimer();
+    private final StageTimer mWriteTimer = new StageTimer();
+    private final StageTimer mInsertTimer = new StageTimer();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private volatile Callback mCallback;
+
+    // Callback order of each priority, indexed by priority.
+    private final Delivery[] mDelivery = { new Delivery(), new Delivery() };
+
+    public interface Callback {
+        /**
+         * Called on the callback executor whenever a request finishes or the queue crosses
+         * the memory limit.
+         */
+        void onStatus(boolean full, Stats stats);
+    }
+
+    public interface InsertDone {
+        void onInserted(Uri uri);
+    }
+
+    /**
+     * A unit of work. writeFile() runs on a writer thread, insert() on the database
+     * thread and onSaved() on the callback executor.
+     */
+    public static abstract class SaveRequest implements Comparable<SaveRequest> {
+        private final int mPriority;
+        private final long mWeight;
+        private long mSequence;
+        private long mDeliverySequence;
+        private long mEnqueueNs;
+        private long mWriteStartNs;
+        private long mWriteEndNs;
+
+        protected SaveRequest(int priority, long weight) {
+            if (priority != PRIORITY_USER_VISIBLE && priority != PRIORITY_BURST) {
+                throw new IllegalArgumentException("Unknown priority " + priority);
+            }
+            mPriority = priority;
+            mWeight = weight;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public long getWeight() {
+            return mWeight;
+        }
+
+        /**
+         * Writes the data to storage.
+         *
+         * @return false if there is nothing to insert into the database.
+         */
+        protected abstract boolean writeFile();
+
+        protected Uri insert() {
+            return null;
+        }
+
+        /**
+         * Starts the database insert. Requests that hand the insert off to another thread,
+         * such as a batched MediaStore insert, override this and call done later.
+         */
+        protected void insert(InsertDone done) {
+            done.onInserted(insert());
+        }
+
+        protected void onSaved(Uri uri) {
+        }
+
+        @Override
+        public int compareTo(SaveRequest another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Snapshot of the scheduler state. Latencies are in microseconds.
+     */
+    public static class Stats {
+        public final int queueDepth;
+        public final long bytesInFlight;
+        public final long memoryLimit;
+        public final long completed;
+        public final long rejected;
+        public final long avgQueueUs;
+        public final long maxQueueUs;
+        public final long avgWriteUs;
+        public final long maxWriteUs;
+        public final long avgInsertUs;
+        public final long maxInsertUs;
+
+        Stats(SaveScheduler s) {
+            queueDepth = s.mPending.get();
+            bytesInFlight = s.mBytesInFlight.get();
+            memoryLimit = s.mMemoryLimit;
+            completed = s.mCompleted.get();
+            rejected = s.mRejected.get();
+            avgQueueUs = s.mQueueTimer.getAverageUs();
+            maxQueueUs = s.mQueueTimer.getMaxUs();
+            avgWriteUs = s.mWriteTimer.getAverageUs();
+            maxWriteUs = s.mWriteTimer.getMaxUs();
+            avgInsertUs = s.mInsertTimer.getAverageUs();
+            maxInsertUs = s.mInsertTimer.getMaxUs();
+        }
+
+        @Override
+        public String toString() {
+            return "depth=" + queueDepth + " bytes=" + bytesInFlight + "/" + memoryLimit
+                    + " done=" + completed + " rejected=" + rejected
+                    + " queue(avg/max us)=" + avgQueueUs + "/" + maxQueueUs
+                    + " write=" + avgWriteUs + "/" + maxWriteUs
+                    + " insert=" + avgInsertUs + "/" + maxInsertUs;
+        }
+    }
+
+    private static class StageTimer {
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNs = new AtomicLong();
+        private final AtomicLong mMaxNs = new AtomicLong();
+
+        void add(long ns) {
+            mCount.incrementAndGet();
+            mTotalNs.addAndGet(ns);
+            long max;
+            while (ns > (max = mMaxNs.get()) && !mMaxNs.compareAndSet(max, ns)) {
+            }
+        }
+
+        long getAverageUs() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mTotalNs.get() / count / 1000;
+        }
+
+        long getMaxUs() {
+            return mMaxNs.get() / 1000;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        }
+    }
+
+    /*
+     * Finished requests of one priority waiting for an earlier delivery sequence number.
+     * Guarded by the Delivery object.
+     */
+    private static class Delivery {
+        final AtomicLong mSequence = new AtomicLong();
+        final TreeMap<Long, Runnable> mWaiting = new TreeMap<>();
+        long mNext = 1;
+        // Sequence number the pending timeout waits for, or 0.
+        long mTimeoutFor;
+    }
+
+    private class InsertTask implements Runnable, Comparable<InsertTask> {
+        private final SaveRequest mRequest;
+
+        InsertTask(SaveRequest request) {
+            mRequest = request;
+        }
+
+        @Override
+        public int compareTo(InsertTask another) {
+            return mRequest.compareTo(another.mRequest);
+        }
+
+        @Override
+        public void run() {
+            runInsert(mRequest);
+        }
+    }
+
+    private class WriteTask implements Runnable, Comparable<WriteTask> {
+        private final SaveRequest mRequest;
+
+        WriteTask(SaveRequest request) {
+            mRequest = request;
+        }
+
+        @Override
+        public int compareTo(WriteTask another) {
+            return mRequest.compareTo(another.mRequest);
+        }
+
+        @Override
+        public void run() {
+            final SaveRequest r = mRequest;
+            r.mWriteStartNs = System.nanoTime();
+            mQueueTimer.add(r.mWriteStartNs - r.mEnqueueNs);
+            boolean insert = false;
+            try {
+                insert = r.writeFile();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to write save request", e);
+            }
+            r.mWriteEndNs = System.nanoTime();
+            mWriteTimer.add(r.mWriteEndNs - r.mWriteStartNs);
+            if (insert) {
+                try {
+                    mDatabase.execute(new InsertTask(r));
+                } catch (RejectedExecutionException e) {
+                    // Only after shutdown; the file is already written, so insert it here.
+                    runInsert(r);
+                }
+            } else {
+                finish(r, null);
+            }
+        }
+    }
+
+    public SaveScheduler(int writerThreads, long memoryLimit, Executor callbackExecutor) {
+        this(writerThreads, memoryLimit, callbackExecutor, DEFAULT_DELIVERY_TIMEOUT_MS);
+    }
+
+    /**
+     * @param deliveryTimeoutMs how long the callbacks of a priority wait for a request
+     *                          that has not completed before skipping it.
+     */
+    public SaveScheduler(int writerThreads, long memoryLimit, Executor callbackExecutor,
+            long deliveryTimeoutMs) {
+        mMemoryLimit = memoryLimit;
+        mBurstMemoryLimit = memoryLimit * BURST_MEMORY_PERCENT / 100;
+        mCallbackExecutor = callbackExecutor;
+        mDeliveryTimeoutMs = deliveryTimeoutMs;
+        int writers = Math.max(1, writerThreads);
+        mDatabase = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new NamedThreadFactory("SaveInsert"));
+        mTimeouts = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("SaveTimeout"));
+        // The timer thread only lives while a timeout is pending.
+        mTimeouts.setKeepAliveTime(1, TimeUnit.SECONDS);
+        mTimeouts.allowCoreThreadTimeOut(true);
+        mTimeouts.setRemoveOnCancelPolicy(true);
+        mWriters = new ThreadPoolExecutor(writers, writers, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new NamedThreadFactory("SaveWriter")) {
+            @Override
+            protected void terminated() {
+                // Queued writes still hand their inserts to the database thread, so it is
+                // only shut down once the last writer is gone.
+                mDatabase.shutdown();
+            }
+        };
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public boolean isFull() {
+        return mBytesInFlight.get() >= mMemoryLimit;
+    }
+
+    /**
+     * Returns whether a request of the given priority would be admitted right now.
+     */
+    public boolean canAccept(int priority) {
+        long limit = priority == PRIORITY_BURST ? mBurstMemoryLimit : mMemoryLimit;
+        return mBytesInFlight.get() < limit;
+    }
+
+    /**
+     * Queues a request for writing.
+     *
+     * @return false if the request was refused because of memory pressure.
+     */
+    public boolean submit(SaveRequest request) {
+        if (!canAccept(request.getPriority())) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+        request.mSequence = mSequence.incrementAndGet();
+        request.mDeliverySequence =
+                mDelivery[request.getPriority()].mSequence.incrementAndGet();
+        request.mEnqueueNs = System.nanoTime();
+        mBytesInFlight.addAndGet(request.getWeight());
+        mPending.incrementAndGet();
+        try {
+            mWriters.execute(new WriteTask(request));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Save request submitted after shutdown");
+            mRejected.incrementAndGet();
+            // Keeps the accounting and the callback sequence consistent.
+            finish(request, null);
+            return false;
+        }
+        notifyStatus();
+        return true;
+    }
+
+    /**
+     * Queues database only work, such as a video that is already on storage. It is not
+     * subject to the memory limit.
+     */
+    public void submitInsert(final SaveRequest request) {
+        request.mSequence = mSequence.incrementAndGet();
+        request.mDeliverySequence =
+                mDelivery[request.getPriority()].mSequence.incrementAndGet();
+        request.mEnqueueNs = request.mWriteStartNs = request.mWriteEndNs = System.nanoTime();
+        mBytesInFlight.addAndGet(request.getWeight());
+        mPending.incrementAndGet();
+        try {
+            mDatabase.execute(new InsertTask(request));
+        } catch (RejectedExecutionException e) {
+            runInsert(request);
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    /**
+     * Stops accepting requests. Requests already queued are still written and inserted.
+     */
+    public void shutdown() {
+        mWriters.shutdown();
+    }
+
+    private void runInsert(final SaveRequest r) {
+        final long start = System.nanoTime();
+        final AtomicInteger calls = new AtomicInteger();
+        InsertDone done = uri -> {
+            if (calls.getAndIncrement() == 0) {
+                mInsertTimer.add(System.nanoTime() - start);
+                finish(r, uri);
+            }
+        };
+        try {
+            r.insert(done);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to insert save request", e);
+            done.onInserted(null);
+        }
+    }
+
+    private void finish(final SaveRequest r, final Uri uri) {
+        mBytesInFlight.addAndGet(-r.getWeight());
+        mPending.decrementAndGet();
+        mCompleted.incrementAndGet();
+        Runnable saved = () -> {
+            r.onSaved(uri);
+            dispatchStatus();
+        };
+        Delivery delivery = mDelivery[r.getPriority()];
+        synchronized (delivery) {
+            if (r.mDeliverySequence < delivery.mNext) {
+                // Skipped after a timeout, the requests behind it are already delivered.
+                mCallbackExecutor.execute(saved);
+                return;
+            }
+            delivery.mWaiting.put(r.mDeliverySequence, saved);
+            deliver(delivery);
+        }
+    }
+
+    // Called with the delivery lock held. Posting under the lock keeps the executor's
+    // queue in sequence order.
+    private void deliver(final Delivery delivery) {
+        Runnable next;
+        while ((next = delivery.mWaiting.remove(delivery.mNext)) != null) {
+            delivery.mNext++;
+            mCallbackExecutor.execute(next);
+        }
+        if (delivery.mWaiting.isEmpty() || delivery.mTimeoutFor == delivery.mNext) {
+            return;
+        }
+        final long blocking = delivery.mNext;
+        delivery.mTimeoutFor = blocking;
+        mTimeouts.schedule(() -> {
+            synchronized (delivery) {
+                if (delivery.mTimeoutFor != blocking) {
+                    return;
+                }
+                delivery.mTimeoutFor = 0;
+                if (delivery.mNext == blocking) {
+                    Log.w(TAG, "Save request " + blocking + " did not complete in "
+                            + mDeliveryTimeoutMs + "ms, skipping it");
+                    delivery.mNext++;
+                    deliver(delivery);
+                }
+            }
+        }, mDeliveryTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyStatus() {
+        mCallbackExecutor.execute(this::dispatchStatus);
+    }
+
+    private void dispatchStatus() {
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.onStatus(isFull(), getStats());
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.location.Location;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.HandlerThread;
 import android.os.StatFs;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
@@ -31,9 +32,11 @@ import android.util.Log;
 
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.ApiHelper;
+import com.android.camera.util.PersistUtil;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 
 public class Storage {
     public static final String DCIM =
@@ -50,6 +53,7 @@ public class Storage {
     public static final long LOW_STORAGE_THRESHOLD_BYTES = 60 * 1024 * 1024;
     private static final String TAG = "CameraStorage";
     private static boolean sSaveSDCard = false;
+    private static MediaStoreBatcher sInsertBatcher;
 
     public static boolean isSaveSDCard() {
         return sSaveSDCard;
@@ -110,14 +114,21 @@ public class Storage {
                                int height, String mimeType) {
 
         String path = generateFilepath(title, mimeType);
+        int size = writeImageFile(path, jpeg, exif, mimeType);
+        return addImage(resolver, title, date, location, orientation,
+                size, path, width, height, mimeType);
+    }
+
+    // Write the image without touching the MediaStore and return its size on storage.
+    public static int writeImageFile(String path, byte[] jpeg, ExifInterface exif,
+                                     String mimeType) {
         int size = writeFile(path, jpeg, exif, mimeType);
         // Try to get the real image size after add exif.
         File f = new File(path);
         if (f.exists() && f.isFile()) {
             size = (int) f.length();
         }
-        return addImage(resolver, title, date, location, orientation,
-                size, path, width, height, mimeType);
+        return size;
     }
 
     // Get a ContentValues object for the given photo data
@@ -162,16 +173,41 @@ public class Storage {
         return insertImage(resolver, values);
     }
 
+    // Queue the image for a batched MediaStore insert. The callback gets the
+    // resulting uri, in the order the images were queued.
+    public static void addImageBatched(ContentResolver resolver, String title,
+                                       long date, Location location, int orientation, int jpegLength,
+                                       String path, int width, int height, String mimeType,
+                                       MediaStoreBatcher.Callback callback) {
+        ContentValues values =
+                getContentValuesForData(title, date, location, orientation, jpegLength, path,
+                        width, height, mimeType);
+        getInsertBatcher().insert(resolver, values, callback);
+    }
+
+    private static synchronized MediaStoreBatcher getInsertBatcher() {
+        if (sInsertBatcher == null) {
+            HandlerThread thread = new HandlerThread("MediaStoreBatcher");
+            thread.start();
+            sInsertBatcher = new MediaStoreBatcher(Images.Media.EXTERNAL_CONTENT_URI,
+                    PersistUtil.getMediaStoreBatchSize(),
+                    PersistUtil.getMediaStoreBatchWindowMs(), thread.getLooper());
+        }
+        return sInsertBatcher;
+    }
+
     public static long addRawImage(String title, byte[] data,
                                    String mimeType) {
         String path = generateFilepath(title, mimeType);
-        int size = writeFile(path, data, null, mimeType);
-        // Try to get the real image size after add exif.
-        File f = new File(path);
-        if (f.exists() && f.isFile()) {
-            size = (int) f.length();
-        }
-        return size;
+        return writeImageFile(path, data, null, mimeType);
+    }
+
+    // Write a RAW plane through a file mapping, without a heap copy. A rowBytes of 0
+    // keeps the row stride padding of the plane.
+    public static long addRawImage(String title, ByteBuffer plane, int rowBytes,
+                                   int rowStride, int rows, String mimeType) {
+        String path = generateFilepath(title, mimeType);
+        return MappedRawWriter.write(path, plane, rowBytes, rowStride, rows);
     }
 
     // Overwrites the file and updates the MediaStore, or inserts the image if
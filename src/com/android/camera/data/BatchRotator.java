@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Process;
+import android.provider.MediaStore.Images;
+import android.util.Log;
+
+import com.android.camera.ImageTaskManager.TaskListener;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifRewriter;
+import com.android.camera.exif.ExifTag;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rotates MediaStore images by 90 degrees on a fixed number of worker threads. The Exif
+ * orientation of each jpeg is written through {@link ExifRewriter}, so a file is only
+ * copied when its header has no orientation tag, and the MediaStore row is updated
+ * afterwards.
+ * <p>
+ * Images are reported to a {@link TaskListener}. Each one is queued on the calling
+ * thread, with no file path since the row has not been read yet. The worker that handles
+ * it then reports it as done if it was rotated, and always reports the progress of the
+ * whole batch, in percent, so an image with a progress but no done callback failed.
+ * Images that are not jpegs, have no row or cannot be rewritten fail. The file path
+ * comes from the MediaStore row, or is null if the row could not be read.
+ */
+public class BatchRotator {
+    private static final String TAG = "CAM_BatchRotator";
+    private static final long KEEP_ALIVE_SECONDS = 5;
+    private static final String[] PROJECTION = {
+            Images.ImageColumns.DATA,
+            Images.ImageColumns.ORIENTATION,
+            Images.ImageColumns.MIME_TYPE
+    };
+
+    private final ContentResolver mResolver;
+    private final ThreadPoolExecutor mWorkers;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+    public BatchRotator(ContentResolver resolver, int threads) {
+        mResolver = resolver;
+        int workers = Math.max(1, threads);
+        mWorkers = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                r -> new Thread(r, TAG + "-" + mThreadCount.incrementAndGet()));
+        mWorkers.allowCoreThreadTimeOut(true);
+    }
+
+    public void rotate(List<Uri> uris, final boolean clockwise, final TaskListener listener) {
+        final int total = uris.size();
+        final AtomicInteger done = new AtomicInteger();
+        for (final Uri uri : uris) {
+            listener.onTaskQueued(null, uri);
+            mWorkers.execute(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                Row row = null;
+                int orientation = -1;
+                try {
+                    row = query(uri);
+                    if (row != null) {
+                        orientation = rotate(uri, row, clockwise);
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Cannot rotate " + uri, e);
+                } finally {
+                    int progress = done.incrementAndGet() * 100 / total;
+                    String path = row != null ? row.mPath : null;
+                    if (orientation >= 0) {
+                        listener.onTaskDone(path, uri);
+                    }
+                    listener.onTaskProgress(path, uri, progress);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the workers. Images that have not been started yet are not rotated, and
+     * not reported either.
+     */
+    public void shutdown() {
+        mWorkers.shutdownNow();
+    }
+
+    private static class Row {
+        String mPath;
+        int mOrientation;
+        String mMimeType;
+    }
+
+    private Row query(Uri uri) {
+        Cursor c = mResolver.query(uri, PROJECTION, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            Row row = new Row();
+            row.mPath = c.getString(0);
+            row.mOrientation = c.getInt(1);
+            row.mMimeType = c.getString(2);
+            return row;
+        } finally {
+            c.close();
+        }
+    }
+
+    /* Returns the new orientation, or -1 if the image was left as it was */
+    private int rotate(Uri uri, Row row, boolean clockwise) {
+        if (row.mPath == null || !LocalData.MIME_TYPE_JPEG.equalsIgnoreCase(row.mMimeType)) {
+            Log.w(TAG, "Rotation can only happen on jpeg files: " + uri);
+            return -1;
+        }
+
+        int degrees = (row.mOrientation + (clockwise ? 90 : 270)) % 360;
+        ExifInterface exif = new ExifInterface();
+        ExifTag tag = exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(degrees));
+        try {
+            ExifRewriter.rewrite(row.mPath, Collections.singletonList(tag));
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot set exif data: " + row.mPath, e);
+            return -1;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(Images.Media.ORIENTATION, degrees);
+        values.put(Images.Media.SIZE, new File(row.mPath).length());
+        mResolver.update(uri, values, null, null);
+        return degrees;
+    }
+}
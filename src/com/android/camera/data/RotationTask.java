@@ -17,33 +17,38 @@
 package com.android.camera.data;
 
 import android.app.ProgressDialog;
-import android.content.ContentValues;
 import android.content.Context;
-import android.os.AsyncTask;
-import android.provider.MediaStore.Images;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.android.camera.ImageTaskManager;
 import com.android.camera.data.LocalMediaData.PhotoData;
-import com.android.camera.exif.ExifInterface;
-import com.android.camera.exif.ExifTag;
 
 import org.fusion.sdcam.R;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.util.Collections;
 
 /**
  * RotationTask can be used to rotate a {@link LocalData} by updating the exif
  * data from jpeg file. Note that only {@link PhotoData}  can be rotated.
+ * The rotation runs on a {@link BatchRotator} shared by all tasks.
  */
-public class RotationTask extends AsyncTask<LocalData, Void, LocalData> {
+public class RotationTask implements ImageTaskManager.TaskListener {
     private static final String TAG = "CAM_RotationTask";
+    private static final int ROTATION_THREADS = 1;
+    private static BatchRotator sRotator;
+
     private final Context mContext;
     private final LocalDataAdapter mAdapter;
     private final int mCurrentDataId;
     private final boolean mClockwise;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private ProgressDialog mProgress;
+    private PhotoData mData;
+    private int mOrientation;
+    private volatile boolean mRotated;
 
     public RotationTask(Context context, LocalDataAdapter adapter,
                         int currentDataId, boolean clockwise) {
@@ -53,8 +58,27 @@ public class RotationTask extends AsyncTask<LocalData, Void, LocalData> {
         mClockwise = clockwise;
     }
 
-    @Override
-    protected void onPreExecute() {
+    private static synchronized BatchRotator getRotator(Context context) {
+        if (sRotator == null) {
+            sRotator = new BatchRotator(
+                    context.getApplicationContext().getContentResolver(), ROTATION_THREADS);
+        }
+        return sRotator;
+    }
+
+    /**
+     * Rotates the image by updating the exif. Must be called on the main thread,
+     * the adapter is updated there once the image is done.
+     */
+    public void execute(LocalData data) {
+        if (!(data instanceof PhotoData)) {
+            Log.w(TAG, "Rotation can only happen on PhotoData.");
+            return;
+        }
+        mData = (PhotoData) data;
+        // The rotator turns the image from the same orientation as its row.
+        mOrientation = (mData.getOrientation() + (mClockwise ? 90 : 270)) % 360;
+
         // Show a progress bar since the rotation could take long.
         mProgress = new ProgressDialog(mContext);
         int titleStringId = mClockwise ? R.string.rotate_right : R.string.rotate_left;
@@ -62,92 +86,45 @@ public class RotationTask extends AsyncTask<LocalData, Void, LocalData> {
         mProgress.setMessage(mContext.getString(R.string.please_wait));
         mProgress.setCancelable(false);
         mProgress.show();
+
+        getRotator(mContext).rotate(Collections.singletonList(mData.getContentUri()),
+                mClockwise, this);
     }
 
     @Override
-    protected LocalData doInBackground(LocalData... data) {
-        return rotateInJpegExif(data[0]);
+    public void onTaskQueued(String filePath, Uri imageUri) {
     }
 
-    /**
-     * Rotates the image by updating the exif. Done in background thread.
-     * The worst case is the whole file needed to be re-written with
-     * modified exif data.
-     *
-     * @return A new {@link LocalData} object which containing the new info.
-     */
-    private LocalData rotateInJpegExif(LocalData data) {
-        if (!(data instanceof PhotoData)) {
-            Log.w(TAG, "Rotation can only happen on PhotoData.");
-            return null;
-        }
-
-        PhotoData imageData = (PhotoData) data;
-        int originRotation = imageData.getOrientation();
-        int finalRotationDegrees;
-        if (mClockwise) {
-            finalRotationDegrees = (originRotation + 90) % 360;
-        } else {
-            finalRotationDegrees = (originRotation + 270) % 360;
-        }
+    @Override
+    public void onTaskDone(String filePath, Uri imageUri) {
+        mRotated = true;
+    }
 
-        String filePath = imageData.getPath();
-        ContentValues values = new ContentValues();
-        boolean success = false;
-        int newOrientation = 0;
-        if (imageData.getMimeType().equalsIgnoreCase(LocalData.MIME_TYPE_JPEG)) {
-            ExifInterface exifInterface = new ExifInterface();
-            ExifTag tag = exifInterface.buildTag(
-                    ExifInterface.TAG_ORIENTATION,
-                    ExifInterface.getOrientationValueForRotation(
-                            finalRotationDegrees));
-            if (tag != null) {
-                exifInterface.setTag(tag);
-                try {
-                    // Note: This only works if the file already has some EXIF.
-                    exifInterface.forceRewriteExif(filePath);
-                    long fileSize = new File(filePath).length();
-                    values.put(Images.Media.SIZE, fileSize);
-                    newOrientation = finalRotationDegrees;
-                    success = true;
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG, "Cannot find file to set exif: " + filePath);
-                } catch (IOException e) {
-                    Log.w(TAG, "Cannot set exif data: " + filePath);
-                }
+    // Called last for each image, after onTaskDone if the image was rotated.
+    @Override
+    public void onTaskProgress(final String filePath, Uri imageUri, int progress) {
+        mHandler.post(() -> {
+            mProgress.dismiss();
+            if (mRotated) {
+                mAdapter.updateData(mCurrentDataId, createRotatedData(mOrientation));
             } else {
-                Log.w(TAG, "Cannot build tag: " + ExifInterface.TAG_ORIENTATION);
+                Log.w(TAG, "Cannot rotate " + filePath);
             }
-        }
-
-        PhotoData result = null;
-        if (success) {
-            // MediaStore using SQLite is thread safe.
-            values.put(Images.Media.ORIENTATION, finalRotationDegrees);
-            mContext.getContentResolver().update(imageData.getContentUri(),
-                    values, null, null);
-            double[] latLong = data.getLatLong();
-            double latitude = 0;
-            double longitude = 0;
-            if (latLong != null) {
-                latitude = latLong[0];
-                longitude = latLong[1];
-            }
-
-            result = new PhotoData(data.getContentId(), data.getTitle(),
-                    data.getMimeType(), data.getDateTaken(), data.getDateModified(),
-                    data.getPath(), newOrientation, imageData.getWidth(),
-                    imageData.getHeight(), data.getSizeInBytes(), latitude, longitude);
-        }
-
-        return result;
+        });
     }
 
-    @Override
-    protected void onPostExecute(LocalData result) {
-        mProgress.dismiss();
-        if (result != null) {
-            mAdapter.updateData(mCurrentDataId, result);
+    private PhotoData createRotatedData(int orientation) {
+        double[] latLong = mData.getLatLong();
+        double latitude = 0;
+        double longitude = 0;
+        if (latLong != null) {
+            latitude = latLong[0];
+            longitude = latLong[1];
         }
+
+        return new PhotoData(mData.getContentId(), mData.getTitle(),
+                mData.getMimeType(), mData.getDateTaken(), mData.getDateModified(),
+                mData.getPath(), orientation, mData.getWidth(),
+                mData.getHeight(), mData.getSizeInBytes(), latitude, longitude);
     }
 }
@@ -163,8 +163,26 @@ class ExifData {
     }
 
     /**
-     * Adds the given ExifTag to its default IFD and returns an existing ExifTag
-     * with the same TID or null if none exist.
+     * Returns the first integer value of the tag with a given TID in the given
+     * IFD, or null if there is none. No ExifTag is created for it.
+     */
+    protected Long getTagLongValue(short tag, int ifd) {
+        IfdData ifdData = mIfdDatas[ifd];
+        return (ifdData == null) ? null : ifdData.getValueAsLong(tag);
+    }
+
+    /**
+     * Returns the value of the tag with a given TID in the given IFD as a
+     * String, or null if there is none. No ExifTag is created for it.
+     */
+    protected String getTagStringValue(short tag, int ifd) {
+        IfdData ifdData = mIfdDatas[ifd];
+        return (ifdData == null) ? null : ifdData.getValueAsString(tag);
+    }
+
+    /**
+     * Adds the given ExifTag to its default IFD, replacing an existing ExifTag
+     * with the same TID.
      */
     protected void addTag(ExifTag tag) {
         if (tag != null) {
@@ -174,15 +192,14 @@ class ExifData {
     }
 
     /**
-     * Adds the given ExifTag to the given IFD and returns an existing ExifTag
-     * with the same TID or null if none exist.
+     * Adds the given ExifTag to the given IFD, replacing an existing ExifTag
+     * with the same TID.
      */
-    protected ExifTag addTag(ExifTag tag, int ifdId) {
+    protected void addTag(ExifTag tag, int ifdId) {
         if (tag != null && ExifTag.isValidIfd(ifdId)) {
             IfdData ifdData = getOrCreateIfdData(ifdId);
-            return ifdData.setTag(tag);
+            ifdData.setTag(tag);
         }
-        return null;
     }
 
     protected void clearThumbnailAndStrips() {
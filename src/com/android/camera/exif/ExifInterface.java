@@ -353,7 +353,8 @@ public class ExifInterface {
     private final Calendar mGPSTimeStampCalendar = Calendar
             .getInstance(TimeZone.getTimeZone("UTC"));
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
-    private SparseIntArray mTagInfo = null;
+    // The built-in definitions until a definition is set or removed
+    private SparseIntArray mTagInfo = DefaultTagInfo.INFO;
 
     public ExifInterface() {
         mGPSDateStampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -614,6 +615,13 @@ public class ExifInterface {
         setTags(tags);
     }
 
+    /**
+     * Gets the exif data backing this ExifInterface object.
+     */
+    ExifData getExifData() {
+        return mData;
+    }
+
     /**
      * Clears this ExifInterface object's existing exif tags.
      */
@@ -690,17 +698,56 @@ public class ExifInterface {
         if (jpeg == null || exifOutFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        ExifOutputStream s = null;
+        return writeExif(ByteBuffer.wrap(jpeg), exifOutFileName);
+    }
+
+    /**
+     * Writes the tags from this ExifInterface object into a jpeg image held
+     * in a ByteBuffer, for example an {@link android.media.Image} plane,
+     * removing prior exif tags. Only the new exif header is serialized, the
+     * remaining image data is written to the file as is.
+     *
+     * @param jpeg            a ByteBuffer whose remaining bytes are a jpeg
+     *                        compressed image. Its position is not changed.
+     * @param exifOutFileName a String containing the filepath to which the jpeg
+     *                        image with added exif tags will be written.
+     * @return number of bytes written.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public int writeExif(ByteBuffer jpeg, String exifOutFileName) throws FileNotFoundException,
+            IOException {
+        if (jpeg == null || exifOutFileName == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ExifSplice splice = ExifSplice.build(this, mData, jpeg);
+        FileOutputStream out = null;
+        int size;
         try {
-            s = (ExifOutputStream) getExifWriterStream(exifOutFileName);
-            s.write(jpeg, 0, jpeg.length);
-            s.flush();
+            out = new FileOutputStream(exifOutFileName);
+            size = splice.writeTo(out);
         } catch (IOException e) {
-            closeSilently(s);
+            closeSilently(out);
             throw e;
         }
-        s.close();
-        return s.size();
+        out.close();
+        return size;
+    }
+
+    /**
+     * Writes the tags from this ExifInterface object into a jpeg image,
+     * removing prior exif tags, and returns the result. The image data is
+     * copied exactly once.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @return a new byte array containing the jpeg image with added exif tags.
+     * @throws IOException
+     */
+    public byte[] writeExif(byte[] jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        return ExifSplice.build(this, mData, ByteBuffer.wrap(jpeg)).toByteArray();
     }
 
     /**
@@ -1056,11 +1103,10 @@ public class ExifInterface {
      * @see #getTagValue
      */
     public String getTagStringValue(int tagId, int ifdId) {
-        ExifTag t = getTag(tagId, ifdId);
-        if (t == null) {
+        if (!ExifTag.isValidIfd(ifdId)) {
             return null;
         }
-        return t.getValueAsString();
+        return mData.getTagStringValue(getTrueTagKey(tagId), ifdId);
     }
 
     /**
@@ -1075,11 +1121,10 @@ public class ExifInterface {
      * @see #getTagValue
      */
     public Long getTagLongValue(int tagId, int ifdId) {
-        long[] l = getTagLongValues(tagId, ifdId);
-        if (l == null || l.length <= 0) {
+        if (!ExifTag.isValidIfd(ifdId)) {
             return null;
         }
-        return l[0];
+        return mData.getTagLongValue(getTrueTagKey(tagId), ifdId);
     }
 
     /**
@@ -1094,11 +1139,11 @@ public class ExifInterface {
      * @see #getTagValue
      */
     public Integer getTagIntValue(int tagId, int ifdId) {
-        int[] l = getTagIntValues(tagId, ifdId);
-        if (l == null || l.length <= 0) {
+        Long l = getTagLongValue(tagId, ifdId);
+        if (l == null) {
             return null;
         }
-        return l[0];
+        return (int) l.longValue();
     }
 
     /**
@@ -1482,7 +1527,8 @@ public class ExifInterface {
                     }
                 }
             }
-            getTagInfo().put(tagDef, ifdFlags << 24 | (tagType << 16) | defaultComponentCount);
+            getMutableTagInfo().put(tagDef,
+                    ifdFlags << 24 | (tagType << 16) | defaultComponentCount);
             return tagDef;
         }
         return TAG_NULL;
@@ -1551,14 +1597,14 @@ public class ExifInterface {
      * @param tagId a defined tag constant, e.g. {@link #TAG_IMAGE_WIDTH}.
      */
     public void removeTagDefinition(int tagId) {
-        getTagInfo().delete(tagId);
+        getMutableTagInfo().delete(tagId);
     }
 
     /**
      * Resets tag definitions to the default ones.
      */
     public void resetTagDefinitions() {
-        mTagInfo = null;
+        mTagInfo = DefaultTagInfo.INFO;
     }
 
     /**
@@ -1857,279 +1903,294 @@ public class ExifInterface {
 
     // Convenience methods:
 
+    /**
+     * Returns the tag definitions of this instance. Unless a definition has
+     * been set or removed this is the table shared by all instances, so it
+     * must not be modified; use {@link #getMutableTagInfo()} for that.
+     */
     protected SparseIntArray getTagInfo() {
-        if (mTagInfo == null) {
-            mTagInfo = new SparseIntArray();
-            initTagInfo();
+        return mTagInfo;
+    }
+
+    private SparseIntArray getMutableTagInfo() {
+        if (mTagInfo == DefaultTagInfo.INFO) {
+            mTagInfo = DefaultTagInfo.INFO.clone();
         }
         return mTagInfo;
     }
 
-    private void initTagInfo() {
+    // Built on first use and never modified afterwards
+    private static class DefaultTagInfo {
+        static final SparseIntArray INFO = buildTagInfo();
+    }
+
+    private static SparseIntArray buildTagInfo() {
+        SparseIntArray info = new SparseIntArray();
         // IFD0 tags
         int[] ifdAllowedIfds = {
                 IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1
         };
         int ifdFlags = getFlagsFromAllowedIfds(ifdAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_MAKE,
+        info.put(ExifInterface.TAG_MAKE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_WIDTH,
+        info.put(ExifInterface.TAG_IMAGE_WIDTH,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_LENGTH,
+        info.put(ExifInterface.TAG_IMAGE_LENGTH,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_BITS_PER_SAMPLE,
+        info.put(ExifInterface.TAG_BITS_PER_SAMPLE,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_COMPRESSION,
+        info.put(ExifInterface.TAG_COMPRESSION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PHOTOMETRIC_INTERPRETATION,
+        info.put(ExifInterface.TAG_PHOTOMETRIC_INTERPRETATION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_ORIENTATION, ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16
+        info.put(ExifInterface.TAG_ORIENTATION, ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16
                 | 1);
-        mTagInfo.put(ExifInterface.TAG_SAMPLES_PER_PIXEL,
+        info.put(ExifInterface.TAG_SAMPLES_PER_PIXEL,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PLANAR_CONFIGURATION,
+        info.put(ExifInterface.TAG_PLANAR_CONFIGURATION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_SUB_SAMPLING,
+        info.put(ExifInterface.TAG_Y_CB_CR_SUB_SAMPLING,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_POSITIONING,
+        info.put(ExifInterface.TAG_Y_CB_CR_POSITIONING,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_X_RESOLUTION,
+        info.put(ExifInterface.TAG_X_RESOLUTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_Y_RESOLUTION,
+        info.put(ExifInterface.TAG_Y_RESOLUTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_RESOLUTION_UNIT,
+        info.put(ExifInterface.TAG_RESOLUTION_UNIT,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_STRIP_OFFSETS,
+        info.put(ExifInterface.TAG_STRIP_OFFSETS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16);
-        mTagInfo.put(ExifInterface.TAG_ROWS_PER_STRIP,
+        info.put(ExifInterface.TAG_ROWS_PER_STRIP,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_STRIP_BYTE_COUNTS,
+        info.put(ExifInterface.TAG_STRIP_BYTE_COUNTS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16);
-        mTagInfo.put(ExifInterface.TAG_TRANSFER_FUNCTION,
+        info.put(ExifInterface.TAG_TRANSFER_FUNCTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 3 * 256);
-        mTagInfo.put(ExifInterface.TAG_WHITE_POINT,
+        info.put(ExifInterface.TAG_WHITE_POINT,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_PRIMARY_CHROMATICITIES,
+        info.put(ExifInterface.TAG_PRIMARY_CHROMATICITIES,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 6);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_COEFFICIENTS,
+        info.put(ExifInterface.TAG_Y_CB_CR_COEFFICIENTS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_REFERENCE_BLACK_WHITE,
+        info.put(ExifInterface.TAG_REFERENCE_BLACK_WHITE,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 6);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME,
+        info.put(ExifInterface.TAG_DATE_TIME,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_DESCRIPTION,
+        info.put(ExifInterface.TAG_IMAGE_DESCRIPTION,
                 ifdFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_MAKE,
+        info.put(ExifInterface.TAG_MAKE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_MODEL,
+        info.put(ExifInterface.TAG_MODEL,
                 ifdFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_SOFTWARE,
+        info.put(ExifInterface.TAG_SOFTWARE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_ARTIST,
+        info.put(ExifInterface.TAG_ARTIST,
                 ifdFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_COPYRIGHT,
+        info.put(ExifInterface.TAG_COPYRIGHT,
                 ifdFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_EXIF_IFD,
+        info.put(ExifInterface.TAG_EXIF_IFD,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_IFD,
+        info.put(ExifInterface.TAG_GPS_IFD,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // IFD1 tags
         int[] ifd1AllowedIfds = {
                 IfdId.TYPE_IFD_1
         };
         int ifdFlags1 = getFlagsFromAllowedIfds(ifd1AllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
+        info.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
                 ifdFlags1 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
+        info.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
                 ifdFlags1 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // Exif tags
         int[] exifAllowedIfds = {
                 IfdId.TYPE_IFD_EXIF
         };
         int exifFlags = getFlagsFromAllowedIfds(exifAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_EXIF_VERSION,
+        info.put(ExifInterface.TAG_EXIF_VERSION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_FLASHPIX_VERSION,
+        info.put(ExifInterface.TAG_FLASHPIX_VERSION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_COLOR_SPACE,
+        info.put(ExifInterface.TAG_COLOR_SPACE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_COMPONENTS_CONFIGURATION,
+        info.put(ExifInterface.TAG_COMPONENTS_CONFIGURATION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_COMPRESSED_BITS_PER_PIXEL,
+        info.put(ExifInterface.TAG_COMPRESSED_BITS_PER_PIXEL,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PIXEL_X_DIMENSION,
+        info.put(ExifInterface.TAG_PIXEL_X_DIMENSION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PIXEL_Y_DIMENSION,
+        info.put(ExifInterface.TAG_PIXEL_Y_DIMENSION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_MAKER_NOTE,
+        info.put(ExifInterface.TAG_MAKER_NOTE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16);
-        mTagInfo.put(ExifInterface.TAG_USER_COMMENT,
+        info.put(ExifInterface.TAG_USER_COMMENT,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16);
-        mTagInfo.put(ExifInterface.TAG_RELATED_SOUND_FILE,
+        info.put(ExifInterface.TAG_RELATED_SOUND_FILE,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 13);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME_ORIGINAL,
+        info.put(ExifInterface.TAG_DATE_TIME_ORIGINAL,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME_DIGITIZED,
+        info.put(ExifInterface.TAG_DATE_TIME_DIGITIZED,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME,
+        info.put(ExifInterface.TAG_SUB_SEC_TIME,
                 exifFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_ORIGINAL,
+        info.put(ExifInterface.TAG_SUB_SEC_TIME_ORIGINAL,
                 exifFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_DIGITIZED,
+        info.put(ExifInterface.TAG_SUB_SEC_TIME_DIGITIZED,
                 exifFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_UNIQUE_ID,
+        info.put(ExifInterface.TAG_IMAGE_UNIQUE_ID,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 33);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_TIME,
+        info.put(ExifInterface.TAG_EXPOSURE_TIME,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_F_NUMBER,
+        info.put(ExifInterface.TAG_F_NUMBER,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_PROGRAM,
+        info.put(ExifInterface.TAG_EXPOSURE_PROGRAM,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SPECTRAL_SENSITIVITY,
+        info.put(ExifInterface.TAG_SPECTRAL_SENSITIVITY,
                 exifFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_ISO_SPEED_RATINGS,
+        info.put(ExifInterface.TAG_ISO_SPEED_RATINGS,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16);
-        mTagInfo.put(ExifInterface.TAG_OECF,
+        info.put(ExifInterface.TAG_OECF,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16);
-        mTagInfo.put(ExifInterface.TAG_SHUTTER_SPEED_VALUE,
+        info.put(ExifInterface.TAG_SHUTTER_SPEED_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_APERTURE_VALUE,
+        info.put(ExifInterface.TAG_APERTURE_VALUE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_BRIGHTNESS_VALUE,
+        info.put(ExifInterface.TAG_BRIGHTNESS_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
+        info.put(ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_MAX_APERTURE_VALUE,
+        info.put(ExifInterface.TAG_MAX_APERTURE_VALUE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE,
+        info.put(ExifInterface.TAG_SUBJECT_DISTANCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_METERING_MODE,
+        info.put(ExifInterface.TAG_METERING_MODE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_LIGHT_SOURCE,
+        info.put(ExifInterface.TAG_LIGHT_SOURCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FLASH,
+        info.put(ExifInterface.TAG_FLASH,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_LENGTH,
+        info.put(ExifInterface.TAG_FOCAL_LENGTH,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_AREA,
+        info.put(ExifInterface.TAG_SUBJECT_AREA,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16);
-        mTagInfo.put(ExifInterface.TAG_FLASH_ENERGY,
+        info.put(ExifInterface.TAG_FLASH_ENERGY,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SPATIAL_FREQUENCY_RESPONSE,
+        info.put(ExifInterface.TAG_SPATIAL_FREQUENCY_RESPONSE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_X_RESOLUTION,
+        info.put(ExifInterface.TAG_FOCAL_PLANE_X_RESOLUTION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_Y_RESOLUTION,
+        info.put(ExifInterface.TAG_FOCAL_PLANE_Y_RESOLUTION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_RESOLUTION_UNIT,
+        info.put(ExifInterface.TAG_FOCAL_PLANE_RESOLUTION_UNIT,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_LOCATION,
+        info.put(ExifInterface.TAG_SUBJECT_LOCATION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_INDEX,
+        info.put(ExifInterface.TAG_EXPOSURE_INDEX,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SENSING_METHOD,
+        info.put(ExifInterface.TAG_SENSING_METHOD,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FILE_SOURCE,
+        info.put(ExifInterface.TAG_FILE_SOURCE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SCENE_TYPE,
+        info.put(ExifInterface.TAG_SCENE_TYPE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_CFA_PATTERN,
+        info.put(ExifInterface.TAG_CFA_PATTERN,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16);
-        mTagInfo.put(ExifInterface.TAG_CUSTOM_RENDERED,
+        info.put(ExifInterface.TAG_CUSTOM_RENDERED,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_MODE,
+        info.put(ExifInterface.TAG_EXPOSURE_MODE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_WHITE_BALANCE,
+        info.put(ExifInterface.TAG_WHITE_BALANCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_DIGITAL_ZOOM_RATIO,
+        info.put(ExifInterface.TAG_DIGITAL_ZOOM_RATIO,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_LENGTH_IN_35_MM_FILE,
+        info.put(ExifInterface.TAG_FOCAL_LENGTH_IN_35_MM_FILE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SCENE_CAPTURE_TYPE,
+        info.put(ExifInterface.TAG_SCENE_CAPTURE_TYPE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GAIN_CONTROL,
+        info.put(ExifInterface.TAG_GAIN_CONTROL,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_CONTRAST,
+        info.put(ExifInterface.TAG_CONTRAST,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SATURATION,
+        info.put(ExifInterface.TAG_SATURATION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SHARPNESS,
+        info.put(ExifInterface.TAG_SHARPNESS,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_DEVICE_SETTING_DESCRIPTION,
+        info.put(ExifInterface.TAG_DEVICE_SETTING_DESCRIPTION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE_RANGE,
+        info.put(ExifInterface.TAG_SUBJECT_DISTANCE_RANGE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_INTEROPERABILITY_IFD, exifFlags
+        info.put(ExifInterface.TAG_INTEROPERABILITY_IFD, exifFlags
                 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // GPS tag
         int[] gpsAllowedIfds = {
                 IfdId.TYPE_IFD_GPS
         };
         int gpsFlags = getFlagsFromAllowedIfds(gpsAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_GPS_VERSION_ID,
+        info.put(ExifInterface.TAG_GPS_VERSION_ID,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_BYTE << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_GPS_LATITUDE_REF,
+        info.put(ExifInterface.TAG_GPS_LATITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_LONGITUDE_REF,
+        info.put(ExifInterface.TAG_GPS_LONGITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_LATITUDE,
+        info.put(ExifInterface.TAG_GPS_LATITUDE,
                 gpsFlags | ExifTag.TYPE_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_LONGITUDE,
+        info.put(ExifInterface.TAG_GPS_LONGITUDE,
                 gpsFlags | ExifTag.TYPE_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_ALTITUDE_REF,
+        info.put(ExifInterface.TAG_GPS_ALTITUDE_REF,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_BYTE << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_ALTITUDE,
+        info.put(ExifInterface.TAG_GPS_ALTITUDE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_TIME_STAMP,
+        info.put(ExifInterface.TAG_GPS_TIME_STAMP,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_SATTELLITES,
+        info.put(ExifInterface.TAG_GPS_SATTELLITES,
                 gpsFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_GPS_STATUS,
+        info.put(ExifInterface.TAG_GPS_STATUS,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_MEASURE_MODE,
+        info.put(ExifInterface.TAG_GPS_MEASURE_MODE,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DOP,
+        info.put(ExifInterface.TAG_GPS_DOP,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_SPEED_REF,
+        info.put(ExifInterface.TAG_GPS_SPEED_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_SPEED,
+        info.put(ExifInterface.TAG_GPS_SPEED,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_TRACK_REF,
+        info.put(ExifInterface.TAG_GPS_TRACK_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_TRACK,
+        info.put(ExifInterface.TAG_GPS_TRACK,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
+        info.put(ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION,
+        info.put(ExifInterface.TAG_GPS_IMG_DIRECTION,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_MAP_DATUM,
+        info.put(ExifInterface.TAG_GPS_MAP_DATUM,
                 gpsFlags | ExifTag.TYPE_ASCII << 16);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
+        info.put(ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE,
+        info.put(ExifInterface.TAG_GPS_DEST_LATITUDE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING_REF,
+        info.put(ExifInterface.TAG_GPS_DEST_BEARING_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING,
+        info.put(ExifInterface.TAG_GPS_DEST_BEARING,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
+        info.put(ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE,
+        info.put(ExifInterface.TAG_GPS_DEST_DISTANCE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_PROCESSING_METHOD,
+        info.put(ExifInterface.TAG_GPS_PROCESSING_METHOD,
                 gpsFlags | ExifTag.TYPE_UNDEFINED << 16);
-        mTagInfo.put(ExifInterface.TAG_GPS_AREA_INFORMATION,
+        info.put(ExifInterface.TAG_GPS_AREA_INFORMATION,
                 gpsFlags | ExifTag.TYPE_UNDEFINED << 16);
-        mTagInfo.put(ExifInterface.TAG_GPS_DATE_STAMP,
+        info.put(ExifInterface.TAG_GPS_DATE_STAMP,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 11);
-        mTagInfo.put(ExifInterface.TAG_GPS_DIFFERENTIAL,
+        info.put(ExifInterface.TAG_GPS_DIFFERENTIAL,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 11);
         // Interoperability tag
         int[] interopAllowedIfds = {
                 IfdId.TYPE_IFD_INTEROPERABILITY
         };
         int interopFlags = getFlagsFromAllowedIfds(interopAllowedIfds) << 24;
-        mTagInfo.put(TAG_INTEROPERABILITY_INDEX, interopFlags | ExifTag.TYPE_ASCII << 16);
+        info.put(TAG_INTEROPERABILITY_INDEX, interopFlags | ExifTag.TYPE_ASCII << 16);
+        return info;
     }
 
     /**
@@ -83,7 +83,11 @@ class ExifOutputStream extends FilterOutputStream {
     private int mSize = 0;
 
     protected ExifOutputStream(OutputStream ou, ExifInterface iRef) {
-        super(new BufferedOutputStream(ou, STREAMBUFFER_SIZE));
+        this(ou, iRef, true);
+    }
+
+    ExifOutputStream(OutputStream ou, ExifInterface iRef, boolean buffered) {
+        super(buffered ? new BufferedOutputStream(ou, STREAMBUFFER_SIZE) : ou);
         mInterface = iRef;
     }
 
@@ -252,8 +256,18 @@ class ExifOutputStream extends FilterOutputStream {
     }
 
     private void writeExifData() throws IOException {
+        mSize += writeExifSegment(out);
+    }
+
+    /**
+     * Serializes the APP1 segment holding the current ExifData to the given
+     * stream without touching any image data.
+     *
+     * @return number of bytes written.
+     */
+    int writeExifSegment(OutputStream target) throws IOException {
         if (mExifData == null) {
-            return;
+            return 0;
         }
         if (DEBUG) {
             Log.v(TAG, "Writing exif data...");
@@ -264,7 +278,7 @@ class ExifOutputStream extends FilterOutputStream {
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
-        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(out);
+        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(target);
         dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
         dataOutputStream.writeShort(JpegHeader.APP1);
         dataOutputStream.writeShort((short) (exifSize + 8));
@@ -283,15 +297,24 @@ class ExifOutputStream extends FilterOutputStream {
         for (ExifTag t : nullTags) {
             mExifData.addTag(t);
         }
-        mSize += dataOutputStream.size();
+        return dataOutputStream.size();
     }
 
     private ArrayList<ExifTag> stripNullValueTags(ExifData data) {
         ArrayList<ExifTag> nullTags = new ArrayList<>();
-        for (ExifTag t : data.getAllTags()) {
-            if (t.getValue() == null && !ExifInterface.isOffsetTag(t.getTagId())) {
-                data.removeTag(t.getTagId(), t.getIfd());
-                nullTags.add(t);
+        for (int ifdId : IfdData.getIfds()) {
+            IfdData ifd = data.getIfdData(ifdId);
+            if (ifd == null) {
+                continue;
+            }
+            // Packed tags always have a value, only look at the ExifTags
+            for (int i = ifd.getTagCount() - 1; i >= 0; i--) {
+                ExifTag t = ifd.getLiveTagAt(i);
+                if (t != null && t.getValue() == null
+                        && !ExifInterface.isOffsetTag(t.getTagId())) {
+                    ifd.removeTag(t.getTagId());
+                    nullTags.add(t);
+                }
             }
         }
         return nullTags;
@@ -326,39 +349,42 @@ class ExifOutputStream extends FilterOutputStream {
 
     private void writeIfd(IfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
-        ExifTag[] tags = ifd.getAllTags();
-        dataOutputStream.writeShort((short) tags.length);
-        for (ExifTag tag : tags) {
-            dataOutputStream.writeShort(tag.getTagId());
-            dataOutputStream.writeShort(tag.getDataType());
-            dataOutputStream.writeInt(tag.getComponentCount());
+        int count = ifd.getTagCount();
+        dataOutputStream.writeShort((short) count);
+        for (int t = 0; t < count; t++) {
+            int dataSize = ifd.getDataSizeAt(t);
+            dataOutputStream.writeShort(ifd.getTagIdAt(t));
+            dataOutputStream.writeShort(ifd.getDataTypeAt(t));
+            dataOutputStream.writeInt(ifd.getComponentCountAt(t));
             if (DEBUG) {
-                Log.v(TAG, "\n" + tag.toString());
+                Log.v(TAG, String.format("tag id: %04X type: %d count: %d", ifd.getTagIdAt(t),
+                        ifd.getDataTypeAt(t), ifd.getComponentCountAt(t)));
             }
-            if (tag.getDataSize() > 4) {
-                dataOutputStream.writeInt(tag.getOffset());
+            if (dataSize > 4) {
+                dataOutputStream.writeInt(ifd.getValueOffsetAt(t));
             } else {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
-                for (int i = 0, n = 4 - tag.getDataSize(); i < n; i++) {
+                ifd.writeValueAt(t, dataOutputStream);
+                for (int i = 0, n = 4 - dataSize; i < n; i++) {
                     dataOutputStream.write(0);
                 }
             }
         }
         dataOutputStream.writeInt(ifd.getOffsetToNextIfd());
-        for (ExifTag tag : tags) {
-            if (tag.getDataSize() > 4) {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
+        for (int t = 0; t < count; t++) {
+            if (ifd.getDataSizeAt(t) > 4) {
+                ifd.writeValueAt(t, dataOutputStream);
             }
         }
     }
 
     private int calculateOffsetOfIfd(IfdData ifd, int offset) {
-        offset += 2 + ifd.getTagCount() * TAG_SIZE + 4;
-        ExifTag[] tags = ifd.getAllTags();
-        for (ExifTag tag : tags) {
-            if (tag.getDataSize() > 4) {
-                tag.setOffset(offset);
-                offset += tag.getDataSize();
+        int count = ifd.getTagCount();
+        offset += 2 + count * TAG_SIZE + 4;
+        for (int t = 0; t < count; t++) {
+            int dataSize = ifd.getDataSizeAt(t);
+            if (dataSize > 4) {
+                ifd.setValueOffsetAt(t, offset);
+                offset += dataSize;
             }
         }
         return offset;
@@ -0,0 +1,332 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import com.android.camera.util.CameraUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the orientation, pixel dimensions, date time and embedded thumbnail
+ * location of a jpeg without building an {@link ExifInterface}. Only IFD0,
+ * the Exif IFD and IFD1 are visited, straight from the source buffer, and no
+ * tag objects are created.
+ * <p>
+ * Values that are missing or out of bounds read as 0, or -1 for the thumbnail
+ * offset. The date time is decoded on request from the source, which must
+ * not change until then.
+ */
+public class ExifProbe {
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+    private static final short EXIF_HEADER_TAIL = 0x0000;
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final short TIFF_HEADER = 0x002a;
+
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_UNSIGNED_SHORT = 3;
+    private static final short TYPE_UNSIGNED_LONG = 4;
+
+    private static final short TAG_IMAGE_WIDTH = 0x0100;
+    private static final short TAG_IMAGE_LENGTH = 0x0101;
+    private static final short TAG_ORIENTATION = 0x0112;
+    private static final short TAG_DATE_TIME = 0x0132;
+    private static final short TAG_EXIF_IFD = (short) 0x8769;
+    private static final short TAG_PIXEL_X_DIMENSION = (short) 0xa002;
+    private static final short TAG_PIXEL_Y_DIMENSION = (short) 0xa003;
+    private static final short TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final short TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    private ByteBuffer mSource;
+    private int mTiffStart;
+    private int mTiffEnd;
+    private boolean mHasExif;
+    private short mOrientation;
+    private int mImageWidth;
+    private int mImageLength;
+    private int mPixelXDimension;
+    private int mPixelYDimension;
+    private int mDateTimeOffset = -1;
+    private int mDateTimeLength;
+    private int mThumbnailOffset = -1;
+    private int mThumbnailLength;
+
+    private ExifProbe() {
+    }
+
+    public static ExifProbe probe(byte[] jpeg) {
+        return probe(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * Probes the jpeg held in the remaining bytes of the buffer. The position
+     * of the buffer is not modified, offsets are relative to it.
+     */
+    public static ExifProbe probe(ByteBuffer jpeg) {
+        ExifProbe probe = new ExifProbe();
+        probe.mSource = jpeg.slice();
+        probe.parse();
+        return probe;
+    }
+
+    /**
+     * Probes a jpeg file through a read only mapping, so only the pages with
+     * the Exif header are ever read.
+     */
+    public static ExifProbe probe(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return probe(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            CameraUtil.closeSilently(in);
+        }
+    }
+
+    public boolean hasExif() {
+        return mHasExif;
+    }
+
+    /* The orientation tag value, 0 if there is none */
+    public short getOrientationValue() {
+        return mOrientation;
+    }
+
+    /* Clockwise rotation in degrees, same as Exif.getOrientation(ExifInterface) */
+    public int getRotation() {
+        return ExifInterface.getRotationForOrientationValue(mOrientation);
+    }
+
+    /* PixelXDimension of the Exif IFD, or ImageWidth of IFD0 */
+    public int getWidth() {
+        return mPixelXDimension != 0 ? mPixelXDimension : mImageWidth;
+    }
+
+    /* PixelYDimension of the Exif IFD, or ImageLength of IFD0 */
+    public int getHeight() {
+        return mPixelYDimension != 0 ? mPixelYDimension : mImageLength;
+    }
+
+    /* The DateTime of IFD0 as stored, "yyyy:MM:dd HH:mm:ss", or null */
+    public String getDateTime() {
+        if (mDateTimeOffset < 0) {
+            return null;
+        }
+        char[] chars = new char[mDateTimeLength];
+        int n = 0;
+        while (n < mDateTimeLength) {
+            byte b = mSource.get(mDateTimeOffset + n);
+            if (b == 0) {
+                break;
+            }
+            chars[n++] = (char) (b & 0xff);
+        }
+        return new String(chars, 0, n);
+    }
+
+    public boolean hasThumbnail() {
+        return mThumbnailOffset >= 0;
+    }
+
+    /* Offset of the compressed thumbnail from the start of the jpeg, or -1 */
+    public int getThumbnailOffset() {
+        return mThumbnailOffset;
+    }
+
+    public int getThumbnailLength() {
+        return mThumbnailLength;
+    }
+
+    private void parse() {
+        ByteBuffer b = mSource;
+        int end = b.limit();
+        if (end < 4 || b.getShort(0) != JpegHeader.SOI) {
+            return;
+        }
+        // Same walk as ExifParser.seekTiffData()
+        int offset = 2;
+        while (end - offset >= 4) {
+            short marker = b.getShort(offset);
+            if (marker == JpegHeader.EOI || !JpegHeader.isSofMarker(marker)) {
+                return;
+            }
+            int length = b.getShort(offset + 2) & 0xffff;
+            if (marker == JpegHeader.APP1 && length >= 8 && end - offset >= 10
+                    && b.getInt(offset + 4) == EXIF_HEADER
+                    && b.getShort(offset + 8) == EXIF_HEADER_TAIL) {
+                mTiffStart = offset + 10;
+                mTiffEnd = Math.min(end, offset + 2 + length);
+                parseTiff();
+                return;
+            }
+            if (length < 2) {
+                return;
+            }
+            offset += 2 + length;
+        }
+    }
+
+    private void parseTiff() {
+        if (mTiffEnd - mTiffStart < 8) {
+            return;
+        }
+        ByteBuffer b = mSource.duplicate();
+        short order = b.getShort(mTiffStart);
+        if (order == TIFF_LITTLE_ENDIAN) {
+            b.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order != TIFF_BIG_ENDIAN) {
+            return;
+        }
+        if (b.getShort(mTiffStart + 2) != TIFF_HEADER) {
+            return;
+        }
+        mHasExif = true;
+        int ifd1 = parseIfd(b, b.getInt(mTiffStart + 4), true);
+        if (ifd1 > 0) {
+            parseIfd(b, ifd1, false);
+        }
+    }
+
+    /* Visits IFD0 or IFD1, returns the offset of the next IFD or 0 */
+    private int parseIfd(ByteBuffer b, int ifdOffset, boolean ifd0) {
+        int start = entriesStart(b, ifdOffset);
+        if (start < 0) {
+            return 0;
+        }
+        int count = b.getShort(start - 2) & 0xffff;
+        int thumbnailOffset = -1;
+        int thumbnailLength = 0;
+        for (int i = 0; i < count; i++) {
+            int entry = start + i * IFD_ENTRY_SIZE;
+            short tag = b.getShort(entry);
+            if (ifd0) {
+                switch (tag) {
+                    case TAG_ORIENTATION:
+                        mOrientation = (short) getInt(b, entry);
+                        break;
+                    case TAG_IMAGE_WIDTH:
+                        mImageWidth = getInt(b, entry);
+                        break;
+                    case TAG_IMAGE_LENGTH:
+                        mImageLength = getInt(b, entry);
+                        break;
+                    case TAG_DATE_TIME:
+                        parseDateTime(b, entry);
+                        break;
+                    case TAG_EXIF_IFD:
+                        parseExifIfd(b, getInt(b, entry));
+                        break;
+                }
+            } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+                thumbnailOffset = getInt(b, entry);
+            } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                thumbnailLength = getInt(b, entry);
+            }
+        }
+        if (thumbnailOffset > 0 && thumbnailLength > 0
+                && thumbnailOffset <= mTiffEnd - mTiffStart - thumbnailLength) {
+            mThumbnailOffset = mTiffStart + thumbnailOffset;
+            mThumbnailLength = thumbnailLength;
+        }
+        int next = start + count * IFD_ENTRY_SIZE;
+        return next + 4 <= mTiffEnd ? b.getInt(next) : 0;
+    }
+
+    private void parseExifIfd(ByteBuffer b, int ifdOffset) {
+        int start = entriesStart(b, ifdOffset);
+        if (start < 0) {
+            return;
+        }
+        int count = b.getShort(start - 2) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int entry = start + i * IFD_ENTRY_SIZE;
+            short tag = b.getShort(entry);
+            if (tag == TAG_PIXEL_X_DIMENSION) {
+                mPixelXDimension = getInt(b, entry);
+            } else if (tag == TAG_PIXEL_Y_DIMENSION) {
+                mPixelYDimension = getInt(b, entry);
+            }
+        }
+    }
+
+    /* Returns the position of the first entry, or -1 if the IFD is out of bounds */
+    private int entriesStart(ByteBuffer b, int ifdOffset) {
+        if (ifdOffset < 8 || ifdOffset > mTiffEnd - mTiffStart - 2) {
+            return -1;
+        }
+        int countPos = mTiffStart + ifdOffset;
+        int count = b.getShort(countPos) & 0xffff;
+        if ((long) count * IFD_ENTRY_SIZE > mTiffEnd - countPos - 2) {
+            return -1;
+        }
+        return countPos + 2;
+    }
+
+    /* The first value of an unsigned short or long entry, 0 for other types */
+    private static int getInt(ByteBuffer b, int entry) {
+        short type = b.getShort(entry + 2);
+        if (b.getInt(entry + 4) < 1) {
+            return 0;
+        }
+        if (type == TYPE_UNSIGNED_SHORT) {
+            return b.getShort(entry + 8) & 0xffff;
+        } else if (type == TYPE_UNSIGNED_LONG) {
+            return b.getInt(entry + 8);
+        }
+        return 0;
+    }
+
+    private void parseDateTime(ByteBuffer b, int entry) {
+        if (b.getShort(entry + 2) != TYPE_ASCII) {
+            return;
+        }
+        int count = b.getInt(entry + 4);
+        if (count < 1) {
+            return;
+        }
+        int offset;
+        if (count <= 4) {
+            offset = entry + 8;
+        } else {
+            int valueOffset = b.getInt(entry + 8);
+            if (valueOffset < 8 || valueOffset > mTiffEnd - mTiffStart - count) {
+                return;
+            }
+            offset = mTiffStart + valueOffset;
+        }
+        mDateTimeOffset = offset;
+        mDateTimeLength = count;
+    }
+}
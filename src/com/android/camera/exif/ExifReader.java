@@ -51,14 +51,15 @@ class ExifReader {
         while (event != ExifParser.EVENT_END) {
             switch (event) {
                 case ExifParser.EVENT_START_OF_IFD:
-                    exifData.addIfdData(new IfdData(parser.getCurrentIfd()));
+                    exifData.addIfdData(new IfdData(parser.getCurrentIfd(),
+                            parser.getTagCountInCurrentIfd()));
                     break;
                 case ExifParser.EVENT_NEW_TAG:
                     tag = parser.getTag();
                     if (!tag.hasValue()) {
                         parser.registerForTagValue(tag);
                     } else {
-                        exifData.getIfdData(tag.getIfd()).setTag(tag);
+                        exifData.getIfdData(tag.getIfd()).packTag(tag);
                     }
                     break;
                 case ExifParser.EVENT_VALUE_OF_REGISTERED_TAG:
@@ -66,7 +67,7 @@ class ExifReader {
                     if (tag.getDataType() == ExifTag.TYPE_UNDEFINED) {
                         parser.readFullTagValue(tag);
                     }
-                    exifData.getIfdData(tag.getIfd()).setTag(tag);
+                    exifData.getIfdData(tag.getIfd()).packTag(tag);
                     break;
                 case ExifParser.EVENT_COMPRESSED_IMAGE:
                     byte buf[] = new byte[parser.getCompressedImageSize()];
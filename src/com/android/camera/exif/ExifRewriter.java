@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collection;
+
+/**
+ * Writes tags into the Exif header of a jpeg file through a mapping of the
+ * file. Tags whose slot already exists with the same type and size are
+ * patched in place with {@link ExifModifier}. Otherwise only the header is
+ * serialized again: it is written to a temporary file followed by the rest
+ * of the mapped image, which then replaces the original.
+ */
+public class ExifRewriter {
+    public static final int RESULT_IN_PLACE = 0;
+    public static final int RESULT_HEADER_REWRITTEN = 1;
+
+    private static final String TEMP_SUFFIX = ".exif.tmp";
+
+    private ExifRewriter() {
+    }
+
+    /**
+     * Writes tags into the jpeg at filename, keeping all other tags.
+     *
+     * @return {@link #RESULT_IN_PLACE} if the tags were patched in place or
+     * {@link #RESULT_HEADER_REWRITTEN} if the header had to be rebuilt.
+     */
+    public static int rewrite(String filename, Collection<ExifTag> tags) throws IOException {
+        File file = new File(filename);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + filename);
+            }
+            MappedByteBuffer buf = channel.map(MapMode.READ_WRITE, 0, length);
+            if (new ExifInterface().rewriteExif(buf, tags)) {
+                buf.force();
+                return RESULT_IN_PLACE;
+            }
+            buf.clear();
+            rewriteHeader(file, buf, tags);
+            return RESULT_HEADER_REWRITTEN;
+        } finally {
+            ExifInterface.closeSilently(raf);
+        }
+    }
+
+    private static void rewriteHeader(File file, MappedByteBuffer buf, Collection<ExifTag> tags)
+            throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(new ByteBufferInputStream(buf.duplicate()));
+        exif.setTags(tags);
+        ExifSplice splice = ExifSplice.build(exif, exif.getExifData(), buf);
+
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            // The image data goes from the mapping to the file without a copy on the heap
+            splice.writeTo(out);
+            out.getFD().sync();
+            out.close();
+        } catch (IOException e) {
+            ExifInterface.closeSilently(out);
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Replaces the Exif header of a JPEG image without streaming the image data
+ * through {@link ExifOutputStream}. Only the SOI and the marker segments in
+ * front of the frame header are parsed; the new APP1 is serialized into a
+ * small header buffer and the rest of the source is referenced as views of
+ * the original buffer, ready for a gathering write.
+ * <p>
+ * The output is byte-for-byte identical to what ExifOutputStream produces.
+ */
+class ExifSplice {
+    private static final int HEADER_SIZE_HINT = 4096;
+
+    private final ByteBuffer[] mBuffers;
+    private final int mTotalLength;
+
+    private ExifSplice(ByteBuffer[] buffers) {
+        mBuffers = buffers;
+        int total = 0;
+        for (ByteBuffer b : buffers) {
+            total += b.remaining();
+        }
+        mTotalLength = total;
+    }
+
+    /**
+     * Builds the splice for the remaining bytes of jpeg. The position and
+     * limit of jpeg are not modified.
+     */
+    static ExifSplice build(ExifInterface iRef, ExifData exifData, ByteBuffer jpeg)
+            throws IOException {
+        checkJpeg(jpeg);
+        return build(buildHeader(iRef, exifData), jpeg);
+    }
+
+    /**
+     * Serializes the SOI and the APP1 segment for exifData.
+     */
+    static byte[] buildHeader(ExifInterface iRef, ExifData exifData) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE_HINT);
+        header.write(0xff & (JpegHeader.SOI >> 8));
+        header.write(0xff & JpegHeader.SOI);
+        ExifOutputStream eos = new ExifOutputStream(header, iRef, false);
+        eos.setExifData(exifData);
+        eos.writeExifSegment(header);
+        return header.toByteArray();
+    }
+
+    /**
+     * Builds the splice with a header from {@link #buildHeader}. The header
+     * is referenced, not copied.
+     */
+    static ExifSplice build(byte[] headerBytes, ByteBuffer jpeg) throws IOException {
+        checkJpeg(jpeg);
+        ByteBuffer src = jpeg.duplicate();
+        int start = src.position();
+        int end = src.limit();
+
+        // Same walk as ExifOutputStream: keep segments until the first APP1,
+        // which is dropped, or until a frame header or other marker.
+        int offset = start + 2;
+        int skipStart = -1;
+        int skipEnd = -1;
+        while (end - offset >= 4) {
+            short marker = src.getShort(offset);
+            int length = src.getShort(offset + 2) & 0x0000ffff;
+            if (marker == JpegHeader.APP1) {
+                skipStart = offset;
+                skipEnd = Math.min(end, offset + 2 + length);
+                break;
+            } else if (JpegHeader.isSofMarker(marker)) {
+                offset = Math.min(end, offset + 2 + length);
+            } else {
+                break;
+            }
+        }
+
+        ByteBuffer[] buffers;
+        if (skipStart < 0) {
+            buffers = new ByteBuffer[] {
+                    ByteBuffer.wrap(headerBytes), slice(src, start + 2, end)
+            };
+        } else {
+            buffers = new ByteBuffer[] {
+                    ByteBuffer.wrap(headerBytes), slice(src, start + 2, skipStart),
+                    slice(src, skipEnd, end)
+            };
+        }
+        return new ExifSplice(buffers);
+    }
+
+    private static void checkJpeg(ByteBuffer jpeg) throws IOException {
+        ByteBuffer src = jpeg.duplicate();
+        if (src.remaining() < 2 || src.getShort(src.position()) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer src, int from, int to) {
+        ByteBuffer b = src.duplicate();
+        b.limit(to);
+        b.position(from);
+        return b.slice();
+    }
+
+    int getLength() {
+        return mTotalLength;
+    }
+
+    /**
+     * Writes the spliced image to a file. Array-backed parts are written
+     * straight from their arrays, since handing heap buffers to a channel
+     * makes it copy them into temporary direct buffers first. Anything else,
+     * such as an Image plane, goes through a gathering write on the channel.
+     */
+    int writeTo(FileOutputStream out) throws IOException {
+        for (ByteBuffer b : mBuffers) {
+            if (!b.hasArray()) {
+                return writeTo(out.getChannel());
+            }
+        }
+        for (ByteBuffer b : mBuffers) {
+            out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+        return mTotalLength;
+    }
+
+    /**
+     * Writes the spliced image with as few gathering writes as the channel
+     * allows.
+     */
+    int writeTo(GatheringByteChannel channel) throws IOException {
+        long written = 0;
+        while (written < mTotalLength) {
+            long n = channel.write(mBuffers);
+            if (n < 0) {
+                throw new IOException("Channel closed while writing exif");
+            }
+            written += n;
+        }
+        return mTotalLength;
+    }
+
+    /**
+     * Copies the spliced image into a single exact-size array.
+     */
+    byte[] toByteArray() {
+        byte[] out = new byte[mTotalLength];
+        int pos = 0;
+        for (ByteBuffer b : mBuffers) {
+            ByteBuffer d = b.duplicate();
+            int n = d.remaining();
+            d.get(out, pos, n);
+            pos += n;
+        }
+        return out;
+    }
+}
@@ -234,6 +234,14 @@ public class ExifTag {
         mComponentCountActual = count;
     }
 
+    /**
+     * Sets the value without any checks. The value must already be in the
+     * form the setters store it in.
+     */
+    protected void forceSetValue(Object value) {
+        mValue = value;
+    }
+
     /**
      * Returns true if this ExifTag contains value; otherwise, this tag will
      * contain an offset value that is determined when the tag is written.
@@ -0,0 +1,298 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * An Exif header serialized once and reused for many images, such as the
+ * frames of a burst. Each {@link Frame} starts from a copy of the header and
+ * can overwrite the values of tags that are already in it, as long as the new
+ * value has the same type and fits in the space of the old one. Nothing is
+ * laid out again, so offsets, IFDs and the thumbnail stay as they were.
+ */
+public class ExifTemplate {
+    private static final int TIFF_START = 12; // SOI, APP1 marker and length, "Exif\0\0"
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final long UNSIGNED_LONG_MAX = 0xffffffffL;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final String DATETIME_FORMAT_STR = "yyyy:MM:dd kk:mm:ss";
+    private static final DateFormat DATETIME_FORMAT = new SimpleDateFormat(DATETIME_FORMAT_STR);
+
+    private final byte[] mHeader;
+    private final ByteOrder mByteOrder;
+    private int[] mTags = new int[32];
+    private short[] mTypes = new short[32];
+    private int[] mCounts = new int[32];
+    private int[] mPositions = new int[32];
+    private int mTagCount;
+
+    private ExifTemplate(byte[] header) throws IOException {
+        mHeader = header;
+        if (header.length < TIFF_START + 8) {
+            throw new IOException("Exif header too short");
+        }
+        ByteBuffer b = ByteBuffer.wrap(header);
+        mByteOrder = b.getShort(TIFF_START) == TIFF_BIG_ENDIAN
+                ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        b.order(mByteOrder);
+        int next = readIfd(b, IfdId.TYPE_IFD_0, b.getInt(TIFF_START + 4));
+        if (next > 0) {
+            readIfd(b, IfdId.TYPE_IFD_1, next);
+        }
+    }
+
+    /**
+     * Serializes the tags of exif into a template. The exif passed in is
+     * changed: like writing it to an image, this adds the IFD offset tags
+     * to it. Callers that keep using exif afterwards see those tags.
+     */
+    public static ExifTemplate compile(ExifInterface exif) throws IOException {
+        return new ExifTemplate(ExifSplice.buildHeader(exif, exif.getExifData()));
+    }
+
+    /**
+     * Returns true if the template has a value for the tag constant.
+     */
+    public boolean hasTag(int tagId) {
+        return indexOf(tagId) >= 0;
+    }
+
+    /**
+     * Gets the size of the SOI and APP1 segment written in front of images.
+     */
+    public int getHeaderSize() {
+        return mHeader.length;
+    }
+
+    /**
+     * Starts a frame from a copy of the template.
+     */
+    public Frame newFrame() {
+        return new Frame();
+    }
+
+    /**
+     * Copy of the template header for a single image.
+     */
+    public class Frame {
+        private final byte[] mBytes = Arrays.copyOf(mHeader, mHeader.length);
+        private final ByteBuffer mBuffer = ByteBuffer.wrap(mBytes).order(mByteOrder);
+
+        private Frame() {
+        }
+
+        /**
+         * Sets the first value of a {@link ExifTag#TYPE_UNSIGNED_SHORT},
+         * {@link ExifTag#TYPE_UNSIGNED_LONG} or {@link ExifTag#TYPE_LONG} tag.
+         * Fails if the tag is not in the template, has another type, or the
+         * value overflows the type.
+         */
+        public boolean setTagValue(int tagId, long value) {
+            int i = indexOf(tagId);
+            if (i < 0 || mCounts[i] < 1) {
+                return false;
+            }
+            int pos = mPositions[i];
+            switch (mTypes[i]) {
+                case ExifTag.TYPE_UNSIGNED_SHORT:
+                    if (value < 0 || value > 0xffff) {
+                        return false;
+                    }
+                    mBuffer.putShort(pos, (short) value);
+                    return true;
+                case ExifTag.TYPE_UNSIGNED_LONG:
+                    if (value < 0 || value > UNSIGNED_LONG_MAX) {
+                        return false;
+                    }
+                    mBuffer.putInt(pos, (int) value);
+                    return true;
+                case ExifTag.TYPE_LONG:
+                    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                        return false;
+                    }
+                    mBuffer.putInt(pos, (int) value);
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Sets the first value of a {@link ExifTag#TYPE_UNSIGNED_RATIONAL} or
+         * {@link ExifTag#TYPE_RATIONAL} tag.
+         */
+        public boolean setTagValue(int tagId, Rational value) {
+            int i = indexOf(tagId);
+            if (i < 0 || mCounts[i] < 1) {
+                return false;
+            }
+            long num = value.getNumerator();
+            long den = value.getDenominator();
+            switch (mTypes[i]) {
+                case ExifTag.TYPE_UNSIGNED_RATIONAL:
+                    if (num < 0 || den < 0 || num > UNSIGNED_LONG_MAX
+                            || den > UNSIGNED_LONG_MAX) {
+                        return false;
+                    }
+                    break;
+                case ExifTag.TYPE_RATIONAL:
+                    if (num < Integer.MIN_VALUE || den < Integer.MIN_VALUE
+                            || num > Integer.MAX_VALUE || den > Integer.MAX_VALUE) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+            mBuffer.putInt(mPositions[i], (int) num);
+            mBuffer.putInt(mPositions[i] + 4, (int) den);
+            return true;
+        }
+
+        /**
+         * Sets the value of a {@link ExifTag#TYPE_ASCII} tag. The string and
+         * its terminator must fit in the count of the template tag; what is
+         * left is filled with NULs.
+         */
+        public boolean setTagValue(int tagId, String value) {
+            int i = indexOf(tagId);
+            if (i < 0 || mTypes[i] != ExifTag.TYPE_ASCII) {
+                return false;
+            }
+            byte[] buf = value.getBytes(US_ASCII);
+            int count = mCounts[i];
+            if (buf.length >= count) {
+                return false;
+            }
+            int pos = mPositions[i];
+            System.arraycopy(buf, 0, mBytes, pos, buf.length);
+            Arrays.fill(mBytes, pos + buf.length, pos + count, (byte) 0);
+            return true;
+        }
+
+        /**
+         * Sets a date time tag the way
+         * {@link ExifInterface#addDateTimeStampTag} formats it.
+         */
+        public boolean setDateTimeValue(int tagId, long timestamp, TimeZone timezone) {
+            String value;
+            // SimpleDateFormat is not thread safe
+            synchronized (DATETIME_FORMAT) {
+                DATETIME_FORMAT.setTimeZone(timezone);
+                value = DATETIME_FORMAT.format(timestamp);
+            }
+            return setTagValue(tagId, value);
+        }
+
+        /**
+         * Gets the SOI and APP1 segment of this frame. The array is not
+         * copied.
+         */
+        public byte[] getHeader() {
+            return mBytes;
+        }
+
+        /**
+         * Returns jpeg with its Exif header replaced by this frame, like
+         * {@link ExifInterface#writeExif(byte[])}.
+         */
+        public byte[] writeExif(byte[] jpeg) throws IOException {
+            return ExifSplice.build(mBytes, ByteBuffer.wrap(jpeg)).toByteArray();
+        }
+    }
+
+    private int indexOf(int tagId) {
+        for (int i = 0; i < mTagCount; i++) {
+            if (mTags[i] == tagId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Records the entries of the IFD at the given TIFF offset, follows the
+    // sub IFD pointers and returns the offset of the next IFD.
+    private int readIfd(ByteBuffer b, int ifdId, int ifdOffset) throws IOException {
+        int start = TIFF_START + ifdOffset;
+        if (ifdOffset <= 0 || start + 2 > mHeader.length) {
+            throw new IOException("Invalid IFD offset " + ifdOffset);
+        }
+        int entries = b.getShort(start) & 0xffff;
+        int end = start + 2 + entries * IFD_ENTRY_SIZE;
+        if (end + 4 > mHeader.length) {
+            throw new IOException("Invalid IFD size " + entries);
+        }
+        for (int entry = start + 2; entry < end; entry += IFD_ENTRY_SIZE) {
+            short tag = b.getShort(entry);
+            short type = b.getShort(entry + 2);
+            int count = b.getInt(entry + 4);
+            if (!ExifTag.isValidType(type) || count < 0) {
+                continue;
+            }
+            long size = (long) count * ExifTag.getElementSize(type);
+            long pos = size > 4 ? TIFF_START + (b.getInt(entry + 8) & 0xffffffffL) : entry + 8;
+            if (pos + size > mHeader.length) {
+                throw new IOException("Invalid value offset for tag " + tag);
+            }
+            add(ExifInterface.defineTag(ifdId, tag), type, count, (int) pos);
+            if (tag == ExifInterface.getTrueTagKey(ExifInterface.TAG_EXIF_IFD)) {
+                readIfd(b, IfdId.TYPE_IFD_EXIF, b.getInt((int) pos));
+            } else if (tag == ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD)) {
+                readIfd(b, IfdId.TYPE_IFD_GPS, b.getInt((int) pos));
+            } else if (tag == ExifInterface.getTrueTagKey(
+                    ExifInterface.TAG_INTEROPERABILITY_IFD)) {
+                readIfd(b, IfdId.TYPE_IFD_INTEROPERABILITY, b.getInt((int) pos));
+            }
+        }
+        return b.getInt(end);
+    }
+
+    private void add(int tagId, short type, int count, int pos) {
+        if (mTagCount == mTags.length) {
+            int capacity = mTagCount * 2;
+            mTags = Arrays.copyOf(mTags, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+            mPositions = Arrays.copyOf(mPositions, capacity);
+        }
+        mTags[mTagCount] = tagId;
+        mTypes[mTagCount] = type;
+        mCounts[mTagCount] = count;
+        mPositions[mTagCount] = pos;
+        mTagCount++;
+    }
+}
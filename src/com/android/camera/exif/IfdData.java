@@ -14,13 +14,21 @@
  * limitations under the License.
  */
 
+
 package com.android.camera.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
  * This class stores all the tags in an IFD.
+ * <p>
+ * Tags are kept sorted by ID in parallel arrays. Values read from a file are
+ * packed big endian into one byte arena and get an {@link ExifTag} only when
+ * a caller asks for the tag, after which that ExifTag holds the value. Tags
+ * set by callers are kept as they are, so changes made to them later still
+ * end up in the written header.
  *
  * @see ExifData
  * @see ExifTag
@@ -31,8 +39,26 @@ class IfdData {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
             IfdId.TYPE_IFD_INTEROPERABILITY, IfdId.TYPE_IFD_GPS
     };
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int MIN_ARENA_SIZE = 64;
+    private static final byte[] EMPTY_ARENA = new byte[0];
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<>();
+    private short[] mTagIds;
+    private short[] mTypes;
+    private int[] mCounts;
+    private boolean[] mDefinedCounts;
+    // Start of a packed value in mArena
+    private int[] mValueStarts;
+    // Offset of a value that does not fit in its entry, from the TIFF header
+    private int[] mValueOffsets;
+    // Non null once a tag has been handed out or was set by a caller
+    private ExifTag[] mTags;
+    private int mTagCount;
+    private byte[] mArena = EMPTY_ARENA;
+    private int mArenaSize;
+    private int mArenaGarbage;
     private int mOffsetToNextIfd = 0;
 
     /**
@@ -45,7 +71,22 @@ class IfdData {
      * @see IfdId#TYPE_IFD_INTEROPERABILITY
      */
     IfdData(int ifdId) {
+        this(ifdId, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an IfdData with room for the given number of tags.
+     */
+    IfdData(int ifdId, int capacity) {
         mIfdId = ifdId;
+        capacity = Math.max(capacity, 1);
+        mTagIds = new short[capacity];
+        mTypes = new short[capacity];
+        mCounts = new int[capacity];
+        mDefinedCounts = new boolean[capacity];
+        mValueStarts = new int[capacity];
+        mValueOffsets = new int[capacity];
+        mTags = new ExifTag[capacity];
     }
 
     static protected int[] getIfds() {
@@ -56,7 +97,11 @@ class IfdData {
      * Get a array the contains all {@link ExifTag} in this IFD.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        ExifTag[] tags = new ExifTag[mTagCount];
+        for (int i = 0; i < mTagCount; i++) {
+            tags[i] = getTagAt(i);
+        }
+        return tags;
     }
 
     /**
@@ -77,33 +122,238 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int i = indexOf(tagId);
+        return i < 0 ? null : getTagAt(i);
     }
 
     /**
-     * Adds or replaces a {@link ExifTag}.
+     * Adds or replaces a {@link ExifTag}. The tag is kept, not copied.
      */
-    protected ExifTag setTag(ExifTag tag) {
+    protected void setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        int i = indexOf(tag.getTagId());
+        if (i >= 0) {
+            release(i);
+        } else {
+            i = insert(-(i + 1), tag.getTagId());
+        }
+        mTags[i] = tag;
+    }
+
+    /**
+     * Adds or replaces a tag with a copy of its value, without keeping the
+     * {@link ExifTag}. Only for tags nobody else holds on to, such as the ones
+     * coming out of {@link ExifParser}. A tag without a value, or with one
+     * that does not match its type and count, is kept as it is instead.
+     */
+    protected void packTag(ExifTag tag) {
+        int size = getPackedSize(tag);
+        if (size < 0) {
+            setTag(tag);
+            return;
+        }
+        int i = indexOf(tag.getTagId());
+        if (i >= 0) {
+            release(i);
+        } else {
+            i = insert(-(i + 1), tag.getTagId());
+        }
+        mTypes[i] = tag.getDataType();
+        mCounts[i] = tag.getComponentCount();
+        mDefinedCounts[i] = tag.hasDefinedCount();
+        mValueOffsets[i] = tag.getOffset();
+        mValueStarts[i] = -1;
+        int start = reserve(size);
+        mValueStarts[i] = start;
+        pack(tag, start);
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int i = indexOf(tagId);
+        if (i < 0) {
+            return;
+        }
+        release(i);
+        int n = mTagCount - i - 1;
+        System.arraycopy(mTagIds, i + 1, mTagIds, i, n);
+        System.arraycopy(mTypes, i + 1, mTypes, i, n);
+        System.arraycopy(mCounts, i + 1, mCounts, i, n);
+        System.arraycopy(mDefinedCounts, i + 1, mDefinedCounts, i, n);
+        System.arraycopy(mValueStarts, i + 1, mValueStarts, i, n);
+        System.arraycopy(mValueOffsets, i + 1, mValueOffsets, i, n);
+        System.arraycopy(mTags, i + 1, mTags, i, n);
+        mTagCount--;
+        mTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
+    }
+
+    /**
+     * Gets the number of tags that currently exist as {@link ExifTag}
+     * objects, either handed out or set by a caller.
+     */
+    protected int getLiveTagCount() {
+        int live = 0;
+        for (int i = 0; i < mTagCount; i++) {
+            if (mTags[i] != null) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Gets the first value of an integer tag, or null if there is no such
+     * tag or it has no integer value. Does not create an {@link ExifTag}.
+     *
+     * @see ExifTag#getValueAsLongs()
+     */
+    protected Long getValueAsLong(short tagId) {
+        int i = indexOf(tagId);
+        if (i < 0) {
+            return null;
+        }
+        ExifTag tag = mTags[i];
+        if (tag != null) {
+            long[] l = tag.getValueAsLongs();
+            return (l == null || l.length == 0) ? null : l[0];
+        }
+        if (mCounts[i] == 0) {
+            return null;
+        }
+        int pos = mValueStarts[i];
+        switch (mTypes[i]) {
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                return (long) (getShort(pos) & 0xffff);
+            case ExifTag.TYPE_UNSIGNED_LONG:
+                return getInt(pos) & 0xffffffffL;
+            case ExifTag.TYPE_LONG:
+                return (long) getInt(pos);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the value of a byte or ASCII tag as a String, or null if there is
+     * no such tag or it has no such value. Does not create an {@link ExifTag}.
+     *
+     * @see ExifTag#getValueAsString()
+     */
+    protected String getValueAsString(short tagId) {
+        int i = indexOf(tagId);
+        if (i < 0) {
+            return null;
+        }
+        ExifTag tag = mTags[i];
+        if (tag != null) {
+            return tag.getValueAsString();
+        }
+        switch (mTypes[i]) {
+            case ExifTag.TYPE_ASCII:
+            case ExifTag.TYPE_UNDEFINED:
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+                return new String(mArena, mValueStarts[i], mCounts[i], US_ASCII);
+        }
+        return null;
+    }
+
+    /*
+     * Positional accessors for ExifOutputStream. They read from the ExifTag
+     * when there is one and from the packed arrays otherwise.
+     */
+
+    protected short getTagIdAt(int index) {
+        return mTagIds[index];
+    }
+
+    protected short getDataTypeAt(int index) {
+        ExifTag tag = mTags[index];
+        return tag != null ? tag.getDataType() : mTypes[index];
+    }
+
+    protected int getComponentCountAt(int index) {
+        ExifTag tag = mTags[index];
+        return tag != null ? tag.getComponentCount() : mCounts[index];
+    }
+
+    protected int getDataSizeAt(int index) {
+        return getComponentCountAt(index) * ExifTag.getElementSize(getDataTypeAt(index));
+    }
+
+    protected int getValueOffsetAt(int index) {
+        ExifTag tag = mTags[index];
+        return tag != null ? tag.getOffset() : mValueOffsets[index];
+    }
+
+    protected void setValueOffsetAt(int index, int offset) {
+        ExifTag tag = mTags[index];
+        if (tag != null) {
+            tag.setOffset(offset);
+        } else {
+            mValueOffsets[index] = offset;
+        }
+    }
+
+    /**
+     * Gets the {@link ExifTag} at the given index if one exists, without
+     * creating it for a packed tag.
+     */
+    protected ExifTag getLiveTagAt(int index) {
+        return mTags[index];
+    }
+
+    /**
+     * Writes the value at the given index in the byte order of the stream.
+     */
+    protected void writeValueAt(int index, OrderedDataOutputStream out) throws IOException {
+        ExifTag tag = mTags[index];
+        if (tag != null) {
+            ExifOutputStream.writeTagValue(tag, out);
+            return;
+        }
+        int pos = mValueStarts[index];
+        int count = mCounts[index];
+        switch (mTypes[index]) {
+            case ExifTag.TYPE_ASCII:
+                // Like ExifOutputStream, the last byte always goes out as NUL
+                if (count > 0) {
+                    out.write(mArena, pos, count - 1);
+                    out.write(0);
+                }
+                break;
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                for (int i = 0; i < count; i++, pos += 2) {
+                    out.writeShort(getShort(pos));
+                }
+                break;
+            case ExifTag.TYPE_LONG:
+            case ExifTag.TYPE_UNSIGNED_LONG:
+                for (int i = 0; i < count; i++, pos += 4) {
+                    out.writeInt(getInt(pos));
+                }
+                break;
+            case ExifTag.TYPE_RATIONAL:
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
+                for (int i = 0, n = count * 2; i < n; i++, pos += 4) {
+                    out.writeInt(getInt(pos));
+                }
+                break;
+            default:
+                out.write(mArena, pos, count);
+                break;
+        }
     }
 
     /**
@@ -120,6 +370,245 @@ class IfdData {
         mOffsetToNextIfd = offset;
     }
 
+    private ExifTag getTagAt(int index) {
+        ExifTag tag = mTags[index];
+        if (tag == null) {
+            tag = unpack(index);
+            mTags[index] = tag;
+        }
+        return tag;
+    }
+
+    // Returns the index of the tag, or -(insertion point + 1). IDs are
+    // compared unsigned so the IFD comes out in the order EXIF asks for.
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int lo = 0;
+        int hi = mTagCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = mTagIds[mid] & 0xffff;
+            if (id < key) {
+                lo = mid + 1;
+            } else if (id > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int insert(int index, short tagId) {
+        if (mTagCount == mTagIds.length) {
+            int capacity = mTagCount * 2;
+            mTagIds = Arrays.copyOf(mTagIds, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+            mDefinedCounts = Arrays.copyOf(mDefinedCounts, capacity);
+            mValueStarts = Arrays.copyOf(mValueStarts, capacity);
+            mValueOffsets = Arrays.copyOf(mValueOffsets, capacity);
+            mTags = Arrays.copyOf(mTags, capacity);
+        }
+        int n = mTagCount - index;
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, n);
+        System.arraycopy(mTypes, index, mTypes, index + 1, n);
+        System.arraycopy(mCounts, index, mCounts, index + 1, n);
+        System.arraycopy(mDefinedCounts, index, mDefinedCounts, index + 1, n);
+        System.arraycopy(mValueStarts, index, mValueStarts, index + 1, n);
+        System.arraycopy(mValueOffsets, index, mValueOffsets, index + 1, n);
+        System.arraycopy(mTags, index, mTags, index + 1, n);
+        mTagIds[index] = tagId;
+        mTags[index] = null;
+        mValueStarts[index] = -1;
+        mTagCount++;
+        return index;
+    }
+
+    // Drops whatever the slot holds, the slot itself stays
+    private void release(int index) {
+        if (mTags[index] == null && mValueStarts[index] >= 0) {
+            mArenaGarbage += mCounts[index] * ExifTag.getElementSize(mTypes[index]);
+        }
+        mTags[index] = null;
+        mValueStarts[index] = -1;
+    }
+
+    private int reserve(int size) {
+        if (mArenaSize + size > mArena.length) {
+            if (mArenaGarbage > 0) {
+                compact();
+            }
+            if (mArenaSize + size > mArena.length) {
+                int length = Math.max(Math.max(mArena.length * 2, mArenaSize + size),
+                        MIN_ARENA_SIZE);
+                mArena = Arrays.copyOf(mArena, length);
+            }
+        }
+        int start = mArenaSize;
+        mArenaSize += size;
+        return start;
+    }
+
+    private void compact() {
+        byte[] arena = new byte[mArena.length];
+        int size = 0;
+        for (int i = 0; i < mTagCount; i++) {
+            if (mTags[i] == null && mValueStarts[i] >= 0) {
+                int n = mCounts[i] * ExifTag.getElementSize(mTypes[i]);
+                System.arraycopy(mArena, mValueStarts[i], arena, size, n);
+                mValueStarts[i] = size;
+                size += n;
+            }
+        }
+        mArena = arena;
+        mArenaSize = size;
+        mArenaGarbage = 0;
+    }
+
+    // Returns the packed size of the tag's value or -1 if it cannot be packed
+    private static int getPackedSize(ExifTag tag) {
+        Object value = tag.getValue();
+        int count = tag.getComponentCount();
+        switch (tag.getDataType()) {
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+            case ExifTag.TYPE_UNSIGNED_LONG:
+            case ExifTag.TYPE_LONG:
+                if (!(value instanceof long[]) || ((long[]) value).length != count) {
+                    return -1;
+                }
+                break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
+            case ExifTag.TYPE_RATIONAL:
+                if (!(value instanceof Rational[]) || ((Rational[]) value).length != count) {
+                    return -1;
+                }
+                for (Rational r : (Rational[]) value) {
+                    if (r == null) {
+                        return -1;
+                    }
+                }
+                break;
+            default:
+                if (!(value instanceof byte[]) || ((byte[]) value).length != count) {
+                    return -1;
+                }
+                break;
+        }
+        return count * ExifTag.getElementSize(tag.getDataType());
+    }
+
+    private void pack(ExifTag tag, int pos) {
+        Object value = tag.getValue();
+        switch (tag.getDataType()) {
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                for (long v : (long[]) value) {
+                    putShort(pos, (short) v);
+                    pos += 2;
+                }
+                break;
+            case ExifTag.TYPE_UNSIGNED_LONG:
+            case ExifTag.TYPE_LONG:
+                for (long v : (long[]) value) {
+                    putInt(pos, (int) v);
+                    pos += 4;
+                }
+                break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
+            case ExifTag.TYPE_RATIONAL:
+                for (Rational r : (Rational[]) value) {
+                    putInt(pos, (int) r.getNumerator());
+                    putInt(pos + 4, (int) r.getDenominator());
+                    pos += 8;
+                }
+                break;
+            default:
+                byte[] b = (byte[]) value;
+                System.arraycopy(b, 0, mArena, pos, b.length);
+                break;
+        }
+    }
+
+    private ExifTag unpack(int index) {
+        short type = mTypes[index];
+        int count = mCounts[index];
+        int pos = mValueStarts[index];
+        Object value;
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_SHORT: {
+                long[] v = new long[count];
+                for (int i = 0; i < count; i++, pos += 2) {
+                    v[i] = getShort(pos) & 0xffff;
+                }
+                value = v;
+            }
+            break;
+            case ExifTag.TYPE_UNSIGNED_LONG: {
+                long[] v = new long[count];
+                for (int i = 0; i < count; i++, pos += 4) {
+                    v[i] = getInt(pos) & 0xffffffffL;
+                }
+                value = v;
+            }
+            break;
+            case ExifTag.TYPE_LONG: {
+                long[] v = new long[count];
+                for (int i = 0; i < count; i++, pos += 4) {
+                    v[i] = getInt(pos);
+                }
+                value = v;
+            }
+            break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL: {
+                Rational[] v = new Rational[count];
+                for (int i = 0; i < count; i++, pos += 8) {
+                    v[i] = new Rational(getInt(pos) & 0xffffffffL,
+                            getInt(pos + 4) & 0xffffffffL);
+                }
+                value = v;
+            }
+            break;
+            case ExifTag.TYPE_RATIONAL: {
+                Rational[] v = new Rational[count];
+                for (int i = 0; i < count; i++, pos += 8) {
+                    v[i] = new Rational(getInt(pos), getInt(pos + 4));
+                }
+                value = v;
+            }
+            break;
+            default:
+                value = Arrays.copyOfRange(mArena, pos, pos + count);
+                break;
+        }
+        ExifTag tag = new ExifTag(mTagIds[index], type, count, mIfdId, mDefinedCounts[index]);
+        tag.forceSetValue(value);
+        tag.setOffset(mValueOffsets[index]);
+        mArenaGarbage += count * ExifTag.getElementSize(type);
+        mValueStarts[index] = -1;
+        return tag;
+    }
+
+    private short getShort(int pos) {
+        return (short) (((mArena[pos] & 0xff) << 8) | (mArena[pos + 1] & 0xff));
+    }
+
+    private int getInt(int pos) {
+        return ((mArena[pos] & 0xff) << 24) | ((mArena[pos + 1] & 0xff) << 16)
+                | ((mArena[pos + 2] & 0xff) << 8) | (mArena[pos + 3] & 0xff);
+    }
+
+    private void putShort(int pos, short v) {
+        mArena[pos] = (byte) (v >> 8);
+        mArena[pos + 1] = (byte) v;
+    }
+
+    private void putInt(int pos, int v) {
+        mArena[pos] = (byte) (v >> 24);
+        mArena[pos + 1] = (byte) (v >> 16);
+        mArena[pos + 2] = (byte) (v >> 8);
+        mArena[pos + 3] = (byte) v;
+    }
+
     /**
      * Returns true if all tags in this two IFDs are equal. Note that tags of
      * IFDs offset or thumbnail offset will be ignored.
@@ -140,7 +629,7 @@ class IfdData {
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
@@ -0,0 +1,150 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * CPU version of the YuvToRgb.rs preview kernel, for builds where RenderScript is
+ * unavailable. The rotator.rs step is done by {@link NV21Transform#rotateAndMerge}.
+ * Frames are split into row bands that run on a fork-join pool, and the colour conversion
+ * works on 2x2 blocks with plain counted loops and integer arithmetic so the JIT can
+ * unroll them.
+ */
+public class CpuFrameKernels {
+    private static final int BANDS_PER_THREAD = 2;
+
+    // 16.16 fixed point versions of the coefficients in YuvToRgb.rs
+    private static final int CR_R = 89830;  // 1.370705
+    private static final int CR_G = 45744;  // 0.698001
+    private static final int CB_G = 22127;  // 0.337633
+    private static final int CB_B = 113537; // 1.732446
+
+    private final ForkJoinPool mPool;
+    private final int mParallelism;
+
+    public CpuFrameKernels() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CpuFrameKernels(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        mPool = new ForkJoinPool(mParallelism);
+    }
+
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    /**
+     * Equivalent of nv21ToRgb. Converts height rows of width pixels of an NV21 frame with a
+     * row stride of width and its chroma plane at vuOffset into ARGB_8888 pixels.
+     */
+    public void nv21ToArgb(final byte[] in, final int vuOffset, final int width,
+                           final int height, final int[] out) {
+        final int blockRows = (height + 1) / 2;
+        runBands(blockRows, new Band() {
+            @Override
+            public void run(int first, int last) {
+                for (int by = first; by < last; by++) {
+                    int y = by * 2;
+                    convertRow(in, out, y * width, vuOffset + by * width, width);
+                    if (y + 1 < height) {
+                        convertRow(in, out, (y + 1) * width, vuOffset + by * width, width);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void convertRow(byte[] in, int[] out, int yIndex, int vuIndex, int width) {
+        int pairs = width / 2;
+        for (int i = 0; i < pairs; i++) {
+            int v = (in[vuIndex + 2 * i] & 0xff) - 128;
+            int u = (in[vuIndex + 2 * i + 1] & 0xff) - 128;
+            int dr = CR_R * v;
+            int dg = -CR_G * v - CB_G * u;
+            int db = CB_B * u;
+            int p = yIndex + 2 * i;
+            out[p] = argb(in[p] & 0xff, dr, dg, db);
+            out[p + 1] = argb(in[p + 1] & 0xff, dr, dg, db);
+        }
+        if ((width & 1) != 0) {
+            int p = yIndex + width - 1;
+            int v = (in[vuIndex + width - 1] & 0xff) - 128;
+            int u = (in[vuIndex + width] & 0xff) - 128;
+            out[p] = argb(in[p] & 0xff, CR_R * v, -CR_G * v - CB_G * u, CB_B * u);
+        }
+    }
+
+    private static int argb(int y, int dr, int dg, int db) {
+        int base = y << 16;
+        int r = (base + dr) >> 16;
+        int g = (base + dg) >> 16;
+        int b = (base + db) >> 16;
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private interface Band {
+        void run(int first, int last);
+    }
+
+    private void runBands(int units, final Band band) {
+        int bands = Math.min(units, mParallelism * BANDS_PER_THREAD);
+        if (bands <= 1) {
+            band.run(0, units);
+            return;
+        }
+        int perBand = (units + bands - 1) / bands;
+        List<Callable<Void>> tasks = new ArrayList<>(bands);
+        for (int first = 0; first < units; first += perBand) {
+            final int from = first;
+            final int to = Math.min(units, first + perBand);
+            tasks.add(() -> {
+                band.run(from, to);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : mPool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Frame kernel failed", e);
+        }
+    }
+}
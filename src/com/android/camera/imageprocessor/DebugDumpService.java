@@ -0,0 +1,448 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.Rect;
+import android.media.Image;
+import android.util.Log;
+
+import com.android.camera.Storage;
+import com.android.camera.util.PersistUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.Locale;
+
+/**
+ * Writes debug dumps off the capture and processing threads. Callers only copy the data
+ * they hand over; encoding, compression and file IO happen on a low priority thread.
+ * Queued data is bounded in bytes, and a dump that does not fit is dropped before
+ * anything is copied, so an overloaded dump costs the caller next to nothing.
+ * <p>
+ * Every session gets its own directory with a manifest listing the files, their
+ * geometry, sizes and how long they waited, followed by the drop count when the session
+ * ends. Raw YUV is written as an lz4 frame unless compression is turned off.
+ */
+public class DebugDumpService {
+    private static final String TAG = "DebugDumpService";
+    private static final String MANIFEST = "manifest.txt";
+    private static final String FORMAT_NV21 = "nv21";
+
+    /* Produces the bytes of a dump on the dump thread */
+    public interface Encoder {
+        byte[] encode() throws IOException;
+    }
+
+    public static class Stats {
+        public final int written;
+        public final int dropped;
+        public final long droppedBytes;
+        public final int failed;
+        public final long rawBytes;
+        public final long storedBytes;
+        public final long peakQueuedBytes;
+
+        Stats(DebugDumpService s) {
+            written = s.mWritten;
+            dropped = s.mDropped;
+            droppedBytes = s.mDroppedBytes;
+            failed = s.mFailed;
+            rawBytes = s.mRawBytes;
+            storedBytes = s.mStoredBytes;
+            peakQueuedBytes = s.mPeakQueuedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "written " + written + " (" + rawBytes / 1024 + "KB, stored "
+                    + storedBytes / 1024 + "KB) dropped " + dropped + " ("
+                    + droppedBytes / 1024 + "KB) failed " + failed + " peak queue "
+                    + peakQueuedBytes / 1024 + "KB";
+        }
+    }
+
+    private static class Job {
+        final String mName;
+        final String mFormat;
+        final long mBytes;
+        final long mQueuedNs = System.nanoTime();
+        byte[] mData;
+        Encoder mEncoder;
+        int mWidth;
+        int mHeight;
+        int mStride;
+        // Marks the end of a session instead of a dump
+        boolean mEndSession;
+
+        Job(String name, String format, long bytes) {
+            mName = name;
+            mFormat = format;
+            mBytes = bytes;
+        }
+    }
+
+    private static DebugDumpService sInstance;
+
+    private final File mRoot;
+    private final long mQueueLimit;
+    private final boolean mCompress;
+    private final Object mLock = new Object();
+    private final LinkedList<Job> mQueue = new LinkedList<>();
+    private Thread mThread;
+    private long mQueuedBytes;
+    private long mPeakQueuedBytes;
+    private int mWritten;
+    private int mDropped;
+    private long mDroppedBytes;
+    private int mFailed;
+    private long mRawBytes;
+    private long mStoredBytes;
+    // Drops of the current session, for its manifest
+    private int mSessionDropped;
+    private long mSessionDroppedBytes;
+    private boolean mIdle = true;
+
+    // Only touched on the dump thread
+    private File mSessionDir;
+    private Writer mManifest;
+    private Lz4FrameWriter mLz4;
+
+    public static synchronized DebugDumpService getInstance() {
+        if (sInstance == null) {
+            sInstance = new DebugDumpService(new File(Storage.DCIM, "CameraDebug"),
+                    PersistUtil.getDebugDumpQueueLimit() * 1024L * 1024L,
+                    PersistUtil.isDebugDumpCompressed());
+        }
+        return sInstance;
+    }
+
+    public DebugDumpService(File root, long queueLimitBytes, boolean compressYuv) {
+        mRoot = root;
+        mQueueLimit = queueLimitBytes;
+        mCompress = compressYuv;
+    }
+
+    /* Dumps the Y and VU planes of a YUV_420_888 image as NV21 with the row stride */
+    public boolean dumpYuv(String name, Image image) {
+        final int stride = image.getPlanes()[0].getRowStride();
+        int size = stride * image.getHeight() * 3 / 2;
+        if (!reserve(size)) {
+            return false;
+        }
+        Job job = new Job(name, FORMAT_NV21, size);
+        try {
+            job.mData = copyNV21(image, stride);
+        } catch (IllegalStateException e) {
+            unreserve(size);
+            throw e;
+        }
+        job.mWidth = image.getWidth();
+        job.mHeight = image.getHeight();
+        job.mStride = stride;
+        enqueue(job);
+        return true;
+    }
+
+    /* Like dumpYuv(), but encoded to a JPEG with the orientation tag on the dump thread */
+    public boolean dumpYuvAsJpeg(String name, Image image, final int orientation) {
+        final int stride = image.getPlanes()[0].getRowStride();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        int size = stride * height * 3 / 2;
+        if (!reserve(size)) {
+            return false;
+        }
+        final byte[] nv21;
+        try {
+            nv21 = copyNV21(image, stride);
+        } catch (IllegalStateException e) {
+            unreserve(size);
+            throw e;
+        }
+        Job job = new Job(name, "jpg", size);
+        job.mEncoder = () -> PostProcessor.addExifTags(NV21JpegEncoder.getInstance().encode(
+                nv21, width, height, stride, stride, new Rect(0, 0, width, height), 100),
+                orientation, null);
+        job.mWidth = width;
+        job.mHeight = height;
+        job.mStride = stride;
+        enqueue(job);
+        return true;
+    }
+
+    /* Dumps the first plane of an image as is, like a JPEG */
+    public boolean dumpPlane(String name, String format, Image image) {
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer().duplicate();
+        buffer.rewind();
+        if (!reserve(buffer.remaining())) {
+            return false;
+        }
+        Job job = new Job(name, format, buffer.remaining());
+        job.mData = new byte[buffer.remaining()];
+        buffer.get(job.mData);
+        job.mWidth = image.getWidth();
+        job.mHeight = image.getHeight();
+        enqueue(job);
+        return true;
+    }
+
+    /* The data is written later and must not be changed by the caller */
+    public boolean dump(String name, String format, byte[] data) {
+        if (!reserve(data.length)) {
+            return false;
+        }
+        Job job = new Job(name, format, data.length);
+        job.mData = data;
+        enqueue(job);
+        return true;
+    }
+
+    /* sizeHint is what the encoder holds on to until it runs, for the queue limit */
+    public boolean dump(String name, String format, long sizeHint, Encoder encoder) {
+        if (!reserve(sizeHint)) {
+            return false;
+        }
+        Job job = new Job(name, format, sizeHint);
+        job.mEncoder = encoder;
+        enqueue(job);
+        return true;
+    }
+
+    /* Closes the manifest of the current session, the next dump starts a new one */
+    public void endSession() {
+        synchronized (mLock) {
+            if (mThread == null) {
+                return;
+            }
+            Job job = new Job(null, null, 0);
+            job.mEndSession = true;
+            mQueue.add(job);
+            mIdle = false;
+            mLock.notifyAll();
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(this);
+        }
+    }
+
+    /* Waits until everything queued so far is written, returns false on timeout */
+    public boolean waitForIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mLock) {
+            while (!mIdle) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                mLock.wait(left);
+            }
+            return true;
+        }
+    }
+
+    private boolean reserve(long bytes) {
+        synchronized (mLock) {
+            if (mQueuedBytes > 0 && mQueuedBytes + bytes > mQueueLimit) {
+                mDropped++;
+                mDroppedBytes += bytes;
+                mSessionDropped++;
+                mSessionDroppedBytes += bytes;
+                return false;
+            }
+            mQueuedBytes += bytes;
+            mPeakQueuedBytes = Math.max(mPeakQueuedBytes, mQueuedBytes);
+            mIdle = false;
+            return true;
+        }
+    }
+
+    private void unreserve(long bytes) {
+        synchronized (mLock) {
+            mQueuedBytes -= bytes;
+            mIdle = mQueuedBytes == 0 && mQueue.isEmpty();
+            mLock.notifyAll();
+        }
+    }
+
+    private void enqueue(Job job) {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mThread = new Thread(this::run, "DebugDumpService");
+                mThread.setPriority(Thread.MIN_PRIORITY);
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            mQueue.add(job);
+            mLock.notifyAll();
+        }
+    }
+
+    private static byte[] copyNV21(Image image, int stride) {
+        ByteBuffer y = image.getPlanes()[0].getBuffer().duplicate();
+        ByteBuffer vu = image.getPlanes()[2].getBuffer().duplicate();
+        y.rewind();
+        vu.rewind();
+        int ySize = stride * image.getHeight();
+        byte[] data = new byte[ySize * 3 / 2];
+        y.get(data, 0, Math.min(y.remaining(), ySize));
+        vu.get(data, ySize, Math.min(vu.remaining(), data.length - ySize));
+        return data;
+    }
+
+    private void run() {
+        while (true) {
+            Job job;
+            synchronized (mLock) {
+                while (mQueue.isEmpty()) {
+                    mIdle = mQueuedBytes == 0;
+                    mLock.notifyAll();
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                job = mQueue.removeFirst();
+            }
+            if (job.mEndSession) {
+                closeSession();
+                continue;
+            }
+            long start = System.nanoTime();
+            long stored = -1;
+            long raw = 0;
+            try {
+                byte[] data = job.mEncoder != null ? job.mEncoder.encode() : job.mData;
+                raw = data.length;
+                stored = write(job, data);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Could not dump " + job.mName, e);
+            }
+            job.mData = null;
+            job.mEncoder = null;
+            long end = System.nanoTime();
+            synchronized (mLock) {
+                mQueuedBytes -= job.mBytes;
+                if (stored >= 0) {
+                    mWritten++;
+                    mRawBytes += raw;
+                    mStoredBytes += stored;
+                } else {
+                    mFailed++;
+                }
+            }
+            if (stored >= 0) {
+                manifest(job, raw, stored, (start - job.mQueuedNs) / 1000000,
+                        (end - start) / 1000000);
+            }
+        }
+    }
+
+    private long write(Job job, byte[] data) throws IOException {
+        openSession();
+        boolean compress = mCompress && FORMAT_NV21.equals(job.mFormat);
+        String file = job.mName + "." + job.mFormat
+                + (compress ? "." + Lz4FrameWriter.EXTENSION : "");
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(new File(mSessionDir, file)))) {
+            if (!compress) {
+                out.write(data);
+                return data.length;
+            }
+            if (mLz4 == null) {
+                mLz4 = new Lz4FrameWriter();
+            }
+            return mLz4.write(out, data, 0, data.length);
+        }
+    }
+
+    private void openSession() throws IOException {
+        if (mSessionDir != null) {
+            return;
+        }
+        String name = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US)
+                .format(new Date());
+        File dir = new File(mRoot, name);
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        mSessionDir = dir;
+        mManifest = new FileWriter(new File(dir, MANIFEST));
+        mManifest.write("# name\tformat\twidth\theight\tstride\traw_bytes\tstored_bytes"
+                + "\tqueue_ms\twrite_ms\n");
+        mManifest.flush();
+    }
+
+    private void manifest(Job job, long raw, long stored, long queueMs, long writeMs) {
+        try {
+            mManifest.write(job.mName + "\t" + job.mFormat
+                    + (mCompress && FORMAT_NV21.equals(job.mFormat) ? "+lz4" : "")
+                    + "\t" + job.mWidth + "\t" + job.mHeight + "\t" + job.mStride + "\t"
+                    + raw + "\t" + stored + "\t" + queueMs + "\t" + writeMs + "\n");
+            mManifest.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not update the manifest", e);
+        }
+    }
+
+    private void closeSession() {
+        int dropped;
+        long droppedBytes;
+        synchronized (mLock) {
+            dropped = mSessionDropped;
+            droppedBytes = mSessionDroppedBytes;
+            mSessionDropped = 0;
+            mSessionDroppedBytes = 0;
+        }
+        if (mSessionDir == null) {
+            return;
+        }
+        try {
+            mManifest.write("# dropped " + dropped + " dumps, " + droppedBytes + " bytes\n");
+            mManifest.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close the manifest", e);
+        }
+        Log.d(TAG, "Session " + mSessionDir + ": " + getStats());
+        mSessionDir = null;
+        mManifest = null;
+    }
+}
@@ -30,7 +30,10 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.android.camera.imageprocessor;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.hardware.camera2.CameraCharacteristics;
 import android.media.Image;
 import android.media.ImageReader;
@@ -38,8 +41,10 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
+import android.renderscript.RSRuntimeException;
 import android.renderscript.RenderScript;
 import android.renderscript.Type;
+import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
@@ -47,21 +52,28 @@ import com.android.camera.CaptureModule;
 import com.android.camera.imageprocessor.filter.BeautificationFilter;
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.imageprocessor.filter.TrackingFocusFrameListener;
+import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FrameProcessor {
+    private static final String TAG = "FrameProcessor";
 
     public static final int FILTER_NONE = 0;
     public static final int FILTER_MAKEUP = 1;
     public static final int LISTENER_TRACKING_FOCUS = 2;
     ScriptC_YuvToRgb mRsYuvToRGB;
     ScriptC_rotator mRsRotator;
+    // Set when RenderScript is disabled or unavailable; frames are then rotated,
+    // converted and drawn to the output surfaces on the CPU.
+    private CpuFrameKernels mCpuKernels;
+    private NV21Transform mTransform;
     private ImageReader mInputImageReader;
     private Allocation mInputAllocation;
+    private Allocation mYvuAllocation;
     private Allocation mProcessAllocation;
     private Allocation mOutputAllocation;
     private Allocation mVideoOutputAllocation;
@@ -92,9 +104,23 @@ public class FrameProcessor {
         mPreviewFilters = new ArrayList<>();
         mFinalFilters = new ArrayList<>();
 
-        mRs = RenderScript.create(mActivity);
-        mRsYuvToRGB = new ScriptC_YuvToRgb(mRs);
-        mRsRotator = new ScriptC_rotator(mRs);
+        if (!PersistUtil.isCpuFrameKernelsEnabled()) {
+            try {
+                mRs = RenderScript.create(mActivity);
+                mRsYuvToRGB = new ScriptC_YuvToRgb(mRs);
+                mRsRotator = new ScriptC_rotator(mRs);
+            } catch (RSRuntimeException e) {
+                Log.w(TAG, "RenderScript unavailable, using CPU frame kernels", e);
+                if (mRs != null) {
+                    mRs.destroy();
+                    mRs = null;
+                }
+            }
+        }
+        if (mRs == null) {
+            mCpuKernels = new CpuFrameKernels();
+            mTransform = new NV21Transform();
+        }
     }
 
     private void init(Size previewDim) {
@@ -103,11 +129,13 @@ public class FrameProcessor {
         synchronized (mAllocationLock) {
             mInputImageReader = ImageReader.newInstance(mSize.getWidth(), mSize.getHeight(), ImageFormat.YUV_420_888, 8);
 
-            Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
-            rgbTypeBuilder.setX(mSize.getHeight());
-            rgbTypeBuilder.setY(mSize.getWidth());
-            mOutputAllocation = Allocation.createTyped(mRs, rgbTypeBuilder.create(),
-                    Allocation.USAGE_SCRIPT | Allocation.USAGE_IO_OUTPUT);
+            if (mCpuKernels == null) {
+                Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
+                rgbTypeBuilder.setX(mSize.getHeight());
+                rgbTypeBuilder.setY(mSize.getWidth());
+                mOutputAllocation = Allocation.createTyped(mRs, rgbTypeBuilder.create(),
+                        Allocation.USAGE_SCRIPT | Allocation.USAGE_IO_OUTPUT);
+            }
 
             if (mProcessingThread == null) {
                 mProcessingThread = new HandlerThread("FrameProcessor");
@@ -135,19 +163,30 @@ public class FrameProcessor {
     }
 
     private void createAllocation(int width, int height, int stridePad) {
-        Type.Builder yuvTypeBuilder = new Type.Builder(mRs, Element.YUV(mRs));
-        yuvTypeBuilder.setX(width);
-        yuvTypeBuilder.setY(height);
-        yuvTypeBuilder.setYuvFormat(ImageFormat.NV21);
-        mInputAllocation = Allocation.createTyped(mRs, yuvTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        // Launch domain for the rotator, the kernel only writes zeros into it.
+        Type.Builder domainTypeBuilder = new Type.Builder(mRs, Element.U8(mRs));
+        domainTypeBuilder.setX(width);
+        domainTypeBuilder.setY(height);
+        mInputAllocation = Allocation.createTyped(mRs, domainTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        // Packed NV21 frame the kernels read from, filled straight from the image planes.
+        Type.Builder yvuTypeBuilder = new Type.Builder(mRs, Element.U8(mRs));
+        yvuTypeBuilder.setX(width * height * 3 / 2);
+        mYvuAllocation = Allocation.createTyped(mRs, yvuTypeBuilder.create(), Allocation.USAGE_SCRIPT);
         Type.Builder nv21TypeBuilder = new Type.Builder(mRs, Element.U8(mRs));
         nv21TypeBuilder.setX(width * height * 3 / 2);
         mProcessAllocation = Allocation.createTyped(mRs, nv21TypeBuilder.create(), Allocation.USAGE_SCRIPT);
-        mRsRotator.set_gIn(mInputAllocation);
+        mRsRotator.set_gIn(mYvuAllocation);
         mRsRotator.set_gOut(mProcessAllocation);
         mRsRotator.set_width(width);
         mRsRotator.set_height(height);
         mRsRotator.set_pad(stridePad);
+        mRsRotator.set_degree(getRotationDegree());
+        mRsYuvToRGB.set_gIn(mProcessAllocation);
+        mRsYuvToRGB.set_width(height);
+        mRsYuvToRGB.set_height(width);
+    }
+
+    private int getRotationDegree() {
         int degree = 90;
         if (mModule.getMainCameraCharacteristics() != null) {
             degree = mModule.getMainCameraCharacteristics().
@@ -156,10 +195,7 @@ public class FrameProcessor {
                 degree = Math.abs(degree - 90);
             }
         }
-        mRsRotator.set_degree(degree);
-        mRsYuvToRGB.set_gIn(mProcessAllocation);
-        mRsYuvToRGB.set_width(height);
-        mRsYuvToRGB.set_height(width);
+        return degree;
     }
 
     public ArrayList<ImageFilter> getFrameFilters() {
@@ -217,6 +253,9 @@ public class FrameProcessor {
                 if (mInputAllocation != null) {
                     mInputAllocation.destroy();
                 }
+                if (mYvuAllocation != null) {
+                    mYvuAllocation.destroy();
+                }
                 if (mOutputAllocation != null) {
                     mOutputAllocation.destroy();
                 }
@@ -230,6 +269,7 @@ public class FrameProcessor {
             mProcessAllocation = null;
             mOutputAllocation = null;
             mInputAllocation = null;
+            mYvuAllocation = null;
             mVideoOutputAllocation = null;
         }
         if (mProcessingThread != null) {
@@ -272,6 +312,12 @@ public class FrameProcessor {
             mRs.destroy();
         }
         mRs = null;
+        if (mCpuKernels != null) {
+            mCpuKernels.shutdown();
+            mCpuKernels = null;
+            mTransform.shutdown();
+            mTransform = null;
+        }
     }
 
     private Surface getReaderSurface() {
@@ -312,7 +358,7 @@ public class FrameProcessor {
 
     public void setOutputSurface(Surface surface) {
         mSurfaceAsItIs = surface;
-        if (mFinalFilters.size() != 0) {
+        if (mFinalFilters.size() != 0 && mCpuKernels == null) {
             mOutputAllocation.setSurface(surface);
         }
     }
@@ -330,7 +376,7 @@ public class FrameProcessor {
         }
         mVideoSurfaceAsItIs = surface;
         mIsVideoOn = true;
-        if (mFinalFilters.size() != 0) {
+        if (mFinalFilters.size() != 0 && mCpuKernels == null) {
             synchronized (mAllocationLock) {
                 if (mVideoOutputAllocation == null) {
                     Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
@@ -344,8 +390,90 @@ public class FrameProcessor {
         }
     }
 
+    /**
+     * Average and worst per-frame cost of each preview stage, in microseconds.
+     */
+    public static class FrameTimings {
+        public final long frames;
+        public final long avgCopyUs, maxCopyUs;
+        public final long avgFilterUs, maxFilterUs;
+        public final long avgKernelUs, maxKernelUs;
+        public final long avgOutputUs, maxOutputUs;
+
+        FrameTimings(long[] count, long[] total, long[] max) {
+            frames = count[STAGE_COPY];
+            avgCopyUs = avg(count, total, STAGE_COPY);
+            maxCopyUs = max[STAGE_COPY] / 1000;
+            avgFilterUs = avg(count, total, STAGE_FILTER);
+            maxFilterUs = max[STAGE_FILTER] / 1000;
+            avgKernelUs = avg(count, total, STAGE_KERNEL);
+            maxKernelUs = max[STAGE_KERNEL] / 1000;
+            avgOutputUs = avg(count, total, STAGE_OUTPUT);
+            maxOutputUs = max[STAGE_OUTPUT] / 1000;
+        }
+
+        private static long avg(long[] count, long[] total, int stage) {
+            return count[stage] == 0 ? 0 : total[stage] / count[stage] / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "frames=" + frames + " copy=" + avgCopyUs + "/" + maxCopyUs
+                    + " filter=" + avgFilterUs + "/" + maxFilterUs
+                    + " kernel=" + avgKernelUs + "/" + maxKernelUs
+                    + " output=" + avgOutputUs + "/" + maxOutputUs;
+        }
+    }
+
+    private static final int STAGE_COPY = 0;
+    private static final int STAGE_FILTER = 1;
+    private static final int STAGE_KERNEL = 2;
+    private static final int STAGE_OUTPUT = 3;
+    private final long[] mStageCount = new long[4];
+    private final long[] mStageTotalNs = new long[4];
+    private final long[] mStageMaxNs = new long[4];
+
+    private void recordStage(int stage, long ns) {
+        synchronized (mStageCount) {
+            mStageCount[stage]++;
+            mStageTotalNs[stage] += ns;
+            if (ns > mStageMaxNs[stage]) {
+                mStageMaxNs[stage] = ns;
+            }
+        }
+    }
+
+    public FrameTimings getFrameTimings() {
+        synchronized (mStageCount) {
+            return new FrameTimings(mStageCount, mStageTotalNs, mStageMaxNs);
+        }
+    }
+
+    public void resetFrameTimings() {
+        synchronized (mStageCount) {
+            for (int i = 0; i < mStageCount.length; i++) {
+                mStageCount[i] = 0;
+                mStageTotalNs[i] = 0;
+                mStageMaxNs[i] = 0;
+            }
+        }
+    }
+
     class ProcessingTask implements Runnable, ImageReader.OnImageAvailableListener {
+        // Mapping of mYvuAllocation, or null when the driver cannot map it and
+        // frames go through yvuBytes instead.
+        ByteBuffer yvuBuffer = null;
         byte[] yvuBytes = null;
+        // CPU kernel state
+        byte[] rotatedBytes = null;
+        int[] argb = null;
+        Bitmap outputBitmap = null;
+        // Output surfaces that could not be drawn to; they are skipped until replaced.
+        Surface failedSurface;
+        Surface failedVideoSurface;
+        int degree;
+        boolean prepared;
+        boolean framePending;
         int ySize;
         int stride;
         int height;
@@ -354,54 +482,121 @@ public class FrameProcessor {
         public ProcessingTask() {
         }
 
+        private void prepareInput(Image image) {
+            if (prepared && width == mSize.getWidth() && height == mSize.getHeight()) {
+                return;
+            }
+            stride = image.getPlanes()[0].getRowStride();
+            width = mSize.getWidth();
+            height = mSize.getHeight();
+            ySize = stride * height;
+            prepared = true;
+            if (mCpuKernels != null) {
+                yvuBuffer = null;
+                yvuBytes = new byte[ySize * 3 / 2];
+                rotatedBytes = new byte[width * height * 3 / 2];
+                argb = new int[width * height];
+                outputBitmap = Bitmap.createBitmap(height, width, Bitmap.Config.ARGB_8888);
+                degree = getRotationDegree();
+                return;
+            }
+            if (mInputAllocation != null) {
+                mInputAllocation.destroy();
+                mYvuAllocation.destroy();
+                mProcessAllocation.destroy();
+            }
+            createAllocation(stride, height, stride - width);
+            yvuBuffer = null;
+            yvuBytes = null;
+            try {
+                yvuBuffer = mYvuAllocation.getByteBuffer();
+            } catch (RSRuntimeException e) {
+                Log.w(TAG, "Cannot map input allocation, falling back to copies", e);
+            }
+            if (yvuBuffer == null) {
+                yvuBytes = new byte[ySize * 3 / 2];
+            }
+        }
+
+        private ByteBuffer view(int offset, int length) {
+            ByteBuffer b = yvuBuffer.duplicate();
+            b.position(offset);
+            b.limit(offset + length);
+            return b.slice();
+        }
+
         @Override
         public void onImageAvailable(ImageReader reader) {
             synchronized (mAllocationLock) {
-                if (mOutputAllocation == null) {
+                if (mOutputAllocation == null && mCpuKernels == null) {
                     return;
                 }
+                Image image = null;
                 try {
-                    Image image = reader.acquireLatestImage();
+                    image = reader.acquireLatestImage();
                     if (image == null) {
                         return;
                     }
                     if (!mIsActive) {
-                        image.close();
                         return;
                     }
                     mIsAllocationEverUsed = true;
                     ByteBuffer bY = image.getPlanes()[0].getBuffer();
                     ByteBuffer bVU = image.getPlanes()[2].getBuffer();
-                    if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
-                        stride = image.getPlanes()[0].getRowStride();
-                        width = mSize.getWidth();
-                        height = mSize.getHeight();
-                        ySize = stride * mSize.getHeight();
-                        yvuBytes = new byte[ySize * 3 / 2];
-                    }
-                    boolean needToFeedSurface = false;
-                    //Start processing yvu buf
-                    for (ImageFilter filter : mPreviewFilters) {
-                        if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
-                                mListeningHandler.post(mListeningTask);
+                    int yLength = bY.remaining();
+                    int vuLength = bVU.remaining();
+
+                    if (mFinalFilters.size() != 0) {
+                        prepareInput(image);
+                        long start = System.nanoTime();
+                        if (yvuBuffer != null) {
+                            // Planes go straight into the kernel input and the
+                            // filters work in place on views of it.
+                            yvuBuffer.clear();
+                            yvuBuffer.put(bY);
+                            yvuBuffer.position(ySize);
+                            yvuBuffer.put(bVU);
+                            long copied = System.nanoTime();
+                            recordStage(STAGE_COPY, copied - start);
+                            for (ImageFilter filter : mFinalFilters) {
+                                filter.init(width, height, stride, stride);
+                                filter.addImage(view(0, yLength), view(ySize, vuLength), 0,
+                                        Boolean.TRUE);
                             }
+                            recordStage(STAGE_FILTER, System.nanoTime() - copied);
                         } else {
-                            filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
-                            filter.addImage(bY, bVU, 0, Boolean.TRUE);
-                            needToFeedSurface = true;
+                            for (ImageFilter filter : mFinalFilters) {
+                                filter.init(width, height, stride, stride);
+                                filter.addImage(bY, bVU, 0, Boolean.TRUE);
+                                bY.rewind();
+                                bVU.rewind();
+                            }
+                            long filtered = System.nanoTime();
+                            recordStage(STAGE_FILTER, filtered - start);
+                            bY.get(yvuBytes, 0, yLength);
+                            bVU.get(yvuBytes, ySize, vuLength);
+                            bY.rewind();
+                            bVU.rewind();
+                            recordStage(STAGE_COPY, System.nanoTime() - filtered);
+                        }
+                        if (!framePending) {
+                            framePending = true;
+                            mOutingHandler.post(this);
                         }
-                        bY.rewind();
-                        bVU.rewind();
                     }
-                    //End processing yvu buf
-                    if (needToFeedSurface) {
-                        bY.get(yvuBytes, 0, bY.remaining());
-                        bVU.get(yvuBytes, ySize, bVU.remaining());
-                        mOutingHandler.post(this);
+
+                    if (mPreviewFilters.size() != mFinalFilters.size()
+                            && mListeningTask.setParam(image, mSize.getWidth(),
+                            mSize.getHeight(), image.getPlanes()[0].getRowStride())) {
+                        // The listening task closes the image once it is done.
+                        image = null;
+                        mListeningHandler.post(mListeningTask);
                     }
-                    image.close();
                 } catch (IllegalStateException ignored) {
+                } finally {
+                    if (image != null) {
+                        image.close();
+                    }
                 }
             }
         }
@@ -409,56 +604,95 @@ public class FrameProcessor {
         @Override
         public void run() {
             synchronized (mAllocationLock) {
-                if (!mIsActive) {
+                framePending = false;
+                if (!mIsActive || !prepared) {
+                    return;
+                }
+                if (mCpuKernels != null) {
+                    runOnCpu();
                     return;
                 }
-                if (mInputAllocation == null) {
-                    createAllocation(stride, height, stride - width);
+                long start = System.nanoTime();
+                if (yvuBuffer == null) {
+                    mYvuAllocation.copyFrom(yvuBytes);
                 }
-                mInputAllocation.copyFrom(yvuBytes);
                 mRsRotator.forEach_rotate90andMerge(mInputAllocation);
                 mRsYuvToRGB.forEach_nv21ToRgb(mOutputAllocation);
+                long kernel = System.nanoTime();
+                recordStage(STAGE_KERNEL, kernel - start);
                 mOutputAllocation.ioSend();
                 if (mVideoOutputAllocation != null) {
                     mVideoOutputAllocation.copyFrom(mOutputAllocation);
                     mVideoOutputAllocation.ioSend();
                 }
+                recordStage(STAGE_OUTPUT, System.nanoTime() - kernel);
+            }
+        }
+
+        private void runOnCpu() {
+            long start = System.nanoTime();
+            mTransform.rotateAndMerge(yvuBytes, stride, width, height, degree, rotatedBytes);
+            mCpuKernels.nv21ToArgb(rotatedBytes, width * height, height, width, argb);
+            long kernel = System.nanoTime();
+            recordStage(STAGE_KERNEL, kernel - start);
+            outputBitmap.setPixels(argb, 0, height, 0, 0, height, width);
+            Surface surface = mSurfaceAsItIs;
+            if (surface != failedSurface && !drawToSurface(surface, false)) {
+                failedSurface = surface;
+            }
+            surface = mVideoSurfaceAsItIs;
+            if (mIsVideoOn && surface != failedVideoSurface && !drawToSurface(surface, true)) {
+                failedVideoSurface = surface;
+            }
+            recordStage(STAGE_OUTPUT, System.nanoTime() - kernel);
+        }
+
+        /*
+         * Returns false if the surface cannot be drawn to. Encoder input surfaces do not
+         * support software canvases, so the video surface is locked with a hardware one.
+         */
+        private boolean drawToSurface(Surface surface, boolean hardware) {
+            if (surface == null || !surface.isValid()) {
+                return true;
+            }
+            try {
+                Canvas canvas = hardware ? surface.lockHardwareCanvas() : surface.lockCanvas(null);
+                canvas.drawBitmap(outputBitmap, null,
+                        new Rect(0, 0, canvas.getWidth(), canvas.getHeight()), null);
+                surface.unlockCanvasAndPost(canvas);
+                return true;
+            } catch (IllegalArgumentException | IllegalStateException
+                    | Surface.OutOfResourcesException e) {
+                Log.e(TAG, "Cannot draw to " + (hardware ? "video" : "preview")
+                        + " surface, no longer drawing to it", e);
+                return false;
             }
         }
     }
 
+    /**
+     * Hands frame listeners read-only views of the preview planes. The image stays
+     * open until every listener has seen it; frames arriving meanwhile are skipped.
+     */
     class ListeningTask implements Runnable {
+        private final AtomicBoolean mBusy = new AtomicBoolean();
+        private Image mImage;
+        private ByteBuffer mBY, mBVU;
+        private int mWidth, mHeight, mStride;
 
-        ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
-        int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
-        Semaphore mMutureLock = new Semaphore(1);
-
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
+        public boolean setParam(Image image, int width, int height, int stride) {
             if (!mIsActive) {
                 return false;
             }
-            if (!mMutureLock.tryAcquire()) {
+            if (!mBusy.compareAndSet(false, true)) {
                 return false;
             }
-            mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
-            }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
-            }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
+            mImage = image;
+            mBY = image.getPlanes()[0].getBuffer().asReadOnlyBuffer();
+            mBVU = image.getPlanes()[2].getBuffer().asReadOnlyBuffer();
             mWidth = width;
             mHeight = height;
             mStride = stride;
-            mMutureLock.release();
             return true;
         }
 
@@ -468,15 +702,21 @@ public class FrameProcessor {
                 if (!mIsActive) {
                     return;
                 }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
-                mFilter.init(mWidth, mHeight, mStride, mStride);
-                mFilter.addImage(mBY, mBVU, 0, Boolean.TRUE);
-                mMutureLock.release();
-            } catch (InterruptedException ignored) {
+                for (ImageFilter filter : mPreviewFilters) {
+                    if (!filter.isFrameListener()) {
+                        continue;
+                    }
+                    filter.init(mWidth, mHeight, mStride, mStride);
+                    filter.addImage(mBY.duplicate(), mBVU.duplicate(), 0, Boolean.TRUE);
+                }
+            } catch (IllegalStateException ignored) {
+            } finally {
+                mImage.close();
+                mImage = null;
+                mBY = null;
+                mBVU = null;
+                mBusy.set(false);
             }
         }
     }
 }
-
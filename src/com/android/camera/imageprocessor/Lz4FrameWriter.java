@@ -0,0 +1,288 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Fast greedy LZ4 compressor writing the standard frame format, so the output can be
+ * read back with the lz4 command line tool. Blocks are independent and up to 4MB, and
+ * blocks that do not shrink are stored as they are. An instance keeps its buffers
+ * between calls and is not thread safe.
+ */
+public class Lz4FrameWriter {
+    public static final String EXTENSION = "lz4";
+
+    private static final int MAGIC = 0x184D2204;
+    // Version 1, independent blocks, content size present
+    private static final int FLG = 0x68;
+    // 4MB blocks
+    private static final int BD = 0x70;
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int UNCOMPRESSED = 0x80000000;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xffff;
+    private static final int HASH_BITS = 16;
+    // Skip ahead faster the longer no match is found
+    private static final int SKIP_TRIGGER = 6;
+
+    private final int[] mTable = new int[1 << HASH_BITS];
+    private final byte[] mBlock = new byte[maxCompressedLength(BLOCK_SIZE)];
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /* Writes one frame holding length bytes of src, returns the bytes written */
+    public long write(OutputStream out, byte[] src, int offset, int length)
+            throws IOException {
+        byte[] header = new byte[19];
+        writeIntLE(header, 0, MAGIC);
+        header[4] = (byte) FLG;
+        header[5] = (byte) BD;
+        writeIntLE(header, 6, length);
+        writeIntLE(header, 10, 0);
+        header[14] = (byte) (xxh32(header, 4, 10, 0) >> 8);
+        out.write(header, 0, 15);
+        long written = 15;
+        for (int pos = offset; pos < offset + length; pos += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, offset + length - pos);
+            int compressed = compressBlock(src, pos, n, mBlock, 4);
+            if (compressed < n) {
+                writeIntLE(mBlock, 0, compressed);
+                out.write(mBlock, 0, compressed + 4);
+                written += compressed + 4;
+            } else {
+                writeIntLE(header, 15, n | UNCOMPRESSED);
+                out.write(header, 15, 4);
+                out.write(src, pos, n);
+                written += n + 4;
+            }
+        }
+        writeIntLE(header, 15, 0);
+        out.write(header, 15, 4);
+        return written + 4;
+    }
+
+    private int compressBlock(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int end = srcOff + srcLen;
+        int anchor = srcOff;
+        int op = dstOff;
+        if (srcLen >= MF_LIMIT + 1) {
+            Arrays.fill(mTable, -1);
+            int mfLimit = end - MF_LIMIT;
+            int matchLimit = end - LAST_LITERALS;
+            int ip = srcOff;
+            while (ip < mfLimit) {
+                int seq = readInt(src, ip);
+                int h = hash(seq);
+                int ref = mTable[h];
+                mTable[h] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+                    ip += 1 + ((ip - anchor) >> SKIP_TRIGGER);
+                    continue;
+                }
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit
+                        && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                int token = op;
+                op = writeSequence(src, anchor, ip - anchor, dst, op);
+                dst[op++] = (byte) (ip - ref);
+                dst[op++] = (byte) ((ip - ref) >> 8);
+                int extra = matchLength - MIN_MATCH;
+                if (extra >= 15) {
+                    op = writeLength(dst, op, extra - 15);
+                }
+                dst[token] |= (byte) Math.min(extra, 15);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        return writeSequence(src, anchor, end - anchor, dst, op) - dstOff;
+    }
+
+    /* Writes the token, with the literal length in its high nibble, and the literals */
+    private static int writeSequence(byte[] src, int literalStart, int literalLength,
+                                     byte[] dst, int op) {
+        dst[op++] = (byte) (Math.min(literalLength, 15) << 4);
+        if (literalLength >= 15) {
+            op = writeLength(dst, op, literalLength - 15);
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16
+                | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static void writeIntLE(byte[] b, int i, int v) {
+        b[i] = (byte) v;
+        b[i + 1] = (byte) (v >> 8);
+        b[i + 2] = (byte) (v >> 16);
+        b[i + 3] = (byte) (v >> 24);
+    }
+
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+
+    /* xxHash32, which the frame header checksum is taken from */
+    static int xxh32(byte[] b, int offset, int length, int seed) {
+        int end = offset + length;
+        int i = offset;
+        int h;
+        if (length >= 16) {
+            int v1 = seed + PRIME1 + PRIME2;
+            int v2 = seed + PRIME2;
+            int v3 = seed;
+            int v4 = seed - PRIME1;
+            for (; i <= end - 16; i += 16) {
+                v1 = Integer.rotateLeft(v1 + readInt(b, i) * PRIME2, 13) * PRIME1;
+                v2 = Integer.rotateLeft(v2 + readInt(b, i + 4) * PRIME2, 13) * PRIME1;
+                v3 = Integer.rotateLeft(v3 + readInt(b, i + 8) * PRIME2, 13) * PRIME1;
+                v4 = Integer.rotateLeft(v4 + readInt(b, i + 12) * PRIME2, 13) * PRIME1;
+            }
+            h = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7)
+                    + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += length;
+        for (; i <= end - 4; i += 4) {
+            h = Integer.rotateLeft(h + readInt(b, i) * PRIME3, 17) * PRIME4;
+        }
+        for (; i < end; i++) {
+            h = Integer.rotateLeft(h + (b[i] & 0xff) * PRIME5, 11) * PRIME1;
+        }
+        h ^= h >>> 15;
+        h *= PRIME2;
+        h ^= h >>> 13;
+        h *= PRIME3;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Reads back a frame written by this class, for tests and tools. Only the features
+     * used by write() are supported.
+     */
+    public static byte[] decode(byte[] frame) throws IOException {
+        if (frame.length < 19 || readInt(frame, 0) != MAGIC || frame[4] != (byte) FLG
+                || (byte) (xxh32(frame, 4, 10, 0) >> 8) != frame[14]) {
+            throw new IOException("Not an lz4 frame written by Lz4FrameWriter");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(readInt(frame, 6));
+        int pos = 15;
+        while (true) {
+            int size = readInt(frame, pos);
+            pos += 4;
+            if (size == 0) {
+                break;
+            }
+            if ((size & UNCOMPRESSED) != 0) {
+                size &= ~UNCOMPRESSED;
+                out.write(frame, pos, size);
+            } else {
+                decodeBlock(frame, pos, size, out);
+            }
+            pos += size;
+        }
+        return out.toByteArray();
+    }
+
+    private static void decodeBlock(byte[] src, int pos, int size, ByteArrayOutputStream out)
+            throws IOException {
+        int end = pos + size;
+        byte[] block = new byte[BLOCK_SIZE];
+        int op = 0;
+        while (pos < end) {
+            int token = src[pos++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[pos++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, pos, block, op, literals);
+            pos += literals;
+            op += literals;
+            if (pos >= end) {
+                break;
+            }
+            int distance = (src[pos] & 0xff) | (src[pos + 1] & 0xff) << 8;
+            pos += 2;
+            int match = (token & 15) + MIN_MATCH;
+            if ((token & 15) == 15) {
+                int b;
+                do {
+                    b = src[pos++] & 0xff;
+                    match += b;
+                } while (b == 255);
+            }
+            if (distance == 0 || distance > op) {
+                throw new IOException("Corrupt lz4 block");
+            }
+            for (int i = 0; i < match; i++, op++) {
+                block[op] = block[op - distance];
+            }
+        }
+        out.write(block, 0, op);
+    }
+}
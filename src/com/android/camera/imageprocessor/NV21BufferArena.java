@@ -0,0 +1,219 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Size-keyed pool of direct NV21 buffers shared by the post processor and its filters.
+ * Buffers are reference counted; a buffer goes back to its free list when the last
+ * holder releases it, and at most {@code capacity} idle buffers are kept per size.
+ */
+public class NV21BufferArena {
+    private static final String TAG = "NV21BufferArena";
+
+    private final Object mLock = new Object();
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> mFreeBuffers = new HashMap<>();
+    private final IdentityHashMap<ByteBuffer, Integer> mRefCounts = new IdentityHashMap<>();
+    private int mCapacity;
+    private int mFrameSize;
+
+    private long mAllocationCount;
+    private long mReuseCount;
+    private long mAllocatedBytes;
+    private int mHighWaterMark;
+
+    public NV21BufferArena(int capacity) {
+        mCapacity = Math.max(1, capacity);
+    }
+
+    public static int getFrameSize(int height, int strideY, int strideVU) {
+        return strideY * height + strideVU * height / 2;
+    }
+
+    /* Sets the geometry used by acquireFrame() and drops idle buffers of other sizes */
+    public void configure(int width, int height, int strideY, int strideVU, int capacity) {
+        synchronized (mLock) {
+            mCapacity = Math.max(1, capacity);
+            int frameSize = getFrameSize(height, strideY, strideVU);
+            if (frameSize != mFrameSize) {
+                mFreeBuffers.clear();
+                mFrameSize = frameSize;
+            }
+            trimLocked();
+        }
+    }
+
+    public ByteBuffer acquireFrame() {
+        int size;
+        synchronized (mLock) {
+            size = mFrameSize;
+        }
+        if (size <= 0) {
+            throw new IllegalStateException("Arena is not configured");
+        }
+        return acquire(size);
+    }
+
+    public ByteBuffer acquire(int size) {
+        ByteBuffer buf = null;
+        synchronized (mLock) {
+            ArrayDeque<ByteBuffer> free = mFreeBuffers.get(size);
+            if (free != null) {
+                buf = free.pollFirst();
+            }
+            if (buf != null) {
+                mReuseCount++;
+            } else {
+                mAllocationCount++;
+                mAllocatedBytes += size;
+            }
+        }
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(size);
+        }
+        buf.clear();
+        synchronized (mLock) {
+            mRefCounts.put(buf, 1);
+            mHighWaterMark = Math.max(mHighWaterMark, mRefCounts.size());
+        }
+        return buf;
+    }
+
+    public void retain(ByteBuffer buf) {
+        synchronized (mLock) {
+            Integer count = mRefCounts.get(buf);
+            if (count == null) {
+                throw new IllegalArgumentException("Buffer is not leased from this arena");
+            }
+            mRefCounts.put(buf, count + 1);
+        }
+    }
+
+    /* Returns false if the buffer was not leased from this arena */
+    public boolean release(ByteBuffer buf) {
+        if (buf == null) {
+            return false;
+        }
+        synchronized (mLock) {
+            Integer count = mRefCounts.get(buf);
+            if (count == null) {
+                return false;
+            }
+            if (count > 1) {
+                mRefCounts.put(buf, count - 1);
+                return true;
+            }
+            mRefCounts.remove(buf);
+            int size = buf.capacity();
+            ArrayDeque<ByteBuffer> free = mFreeBuffers.get(size);
+            if (free == null) {
+                free = new ArrayDeque<>();
+                mFreeBuffers.put(size, free);
+            }
+            if (free.size() < mCapacity) {
+                free.addFirst(buf);
+            }
+        }
+        return true;
+    }
+
+    public boolean owns(ByteBuffer buf) {
+        synchronized (mLock) {
+            return mRefCounts.containsKey(buf);
+        }
+    }
+
+    /* Drops all idle buffers. Leased buffers stay valid until released */
+    public void clear() {
+        synchronized (mLock) {
+            mFreeBuffers.clear();
+        }
+    }
+
+    public long getAllocationCount() {
+        synchronized (mLock) {
+            return mAllocationCount;
+        }
+    }
+
+    public long getReuseCount() {
+        synchronized (mLock) {
+            return mReuseCount;
+        }
+    }
+
+    public long getAllocatedBytes() {
+        synchronized (mLock) {
+            return mAllocatedBytes;
+        }
+    }
+
+    public int getLeasedCount() {
+        synchronized (mLock) {
+            return mRefCounts.size();
+        }
+    }
+
+    public int getHighWaterMark() {
+        synchronized (mLock) {
+            return mHighWaterMark;
+        }
+    }
+
+    public void resetCounters() {
+        synchronized (mLock) {
+            mAllocationCount = 0;
+            mReuseCount = 0;
+            mAllocatedBytes = 0;
+            mHighWaterMark = mRefCounts.size();
+        }
+    }
+
+    public void dump() {
+        synchronized (mLock) {
+            Log.d(TAG, "allocations: " + mAllocationCount + " reuses: " + mReuseCount
+                    + " allocatedBytes: " + mAllocatedBytes + " leased: " + mRefCounts.size()
+                    + " highWater: " + mHighWaterMark);
+        }
+    }
+
+    private void trimLocked() {
+        for (ArrayDeque<ByteBuffer> free : mFreeBuffers.values()) {
+            while (free.size() > mCapacity) {
+                free.pollLast();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+/**
+ * Encodes an NV21 region of interest to a baseline JPEG. The parallel strip encoder
+ * is used when persist.camera.jpeg.parallel is set, otherwise the platform YuvImage
+ * path, which also stays the fallback of the parallel one.
+ */
+public abstract class NV21JpegEncoder {
+    private static final String TAG = "NV21JpegEncoder";
+
+    private static NV21JpegEncoder sFallback;
+    private static NV21JpegEncoder sParallel;
+
+    public byte[] encode(byte[] nv21, int width, int height, int strideY, int strideVU,
+                         Rect roi, int quality) {
+        return encode(nv21, 0, width, height, strideY, strideVU, roi, quality);
+    }
+
+    /**
+     * Encodes an image that starts at offset in nv21, such as the backing array of a
+     * direct buffer from NV21BufferArena, which starts at arrayOffset().
+     */
+    public abstract byte[] encode(byte[] nv21, int offset, int width, int height, int strideY,
+                                  int strideVU, Rect roi, int quality);
+
+    public static synchronized NV21JpegEncoder getFallback() {
+        if (sFallback == null) {
+            sFallback = new YuvImageJpegEncoder();
+        }
+        return sFallback;
+    }
+
+    public static synchronized NV21JpegEncoder getInstance() {
+        if (!PersistUtil.isParallelJpegEncodeEnabled()) {
+            return getFallback();
+        }
+        if (sParallel == null) {
+            sParallel = new FallbackWrapper(new ParallelJpegEncoder(), getFallback());
+        }
+        return sParallel;
+    }
+
+    private static class FallbackWrapper extends NV21JpegEncoder {
+        private final NV21JpegEncoder mPrimary;
+        private final NV21JpegEncoder mFallback;
+
+        FallbackWrapper(NV21JpegEncoder primary, NV21JpegEncoder fallback) {
+            mPrimary = primary;
+            mFallback = fallback;
+        }
+
+        @Override
+        public byte[] encode(byte[] nv21, int offset, int width, int height, int strideY,
+                             int strideVU, Rect roi, int quality) {
+            try {
+                return mPrimary.encode(nv21, offset, width, height, strideY, strideVU, roi,
+                        quality);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                Log.w(TAG, "Parallel encode failed, using YuvImage", e);
+                return mFallback.encode(nv21, offset, width, height, strideY, strideVU, roi,
+                        quality);
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Crops, mirrors, rotates and scales an NV21 image in a single pass. Every output pixel is
+ * the average of its footprint in the source ROI, so the source is read once and only the
+ * output size is written, instead of one full frame pass per step as with the separate
+ * flip and resize helpers. Output rows are split into bands on a fork-join pool and walked
+ * in square tiles, which keeps the source reads of rotated output in cache.
+ * <p>
+ * Mirroring is applied to the ROI before it is rotated clockwise by degree. The ROI
+ * should start on even coordinates so the chroma samples line up.
+ */
+public class NV21Transform {
+    private static final int TILE = 64;
+    private static final int BANDS_PER_THREAD = 2;
+
+    private final ForkJoinPool mPool;
+    private final int mParallelism;
+
+    public NV21Transform() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public NV21Transform(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        mPool = new ForkJoinPool(mParallelism);
+    }
+
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    /* Size of the rotated roi, before scaling */
+    public static int getRotatedWidth(Rect roi, int degree) {
+        return degree == 90 || degree == 270 ? roi.height() : roi.width();
+    }
+
+    public static int getRotatedHeight(Rect roi, int degree) {
+        return degree == 90 || degree == 270 ? roi.width() : roi.height();
+    }
+
+    /**
+     * Equivalent of rotate90andMerge in rotator.rs, which transposes the frame and mirrors
+     * 0 and 180 degree frames. src is an NV21 frame of height rows of width pixels with a
+     * row stride of stride, dst gets width rows of height bytes with its chroma plane at
+     * width * height.
+     */
+    public void rotateAndMerge(byte[] src, int stride, int width, int height, int degree,
+                               byte[] dst) {
+        apply(src, stride, height, new Rect(0, 0, width, height), false,
+                degree == 0 || degree == 180, degree < 180 ? 90 : 270,
+                dst, height, width, height);
+    }
+
+    /**
+     * Writes the transformed roi of src to dst, a dstWidth x dstHeight NV21 image with a
+     * row stride of dstStride and its chroma plane at dstStride * dstHeight.
+     */
+    public void apply(byte[] src, int srcStride, int srcHeight, Rect roi,
+                      boolean mirrorHorizontal, boolean mirrorVertical, int degree,
+                      byte[] dst, int dstWidth, int dstHeight, int dstStride) {
+        apply(src, 0, srcStride, srcHeight, roi, mirrorHorizontal, mirrorVertical, degree,
+                dst, 0, dstWidth, dstHeight, dstStride);
+    }
+
+    /**
+     * Same as above for images that start at srcOffset and dstOffset in their arrays, such
+     * as the backing arrays of direct buffers, which start at arrayOffset().
+     */
+    public void apply(final byte[] src, int srcOffset, int srcStride, int srcHeight,
+                      Rect roi, boolean mirrorHorizontal, boolean mirrorVertical, int degree,
+                      final byte[] dst, int dstOffset, int dstWidth, final int dstHeight,
+                      int dstStride) {
+        final Plan plan = new Plan(srcOffset, srcStride, srcHeight, roi, mirrorHorizontal,
+                mirrorVertical, degree, dstOffset, dstWidth, dstHeight, dstStride);
+        int tileRows = (dstHeight + TILE - 1) / TILE;
+        int bands = Math.min(tileRows, mParallelism * BANDS_PER_THREAD);
+        if (bands <= 1) {
+            plan.run(src, dst, 0, dstHeight);
+            return;
+        }
+        int tilesPerBand = (tileRows + bands - 1) / bands;
+        List<Callable<Void>> tasks = new ArrayList<>(bands);
+        for (int tile = 0; tile < tileRows; tile += tilesPerBand) {
+            final int first = tile * TILE;
+            final int last = Math.min(dstHeight, (tile + tilesPerBand) * TILE);
+            tasks.add(() -> {
+                plan.run(src, dst, first, last);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : mPool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("NV21 transform failed", e);
+        }
+    }
+
+    /**
+     * Per-pixel version of apply(), kept simple for testing the tiled one against.
+     */
+    public static void applyReference(byte[] src, int srcStride, int srcHeight, Rect roi,
+                                      boolean mirrorHorizontal, boolean mirrorVertical,
+                                      int degree, byte[] dst, int dstWidth, int dstHeight,
+                                      int dstStride) {
+        int rotatedWidth = getRotatedWidth(roi, degree);
+        int rotatedHeight = getRotatedHeight(roi, degree);
+        int srcVu = srcStride * srcHeight;
+        int dstVu = dstStride * dstHeight;
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                int u0 = x * rotatedWidth / dstWidth;
+                int u1 = Math.max(u0 + 1, (x + 1) * rotatedWidth / dstWidth);
+                int v0 = y * rotatedHeight / dstHeight;
+                int v1 = Math.max(v0 + 1, (y + 1) * rotatedHeight / dstHeight);
+                int sum = 0;
+                int count = 0;
+                for (int v = v0; v < v1; v++) {
+                    for (int u = u0; u < u1; u++) {
+                        int[] p = toSource(u, v, roi, mirrorHorizontal, mirrorVertical, degree);
+                        sum += src[p[1] * srcStride + p[0]] & 0xff;
+                        count++;
+                    }
+                }
+                dst[y * dstStride + x] = (byte) ((sum + count / 2) / count);
+            }
+        }
+        for (int y = 0; y < dstHeight / 2; y++) {
+            for (int x = 0; x < dstWidth / 2; x++) {
+                int u0 = 2 * x * rotatedWidth / dstWidth;
+                int u1 = Math.max((2 * x + 1) * rotatedWidth / dstWidth + 1,
+                        (2 * x + 2) * rotatedWidth / dstWidth);
+                int v0 = 2 * y * rotatedHeight / dstHeight;
+                int v1 = Math.max((2 * y + 1) * rotatedHeight / dstHeight + 1,
+                        (2 * y + 2) * rotatedHeight / dstHeight);
+                // Chroma samples under the luma footprint of this 2x2 block
+                int[] a = toSource(u0, v0, roi, mirrorHorizontal, mirrorVertical, degree);
+                int[] b = toSource(u1 - 1, v1 - 1, roi, mirrorHorizontal, mirrorVertical, degree);
+                int cx0 = Math.min(a[0], b[0]) >> 1;
+                int cx1 = (Math.max(a[0], b[0]) >> 1) + 1;
+                int cy0 = Math.min(a[1], b[1]) >> 1;
+                int cy1 = (Math.max(a[1], b[1]) >> 1) + 1;
+                int sumV = 0;
+                int sumU = 0;
+                int count = 0;
+                for (int cy = cy0; cy < cy1; cy++) {
+                    for (int cx = cx0; cx < cx1; cx++) {
+                        int i = srcVu + cy * srcStride + cx * 2;
+                        sumV += src[i] & 0xff;
+                        sumU += src[i + 1] & 0xff;
+                        count++;
+                    }
+                }
+                int d = dstVu + y * dstStride + x * 2;
+                dst[d] = (byte) ((sumV + count / 2) / count);
+                dst[d + 1] = (byte) ((sumU + count / 2) / count);
+            }
+        }
+    }
+
+    private static int[] toSource(int u, int v, Rect roi, boolean mirrorHorizontal,
+                                  boolean mirrorVertical, int degree) {
+        int w = roi.width();
+        int h = roi.height();
+        int x;
+        int y;
+        if (degree == 90) {
+            x = v;
+            y = h - 1 - u;
+        } else if (degree == 180) {
+            x = w - 1 - u;
+            y = h - 1 - v;
+        } else if (degree == 270) {
+            x = w - 1 - v;
+            y = u;
+        } else {
+            x = u;
+            y = v;
+        }
+        if (mirrorHorizontal) {
+            x = w - 1 - x;
+        }
+        if (mirrorVertical) {
+            y = h - 1 - y;
+        }
+        return new int[] {roi.left + x, roi.top + y};
+    }
+
+    /**
+     * Source footprints of every output column and row. Each output axis walks one source
+     * axis, forwards or backwards; a range is always stored as [start, end) on the source.
+     */
+    private static class Plan {
+        final int mSrcOffset;
+        final int mSrcStride;
+        final int mSrcVu;
+        final int mDstWidth;
+        final int mDstHeight;
+        final int mDstOffset;
+        final int mDstStride;
+        final int mDstVu;
+        // Output columns walk source rows instead of columns
+        final boolean mTransposed;
+        final int[] mColStart;
+        final int[] mColEnd;
+        final int[] mRowStart;
+        final int[] mRowEnd;
+        final boolean mOneToOne;
+
+        Plan(int srcOffset, int srcStride, int srcHeight, Rect roi, boolean mirrorHorizontal,
+             boolean mirrorVertical, int degree, int dstOffset, int dstWidth, int dstHeight,
+             int dstStride) {
+            if (degree != 0 && degree != 90 && degree != 180 && degree != 270) {
+                throw new IllegalArgumentException("Unsupported degree " + degree);
+            }
+            if (roi.left < 0 || roi.top < 0 || roi.right > srcStride || roi.bottom > srcHeight
+                    || roi.isEmpty()) {
+                throw new IllegalArgumentException("Invalid roi " + roi);
+            }
+            mSrcOffset = srcOffset;
+            mSrcStride = srcStride;
+            mSrcVu = srcOffset + srcStride * srcHeight;
+            mDstWidth = dstWidth;
+            mDstHeight = dstHeight;
+            mDstOffset = dstOffset;
+            mDstStride = dstStride;
+            mDstVu = dstOffset + dstStride * dstHeight;
+            mTransposed = degree == 90 || degree == 270;
+            boolean colsReversed;
+            boolean rowsReversed;
+            if (degree == 0) {
+                colsReversed = mirrorHorizontal;
+                rowsReversed = mirrorVertical;
+            } else if (degree == 90) {
+                colsReversed = !mirrorVertical;
+                rowsReversed = mirrorHorizontal;
+            } else if (degree == 180) {
+                colsReversed = !mirrorHorizontal;
+                rowsReversed = !mirrorVertical;
+            } else {
+                colsReversed = mirrorVertical;
+                rowsReversed = !mirrorHorizontal;
+            }
+            int colBase = mTransposed ? roi.top : roi.left;
+            int colLength = mTransposed ? roi.height() : roi.width();
+            int rowBase = mTransposed ? roi.left : roi.top;
+            int rowLength = mTransposed ? roi.width() : roi.height();
+            mColStart = new int[dstWidth];
+            mColEnd = new int[dstWidth];
+            mRowStart = new int[dstHeight];
+            mRowEnd = new int[dstHeight];
+            footprints(colBase, colLength, colsReversed, dstWidth, mColStart, mColEnd);
+            footprints(rowBase, rowLength, rowsReversed, dstHeight, mRowStart, mRowEnd);
+            mOneToOne = colLength == dstWidth && rowLength == dstHeight;
+        }
+
+        private static void footprints(int base, int length, boolean reversed, int count,
+                                       int[] start, int[] end) {
+            for (int d = 0; d < count; d++) {
+                int u0 = (int) ((long) d * length / count);
+                int u1 = Math.max(u0 + 1, (int) ((long) (d + 1) * length / count));
+                if (reversed) {
+                    start[d] = base + length - u1;
+                    end[d] = base + length - u0;
+                } else {
+                    start[d] = base + u0;
+                    end[d] = base + u1;
+                }
+            }
+        }
+
+        void run(byte[] src, byte[] dst, int firstRow, int lastRow) {
+            for (int ty = firstRow; ty < lastRow; ty += TILE) {
+                int ty1 = Math.min(lastRow, ty + TILE);
+                for (int tx = 0; tx < mDstWidth; tx += TILE) {
+                    int tx1 = Math.min(mDstWidth, tx + TILE);
+                    if (mOneToOne) {
+                        copyTile(src, dst, tx, tx1, ty, ty1);
+                    } else {
+                        averageTile(src, dst, tx, tx1, ty, ty1);
+                    }
+                    chromaTile(src, dst, tx, tx1, ty, ty1);
+                }
+            }
+        }
+
+        private void copyTile(byte[] src, byte[] dst, int tx, int tx1, int ty, int ty1) {
+            for (int y = ty; y < ty1; y++) {
+                int d = mDstOffset + y * mDstStride;
+                int row = mRowStart[y];
+                if (mTransposed) {
+                    for (int x = tx; x < tx1; x++) {
+                        dst[d + x] = src[mSrcOffset + mColStart[x] * mSrcStride + row];
+                    }
+                } else {
+                    int s = mSrcOffset + row * mSrcStride;
+                    for (int x = tx; x < tx1; x++) {
+                        dst[d + x] = src[s + mColStart[x]];
+                    }
+                }
+            }
+        }
+
+        private void averageTile(byte[] src, byte[] dst, int tx, int tx1, int ty, int ty1) {
+            for (int y = ty; y < ty1; y++) {
+                int d = mDstOffset + y * mDstStride;
+                for (int x = tx; x < tx1; x++) {
+                    int sx0, sx1, sy0, sy1;
+                    if (mTransposed) {
+                        sx0 = mRowStart[y];
+                        sx1 = mRowEnd[y];
+                        sy0 = mColStart[x];
+                        sy1 = mColEnd[x];
+                    } else {
+                        sx0 = mColStart[x];
+                        sx1 = mColEnd[x];
+                        sy0 = mRowStart[y];
+                        sy1 = mRowEnd[y];
+                    }
+                    int sum = 0;
+                    for (int sy = sy0; sy < sy1; sy++) {
+                        int s = mSrcOffset + sy * mSrcStride;
+                        for (int sx = sx0; sx < sx1; sx++) {
+                            sum += src[s + sx] & 0xff;
+                        }
+                    }
+                    int count = (sx1 - sx0) * (sy1 - sy0);
+                    dst[d + x] = (byte) ((sum + count / 2) / count);
+                }
+            }
+        }
+
+        private void chromaTile(byte[] src, byte[] dst, int tx, int tx1, int ty, int ty1) {
+            // Bands and tiles start on even rows and columns
+            int cyEnd = Math.min(ty1, mDstHeight & ~1);
+            int cxEnd = Math.min(tx1, mDstWidth & ~1);
+            for (int y = ty; y < cyEnd; y += 2) {
+                int d = mDstVu + (y / 2) * mDstStride;
+                for (int x = tx; x < cxEnd; x += 2) {
+                    int a0 = Math.min(mColStart[x], mColStart[x + 1]) >> 1;
+                    int a1 = ((Math.max(mColEnd[x], mColEnd[x + 1]) - 1) >> 1) + 1;
+                    int b0 = Math.min(mRowStart[y], mRowStart[y + 1]) >> 1;
+                    int b1 = ((Math.max(mRowEnd[y], mRowEnd[y + 1]) - 1) >> 1) + 1;
+                    int cx0, cx1, cy0, cy1;
+                    if (mTransposed) {
+                        cx0 = b0;
+                        cx1 = b1;
+                        cy0 = a0;
+                        cy1 = a1;
+                    } else {
+                        cx0 = a0;
+                        cx1 = a1;
+                        cy0 = b0;
+                        cy1 = b1;
+                    }
+                    int sumV = 0;
+                    int sumU = 0;
+                    for (int cy = cy0; cy < cy1; cy++) {
+                        int s = mSrcVu + cy * mSrcStride;
+                        for (int cx = cx0; cx < cx1; cx++) {
+                            sumV += src[s + 2 * cx] & 0xff;
+                            sumU += src[s + 2 * cx + 1] & 0xff;
+                        }
+                    }
+                    int count = (cx1 - cx0) * (cy1 - cy0);
+                    dst[d + x] = (byte) ((sumV + count / 2) / count);
+                    dst[d + x + 1] = (byte) ((sumU + count / 2) / count);
+                }
+            }
+        }
+    }
+}
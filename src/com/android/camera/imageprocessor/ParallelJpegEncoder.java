@@ -0,0 +1,617 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Baseline 4:2:0 JPEG encoder for NV21 that splits the ROI into horizontal strips of
+ * whole MCU rows. Every strip is one restart interval, so strips are entropy coded
+ * independently on a fork-join pool and stitched together with RSTn markers.
+ */
+public class ParallelJpegEncoder extends NV21JpegEncoder {
+    private static final int MCU_SIZE = 16;
+    private static final int MAX_RESTART_INTERVAL = 0xffff;
+    private static final int STRIPS_PER_THREAD = 2;
+
+    private static final int[] ZIGZAG = {
+            0, 1, 5, 6, 14, 15, 27, 28,
+            2, 4, 7, 13, 16, 26, 29, 42,
+            3, 8, 12, 17, 25, 30, 41, 43,
+            9, 11, 18, 24, 31, 40, 44, 53,
+            10, 19, 23, 32, 39, 45, 52, 54,
+            20, 22, 33, 38, 46, 51, 55, 60,
+            21, 34, 37, 47, 50, 56, 59, 61,
+            35, 36, 48, 49, 57, 58, 62, 63
+    };
+
+    private static final int[] STD_LUMINANCE_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] STD_CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    private static final float[] AAN_SCALE = {
+            1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+            1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+
+    private static final HuffmanTable DC_LUMINANCE =
+            new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private static final HuffmanTable DC_CHROMINANCE =
+            new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private static final HuffmanTable AC_LUMINANCE =
+            new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private static final HuffmanTable AC_CHROMINANCE =
+            new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    private final ForkJoinPool mPool;
+    private final int mParallelism;
+    private QuantTables mQuantTables;
+
+    public ParallelJpegEncoder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelJpegEncoder(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        mPool = new ForkJoinPool(mParallelism);
+    }
+
+    @Override
+    public byte[] encode(final byte[] nv21, final int offset, final int width,
+                         final int height, final int strideY, final int strideVU, Rect roi,
+                         int quality) {
+        if (roi.left < 0 || roi.top < 0 || roi.right > width || roi.bottom > height
+                || roi.isEmpty()) {
+            throw new IllegalArgumentException("Invalid roi " + roi);
+        }
+        final QuantTables tables = getQuantTables(quality);
+        final int left = roi.left;
+        final int top = roi.top;
+        final int right = roi.right;
+        final int bottom = roi.bottom;
+        final int mcusX = (roi.width() + MCU_SIZE - 1) / MCU_SIZE;
+        final int mcusY = (roi.height() + MCU_SIZE - 1) / MCU_SIZE;
+        int rowsPerStrip = Math.max(1,
+                (mcusY + mParallelism * STRIPS_PER_THREAD - 1) / (mParallelism * STRIPS_PER_THREAD));
+        rowsPerStrip = Math.max(1, Math.min(rowsPerStrip, MAX_RESTART_INTERVAL / mcusX));
+        final int stripCount = (mcusY + rowsPerStrip - 1) / rowsPerStrip;
+        final int vuOffset = offset + strideY * height;
+
+        List<Callable<BitWriter>> tasks = new ArrayList<>(stripCount);
+        for (int i = 0; i < stripCount; i++) {
+            final int firstRow = i * rowsPerStrip;
+            final int lastRow = Math.min(mcusY, firstRow + rowsPerStrip);
+            tasks.add(() -> {
+                StripEncoder encoder = new StripEncoder(nv21, offset, strideY, strideVU,
+                        vuOffset, left, top, right, bottom, tables);
+                return encoder.encode(firstRow, lastRow, mcusX);
+            });
+        }
+
+        List<BitWriter> strips = new ArrayList<>(stripCount);
+        List<Future<BitWriter>> futures = mPool.invokeAll(tasks);
+        try {
+            for (Future<BitWriter> future : futures) {
+                strips.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Strip encoding interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Strip encoding failed", e);
+        }
+
+        int restartInterval = stripCount > 1 ? rowsPerStrip * mcusX : 0;
+        byte[] header = writeHeader(roi.width(), roi.height(), tables, restartInterval);
+        int total = header.length + 2 * (stripCount - 1) + 2;
+        for (BitWriter strip : strips) {
+            total += strip.mLength;
+        }
+        byte[] out = new byte[total];
+        System.arraycopy(header, 0, out, 0, header.length);
+        int pos = header.length;
+        for (int i = 0; i < stripCount; i++) {
+            BitWriter strip = strips.get(i);
+            System.arraycopy(strip.mBuffer, 0, out, pos, strip.mLength);
+            pos += strip.mLength;
+            if (i < stripCount - 1) {
+                out[pos++] = (byte) 0xff;
+                out[pos++] = (byte) (0xd0 + (i & 7));
+            }
+        }
+        out[pos++] = (byte) 0xff;
+        out[pos] = (byte) 0xd9;
+        return out;
+    }
+
+    private synchronized QuantTables getQuantTables(int quality) {
+        if (mQuantTables == null || mQuantTables.mQuality != quality) {
+            mQuantTables = new QuantTables(quality);
+        }
+        return mQuantTables;
+    }
+
+    private static byte[] writeHeader(int width, int height, QuantTables tables,
+                                      int restartInterval) {
+        BitWriter w = new BitWriter(1024);
+        // SOI + JFIF APP0
+        w.writeMarker(0xd8);
+        w.writeMarker(0xe0);
+        w.writeShort(16);
+        w.writeByte('J');
+        w.writeByte('F');
+        w.writeByte('I');
+        w.writeByte('F');
+        w.writeByte(0);
+        w.writeByte(1);
+        w.writeByte(1);
+        w.writeByte(0);
+        w.writeShort(1);
+        w.writeShort(1);
+        w.writeByte(0);
+        w.writeByte(0);
+        // DQT
+        w.writeMarker(0xdb);
+        w.writeShort(2 + 2 * 65);
+        w.writeByte(0);
+        for (int i = 0; i < 64; i++) {
+            w.writeByte(tables.mLuminanceZigzag[i]);
+        }
+        w.writeByte(1);
+        for (int i = 0; i < 64; i++) {
+            w.writeByte(tables.mChrominanceZigzag[i]);
+        }
+        // SOF0
+        w.writeMarker(0xc0);
+        w.writeShort(17);
+        w.writeByte(8);
+        w.writeShort(height);
+        w.writeShort(width);
+        w.writeByte(3);
+        w.writeByte(1);
+        w.writeByte(0x22);
+        w.writeByte(0);
+        w.writeByte(2);
+        w.writeByte(0x11);
+        w.writeByte(1);
+        w.writeByte(3);
+        w.writeByte(0x11);
+        w.writeByte(1);
+        // DHT
+        w.writeMarker(0xc4);
+        w.writeShort(2 + DC_LUMINANCE.segmentLength() + AC_LUMINANCE.segmentLength()
+                + DC_CHROMINANCE.segmentLength() + AC_CHROMINANCE.segmentLength());
+        DC_LUMINANCE.write(w, 0x00);
+        AC_LUMINANCE.write(w, 0x10);
+        DC_CHROMINANCE.write(w, 0x01);
+        AC_CHROMINANCE.write(w, 0x11);
+        if (restartInterval > 0) {
+            w.writeMarker(0xdd);
+            w.writeShort(4);
+            w.writeShort(restartInterval);
+        }
+        // SOS
+        w.writeMarker(0xda);
+        w.writeShort(12);
+        w.writeByte(3);
+        w.writeByte(1);
+        w.writeByte(0x00);
+        w.writeByte(2);
+        w.writeByte(0x11);
+        w.writeByte(3);
+        w.writeByte(0x11);
+        w.writeByte(0);
+        w.writeByte(63);
+        w.writeByte(0);
+        byte[] header = new byte[w.mLength];
+        System.arraycopy(w.mBuffer, 0, header, 0, w.mLength);
+        return header;
+    }
+
+    private static class QuantTables {
+        final int mQuality;
+        final int[] mLuminanceZigzag = new int[64];
+        final int[] mChrominanceZigzag = new int[64];
+        final float[] mLuminanceDivisors = new float[64];
+        final float[] mChrominanceDivisors = new float[64];
+
+        QuantTables(int quality) {
+            mQuality = quality;
+            quality = Math.max(1, Math.min(100, quality));
+            int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+            for (int i = 0; i < 64; i++) {
+                int lum = clampQuant((STD_LUMINANCE_QUANT[i] * scale + 50) / 100);
+                int chrom = clampQuant((STD_CHROMINANCE_QUANT[i] * scale + 50) / 100);
+                mLuminanceZigzag[ZIGZAG[i]] = lum;
+                mChrominanceZigzag[ZIGZAG[i]] = chrom;
+                float aan = AAN_SCALE[i >> 3] * AAN_SCALE[i & 7] * 8f;
+                mLuminanceDivisors[i] = 1f / (lum * aan);
+                mChrominanceDivisors[i] = 1f / (chrom * aan);
+            }
+        }
+
+        private static int clampQuant(int value) {
+            return Math.max(1, Math.min(255, value));
+        }
+    }
+
+    private static class HuffmanTable {
+        final int[] mBits;
+        final int[] mValues;
+        final int[] mCodes = new int[256];
+        final int[] mLengths = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            mBits = bits;
+            mValues = values;
+            int code = 0;
+            int k = 0;
+            for (int len = 1; len <= 16; len++) {
+                for (int i = 0; i < bits[len - 1]; i++) {
+                    mCodes[values[k]] = code;
+                    mLengths[values[k]] = len;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        int segmentLength() {
+            return 1 + 16 + mValues.length;
+        }
+
+        void write(BitWriter w, int classAndId) {
+            w.writeByte(classAndId);
+            for (int bits : mBits) {
+                w.writeByte(bits);
+            }
+            for (int value : mValues) {
+                w.writeByte(value);
+            }
+        }
+    }
+
+    private static class BitWriter {
+        byte[] mBuffer;
+        int mLength;
+        private int mBitBuffer;
+        private int mBitCount;
+
+        BitWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            if (mLength == mBuffer.length) {
+                byte[] grown = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, grown, 0, mLength);
+                mBuffer = grown;
+            }
+            mBuffer[mLength++] = (byte) b;
+        }
+
+        void writeShort(int value) {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        void writeMarker(int marker) {
+            writeByte(0xff);
+            writeByte(marker);
+        }
+
+        void writeBits(int code, int length) {
+            mBitBuffer = (mBitBuffer << length) | (code & ((1 << length) - 1));
+            mBitCount += length;
+            while (mBitCount >= 8) {
+                int b = (mBitBuffer >> (mBitCount - 8)) & 0xff;
+                writeByte(b);
+                if (b == 0xff) {
+                    writeByte(0);
+                }
+                mBitCount -= 8;
+            }
+            mBitBuffer &= (1 << mBitCount) - 1;
+        }
+
+        /* Pads the last byte with 1 bits as required before a marker */
+        void flush() {
+            if (mBitCount > 0) {
+                writeBits(0xff, 8 - mBitCount);
+            }
+        }
+    }
+
+    private static class StripEncoder {
+        private final byte[] mData;
+        private final int mYOffset;
+        private final int mStrideY;
+        private final int mStrideVU;
+        private final int mVUOffset;
+        private final int mLeft;
+        private final int mTop;
+        private final int mRight;
+        private final int mBottom;
+        private final QuantTables mTables;
+        private final float[] mBlock = new float[64];
+        private final int[] mCoefficients = new int[64];
+        private final int[] mZigzag = new int[64];
+        private BitWriter mWriter;
+
+        StripEncoder(byte[] data, int yOffset, int strideY, int strideVU, int vuOffset,
+                     int left, int top, int right, int bottom, QuantTables tables) {
+            mData = data;
+            mYOffset = yOffset;
+            mStrideY = strideY;
+            mStrideVU = strideVU;
+            mVUOffset = vuOffset;
+            mLeft = left;
+            mTop = top;
+            mRight = right;
+            mBottom = bottom;
+            mTables = tables;
+        }
+
+        BitWriter encode(int firstRow, int lastRow, int mcusX) {
+            int width = mRight - mLeft;
+            int rows = Math.min(mBottom - mTop - firstRow * MCU_SIZE, (lastRow - firstRow) * MCU_SIZE);
+            // Typical q55-q95 output is well under one byte per pixel
+            mWriter = new BitWriter(Math.max(4096, width * rows / 2));
+            int dcY = 0;
+            int dcCb = 0;
+            int dcCr = 0;
+            for (int my = firstRow; my < lastRow; my++) {
+                int y0 = mTop + my * MCU_SIZE;
+                for (int mx = 0; mx < mcusX; mx++) {
+                    int x0 = mLeft + mx * MCU_SIZE;
+                    loadLuma(x0, y0);
+                    dcY = encodeBlock(mTables.mLuminanceDivisors, dcY, DC_LUMINANCE, AC_LUMINANCE);
+                    loadLuma(x0 + 8, y0);
+                    dcY = encodeBlock(mTables.mLuminanceDivisors, dcY, DC_LUMINANCE, AC_LUMINANCE);
+                    loadLuma(x0, y0 + 8);
+                    dcY = encodeBlock(mTables.mLuminanceDivisors, dcY, DC_LUMINANCE, AC_LUMINANCE);
+                    loadLuma(x0 + 8, y0 + 8);
+                    dcY = encodeBlock(mTables.mLuminanceDivisors, dcY, DC_LUMINANCE, AC_LUMINANCE);
+                    // NV21 stores V first, Cb is U at the odd offset
+                    loadChroma(x0, y0, 1);
+                    dcCb = encodeBlock(mTables.mChrominanceDivisors, dcCb, DC_CHROMINANCE,
+                            AC_CHROMINANCE);
+                    loadChroma(x0, y0, 0);
+                    dcCr = encodeBlock(mTables.mChrominanceDivisors, dcCr, DC_CHROMINANCE,
+                            AC_CHROMINANCE);
+                }
+            }
+            mWriter.flush();
+            return mWriter;
+        }
+
+        private void loadLuma(int x0, int y0) {
+            float[] block = mBlock;
+            byte[] data = mData;
+            int maxX = mRight - 1;
+            int maxY = mBottom - 1;
+            for (int y = 0; y < 8; y++) {
+                int row = mYOffset + Math.min(y0 + y, maxY) * mStrideY;
+                int base = y * 8;
+                if (x0 + 7 <= maxX) {
+                    for (int x = 0; x < 8; x++) {
+                        block[base + x] = (data[row + x0 + x] & 0xff) - 128;
+                    }
+                } else {
+                    for (int x = 0; x < 8; x++) {
+                        block[base + x] = (data[row + Math.min(x0 + x, maxX)] & 0xff) - 128;
+                    }
+                }
+            }
+        }
+
+        private void loadChroma(int x0, int y0, int plane) {
+            float[] block = mBlock;
+            byte[] data = mData;
+            int maxX = mRight - 1;
+            int maxY = mBottom - 1;
+            for (int y = 0; y < 8; y++) {
+                int row = mVUOffset + (Math.min(y0 + y * 2, maxY) >> 1) * mStrideVU + plane;
+                int base = y * 8;
+                for (int x = 0; x < 8; x++) {
+                    int lx = Math.min(x0 + x * 2, maxX);
+                    block[base + x] = (data[row + (lx & ~1)] & 0xff) - 128;
+                }
+            }
+        }
+
+        private int encodeBlock(float[] divisors, int dc, HuffmanTable dcTable,
+                                HuffmanTable acTable) {
+            forwardDct(mBlock);
+            float[] block = mBlock;
+            int[] coefficients = mCoefficients;
+            for (int i = 0; i < 64; i++) {
+                float v = block[i] * divisors[i];
+                coefficients[i] = v > 0 ? (int) (v + 0.5f) : (int) (v - 0.5f);
+            }
+            int[] zz = mZigzag;
+            for (int i = 0; i < 64; i++) {
+                zz[ZIGZAG[i]] = coefficients[i];
+            }
+            BitWriter w = mWriter;
+            int diff = zz[0] - dc;
+            if (diff == 0) {
+                w.writeBits(dcTable.mCodes[0], dcTable.mLengths[0]);
+            } else {
+                int category = category(diff);
+                w.writeBits(dcTable.mCodes[category], dcTable.mLengths[category]);
+                w.writeBits(diff < 0 ? diff - 1 : diff, category);
+            }
+            int end = 63;
+            while (end > 0 && zz[end] == 0) {
+                end--;
+            }
+            int i = 1;
+            while (i <= end) {
+                int start = i;
+                while (zz[i] == 0) {
+                    i++;
+                }
+                int zeros = i - start;
+                while (zeros >= 16) {
+                    w.writeBits(acTable.mCodes[0xf0], acTable.mLengths[0xf0]);
+                    zeros -= 16;
+                }
+                int value = zz[i];
+                int category = category(value);
+                int symbol = (zeros << 4) + category;
+                w.writeBits(acTable.mCodes[symbol], acTable.mLengths[symbol]);
+                w.writeBits(value < 0 ? value - 1 : value, category);
+                i++;
+            }
+            if (end != 63) {
+                w.writeBits(acTable.mCodes[0], acTable.mLengths[0]);
+            }
+            return zz[0];
+        }
+
+        private static int category(int value) {
+            return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+        }
+
+        /* AAN forward DCT, scaling is folded into the quantization divisors */
+        private static void forwardDct(float[] d) {
+            for (int off = 0; off < 64; off += 8) {
+                dct1d(d, off, 1);
+            }
+            for (int off = 0; off < 8; off++) {
+                dct1d(d, off, 8);
+            }
+        }
+
+        private static void dct1d(float[] d, int off, int step) {
+            int i0 = off;
+            int i1 = off + step;
+            int i2 = off + 2 * step;
+            int i3 = off + 3 * step;
+            int i4 = off + 4 * step;
+            int i5 = off + 5 * step;
+            int i6 = off + 6 * step;
+            int i7 = off + 7 * step;
+            float tmp0 = d[i0] + d[i7];
+            float tmp7 = d[i0] - d[i7];
+            float tmp1 = d[i1] + d[i6];
+            float tmp6 = d[i1] - d[i6];
+            float tmp2 = d[i2] + d[i5];
+            float tmp5 = d[i2] - d[i5];
+            float tmp3 = d[i3] + d[i4];
+            float tmp4 = d[i3] - d[i4];
+
+            float tmp10 = tmp0 + tmp3;
+            float tmp13 = tmp0 - tmp3;
+            float tmp11 = tmp1 + tmp2;
+            float tmp12 = tmp1 - tmp2;
+            d[i0] = tmp10 + tmp11;
+            d[i4] = tmp10 - tmp11;
+            float z1 = (tmp12 + tmp13) * 0.707106781f;
+            d[i2] = tmp13 + z1;
+            d[i6] = tmp13 - z1;
+
+            tmp10 = tmp4 + tmp5;
+            tmp11 = tmp5 + tmp6;
+            tmp12 = tmp6 + tmp7;
+            float z5 = (tmp10 - tmp12) * 0.382683433f;
+            float z2 = 0.541196100f * tmp10 + z5;
+            float z4 = 1.306562965f * tmp12 + z5;
+            float z3 = tmp11 * 0.707106781f;
+            float z11 = tmp7 + z3;
+            float z13 = tmp7 - z3;
+            d[i5] = z13 + z2;
+            d[i3] = z13 - z2;
+            d[i1] = z11 + z4;
+            d[i7] = z11 - z4;
+        }
+    }
+}
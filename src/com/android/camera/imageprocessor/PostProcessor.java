@@ -31,7 +31,6 @@ package com.android.camera.imageprocessor;
 import android.content.ContentResolver;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
@@ -58,6 +57,7 @@ import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
 import com.android.camera.SettingsManager;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTemplate;
 import com.android.camera.exif.Rational;
 import com.android.camera.imageprocessor.filter.BestpictureFilter;
 import com.android.camera.imageprocessor.filter.BlurbusterFilter;
@@ -66,12 +66,12 @@ import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.imageprocessor.filter.OptizoomFilter;
 import com.android.camera.imageprocessor.filter.SharpshooterFilter;
 import com.android.camera.imageprocessor.filter.StillmoreFilter;
+import com.android.camera.imageprocessor.filter.StreamingImageFilter;
 import com.android.camera.imageprocessor.filter.UbifocusFilter;
 import com.android.camera.ui.RotateTextToast;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.PersistUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -101,27 +101,49 @@ public class PostProcessor {
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_LOG) ||
                     (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
 
+    // Optional tags in addExifTags, a template is only reused for the same set
+    private static final int EXIF_FLASH = 1;
+    private static final int EXIF_FOCAL_LENGTH = 1 << 1;
+    private static final int EXIF_WHITE_BALANCE = 1 << 2;
+    private static final int EXIF_APERTURE = 1 << 3;
+    private static final int EXIF_EXPOSURE_TIME = 1 << 4;
+    private static final int EXIF_ISO = 1 << 5;
+    private static final Object sExifTemplateLock = new Object();
+    private static ExifTemplate sExifTemplate;
+    private static int sExifTemplateTags = -1;
+
     static {
         System.loadLibrary("jni_imageutil");
     }
 
     public int mMaxRequiredImageNum;
     private CaptureModule mController;
-    private int mCurrentNumImage = 0;
     private ImageFilter mFilter;
+    // Only manual mode filters are initialized in place, burst filters are per slot
+    private boolean mFilterInitialized;
     private int mFilterIndex;
     private HandlerThread mHandlerThread;
     private ProcessorHandler mHandler;
+    // Runs the filters, one burst at a time, while the next burst is copied in on mHandler
+    private HandlerThread mWorkerThread;
+    private ProcessorHandler mWorkerHandler;
     private CameraActivity mActivity;
-    private int mWidth;
-    private int mHeight;
-    private int mStride;
     private final Object lock = new Object();
-    private ImageFilter.ResultImage mDefaultResultImage;  //This is used only no filter is chosen.
-    private Image[] mImages;
     private PhotoModule.NamedImages mNamedImages;
-    private WatchdogThread mWatchdog;
-    private int mOrientation = 0;
+    private final ShotDeadlineMonitor mDeadlineMonitor =
+            new ShotDeadlineMonitor(getDefaultBudgets(), this::onDeadlineMissed);
+    // Shot of the capture request sent last, until its first image opens a slot
+    private ShotDeadlineMonitor.Shot mPendingShot;
+    private final Object mSlotLock = new Object();
+    private final LinkedList<BurstSlot> mSlots = new LinkedList<>();
+    private BurstSlot mCapturingSlot;
+    private ImageFilter mNextSlotFilter;
+    private int mSlotSequence;
+    private long mSlotBytesInFlight;
+    private long mLastSlotBytes;
+    private SlotTimings mLastSlotTimings;
+    private final int mMaxSlots = Math.max(1, PersistUtil.getPostProcSlots());
+    private final long mSlotMemoryBudget = PersistUtil.getPostProcMemoryLimit() * 1024L * 1024L;
     private ImageWriter mImageWriter;
     private ZSLQueue mZSLQueue;
     private CameraDevice mCameraDevice;
@@ -133,6 +155,8 @@ public class PostProcessor {
     private Handler mZSLHandler;
     private HandlerThread mZSLHandlerThread;
     private Handler mSavingHander;
+    private final NV21BufferArena mBufferArena = new NV21BufferArena(MAX_REQUIRED_IMAGE_NUM);
+    private final NV21Transform mTransform = new NV21Transform();
     ImageReader.OnImageAvailableListener processedImageAvailableListener = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader reader) {
@@ -148,8 +172,7 @@ public class PostProcessor {
                 int size = image.getPlanes()[0].getBuffer().remaining();
                 byte[] bytes = new byte[size];
                 image.getPlanes()[0].getBuffer().get(bytes, 0, size);
-                ExifInterface exif = Exif.getExif(bytes);
-                int orientation = Exif.getOrientation(exif);
+                int orientation = Exif.getOrientation(bytes);
                 if (mController.getCurrentIntentMode() != CaptureModule.INTENT_MODE_NORMAL) {
                     mController.setJpegImageData(bytes);
                     if (mController.isQuickCapture()) {
@@ -170,18 +193,29 @@ public class PostProcessor {
     };
     private HandlerThread mSavingHandlerThread;
     private ImageHandlerTask mImageHandlerTask;
-    private LinkedList<TotalCaptureResult> mTotalCaptureResultList = new LinkedList<>();
+    // Replaced for every shot, so bursts still in flight keep the results of their own
+    private volatile LinkedList<TotalCaptureResult> mTotalCaptureResultList = new LinkedList<>();
     private TotalCaptureResult mZSLFallOffResult = null;
     private boolean mIsZSLFallOff = false;
+    private long mLastZSLSelectionLatencyNs = 0;
     private TotalCaptureResult mLatestResultForLongShot = null;
+    // Scales the frames deadline of the next burst
+    private volatile long mLastExposureTimeNs;
     CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
 
         @Override
         public void onCaptureCompleted(CameraCaptureSession session,
                                        CaptureRequest request,
                                        TotalCaptureResult result) {
-            if (mTotalCaptureResultList.size() <= PostProcessor.MAX_REQUIRED_IMAGE_NUM) {
-                mTotalCaptureResultList.add(result);
+            LinkedList<TotalCaptureResult> results = mTotalCaptureResultList;
+            synchronized (results) {
+                if (results.size() <= PostProcessor.MAX_REQUIRED_IMAGE_NUM) {
+                    results.add(result);
+                }
+            }
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            if (exposureTime != null) {
+                mLastExposureTimeNs = exposureTime;
             }
             if (mIsZSLFallOff) {
                 mZSLFallOffResult = result;
@@ -206,59 +240,191 @@ public class PostProcessor {
     };
     private LinkedList<ZSLQueue.ImageItem> mFallOffImages = new LinkedList<>();
     private int mPendingContinuousRequestCount = 0;
-    private STATUS mStatus = STATUS.DEINIT;
 
     public PostProcessor(CameraActivity activity, CaptureModule module) {
         mController = module;
         mActivity = activity;
         mNamedImages = new PhotoModule.NamedImages();
+        mDeadlineMonitor.applyBudgets(PersistUtil.getPostProcBudgets());
+    }
+
+    /*
+     * Stage budgets in ms, in the order of the ShotDeadlineMonitor stages. The request
+     * stage is only timed: like the old watchdog the clock that drops a burst starts at
+     * its first frame, and the frames budget grows with the exposure time of the shot.
+     */
+    private static long[][] getDefaultBudgets() {
+        long[][] budgets = new long[FILTER_MAX][];
+        for (int i = 0; i < FILTER_MAX; i++) {
+            long frames;
+            long filter;
+            switch (i) {
+                case FILTER_NONE:
+                    frames = 2000;
+                    filter = 0;
+                    break;
+                case FILTER_UBIFOCUS:
+                case FILTER_BESTPICTURE:
+                case FILTER_CHROMAFLASH:
+                    frames = 10000;
+                    filter = 10000;
+                    break;
+                default:
+                    frames = 5000;
+                    filter = 8000;
+                    break;
+            }
+            budgets[i] = new long[] {0, frames, filter, 3000, 1000, 2000};
+        }
+        return budgets;
     }
 
+    /**
+     * Writes the Exif header of a processed image. The header of the last image is kept
+     * as a template, so the frames of a burst only patch the values that changed instead
+     * of laying out and serializing the whole header again.
+     */
     public static byte[] addExifTags(byte[] jpeg, int orientationInDegree, TotalCaptureResult result) {
-        ExifInterface exif = new ExifInterface();
-        exif.addMakeAndModelTag();
-        exif.addOrientationTag(orientationInDegree);
-        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
-                TimeZone.getDefault());
+        long time = System.currentTimeMillis();
+        Integer flashMode = null;
+        Float focalLength = null;
+        Integer awbMode = null;
+        Float aperture = null;
+        Long exposureTime = null;
+        Integer iso = null;
         if (result != null) {
-            if (result.get(CaptureResult.FLASH_MODE) != null) {
-                exif.addFlashTag(result.get(CaptureResult.FLASH_MODE) != CaptureResult.FLASH_MODE_OFF);
+            flashMode = result.get(CaptureResult.FLASH_MODE);
+            focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+            awbMode = result.get(CaptureResult.CONTROL_AWB_MODE);
+            aperture = result.get(CaptureResult.LENS_APERTURE);
+            exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        }
+        return addExifTags(jpeg, orientationInDegree, time, flashMode, focalLength, awbMode,
+                aperture, exposureTime, iso);
+    }
+
+    /* The values of the capture result, null for the ones it does not have */
+    static byte[] addExifTags(byte[] jpeg, int orientationInDegree, long time,
+                              Integer flashMode, Float focalLength, Integer awbMode,
+                              Float aperture, Long exposureTime, Integer iso) {
+        int tags = (flashMode != null ? EXIF_FLASH : 0)
+                | (focalLength != null ? EXIF_FOCAL_LENGTH : 0)
+                | (awbMode != null ? EXIF_WHITE_BALANCE : 0)
+                | (aperture != null ? EXIF_APERTURE : 0)
+                | (exposureTime != null ? EXIF_EXPOSURE_TIME : 0)
+                | (iso != null ? EXIF_ISO : 0);
+        ExifTemplate template;
+        synchronized (sExifTemplateLock) {
+            template = tags == sExifTemplateTags ? sExifTemplate : null;
+        }
+        try {
+            if (template != null) {
+                ExifTemplate.Frame frame = template.newFrame();
+                boolean patched = frame.setTagValue(ExifInterface.TAG_ORIENTATION,
+                        ExifInterface.getOrientationValueForRotation(orientationInDegree))
+                        && frame.setDateTimeValue(ExifInterface.TAG_DATE_TIME, time,
+                                TimeZone.getDefault());
+                if (patched && flashMode != null) {
+                    patched = frame.setTagValue(ExifInterface.TAG_FLASH,
+                            flashMode != CaptureResult.FLASH_MODE_OFF
+                                    ? ExifInterface.Flash.FIRED
+                                    : ExifInterface.Flash.DID_NOT_FIRED);
+                }
+                if (patched && focalLength != null) {
+                    patched = frame.setTagValue(ExifInterface.TAG_FOCAL_LENGTH,
+                            new Rational((int) (focalLength * 100), 100));
+                }
+                if (patched && awbMode != null) {
+                    patched = frame.setTagValue(ExifInterface.TAG_WHITE_BALANCE,
+                            awbMode == CaptureResult.CONTROL_AWB_MODE_AUTO
+                                    ? ExifInterface.WhiteBalance.AUTO
+                                    : ExifInterface.WhiteBalance.MANUAL);
+                }
+                if (patched && aperture != null) {
+                    patched = frame.setTagValue(ExifInterface.TAG_APERTURE_VALUE,
+                            new Rational((int) (aperture * 100), 100));
+                }
+                if (patched && exposureTime != null) {
+                    patched = frame.setTagValue(ExifInterface.TAG_EXPOSURE_TIME,
+                            new Rational(exposureTime / 1000000, 1000));
+                }
+                if (patched && iso != null) {
+                    patched = frame.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, iso);
+                }
+                if (patched) {
+                    return frame.writeExif(jpeg);
+                }
             }
-            if (result.get(CaptureResult.LENS_FOCAL_LENGTH) != null) {
-                exif.addFocalLength(new Rational((int) (result.get(CaptureResult.LENS_FOCAL_LENGTH) * 100), 100));
+
+            ExifInterface exif = new ExifInterface();
+            exif.addMakeAndModelTag();
+            exif.addOrientationTag(orientationInDegree);
+            exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, time, TimeZone.getDefault());
+            if (flashMode != null) {
+                exif.addFlashTag(flashMode != CaptureResult.FLASH_MODE_OFF);
             }
-            if (result.get(CaptureResult.CONTROL_AWB_MODE) != null) {
-                exif.addWhiteBalanceMode(result.get(CaptureResult.CONTROL_AWB_MODE));
+            if (focalLength != null) {
+                exif.addFocalLength(new Rational((int) (focalLength * 100), 100));
             }
-            if (result.get(CaptureResult.LENS_APERTURE) != null) {
-                exif.addAperture(new Rational((int) (result.get(CaptureResult.LENS_APERTURE) * 100), 100));
+            if (awbMode != null) {
+                exif.addWhiteBalanceMode(awbMode);
             }
-            if (result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null) {
-                exif.addExposureTime(new Rational(result.get(CaptureResult.SENSOR_EXPOSURE_TIME) / 1000000, 1000));
+            if (aperture != null) {
+                exif.addAperture(new Rational((int) (aperture * 100), 100));
             }
-            if (result.get(CaptureResult.SENSOR_SENSITIVITY) != null) {
-                exif.addISO(result.get(CaptureResult.SENSOR_SENSITIVITY));
+            if (exposureTime != null) {
+                exif.addExposureTime(new Rational(exposureTime / 1000000, 1000));
             }
-        }
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
-        try {
-            exif.writeExif(jpeg, jpegOut);
+            if (iso != null) {
+                exif.addISO(iso);
+            }
+            template = ExifTemplate.compile(exif);
+            synchronized (sExifTemplateLock) {
+                sExifTemplate = template;
+                sExifTemplateTags = tags;
+            }
+            return template.newFrame().writeExif(jpeg);
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
         }
-        return jpegOut.toByteArray();
+        return jpeg;
+    }
+
+    static ExifTemplate getExifTemplate() {
+        synchronized (sExifTemplateLock) {
+            return sExifTemplate;
+        }
     }
 
     public int getMaxRequiredImageNum() {
         return mMaxRequiredImageNum;
     }
 
+    public NV21BufferArena getBufferArena() {
+        return mBufferArena;
+    }
+
+    public long getLastZSLSelectionLatencyNs() {
+        return mLastZSLSelectionLatencyNs;
+    }
+
     public boolean isZSLEnabled() {
         return mUseZSL;
     }
 
     public void onStartCapturing() {
-        mTotalCaptureResultList.clear();
+        mTotalCaptureResultList = new LinkedList<>();
+        ShotDeadlineMonitor.Shot shot = mDeadlineMonitor.begin(mFilterIndex);
+        ShotDeadlineMonitor.Shot stale;
+        synchronized (mSlotLock) {
+            stale = mPendingShot;
+            mPendingShot = shot;
+        }
+        if (stale != null) {
+            mDeadlineMonitor.cancel(stale);
+        }
+        mDeadlineMonitor.startStage(shot, ShotDeadlineMonitor.STAGE_REQUEST);
     }
 
     public ImageReader getZSLReprocessImageReader() {
@@ -345,8 +511,22 @@ public class PostProcessor {
     }
 
     public boolean takeZSLPicture() {
+        return takeZSLPicture(PersistUtil.getZSLSelectionPolicy());
+    }
+
+    /* policy is one of ZSLQueue.POLICY_* */
+    public boolean takeZSLPicture(int policy) {
         mController.setJpegImageData(null);
-        ZSLQueue.ImageItem imageItem = mZSLQueue.tryToGetMatchingItem();
+        long shutterTimestamp = 0;
+        CaptureResult previewResult = mController.getPreviewCaptureResult();
+        if (previewResult != null && previewResult.get(CaptureResult.SENSOR_TIMESTAMP) != null) {
+            shutterTimestamp = previewResult.get(CaptureResult.SENSOR_TIMESTAMP);
+        }
+        ZSLQueue.ImageItem imageItem = mZSLQueue.tryToGetMatchingItem(
+                mZSLQueue.choosePolicy(policy), shutterTimestamp);
+        mLastZSLSelectionLatencyNs = mZSLQueue.getLastSelectionLatencyNs();
+        if (DEBUG_ZSL) Log.d(TAG, "ZSL selection policy " + policy + " took "
+                + mLastZSLSelectionLatencyNs + "ns");
         if (mController.getPreviewCaptureResult() == null ||
                 mController.getPreviewCaptureResult().get(CaptureResult.CONTROL_AE_STATE) == CameraMetadata.CONTROL_AE_STATE_FLASH_REQUIRED) {
             if (DEBUG_ZSL) Log.d(TAG, "Flash required image");
@@ -488,31 +668,73 @@ public class PostProcessor {
     }
 
     private void onImageToProcess(Image image) {
-        addImage(image);
-        if (isReadyToProcess()) {
+        BurstSlot slot = addImage(image);
+        if (slot != null) {
             mController.unlockFocus(mController.getMainCameraId());
             long captureStartTime = System.currentTimeMillis();
             mNamedImages.nameNewImage(captureStartTime);
             PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
             String title = (name == null) ? null : name.title;
             long date = (name == null) ? -1 : name.date;
-            processImage(title, date, mController.getMediaSavedListener(), mActivity.getContentResolver());
+            processImage(slot, title, date, mController.getMediaSavedListener(),
+                    mActivity.getContentResolver());
         }
     }
 
     private void onRawImageToProcess(Image image) {
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        byte[] data = new byte[buffer.remaining()];
-        buffer.get(data);
         long captureStartTime = System.currentTimeMillis();
         mNamedImages.nameNewImage(captureStartTime);
         PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
         String title = (name == null) ? null : name.title;
-        mActivity.getMediaSaveService().addRawImage(data, title, "raw");
+        // The image is still owned by the ZSL queue, so the save service takes a copy.
+        mActivity.getMediaSaveService().copyRawImage(image, title, "raw");
     }
 
+    /**
+     * Whether the next shot has to wait. It does while the current burst is still being
+     * captured, or when the bursts being processed already use up the slots or the memory
+     * budget.
+     */
     public boolean isItBusy() {
-        return mStatus == STATUS.BUSY;
+        synchronized (mSlotLock) {
+            if (mCapturingSlot != null) {
+                return true;
+            }
+            if (mSlots.isEmpty()) {
+                return false;
+            }
+            if (mSlots.size() >= getMaxSlots()) {
+                return true;
+            }
+            return mSlotBytesInFlight + mLastSlotBytes > mSlotMemoryBudget;
+        }
+    }
+
+    public int getSlotsInFlight() {
+        synchronized (mSlotLock) {
+            return mSlots.size();
+        }
+    }
+
+    public SlotTimings getLastSlotTimings() {
+        synchronized (mSlotLock) {
+            return mLastSlotTimings;
+        }
+    }
+
+    /* Per stage latency of the last shots, also logged when the camera closes in debug */
+    public String dumpShotLatency() {
+        return mDeadlineMonitor.dump();
+    }
+
+    public ShotDeadlineMonitor getDeadlineMonitor() {
+        return mDeadlineMonitor;
+    }
+
+    private int getMaxSlots() {
+        // Manual mode filters drive the capture and the UI themselves, keep them to one burst
+        ImageFilter filter = mFilter;
+        return filter != null && filter.isManualMode() ? 1 : mMaxSlots;
     }
 
     public List<CaptureRequest> setRequiredImages(CaptureRequest.Builder builder) {
@@ -520,8 +742,16 @@ public class PostProcessor {
             List<CaptureRequest> list = new ArrayList<>();
             list.add(builder.build());
             return list;
-        } else {
+        } else if (mFilter.isManualMode()) {
             return mFilter.setRequiredImages(builder);
+        } else {
+            // Each burst is processed by its own filter, so whatever the filter picks up
+            // here, like the preview exposure, stays with the frames taken for it.
+            ImageFilter filter = createFilter(mFilterIndex);
+            synchronized (mSlotLock) {
+                mNextSlotFilter = filter;
+            }
+            return filter.setRequiredImages(builder);
         }
     }
 
@@ -586,8 +816,12 @@ public class PostProcessor {
             if (mHandler != null) {
                 mHandler.setInActive();
             }
+            if (mWorkerHandler != null) {
+                mWorkerHandler.setInActive();
+            }
         }
         stopBackgroundThread();
+        mDeadlineMonitor.shutdown();
 
         setFilter(FILTER_NONE);
         if (mZSLQueue != null) {
@@ -606,6 +840,14 @@ public class PostProcessor {
         mCaptureSession = null;
         mImageReader = null;
         mPendingContinuousRequestCount = 0;
+        if (DEBUG_ZSL) {
+            mBufferArena.dump();
+            Log.d(TAG, dumpShotLatency());
+        }
+        if (DEBUG_DUMP_FILTER_IMG) {
+            DebugDumpService.getInstance().endSession();
+        }
+        mBufferArena.clear();
     }
 
     private void startBackgroundThread() {
@@ -613,6 +855,10 @@ public class PostProcessor {
         mHandlerThread.start();
         mHandler = new ProcessorHandler(mHandlerThread.getLooper());
 
+        mWorkerThread = new HandlerThread("PostProcessorWorker");
+        mWorkerThread.start();
+        mWorkerHandler = new ProcessorHandler(mWorkerThread.getLooper());
+
         mZSLHandlerThread = new HandlerThread("ZSLHandlerThread");
         mZSLHandlerThread.start();
         mZSLHandler = new ProcessorHandler(mZSLHandlerThread.getLooper());
@@ -620,9 +866,6 @@ public class PostProcessor {
         mSavingHandlerThread = new HandlerThread("SavingHandlerThread");
         mSavingHandlerThread.start();
         mSavingHander = new ProcessorHandler(mSavingHandlerThread.getLooper());
-
-        mWatchdog = new WatchdogThread();
-        mWatchdog.start();
     }
 
     private void stopBackgroundThread() {
@@ -635,6 +878,15 @@ public class PostProcessor {
             mHandlerThread = null;
             mHandler = null;
         }
+        if (mWorkerThread != null) {
+            mWorkerThread.quitSafely();
+            try {
+                mWorkerThread.join();
+            } catch (InterruptedException ignored) {
+            }
+            mWorkerThread = null;
+            mWorkerHandler = null;
+        }
         synchronized (lock) {
             if (mZSLHandlerThread != null) {
                 mZSLHandlerThread.quitSafely();
@@ -654,11 +906,7 @@ public class PostProcessor {
                 mSavingHandlerThread = null;
                 mSavingHander = null;
             }
-            if (mWatchdog != null) {
-                mWatchdog.kill();
-                mWatchdog = null;
-            }
-            clear();
+            releaseAllSlots();
         }
     }
 
@@ -668,36 +916,14 @@ public class PostProcessor {
             return false;
         }
         synchronized (lock) {
-            if (mFilter != null) {
+            if (mFilterInitialized) {
                 mFilter.deinit();
+                mFilterInitialized = false;
             }
-            mStatus = STATUS.DEINIT;
-            switch (index) {
-                case FILTER_NONE:
-                    mFilter = null;
-                    break;
-                case FILTER_OPTIZOOM:
-                    mFilter = new OptizoomFilter(mController);
-                    break;
-                case FILTER_SHARPSHOOTER:
-                    mFilter = new SharpshooterFilter(mController);
-                    break;
-                case FILTER_UBIFOCUS:
-                    mFilter = new UbifocusFilter(mController, mActivity, this);
-                    break;
-                case FILTER_STILLMORE:
-                    mFilter = new StillmoreFilter(mController);
-                    break;
-                case FILTER_BLURBUSTER:
-                    mFilter = new BlurbusterFilter(mController);
-                    break;
-                case FILTER_BESTPICTURE:
-                    mFilter = new BestpictureFilter(mController, mActivity, this);
-                    break;
-                case FILTER_CHROMAFLASH:
-                    mFilter = new ChromaflashFilter(mController);
-                    break;
-            }
+            mFilter = createFilter(index);
+        }
+        synchronized (mSlotLock) {
+            mNextSlotFilter = null;
         }
 
         if (mFilter != null && !mFilter.isSupported()) {
@@ -711,185 +937,365 @@ public class PostProcessor {
             return false;
         }
         mFilterIndex = index;
-        mImages = new Image[mFilter.getNumRequiredImage()];
         return true;
     }
 
-    private boolean isReadyToProcess() {
-        synchronized (lock) {
-            if (mFilter == null) {
-                return true;
-            }
-            if (mCurrentNumImage >= mFilter.getNumRequiredImage()) {
-                return true;
+    private ImageFilter createFilter(int index) {
+        switch (index) {
+            case FILTER_OPTIZOOM:
+                return new OptizoomFilter(mController);
+            case FILTER_SHARPSHOOTER:
+                return new SharpshooterFilter(mController);
+            case FILTER_UBIFOCUS:
+                return new UbifocusFilter(mController, mActivity, this);
+            case FILTER_STILLMORE:
+                return new StillmoreFilter(mController);
+            case FILTER_BLURBUSTER:
+                return new BlurbusterFilter(mController);
+            case FILTER_BESTPICTURE:
+                return new BestpictureFilter(mController, mActivity, this);
+            case FILTER_CHROMAFLASH:
+                return new ChromaflashFilter(mController);
+            default:
+                return null;
+        }
+    }
+
+    private BurstSlot openSlot(Image image) {
+        ImageFilter filter = null;
+        boolean ownsFilter = false;
+        if (mFilter != null) {
+            if (mFilter.isManualMode()) {
+                filter = mFilter;
+            } else {
+                filter = mNextSlotFilter != null ? mNextSlotFilter : createFilter(mFilterIndex);
+                ownsFilter = true;
             }
         }
-        return false;
+        mNextSlotFilter = null;
+        boolean streaming = ownsFilter && PersistUtil.isPostProcStreamingEnabled()
+                && filter instanceof StreamingImageFilter
+                && ((StreamingImageFilter) filter).isStreamingSupported();
+        int stride = image.getPlanes()[0].getRowStride();
+        BurstSlot slot = new BurstSlot(++mSlotSequence, mFilterIndex, filter, ownsFilter,
+                streaming, image.getWidth(), image.getHeight(), stride,
+                CameraUtil.getJpegRotation(mController.getMainCameraId(),
+                        mController.getDisplayOrientation()));
+        if (mPendingShot != null) {
+            slot.mShot = mPendingShot;
+            mPendingShot = null;
+            mDeadlineMonitor.endStage(slot.mShot, ShotDeadlineMonitor.STAGE_REQUEST);
+        } else {
+            slot.mShot = mDeadlineMonitor.begin(mFilterIndex);
+        }
+        slot.mResults = mTotalCaptureResultList;
+        mDeadlineMonitor.startStage(slot.mShot, ShotDeadlineMonitor.STAGE_FRAMES,
+                slot.mRequired * mLastExposureTimeNs / 1000000);
+        mBufferArena.configure(slot.mWidth, slot.mHeight, stride, stride, slot.mRequired);
+        mSlots.add(slot);
+        mSlotBytesInFlight += slot.mBytes;
+        mLastSlotBytes = slot.mBytes;
+        return slot;
     }
 
-    private void addImage(final Image image) {
+    /* Returns the slot once this image completes it */
+    private BurstSlot addImage(final Image image) {
         if (mHandler == null || !mHandler.isRunning) {
-            return;
+            return null;
         }
         final ProcessorHandler handler = mHandler;
-        if (mStatus == STATUS.DEINIT) {
-            mWidth = image.getWidth();
-            mHeight = image.getHeight();
-            mStride = image.getPlanes()[0].getRowStride();
-            mStatus = STATUS.INIT;
-            mHandler.post(() -> {
+        final BurstSlot slot;
+        final int numImage;
+        final boolean complete;
+        synchronized (mSlotLock) {
+            if (mCapturingSlot == null) {
+                mCapturingSlot = openSlot(image);
+            }
+            slot = mCapturingSlot;
+            numImage = slot.mReceived++;
+            complete = slot.mReceived >= slot.mRequired;
+            if (complete) {
+                mCapturingSlot = null;
+            }
+        }
+        if (complete) {
+            mDeadlineMonitor.endStage(slot.mShot, ShotDeadlineMonitor.STAGE_FRAMES);
+        }
+        if (numImage == 0 && slot.mFilter != null && !slot.mOwnsFilter) {
+            handler.post(() -> {
                 synchronized (lock) {
-                    if (!handler.isRunning) {
-                        return;
-                    }
-                    if (mFilter == null) {
-                        //Nothing here we have to do if filter is not chosen.
-                    } else {
-                        mFilter.init(mWidth, mHeight, mStride, mStride);
+                    if (handler.isRunning && !mFilterInitialized && slot.mFilter == mFilter) {
+                        slot.mFilter.init(slot.mWidth, slot.mHeight, slot.mStride, slot.mStride);
+                        mFilterInitialized = true;
                     }
                 }
             });
         }
-        if (mCurrentNumImage == 0) {
-            mStatus = STATUS.BUSY;
-            if (mWatchdog != null) {
-                mWatchdog.startMonitor();
+        handler.post(() -> {
+            if (!handler.isRunning || slot.mDropped) {
+                image.close();
+                return;
             }
-            mOrientation = CameraUtil.getJpegRotation(mController.getMainCameraId(), mController.getDisplayOrientation());
-        }
-        if (mFilter != null && mCurrentNumImage >= mFilter.getNumRequiredImage()) {
-            return;
-        }
-        final int numImage = mCurrentNumImage;
-        mCurrentNumImage++;
-        if (mHandler == null) {
-            return;
-        }
-        mHandler.post(() -> {
-            synchronized (lock) {
-                if (!handler.isRunning || mStatus != STATUS.BUSY) {
-                    return;
+            ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
+            ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
+            if (DEBUG_DUMP_FILTER_IMG && slot.mFilter != null) {
+                DebugDumpService.getInstance().dumpYuvAsJpeg(
+                        "beforeApplyingFilter_" + slot.mId + "_" + numImage, image,
+                        slot.mOrientation);
+            }
+            if (slot.mFilterIndex == FILTER_UBIFOCUS && numImage > 0) {
+                mController.checkAndPlayShutterSound(mController.getMainCameraId());
+            }
+            if (slot.mFilter == null || slot.mOwnsFilter) {
+                // Copy the frame out so the reader can hand its buffer to the next burst
+                ByteBuffer frame = mBufferArena.acquireFrame();
+                ByteBuffer dst = frame.duplicate();
+                dst.put(yBuf);
+                dst.position(slot.mStride * slot.mHeight);
+                dst.put(vuBuf);
+                image.close();
+                slot.mFrames[numImage] = frame;
+                ProcessorHandler worker = mWorkerHandler;
+                if (slot.mStreaming && worker != null) {
+                    worker.post(() -> {
+                        if (worker.isRunning && !slot.mDropped) {
+                            addFrameToFilter(slot, numImage);
+                        }
+                    });
                 }
-                ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
-                ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
-
-                if (mFilter == null) {
-                    mDefaultResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight * 3 / 2),
-                            new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                    yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
-                    vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride * mHeight, vuBuf.remaining());
-                    image.close();
-                } else {
-                    if (DEBUG_DUMP_FILTER_IMG) {
-                        ImageFilter.ResultImage debugResultImage = new
-                                ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
-                                mHeight), mWidth, mHeight, mStride);
-                        yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
-                        vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
-                                vuBuf.remaining());
-                        yBuf.rewind();
-                        vuBuf.rewind();
-
-                        byte[] bytes = nv21ToJpeg(debugResultImage, mOrientation, null);
-                        mActivity.getMediaSaveService().addImage(
-                                bytes, "Debug_beforeApplyingFilter" + numImage, 0L, null,
-                                debugResultImage.outRoi.width(),
-                                debugResultImage.outRoi.height(),
-                                mOrientation, null, mController.getMediaSavedListener(),
-                                mActivity.getContentResolver(), "jpeg");
-                    }
-                    if (mFilterIndex == FILTER_UBIFOCUS && numImage > 0) {
-                        mController.checkAndPlayShutterSound(mController.getMainCameraId());
-                    }
-                    mFilter.addImage(yBuf, vuBuf, numImage, null);
-                    mImages[numImage] = image;
+            } else {
+                synchronized (lock) {
+                    slot.mFilter.addImage(yBuf, vuBuf, numImage, null);
                 }
+                slot.mImages[numImage] = image;
+            }
+            if (numImage == slot.mRequired - 1) {
+                slot.mCapturedNs = System.nanoTime();
             }
         });
+        return complete ? slot : null;
     }
 
-    private void clear() {
-        mCurrentNumImage = 0;
-    }
-
-    private void processImage(final String title, final long date,
+    private void processImage(final BurstSlot slot, final String title, final long date,
                               final MediaSaveService.OnMediaSavedListener mediaSavedListener,
                               final ContentResolver contentResolver) {
-        if (mHandler == null || !mHandler.isRunning || mStatus != STATUS.BUSY) {
+        final ProcessorHandler handler = mHandler;
+        if (handler == null || !handler.isRunning) {
             return;
         }
-        final ProcessorHandler handler = mHandler;
-        mHandler.post(() -> {
-            byte[] bytes;
-            ImageFilter.ResultImage resultImage = null;
-            synchronized (lock) {
-                if (!handler.isRunning) {
-                    return;
+        // Queued behind the copies of this burst, the next burst can start copying as
+        // soon as this one is handed to the worker.
+        handler.post(() -> {
+            if (!handler.isRunning || slot.mDropped) {
+                return;
+            }
+            slot.mResult = waitForMetaData(slot.mResults, 0);
+            final ProcessorHandler worker = mWorkerHandler;
+            if (worker == null) {
+                return;
+            }
+            worker.post(() -> {
+                if (worker.isRunning) {
+                    runSlot(slot, title, date, mediaSavedListener, contentResolver);
                 }
-                if (mFilter == null) { //In case no post filter is chosen
-                    resultImage = mDefaultResultImage;
+            });
+        });
+    }
+
+    private void runSlot(BurstSlot slot, String title, long date,
+                         MediaSaveService.OnMediaSavedListener mediaSavedListener,
+                         ContentResolver contentResolver) {
+        slot.mStartNs = System.nanoTime();
+        if (slot.mFilter != null) {
+            mDeadlineMonitor.startStage(slot.mShot, ShotDeadlineMonitor.STAGE_FILTER);
+        }
+        ImageFilter.ResultImage resultImage;
+        if (slot.mFilter == null) { //In case no post filter is chosen
+            resultImage = new ImageFilter.ResultImage(slot.mFrames[0],
+                    new Rect(0, 0, slot.mWidth, slot.mHeight), slot.mWidth, slot.mHeight,
+                    slot.mStride);
+            slot.mFrames[0] = null;
+        } else if (slot.mOwnsFilter) {
+            // Streaming slots already had their frames added while the burst came in
+            for (int i = slot.mAdded; i < slot.mFrames.length; i++) {
+                addFrameToFilter(slot, i);
+            }
+            resultImage = slot.mFilter.processImage();
+        } else {
+            synchronized (lock) {
+                resultImage = slot.mFilter.processImage();
+            }
+            slot.closeImages();
+        }
+        slot.mFilteredNs = System.nanoTime();
+        mDeadlineMonitor.endStage(slot.mShot, ShotDeadlineMonitor.STAGE_FILTER);
+
+        if (resultImage != null) {
+            //Start processing FrameProcessor filter as well
+            for (ImageFilter filter : mController.getFrameFilters()) {
+                filter.init(resultImage.width, resultImage.height, resultImage.stride, resultImage.stride);
+                filter.addImage(resultImage.outBuffer, null, 0, Boolean.FALSE);
+            }
+        }
+        //End processing FrameProessor filter
+        if (resultImage == null ||
+                (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
+                (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
+                ) {
+            Log.d(TAG, "Result image is not valid.");
+            if (resultImage != null) {
+                mBufferArena.release(resultImage.outBuffer);
+            }
+        } else {
+            mDeadlineMonitor.startStage(slot.mShot, ShotDeadlineMonitor.STAGE_ENCODE);
+            if (isSelfieMirrorOn() && !mController.isBackCamera()) {
+                resultImage = mirrorImage(resultImage, slot.mOrientation);
+            }
+            byte[] bytes = nv21ToJpeg(resultImage, slot.mOrientation, slot.mResult,
+                    slot.mShot);
+            slot.mEncodedNs = System.nanoTime();
+            mDeadlineMonitor.startStage(slot.mShot, ShotDeadlineMonitor.STAGE_SAVE);
+            // Filter owned output buffers are not leased and are ignored here
+            mBufferArena.release(resultImage.outBuffer);
+            if (mController.getCurrentIntentMode() ==
+                    CaptureModule.INTENT_MODE_CAPTURE) {
+                mController.setJpegImageData(bytes);
+                if (mController.isQuickCapture()) {
+                    mController.onCaptureDone();
                 } else {
-                    resultImage = mFilter.processImage();
-                    for (int i = 0; i < mImages.length; i++) {
-                        if (mImages[i] != null) {
-                            mImages[i].close();
-                            mImages[i] = null;
-                        }
-                    }
+                    mController.showCapturedReview(
+                            bytes, slot.mOrientation, isSelfieMirrorOn());
                 }
-                if (resultImage != null) {
-                    //Start processing FrameProcessor filter as well
-                    for (ImageFilter filter : mController.getFrameFilters()) {
-                        filter.init(resultImage.width, resultImage.height, resultImage.stride, resultImage.stride);
-                        filter.addImage(resultImage.outBuffer, null, 0, Boolean.FALSE);
-                    }
+            }
+            mActivity.getMediaSaveService().addImage(
+                    bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
+                    slot.mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
+            mController.updateThumbnailJpegData(bytes);
+            mDeadlineMonitor.endStage(slot.mShot, ShotDeadlineMonitor.STAGE_SAVE);
+        }
+        finishSlot(slot, true);
+    }
 
-                    if (isSelfieMirrorOn() && !mController.isBackCamera()) {
-                        boolean isVertical = true;
-                        isVertical = !(mOrientation == 0 || mOrientation == 180);
-                        nativeFlipNV21(resultImage.outBuffer.array(), resultImage.stride,
-                                resultImage.height, resultImage.stride - resultImage.width,
-                                isVertical);
-                    }
-                }
-                //End processing FrameProessor filter
-                clear();
-                mStatus = STATUS.INIT;
-                if (mWatchdog != null) {
-                    mWatchdog.stopMonitor();
-                }
-                if (resultImage == null ||
-                        (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
-                        (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
-                        ) {
-                    Log.d(TAG, "Result image is not valid.");
+    /* Runs on the worker thread, which owns the native filter state */
+    private void addFrameToFilter(BurstSlot slot, int index) {
+        if (!slot.mFilterInitialized) {
+            slot.mFilter.init(slot.mWidth, slot.mHeight, slot.mStride, slot.mStride);
+            slot.mFilterInitialized = true;
+        }
+        int ySize = slot.mStride * slot.mHeight;
+        ByteBuffer yBuf = slot.mFrames[index].duplicate();
+        yBuf.limit(ySize);
+        ByteBuffer vuBuf = slot.mFrames[index].duplicate();
+        vuBuf.position(ySize);
+        slot.mFilter.addImage(yBuf, vuBuf.slice(), index, null);
+        slot.mAdded = index + 1;
+    }
+
+    private void finishSlot(BurstSlot slot, boolean completed) {
+        slot.release();
+        synchronized (mSlotLock) {
+            if (!mSlots.remove(slot)) {
+                return;
+            }
+            mSlotBytesInFlight -= slot.mBytes;
+            if (completed) {
+                mLastSlotTimings = new SlotTimings(slot, System.nanoTime());
+                Log.d(TAG, mLastSlotTimings.toString() + " in flight: " + mSlots.size());
+            }
+        }
+        if (completed) {
+            mDeadlineMonitor.finish(slot.mShot);
+        } else {
+            mDeadlineMonitor.cancel(slot.mShot);
+        }
+    }
+
+    private void onDeadlineMissed(ShotDeadlineMonitor.Shot shot, int stage) {
+        if (stage != ShotDeadlineMonitor.STAGE_REQUEST
+                && stage != ShotDeadlineMonitor.STAGE_FRAMES) {
+            // Filters and encoders cannot be interrupted, the shot is only reported
+            return;
+        }
+        Log.e(TAG, "It takes too long to get the images, dropping " + shot);
+        boolean pending;
+        synchronized (mSlotLock) {
+            pending = mPendingShot == shot;
+            if (pending) {
+                mPendingShot = null;
+            }
+        }
+        if (pending) {
+            mDeadlineMonitor.cancel(shot);
+        } else {
+            dropCapturingSlot(shot);
+        }
+        // Reset the filter on the handler thread, behind the copies of the dropped burst
+        ProcessorHandler handler = mHandler;
+        if (handler != null && handler.isRunning) {
+            handler.post(() -> {
+                int index = getFilterIndex();
+                setFilter(FILTER_NONE);
+                setFilter(index);
+            });
+        }
+    }
+
+    /* Gives up on the burst of the shot if its images stopped arriving */
+    private void dropCapturingSlot(ShotDeadlineMonitor.Shot shot) {
+        final BurstSlot slot;
+        synchronized (mSlotLock) {
+            slot = mCapturingSlot;
+            if (slot == null || slot.mShot != shot) {
+                return;
+            }
+            mCapturingSlot = null;
+        }
+        slot.mDropped = true;
+        // Behind the pending copies, then on the worker in case frames were streamed
+        ProcessorHandler handler = mHandler;
+        if (handler != null && handler.isRunning) {
+            handler.post(() -> {
+                ProcessorHandler worker = mWorkerHandler;
+                if (worker != null && worker.isRunning) {
+                    worker.post(() -> finishSlot(slot, false));
                 } else {
-                    bytes = nv21ToJpeg(resultImage, mOrientation, waitForMetaData(0));
-                    if (mController.getCurrentIntentMode() ==
-                            CaptureModule.INTENT_MODE_CAPTURE) {
-                        mController.setJpegImageData(bytes);
-                        if (mController.isQuickCapture()) {
-                            mController.onCaptureDone();
-                        } else {
-                            mController.showCapturedReview(
-                                    bytes, mOrientation, isSelfieMirrorOn());
-                        }
-                    }
-                    mActivity.getMediaSaveService().addImage(
-                            bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
-                            mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
-                    mController.updateThumbnailJpegData(bytes);
+                    finishSlot(slot, false);
                 }
+            });
+        } else {
+            finishSlot(slot, false);
+        }
+    }
+
+    private void releaseAllSlots() {
+        List<BurstSlot> slots;
+        synchronized (mSlotLock) {
+            slots = new ArrayList<>(mSlots);
+            mCapturingSlot = null;
+            mNextSlotFilter = null;
+            if (mPendingShot != null) {
+                mDeadlineMonitor.cancel(mPendingShot);
+                mPendingShot = null;
             }
-        });
+        }
+        for (BurstSlot slot : slots) {
+            slot.mDropped = true;
+            finishSlot(slot, false);
+        }
     }
 
     public TotalCaptureResult waitForMetaData(int index) {
+        return waitForMetaData(mTotalCaptureResultList, index);
+    }
+
+    private static TotalCaptureResult waitForMetaData(LinkedList<TotalCaptureResult> results,
+                                                      int index) {
         int timeout = 10; //100ms
         while (timeout > 0) {
-            if (mTotalCaptureResultList.size() > index) {
-                return mTotalCaptureResultList.get(index);
+            synchronized (results) {
+                if (results.size() > index) {
+                    return results.get(index);
+                }
             }
             try {
                 Thread.sleep(10);
@@ -897,43 +1303,52 @@ public class PostProcessor {
             }
             timeout--;
         }
-        if (mTotalCaptureResultList.size() == 0) {
-            return null;
+        synchronized (results) {
+            return results.isEmpty() ? null : results.get(0);
         }
-        return mTotalCaptureResultList.get(0);
     }
 
-    private ImageFilter.ResultImage resizeImage(ImageFilter.ResultImage oldImage, Size newSize) {
+    /* Mirrors the roi the way the selfie preview shows it, cropping it in the same pass */
+    private ImageFilter.ResultImage mirrorImage(ImageFilter.ResultImage image, int orientation) {
+        boolean isVertical = !(orientation == 0 || orientation == 180);
+        return transformImage(image, !isVertical, isVertical);
+    }
+
+    /* Writes the roi to a buffer of its own */
+    private ImageFilter.ResultImage transformImage(ImageFilter.ResultImage oldImage,
+            boolean mirrorHorizontal, boolean mirrorVertical) {
+        // Keep the chroma samples aligned with the roi
+        Rect roi = new Rect(oldImage.outRoi.left & ~1, oldImage.outRoi.top & ~1,
+                oldImage.outRoi.right & ~1, oldImage.outRoi.bottom & ~1);
+        int width = roi.width();
+        int height = roi.height();
         ImageFilter.ResultImage newImage = new ImageFilter.ResultImage(
-                ByteBuffer.allocateDirect(newSize.getWidth() * newSize.getHeight() * 3 / 2),
-                new Rect(0, 0,
-                        newSize.getWidth(), newSize.getHeight()),
-                newSize.getWidth(), newSize.getHeight(), newSize.getWidth());
-        int ratio = nativeResizeImage(oldImage.outBuffer.array(), newImage.outBuffer.array(),
-                oldImage.width, oldImage.height, oldImage.stride, newSize.getWidth(), newSize.getHeight());
-        newImage.outRoi = new Rect(oldImage.outRoi.left / ratio, oldImage.outRoi.top / ratio,
-                oldImage.outRoi.right / ratio, oldImage.outRoi.bottom / ratio);
-        if (newImage.width < newImage.outRoi.width()) {
-            newImage.outRoi.right = newImage.width;
-        }
-        if (newImage.height < newImage.outRoi.height()) {
-            newImage.outRoi.bottom = newImage.height;
-        }
-        Log.d(TAG, "Image is resized by SW with the ratio: " + ratio + " oldRoi: " + oldImage.outRoi.toString());
+                mBufferArena.acquire(width * height * 3 / 2), new Rect(0, 0, width, height),
+                width, height, width);
+        // Arena buffers are direct and their arrays can start past index 0
+        ByteBuffer src = oldImage.outBuffer;
+        ByteBuffer dst = newImage.outBuffer;
+        mTransform.apply(src.array(), src.arrayOffset(), oldImage.stride, oldImage.height, roi,
+                mirrorHorizontal, mirrorVertical, 0, dst.array(), dst.arrayOffset(), width,
+                height, width);
+        mBufferArena.release(oldImage.outBuffer);
         return newImage;
     }
 
-    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation, TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
-        if (isSelfieMirrorOn() && !mController.isBackCamera()) {
-            int t = resultImage.height - (resultImage.outRoi.top + resultImage.outRoi.height());
-            resultImage.outRoi = new Rect(resultImage.outRoi.left, t, resultImage.outRoi.right, resultImage.outRoi.height() + t);
+    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
+                              TotalCaptureResult result, ShotDeadlineMonitor.Shot shot) {
+        ByteBuffer buf = resultImage.outBuffer;
+        byte[] bytes = NV21JpegEncoder.getInstance().encode(buf.array(), buf.arrayOffset(),
+                resultImage.width, resultImage.height, resultImage.stride, resultImage.stride,
+                resultImage.outRoi, getJpegQualityValue());
+        if (shot != null) {
+            mDeadlineMonitor.endStage(shot, ShotDeadlineMonitor.STAGE_ENCODE);
+            mDeadlineMonitor.startStage(shot, ShotDeadlineMonitor.STAGE_EXIF);
         }
-        im.compressToJpeg(resultImage.outRoi, getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
         bytes = addExifTags(bytes, orientation, result);
+        if (shot != null) {
+            mDeadlineMonitor.endStage(shot, ShotDeadlineMonitor.STAGE_EXIF);
+        }
         return bytes;
     }
 
@@ -946,18 +1361,6 @@ public class PostProcessor {
         return quality;
     }
 
-    private native int nativeNV21Split(byte[] srcYVU, ByteBuffer yBuf, ByteBuffer vuBuf, int width, int height, int srcStride, int dstStride);
-
-    private native int nativeResizeImage(byte[] oldBuf, byte[] newBuf, int oldWidth, int oldHeight, int oldStride, int newWidth, int newHeight);
-
-    private native int nativeFlipNV21(byte[] buf, int stride, int height, int gap, boolean isVertical);
-
-    enum STATUS {
-        DEINIT,
-        INIT,
-        BUSY
-    }
-
     private class ImageWrapper {
         Image mImage;
         Image mRawImage;
@@ -989,6 +1392,120 @@ public class PostProcessor {
         }
     }
 
+    /**
+     * One burst on its way through the post processor. Burst filters get their own filter
+     * instance and copies of the frames, so the slot no longer depends on the image
+     * reader or on the filter of the next burst. Manual mode filters keep using the shared
+     * filter and hold on to their images until processed.
+     */
+    private class BurstSlot {
+        final int mId;
+        final int mFilterIndex;
+        final ImageFilter mFilter;
+        final boolean mOwnsFilter;
+        final boolean mStreaming;
+        final int mRequired;
+        final int mWidth;
+        final int mHeight;
+        final int mStride;
+        final int mOrientation;
+        final long mBytes;
+        final ByteBuffer[] mFrames;
+        final Image[] mImages;
+        final long mOpenedNs = System.nanoTime();
+        volatile long mCapturedNs;
+        long mStartNs;
+        long mFilteredNs;
+        long mEncodedNs;
+        int mReceived;
+        int mAdded;
+        boolean mFilterInitialized;
+        volatile boolean mDropped;
+        LinkedList<TotalCaptureResult> mResults;
+        TotalCaptureResult mResult;
+        ShotDeadlineMonitor.Shot mShot;
+
+        BurstSlot(int id, int filterIndex, ImageFilter filter, boolean ownsFilter,
+                  boolean streaming, int width, int height, int stride, int orientation) {
+            mId = id;
+            mFilterIndex = filterIndex;
+            mFilter = filter;
+            mOwnsFilter = ownsFilter;
+            mStreaming = streaming;
+            mRequired = filter == null ? 1 : filter.getNumRequiredImage();
+            mWidth = width;
+            mHeight = height;
+            mStride = stride;
+            mOrientation = orientation;
+            boolean copies = filter == null || ownsFilter;
+            mBytes = copies ? (long) mRequired * NV21BufferArena.getFrameSize(height, stride, stride) : 0;
+            mFrames = new ByteBuffer[copies ? mRequired : 0];
+            mImages = new Image[copies ? 0 : mRequired];
+        }
+
+        void closeImages() {
+            for (int i = 0; i < mImages.length; i++) {
+                if (mImages[i] != null) {
+                    mImages[i].close();
+                    mImages[i] = null;
+                }
+            }
+        }
+
+        void release() {
+            for (int i = 0; i < mFrames.length; i++) {
+                mBufferArena.release(mFrames[i]);
+                mFrames[i] = null;
+            }
+            closeImages();
+            if (mOwnsFilter && mFilterInitialized) {
+                mFilter.deinit();
+                mFilterInitialized = false;
+            }
+        }
+    }
+
+    /* Where the time of one burst went, in milliseconds */
+    public static class SlotTimings {
+        public final int slotId;
+        public final int filterIndex;
+        public final int frames;
+        public final boolean streaming;
+        /* From the first image to the last one copied in */
+        public final long captureMs;
+        /* Waiting for the bursts ahead of it */
+        public final long queueMs;
+        public final long filterMs;
+        /* JPEG encoding and handing the result to the save service */
+        public final long encodeMs;
+        /* From the last frame of the burst to the finished JPEG */
+        public final long lastFrameToJpegMs;
+        public final long totalMs;
+
+        SlotTimings(BurstSlot slot, long doneNs) {
+            slotId = slot.mId;
+            filterIndex = slot.mFilterIndex;
+            frames = slot.mRequired;
+            streaming = slot.mStreaming;
+            long captured = slot.mCapturedNs != 0 ? slot.mCapturedNs : slot.mStartNs;
+            captureMs = (captured - slot.mOpenedNs) / 1000000;
+            queueMs = Math.max(0, slot.mStartNs - captured) / 1000000;
+            filterMs = (slot.mFilteredNs - slot.mStartNs) / 1000000;
+            encodeMs = (doneNs - slot.mFilteredNs) / 1000000;
+            lastFrameToJpegMs = slot.mEncodedNs != 0 ? (slot.mEncodedNs - captured) / 1000000 : -1;
+            totalMs = (doneNs - slot.mOpenedNs) / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return "Slot " + slotId + " filter " + filterIndex + " frames " + frames
+                    + (streaming ? " streaming" : "")
+                    + " capture " + captureMs + "ms queue " + queueMs + "ms filter "
+                    + filterMs + "ms encode " + encodeMs + "ms last frame to jpeg "
+                    + lastFrameToJpegMs + "ms total " + totalMs + "ms";
+        }
+    }
+
     class ImageHandlerTask implements Runnable, ImageReader.OnImageAvailableListener {
         Semaphore mMutureLock = new Semaphore(1);
         private ImageWrapper mImageWrapper = null;
@@ -1121,48 +1638,6 @@ public class PostProcessor {
         }
     }
 
-    class WatchdogThread extends Thread {
-        private boolean isAlive = true;
-        private boolean isMonitor = false;
-        private int counter = 0;
-
-        public void run() {
-            while (isAlive) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ignored) {
-                }
-                if (isMonitor) {
-                    counter++;
-                    if (counter >= 100) { //This is 20 seconds.
-                        bark();
-                        break;
-                    }
-                }
-            }
-        }
-
-        public void startMonitor() {
-            isMonitor = true;
-        }
-
-        public void stopMonitor() {
-            isMonitor = false;
-            counter = 0;
-        }
-
-        public void kill() {
-            isAlive = false;
-        }
-
-        private void bark() {
-            Log.e(TAG, "It takes too long to get the images and process the filter!");
-            int index = getFilterIndex();
-            setFilter(FILTER_NONE);
-            setFilter(index);
-        }
-    }
-
     class ProcessorHandler extends Handler {
         boolean isRunning;
 
@@ -1175,14 +1650,4 @@ public class PostProcessor {
             isRunning = false;
         }
     }
-
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
-    }
 }
@@ -0,0 +1,360 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every post processed shot stage by stage. Each stage gets a deadline from the
+ * budget of the filter taking the shot, and the listener hears about the first stage of a
+ * shot that overruns it. Finished shots are logged as one line and kept in a ring, so the
+ * min, average and 95th percentile of every stage can be dumped at any time.
+ */
+public class ShotDeadlineMonitor {
+    private static final String TAG = "ShotDeadlineMonitor";
+
+    /* From sending the capture request to the first frame */
+    public static final int STAGE_REQUEST = 0;
+    /* From the first frame to the last one of the burst */
+    public static final int STAGE_FRAMES = 1;
+    public static final int STAGE_FILTER = 2;
+    public static final int STAGE_ENCODE = 3;
+    public static final int STAGE_EXIF = 4;
+    /* Handing the JPEG to the save service and the thumbnail */
+    public static final int STAGE_SAVE = 5;
+    public static final int STAGE_COUNT = 6;
+    private static final String[] STAGE_NAMES = {
+            "request", "frames", "filter", "encode", "exif", "save"
+    };
+
+    public static final int RING_SIZE = 64;
+    private static final int KEEP_ALIVE_SECONDS = 10;
+
+    public interface Listener {
+        /* Called on the monitor thread, once per shot */
+        void onDeadlineMissed(Shot shot, int stage);
+    }
+
+    public static class Shot {
+        public final int id;
+        public final int filterIndex;
+        private final long[] mStartNs = new long[STAGE_COUNT];
+        private final long[] mDurationNs = new long[STAGE_COUNT];
+        private final ScheduledFuture<?>[] mDeadlines = new ScheduledFuture<?>[STAGE_COUNT];
+        private int mMissedStages;
+        private boolean mDone;
+
+        Shot(int id, int filterIndex) {
+            this.id = id;
+            this.filterIndex = filterIndex;
+            Arrays.fill(mDurationNs, -1);
+        }
+
+        /* Duration of a stage in nanoseconds, -1 if it did not finish */
+        public synchronized long getDurationNs(int stage) {
+            return mDurationNs[stage];
+        }
+
+        public synchronized boolean hasMissed(int stage) {
+            return (mMissedStages & (1 << stage)) != 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder("shot ").append(id).append(" filter ")
+                    .append(filterIndex);
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                boolean missed = hasMissed(stage);
+                if (mDurationNs[stage] >= 0 || missed) {
+                    sb.append(' ').append(STAGE_NAMES[stage]);
+                }
+                if (mDurationNs[stage] >= 0) {
+                    sb.append(' ').append(mDurationNs[stage] / 1000000).append("ms");
+                }
+                if (missed) {
+                    sb.append('!');
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Listener mListener;
+    private final long[][] mBudgetsMs;
+    private ScheduledThreadPoolExecutor mExecutor;
+    private int mShotSequence;
+    private final long[][] mRing = new long[RING_SIZE][];
+    private int mRingNext;
+    private int mRingCount;
+    private final int[] mMissedCount = new int[STAGE_COUNT];
+    private int mDroppedCount;
+
+    /**
+     * Budgets are in milliseconds, indexed by filter and stage, and 0 for no deadline.
+     * They are copied, so later changes go through setBudget().
+     */
+    public ShotDeadlineMonitor(long[][] budgetsMs, Listener listener) {
+        mListener = listener;
+        mBudgetsMs = new long[budgetsMs.length][];
+        for (int i = 0; i < budgetsMs.length; i++) {
+            mBudgetsMs[i] = Arrays.copyOf(budgetsMs[i], STAGE_COUNT);
+        }
+    }
+
+    /* The deadline thread is started on demand, so the monitor can outlive shutdown() */
+    private synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "ShotDeadlineMonitor");
+                t.setDaemon(true);
+                return t;
+            });
+            mExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            mExecutor.allowCoreThreadTimeOut(true);
+            mExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return mExecutor;
+    }
+
+    /* Time source of the stage durations */
+    protected long nowNs() {
+        return System.nanoTime();
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public synchronized long getBudget(int filterIndex, int stage) {
+        return mBudgetsMs[filterIndex][stage];
+    }
+
+    public synchronized void setBudget(int filterIndex, int stage, long budgetMs) {
+        mBudgetsMs[filterIndex][stage] = budgetMs;
+    }
+
+    /**
+     * Applies overrides in the form "filter.stage=ms", separated by commas, where filter
+     * is a filter index or * for all of them, e.g. "4.filter=8000,*.encode=1500".
+     * Entries that do not parse are logged and skipped.
+     */
+    public void applyBudgets(String spec) {
+        if (spec == null || spec.isEmpty()) {
+            return;
+        }
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split("[.=]");
+            int stage = parts.length == 3 ? Arrays.asList(STAGE_NAMES).indexOf(parts[1]) : -1;
+            try {
+                if (stage < 0) {
+                    throw new NumberFormatException();
+                }
+                long budget = Long.parseLong(parts[2]);
+                if ("*".equals(parts[0])) {
+                    for (int i = 0; i < mBudgetsMs.length; i++) {
+                        setBudget(i, stage, budget);
+                    }
+                } else {
+                    setBudget(Integer.parseInt(parts[0]), stage, budget);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.w(TAG, "Ignoring budget " + entry);
+            }
+        }
+    }
+
+    public synchronized Shot begin(int filterIndex) {
+        return new Shot(++mShotSequence, filterIndex);
+    }
+
+    public void startStage(Shot shot, int stage) {
+        startStage(shot, stage, 0);
+    }
+
+    /**
+     * Starts a stage whose length depends on the shot, such as frames taken with a long
+     * exposure. extraMs is added to the budget, unless the stage has no deadline.
+     */
+    public void startStage(final Shot shot, final int stage, long extraMs) {
+        long budget;
+        synchronized (this) {
+            budget = mBudgetsMs[shot.filterIndex][stage];
+        }
+        synchronized (shot) {
+            if (shot.mDone) {
+                return;
+            }
+            shot.mStartNs[stage] = nowNs();
+            if (budget > 0) {
+                shot.mDeadlines[stage] = getExecutor().schedule(() -> expire(shot, stage),
+                        budget + Math.max(0, extraMs), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public void endStage(Shot shot, int stage) {
+        synchronized (shot) {
+            if (shot.mDone || shot.mStartNs[stage] == 0) {
+                return;
+            }
+            shot.mDurationNs[stage] = nowNs() - shot.mStartNs[stage];
+            cancelDeadline(shot, stage);
+        }
+    }
+
+    private static void cancelDeadline(Shot shot, int stage) {
+        if (shot.mDeadlines[stage] != null) {
+            shot.mDeadlines[stage].cancel(false);
+            shot.mDeadlines[stage] = null;
+        }
+    }
+
+    private void expire(Shot shot, int stage) {
+        boolean first;
+        synchronized (shot) {
+            if (shot.mDone || shot.mDeadlines[stage] == null) {
+                return;
+            }
+            shot.mDeadlines[stage] = null;
+            first = shot.mMissedStages == 0;
+            shot.mMissedStages |= 1 << stage;
+        }
+        synchronized (this) {
+            mMissedCount[stage]++;
+        }
+        Log.w(TAG, STAGE_NAMES[stage] + " is over its budget of "
+                + getBudget(shot.filterIndex, stage) + "ms: " + shot);
+        if (first && mListener != null) {
+            mListener.onDeadlineMissed(shot, stage);
+        }
+    }
+
+    /* Records a completed shot */
+    public void finish(Shot shot) {
+        long[] record;
+        synchronized (shot) {
+            if (shot.mDone) {
+                return;
+            }
+            shot.mDone = true;
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                cancelDeadline(shot, stage);
+            }
+            record = Arrays.copyOf(shot.mDurationNs, STAGE_COUNT);
+        }
+        synchronized (this) {
+            mRing[mRingNext] = record;
+            mRingNext = (mRingNext + 1) % RING_SIZE;
+            mRingCount = Math.min(RING_SIZE, mRingCount + 1);
+        }
+        Log.d(TAG, shot.toString());
+    }
+
+    /* Stops watching a shot that was given up on, without recording it */
+    public void cancel(Shot shot) {
+        synchronized (shot) {
+            if (shot.mDone) {
+                return;
+            }
+            shot.mDone = true;
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                cancelDeadline(shot, stage);
+            }
+        }
+        synchronized (this) {
+            mDroppedCount++;
+        }
+    }
+
+    public synchronized int getRecordedCount() {
+        return mRingCount;
+    }
+
+    public synchronized int getMissedCount(int stage) {
+        return mMissedCount[stage];
+    }
+
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Min, average and 95th percentile of a stage over the recorded shots, in
+     * microseconds, or null if none of them ran it.
+     */
+    public synchronized long[] getStageStats(int stage) {
+        long[] values = new long[mRingCount];
+        int n = 0;
+        for (int i = 0; i < mRingCount; i++) {
+            if (mRing[i][stage] >= 0) {
+                values[n++] = mRing[i][stage];
+            }
+        }
+        if (n == 0) {
+            return null;
+        }
+        Arrays.sort(values, 0, n);
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            total += values[i];
+        }
+        int p95 = Math.max(0, (n * 95 + 99) / 100 - 1);
+        return new long[] {values[0] / 1000, total / n / 1000, values[p95] / 1000};
+    }
+
+    public synchronized String dump() {
+        StringBuilder sb = new StringBuilder("Last ").append(mRingCount).append(" shots, ")
+                .append(mDroppedCount).append(" dropped, min/avg/p95 in ms:");
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            long[] stats = getStageStats(stage);
+            sb.append("\n  ").append(STAGE_NAMES[stage]);
+            if (stats == null) {
+                sb.append(" -");
+            } else {
+                sb.append(' ').append(stats[0] / 1000).append('/').append(stats[1] / 1000)
+                        .append('/').append(stats[2] / 1000);
+            }
+            sb.append(", missed ").append(mMissedCount[stage]);
+        }
+        return sb.toString();
+    }
+
+    /* Drops the pending deadlines and stops the deadline thread until the next stage */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+}
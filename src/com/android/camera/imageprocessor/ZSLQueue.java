@@ -28,6 +28,7 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.android.camera.imageprocessor;
 
+import android.graphics.ImageFormat;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.media.Image;
@@ -37,7 +38,15 @@ import android.util.Log;
 import com.android.camera.CaptureModule;
 import com.android.camera.util.PersistUtil;
 
+import java.nio.ByteBuffer;
+
 public class ZSLQueue {
+    public static final int POLICY_NEWEST = 0;
+    public static final int POLICY_CLOSEST_TO_SHUTTER = 1;
+    // The content based policies need frame scores, which only YUV_420_888 frames get.
+    // With PRIVATE frames choosePolicy() falls back to POLICY_NEWEST.
+    public static final int POLICY_LOWEST_MOTION = 2;
+    public static final int POLICY_SHARPEST = 3;
     private static final String CIRCULAR_BUFFER_SIZE_PERSIST = "persist.camera.zsl.buffer.size";
     private static final int CIRCULAR_BUFFER_SIZE_DEFAULT = 5;
     private static final boolean DEBUG_QUEUE =
@@ -45,165 +54,142 @@ public class ZSLQueue {
                     (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
     private static final String TAG = "ZSLQueue";
     private int mCircularBufferSize = CIRCULAR_BUFFER_SIZE_DEFAULT;
-    private ImageItem[] mBuffer;
-    private int mImageHead;
-    private int mMetaHead;
-    private final Object mLock = new Object();
+    private final ZSLRing<ImageItem, TotalCaptureResult> mRing;
     private CaptureModule mModule;
+    private final FrameScorer mScorer = new FrameScorer();
+    private long mLastSelectionLatencyNs;
+    // Whether the newest frame could be scored
+    private volatile boolean mFramesScored;
+    private boolean mLoggedUnscored;
 
     public ZSLQueue(CaptureModule module) {
         mCircularBufferSize = SystemProperties.getInt(CIRCULAR_BUFFER_SIZE_PERSIST, CIRCULAR_BUFFER_SIZE_DEFAULT);
-        synchronized (mLock) {
-            mBuffer = new ImageItem[mCircularBufferSize];
-            mImageHead = 0;
-            mMetaHead = 0;
-            mModule = module;
-        }
-    }
-
-    private int findMeta(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if (mBuffer[index] != null && mBuffer[index].getMetadata() != null &&
-                    mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP) == timestamp) {
-                return index;
+        mRing = new ZSLRing<>(mCircularBufferSize, new ZSLRing.Releaser<ImageItem, TotalCaptureResult>() {
+            @Override
+            public void releaseImage(ImageItem item) {
+                item.closeImage();
             }
-            index = (index + 1) % mBuffer.length;
-        } while (index != startIndex);
-        return -1;
-    }
 
-    private int findImage(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if (mBuffer[index] != null && mBuffer[index].getImage() != null &&
-                    mBuffer[index].getImage().getTimestamp() == timestamp) {
-                return index;
+            @Override
+            public void releaseMeta(TotalCaptureResult meta) {
             }
-            index = (index + 1) % mBuffer.length;
-        } while (index != startIndex);
-        return -1;
+        });
+        mModule = module;
     }
 
     public void add(Image image, Image rawImage) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if (mBuffer == null)
-                return;
-            if (mBuffer[mImageHead] != null) {
-                mBuffer[mImageHead].closeImage();
-            } else {
-                mBuffer[mImageHead] = new ImageItem();
-            }
-            if (mBuffer[mImageHead].getMetadata() != null) {
-                if (mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP) == image.getTimestamp()) {
-                    mBuffer[mImageHead].setImage(image, rawImage);
-                    lastIndex = mImageHead;
-                    mImageHead = (mImageHead + 1) % mBuffer.length;
-                } else if (mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP) > image.getTimestamp()) {
-                    image.close();
-                } else {
-                    int i = findMeta(image.getTimestamp(), mImageHead);
-                    if (i == -1) {
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mBuffer[mImageHead].setMetadata(null);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mImageHead = i;
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mImageHead].setImage(image, rawImage);
-                lastIndex = mImageHead;
-                mImageHead = (mImageHead + 1) % mBuffer.length;
-            }
-        }
+        ImageItem item = new ImageItem();
+        item.setImage(image, rawImage);
+        mScorer.score(image, item);
+        mFramesScored = item.isScored();
+        boolean paired = mRing.offerImage(image.getTimestamp(), item);
 
-        if (DEBUG_QUEUE) Log.d(TAG, "imageIndex: " + lastIndex + " " + image.getTimestamp());
+        if (DEBUG_QUEUE) Log.d(TAG, "image: " + paired + " " + image.getTimestamp());
     }
 
     public void add(TotalCaptureResult metadata) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if (mBuffer == null)
-                return;
-            long timestamp = -1;
-            try {
-                timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP);
-            } catch (IllegalStateException e) {
-                //This happens when corresponding image to this metadata is closed and discarded.
-                return;
+        long timestamp = -1;
+        try {
+            timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP);
+        } catch (IllegalStateException e) {
+            //This happens when corresponding image to this metadata is closed and discarded.
+            return;
+        }
+        if (timestamp == -1) {
+            return;
+        }
+        boolean paired = mRing.offerMeta(timestamp, metadata);
+
+        if (DEBUG_QUEUE) Log.d(TAG, "Meta: " + paired + " " + timestamp);
+    }
+
+    public ImageItem tryToGetMatchingItem() {
+        return tryToGetMatchingItem(getPolicy(POLICY_NEWEST), 0);
+    }
+
+    /*
+     * Picks the best valid item according to the policy. Scores are cached on the
+     * items when they arrive, so this only compares at most one score per slot.
+     */
+    public ImageItem tryToGetMatchingItem(SelectionPolicy policy, long shutterTimestamp) {
+        long startTime = System.nanoTime();
+        ImageItem result = null;
+        // A slot can be evicted between scoring and take(), so retry a few times
+        for (int attempt = 0; attempt < 3 && result == null; attempt++) {
+            ZSLRing.Slot<ImageItem, TotalCaptureResult> best = null;
+            double bestScore = 0;
+            for (int age = 0; age < mRing.capacity(); age++) {
+                ZSLRing.Slot<ImageItem, TotalCaptureResult> slot = mRing.get(age);
+                if (slot == null || !slot.isPaired() || !checkImageRequirement(slot.getMeta())) {
+                    continue;
+                }
+                double score = policy.score(slot.getImage(), slot.getTimestamp(), shutterTimestamp);
+                if (best == null || score > bestScore) {
+                    best = slot;
+                    bestScore = score;
+                }
             }
-            if (timestamp == -1) {
-                return;
+            if (best == null) {
+                break;
             }
-            if (mBuffer[mMetaHead] == null) {
-                mBuffer[mMetaHead] = new ImageItem();
-            } else {
-                mBuffer[mMetaHead].closeMeta();
+            if (mRing.take(best)) {
+                result = best.getImage();
+                result.setMetadata(best.getMeta());
             }
-            if (mBuffer[mMetaHead].getImage() != null) {
-                if (mBuffer[mMetaHead].getImage().getTimestamp() == timestamp) {
-                    mBuffer[mMetaHead].setMetadata(metadata);
-                    lastIndex = mMetaHead;
-                    mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                } else if (mBuffer[mMetaHead].getImage().getTimestamp() > timestamp) {
-                    //Disard
-                } else {
-                    int i = findImage(timestamp, mMetaHead);
-                    if (i == -1) {
-                        mBuffer[mMetaHead].setImage(null, null);
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mMetaHead = i;
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mMetaHead].setMetadata(metadata);
-                lastIndex = mImageHead;
-                mMetaHead = (mMetaHead + 1) % mBuffer.length;
+        }
+        mLastSelectionLatencyNs = System.nanoTime() - startTime;
+        if (DEBUG_QUEUE) Log.d(TAG, "Selection took " + mLastSelectionLatencyNs + "ns");
+        return result;
+    }
+
+    public long getLastSelectionLatencyNs() {
+        return mLastSelectionLatencyNs;
+    }
+
+    /*
+     * Returns the policy to select frames with. A content based policy falls back to
+     * POLICY_NEWEST while the frames have no scores, such as PRIVATE ZSL frames, which
+     * have no CPU visible planes.
+     */
+    public SelectionPolicy choosePolicy(int policy) {
+        if (needsFrameScores(policy) && !mFramesScored) {
+            if (!mLoggedUnscored) {
+                mLoggedUnscored = true;
+                Log.w(TAG, "ZSL frames have no scores, policy " + policy
+                        + " falls back to the newest frame");
             }
+            return getPolicy(POLICY_NEWEST);
         }
+        return getPolicy(policy);
+    }
 
-        if (DEBUG_QUEUE)
-            Log.d(TAG, "Meta: " + lastIndex + " " + metadata.get(CaptureResult.SENSOR_TIMESTAMP));
+    public static boolean needsFrameScores(int policy) {
+        return policy == POLICY_LOWEST_MOTION || policy == POLICY_SHARPEST;
     }
 
-    public ImageItem tryToGetMatchingItem() {
-        synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                    mBuffer[index] = null;
-                    return item;
-                }
-                index--;
-                if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
+    public static SelectionPolicy getPolicy(int policy) {
+        switch (policy) {
+            case POLICY_CLOSEST_TO_SHUTTER:
+                return (item, timestamp, shutterTimestamp) ->
+                        -Math.abs((double) (timestamp - shutterTimestamp));
+            case POLICY_LOWEST_MOTION:
+                return (item, timestamp, shutterTimestamp) -> -item.getMotion();
+            case POLICY_SHARPEST:
+                return (item, timestamp, shutterTimestamp) -> item.getSharpness();
+            case POLICY_NEWEST:
+            default:
+                return (item, timestamp, shutterTimestamp) -> timestamp;
         }
-        return null;
     }
 
     public void onClose() {
-        synchronized (mLock) {
-            for (int i = 0; i < mBuffer.length; i++) {
-                if (mBuffer[i] != null) {
-                    mBuffer[i].closeImage();
-                    mBuffer[i].closeMeta();
-                    mBuffer[i] = null;
-                }
-            }
-            mBuffer = null;
-            mImageHead = 0;
-            mMetaHead = 0;
+        if (DEBUG_QUEUE) {
+            Log.d(TAG, "paired: " + mRing.getPairedCount()
+                    + " droppedImages: " + mRing.getDroppedImageCount()
+                    + " droppedMetas: " + mRing.getDroppedMetaCount()
+                    + " avgPairingNs: " + mRing.getAveragePairingLatencyNs());
         }
+        mRing.close();
     }
 
     private boolean checkImageRequirement(TotalCaptureResult captureResult) {
@@ -220,10 +206,87 @@ public class ZSLQueue {
 
     }
 
+    public interface SelectionPolicy {
+        /*
+         * Higher is better. Must only use values cached on the item. Unscored items
+         * have a sharpness of 0 and the maximum motion.
+         */
+        double score(ImageItem item, long timestamp, long shutterTimestamp);
+    }
+
+    /*
+     * Computes a cheap sharpness and motion estimate from a sparse grid of luma
+     * samples. Runs on the single image producer thread, so the sample buffers
+     * are reused between frames.
+     */
+    static class FrameScorer {
+        private static final int GRID_WIDTH = 32;
+        private static final int GRID_HEIGHT = 24;
+        private int[] mSamples = new int[GRID_WIDTH * GRID_HEIGHT];
+        private int[] mPrevSamples = new int[GRID_WIDTH * GRID_HEIGHT];
+        private boolean mHasPrev = false;
+
+        void score(Image image, ImageItem item) {
+            // PRIVATE ZSL buffers have no CPU visible planes, leave the item unscored
+            if (image.getFormat() != ImageFormat.YUV_420_888) {
+                return;
+            }
+            Image.Plane plane = image.getPlanes()[0];
+            score(plane.getBuffer(), plane.getRowStride(), plane.getPixelStride(),
+                    image.getWidth(), image.getHeight(), item);
+        }
+
+        void score(ByteBuffer buf, int rowStride, int pixelStride, int width, int height,
+                ImageItem item) {
+            if (width < GRID_WIDTH * 2 || height < GRID_HEIGHT * 2) {
+                return;
+            }
+            int stepX = width / GRID_WIDTH;
+            int stepY = height / GRID_HEIGHT;
+            long gradient = 0;
+            long diff = 0;
+            int i = 0;
+            for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+                int row = (gy * stepY + stepY / 2) * rowStride;
+                for (int gx = 0; gx < GRID_WIDTH; gx++, i++) {
+                    int offset = row + (gx * stepX + stepX / 2) * pixelStride;
+                    int center = buf.get(offset) & 0xff;
+                    int right = buf.get(offset + pixelStride) & 0xff;
+                    int below = buf.get(offset + rowStride) & 0xff;
+                    gradient += Math.abs(right - center) + Math.abs(below - center);
+                    mSamples[i] = center;
+                    diff += Math.abs(center - mPrevSamples[i]);
+                }
+            }
+            item.mSharpness = (float) gradient / mSamples.length;
+            item.mMotion = mHasPrev ? (float) diff / mSamples.length : Float.MAX_VALUE;
+            item.mScored = true;
+            int[] tmp = mPrevSamples;
+            mPrevSamples = mSamples;
+            mSamples = tmp;
+            mHasPrev = true;
+        }
+    }
+
     static class ImageItem {
         private Image mImage = null;
         private Image mRawImage = null;
         private TotalCaptureResult mMetadata = null;
+        private float mSharpness = 0;
+        private float mMotion = Float.MAX_VALUE;
+        private boolean mScored;
+
+        public boolean isScored() {
+            return mScored;
+        }
+
+        public float getSharpness() {
+            return mSharpness;
+        }
+
+        public float getMotion() {
+            return mMotion;
+        }
 
         public Image getImage() {
             return mImage;
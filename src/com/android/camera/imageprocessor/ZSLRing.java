@@ -0,0 +1,385 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free ring that pairs images with their capture metadata by sensor timestamp.
+ * There is one producer per side; whichever side arrives first claims a slot, the
+ * other side finds it through a small open-addressed timestamp index in O(1).
+ * Slots are recycled in arrival order and evicted parts are handed to the Releaser.
+ */
+public class ZSLRing<I, M> {
+    private static final int PROBE_WINDOW = 8;
+
+    public interface Releaser<I, M> {
+        void releaseImage(I image);
+
+        void releaseMeta(M meta);
+    }
+
+    public static final class Slot<I, M> {
+        static final int IMAGE = 1;
+        static final int META = 2;
+        static final int PAIRED = IMAGE | META;
+        static final int EVICTED = 4;
+        static final int TAKEN = 8;
+
+        private final long mTimestamp;
+        private final long mArrivalNs;
+        private final AtomicInteger mState = new AtomicInteger();
+        private volatile I mImage;
+        private volatile M mMeta;
+
+        Slot(long timestamp, long arrivalNs) {
+            mTimestamp = timestamp;
+            mArrivalNs = arrivalNs;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public I getImage() {
+            return mImage;
+        }
+
+        public M getMeta() {
+            return mMeta;
+        }
+
+        public boolean isPaired() {
+            return mState.get() == PAIRED;
+        }
+
+        boolean isDead() {
+            return (mState.get() & (EVICTED | TAKEN)) != 0;
+        }
+    }
+
+    private final AtomicReferenceArray<Slot<I, M>> mRing;
+    private final AtomicReferenceArray<Slot<I, M>> mIndex;
+    private final int mIndexMask;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Releaser<I, M> mReleaser;
+    private volatile boolean mClosed = false;
+
+    private final AtomicLong mPairedCount = new AtomicLong();
+    private final AtomicLong mDroppedImages = new AtomicLong();
+    private final AtomicLong mDroppedMetas = new AtomicLong();
+    private final AtomicLong mPairingLatencyNs = new AtomicLong();
+    private final AtomicLong mMaxPairingLatencyNs = new AtomicLong();
+
+    public ZSLRing(int capacity, Releaser<I, M> releaser) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        mRing = new AtomicReferenceArray<>(capacity);
+        int indexSize = Integer.highestOneBit(Math.max(capacity * 4, PROBE_WINDOW) - 1) << 1;
+        mIndex = new AtomicReferenceArray<>(indexSize);
+        mIndexMask = indexSize - 1;
+        mReleaser = releaser;
+    }
+
+    public int capacity() {
+        return mRing.length();
+    }
+
+    public boolean offerImage(long timestamp, I image) {
+        return attach(timestamp, image, null, Slot.IMAGE);
+    }
+
+    public boolean offerMeta(long timestamp, M meta) {
+        return attach(timestamp, null, meta, Slot.META);
+    }
+
+    /* Returns the slot published age positions before the newest one, or null */
+    public Slot<I, M> get(int age) {
+        long seq = mSequence.get() - 1 - age;
+        if (age < 0 || age >= mRing.length() || seq < 0) {
+            return null;
+        }
+        return mRing.get((int) (seq % mRing.length()));
+    }
+
+    /* Claims a paired slot. The caller owns its image and metadata afterwards */
+    public boolean take(Slot<I, M> slot) {
+        if (!slot.mState.compareAndSet(Slot.PAIRED, Slot.PAIRED | Slot.TAKEN)) {
+            return false;
+        }
+        removeFromIndex(slot);
+        for (int i = 0; i < mRing.length(); i++) {
+            if (mRing.compareAndSet(i, slot, null)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    public void close() {
+        mClosed = true;
+        for (int i = 0; i < mRing.length(); i++) {
+            Slot<I, M> slot = mRing.getAndSet(i, null);
+            if (slot != null) {
+                evict(slot);
+            }
+        }
+        for (int i = 0; i < mIndex.length(); i++) {
+            mIndex.set(i, null);
+        }
+    }
+
+    public long getPairedCount() {
+        return mPairedCount.get();
+    }
+
+    public long getDroppedImageCount() {
+        return mDroppedImages.get();
+    }
+
+    public long getDroppedMetaCount() {
+        return mDroppedMetas.get();
+    }
+
+    public long getAveragePairingLatencyNs() {
+        long paired = mPairedCount.get();
+        return paired == 0 ? 0 : mPairingLatencyNs.get() / paired;
+    }
+
+    public long getMaxPairingLatencyNs() {
+        return mMaxPairingLatencyNs.get();
+    }
+
+    private boolean attach(long timestamp, I image, M meta, int part) {
+        if (mClosed) {
+            drop(image, meta);
+            return false;
+        }
+        Slot<I, M> slot = lookup(timestamp);
+        if (slot == null) {
+            Slot<I, M> fresh = new Slot<>(timestamp, System.nanoTime());
+            fresh.mImage = image;
+            fresh.mMeta = meta;
+            fresh.mState.set(part);
+            slot = insert(fresh);
+            if (slot == null) {
+                // The other side may have folded fresh into its own slot already
+                if (!fresh.isDead()) {
+                    publish(fresh);
+                }
+                return true;
+            }
+            if (slot == fresh) {
+                // The index window is full, there is no room for this timestamp
+                drop(image, meta);
+                return false;
+            }
+        }
+        return join(slot, image, meta, part);
+    }
+
+    private boolean join(Slot<I, M> slot, I image, M meta, int part) {
+        while (true) {
+            int state = slot.mState.get();
+            if ((state & (Slot.EVICTED | Slot.TAKEN | part)) != 0) {
+                drop(image, meta);
+                return false;
+            }
+            // Only set once the part is known to be missing, a duplicate must not
+            // replace the part the slot already owns
+            if (part == Slot.IMAGE) {
+                slot.mImage = image;
+            } else {
+                slot.mMeta = meta;
+            }
+            if (slot.mState.compareAndSet(state, state | part)) {
+                if ((state | part) == Slot.PAIRED) {
+                    long latency = System.nanoTime() - slot.mArrivalNs;
+                    mPairedCount.incrementAndGet();
+                    mPairingLatencyNs.addAndGet(latency);
+                    long max;
+                    do {
+                        max = mMaxPairingLatencyNs.get();
+                    } while (latency > max && !mMaxPairingLatencyNs.compareAndSet(max, latency));
+                }
+                return true;
+            }
+        }
+    }
+
+    private void publish(Slot<I, M> slot) {
+        long seq = mSequence.getAndIncrement();
+        Slot<I, M> old = mRing.getAndSet((int) (seq % mRing.length()), slot);
+        if (old != null) {
+            evict(old);
+        }
+        if (mClosed) {
+            // Lost a race with close(), nobody else will see this slot
+            if (mRing.compareAndSet((int) (seq % mRing.length()), slot, null)) {
+                evict(slot);
+            }
+        }
+    }
+
+    private void evict(Slot<I, M> slot) {
+        int state;
+        do {
+            state = slot.mState.get();
+            if ((state & (Slot.EVICTED | Slot.TAKEN)) != 0) {
+                return;
+            }
+        } while (!slot.mState.compareAndSet(state, state | Slot.EVICTED));
+        removeFromIndex(slot);
+        if ((state & Slot.IMAGE) != 0) {
+            if (state != Slot.PAIRED) {
+                mDroppedImages.incrementAndGet();
+            }
+            mReleaser.releaseImage(slot.mImage);
+        }
+        if ((state & Slot.META) != 0) {
+            if (state != Slot.PAIRED) {
+                mDroppedMetas.incrementAndGet();
+            }
+            mReleaser.releaseMeta(slot.mMeta);
+        }
+        slot.mImage = null;
+        slot.mMeta = null;
+    }
+
+    private void drop(I image, M meta) {
+        if (image != null) {
+            mDroppedImages.incrementAndGet();
+            mReleaser.releaseImage(image);
+        }
+        if (meta != null) {
+            mDroppedMetas.incrementAndGet();
+            mReleaser.releaseMeta(meta);
+        }
+    }
+
+    private int hash(long timestamp) {
+        long h = (timestamp ^ (timestamp >>> 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40);
+    }
+
+    private Slot<I, M> lookup(long timestamp) {
+        int start = hash(timestamp);
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            Slot<I, M> cur = mIndex.get((start + i) & mIndexMask);
+            if (cur != null && cur.mTimestamp == timestamp && !cur.isDead()) {
+                return cur;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Returns null if fresh became the slot for its timestamp, or was folded into the
+     * slot of the other side, the existing slot if the other side got there first, or
+     * fresh itself if there is no free index cell.
+     */
+    private Slot<I, M> insert(Slot<I, M> fresh) {
+        int start = hash(fresh.mTimestamp);
+        int mine = -1;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int idx = (start + i) & mIndexMask;
+            Slot<I, M> cur = mIndex.get(idx);
+            if (cur == null) {
+                if (mIndex.compareAndSet(idx, null, fresh)) {
+                    mine = i;
+                    break;
+                }
+                cur = mIndex.get(idx);
+            }
+            if (cur != null && cur.mTimestamp == fresh.mTimestamp && !cur.isDead()) {
+                return cur;
+            }
+        }
+        if (mine < 0) {
+            return fresh;
+        }
+        // Both sides may have inserted concurrently into different cells. Each looks at
+        // the whole window after its own insert, so at least one sees the other. The
+        // slot in the later cell is folded into the earlier one by whichever side wins
+        // the CAS on its state, so a timestamp never ends up with two live slots.
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            Slot<I, M> cur = mIndex.get((start + i) & mIndexMask);
+            if (i == mine || cur == null || cur.mTimestamp != fresh.mTimestamp
+                    || cur.isDead()) {
+                continue;
+            }
+            if (i < mine) {
+                if (fold(fresh) == 0) {
+                    return null;
+                }
+                fresh.mImage = null;
+                fresh.mMeta = null;
+                return cur;
+            }
+            I image = cur.mImage;
+            M meta = cur.mMeta;
+            int part = fold(cur);
+            if (part != 0) {
+                cur.mImage = null;
+                cur.mMeta = null;
+                join(fresh, image, meta, part);
+            }
+            return null;
+        }
+        return null;
+    }
+
+    /*
+     * Retires a slot that holds a single part without releasing it, the part moves to
+     * another slot. Returns the part, or 0 if the slot was paired or retired meanwhile.
+     */
+    private int fold(Slot<I, M> slot) {
+        int state = slot.mState.get();
+        if (state != Slot.IMAGE && state != Slot.META) {
+            return 0;
+        }
+        if (!slot.mState.compareAndSet(state, state | Slot.EVICTED)) {
+            return 0;
+        }
+        removeFromIndex(slot);
+        return state;
+    }
+
+    private void removeFromIndex(Slot<I, M> slot) {
+        int start = hash(slot.mTimestamp);
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            if (mIndex.compareAndSet((start + i) & mIndexMask, slot, null)) {
+                return;
+            }
+        }
+    }
+}
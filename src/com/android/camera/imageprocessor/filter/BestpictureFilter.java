@@ -30,9 +30,7 @@ package com.android.camera.imageprocessor.filter;
 
 import android.app.ProgressDialog;
 import android.content.Intent;
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CaptureRequest;
@@ -46,10 +44,11 @@ import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
+import com.android.camera.imageprocessor.NV21BufferArena;
+import com.android.camera.imageprocessor.NV21JpegEncoder;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
@@ -201,17 +200,23 @@ public class BestpictureFilter implements ImageFilter {
             if (!mIsOn) {
                 return null;
             }
-            mBestpictureResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            NV21BufferArena arena = mProcessor.getBufferArena();
+            mBestpictureResultImage = new ImageFilter.ResultImage(
+                    arena.acquire(mStrideY * mHeight * 3 / 2),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
-            yBuf.get(mBestpictureResultImage.outBuffer.array(), 0, yBuf.remaining());
-            vuBuf.get(mBestpictureResultImage.outBuffer.array(), mStrideY * mHeight,
-                    vuBuf.remaining());
+            // Through a view, so the copy honors the array offset of the direct buffer
+            ByteBuffer out = mBestpictureResultImage.outBuffer.duplicate();
+            out.put(yBuf);
+            out.position(mStrideY * mHeight);
+            out.put(vuBuf);
             yBuf.rewind();
             vuBuf.rewind();
 
-            return nv21ToJpeg(mBestpictureResultImage, mOrientation,
+            byte[] bytes = nv21ToJpeg(mBestpictureResultImage, mOrientation,
                     mProcessor.waitForMetaData(imageNum));
+            arena.release(mBestpictureResultImage.outBuffer);
+            mBestpictureResultImage = null;
+            return bytes;
         }
     }
 
@@ -264,12 +269,10 @@ public class BestpictureFilter implements ImageFilter {
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
                               TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                resultImage.width, resultImage.height, new int[]{resultImage.stride,
-                resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, mProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
+        ByteBuffer buf = resultImage.outBuffer;
+        byte[] bytes = NV21JpegEncoder.getInstance().encode(buf.array(), buf.arrayOffset(),
+                resultImage.width, resultImage.height, resultImage.stride, resultImage.stride,
+                resultImage.outRoi, mProcessor.getJpegQualityValue());
         bytes = PostProcessor.addExifTags(bytes, orientation, result);
         return bytes;
     }
@@ -292,14 +295,4 @@ public class BestpictureFilter implements ImageFilter {
         mSavedCount++;
         Log(imageNum + " image is saved");
     }
-
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
-    }
 }
@@ -40,7 +40,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class BlurbusterFilter implements ImageFilter {
+public class BlurbusterFilter implements StreamingImageFilter {
     public static final int NUM_REQUIRED_IMAGE = 5;
     private static String TAG = "BlurbusterFilter";
     private static boolean mIsSupported = false;
@@ -142,6 +142,11 @@ public class BlurbusterFilter implements ImageFilter {
         return mIsSupported;
     }
 
+    @Override
+    public boolean isStreamingSupported() {
+        return true;
+    }
+
     @Override
     public boolean isFrameListener() {
         return false;
@@ -42,7 +42,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class StillmoreFilter implements ImageFilter {
+public class StillmoreFilter implements StreamingImageFilter {
     public static final int NUM_REQUIRED_IMAGE = PersistUtil.getStillmoreNumRequiredImages();
     private static String TAG = "StillmoreFilter";
     private static boolean mIsSupported = false;
@@ -157,6 +157,11 @@ public class StillmoreFilter implements ImageFilter {
         return mIsSupported;
     }
 
+    @Override
+    public boolean isStreamingSupported() {
+        return true;
+    }
+
     @Override
     public boolean isFrameListener() {
         return false;
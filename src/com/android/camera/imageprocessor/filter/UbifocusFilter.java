@@ -28,9 +28,7 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.android.camera.imageprocessor.filter;
 
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -42,10 +40,11 @@ import android.util.Log;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.NV21BufferArena;
+import com.android.camera.imageprocessor.NV21JpegEncoder;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
@@ -237,18 +236,17 @@ public class UbifocusFilter implements ImageFilter {
     }
 
     private byte[] nv21ToJpeg(ByteBuffer bY, ByteBuffer bVU, Rect roi, int orientation, int imageIndex) {
-        ByteBuffer buf = ByteBuffer.allocate(mStrideY * mHeight * 3 / 2);
+        NV21BufferArena arena = mPostProcessor.getBufferArena();
+        ByteBuffer buf = arena.acquire(mStrideY * mHeight * 3 / 2);
         buf.put(bY);
         bY.rewind();
         if (bVU != null) {
             buf.put(bVU);
             bVU.rewind();
         }
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(buf.array(), ImageFormat.NV21,
-                mWidth, mHeight, new int[]{mStrideY, mStrideVU});
-        im.compressToJpeg(roi, mPostProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
+        byte[] bytes = NV21JpegEncoder.getInstance().encode(buf.array(), buf.arrayOffset(),
+                mWidth, mHeight, mStrideY, mStrideVU, roi, mPostProcessor.getJpegQualityValue());
+        arena.release(buf);
         bytes = PostProcessor.addExifTags(bytes, orientation, mPostProcessor.waitForMetaData(imageIndex));
         return bytes;
     }
@@ -274,28 +272,32 @@ public class UbifocusFilter implements ImageFilter {
             if (mOutBuf == null) {
                 return null;
             }
-            mUbifocusResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            NV21BufferArena arena = mPostProcessor.getBufferArena();
+            mUbifocusResultImage = new ImageFilter.ResultImage(
+                    arena.acquire(mStrideY * mHeight * 3 / 2),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
-            yBuf.get(mUbifocusResultImage.outBuffer.array(), 0, yBuf.remaining());
-            vuBuf.get(mUbifocusResultImage.outBuffer.array(), mStrideY * mHeight,
-                    vuBuf.remaining());
+            // Through a view, so the copy honors the array offset of the direct buffer
+            ByteBuffer out = mUbifocusResultImage.outBuffer.duplicate();
+            out.put(yBuf);
+            out.position(mStrideY * mHeight);
+            out.put(vuBuf);
             yBuf.rewind();
             vuBuf.rewind();
 
-            return nv21ToJpeg(mUbifocusResultImage, mOrientation,
+            byte[] bytes = nv21ToJpeg(mUbifocusResultImage, mOrientation,
                     mPostProcessor.waitForMetaData(imageNum));
+            arena.release(mUbifocusResultImage.outBuffer);
+            mUbifocusResultImage = null;
+            return bytes;
         }
     }
 
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation,
                               TotalCaptureResult result) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                resultImage.width, resultImage.height, new int[]{resultImage.stride,
-                resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, mPostProcessor.getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
+        ByteBuffer buf = resultImage.outBuffer;
+        byte[] bytes = NV21JpegEncoder.getInstance().encode(buf.array(), buf.arrayOffset(),
+                resultImage.width, resultImage.height, resultImage.stride, resultImage.stride,
+                resultImage.outRoi, mPostProcessor.getJpegQualityValue());
         bytes = PostProcessor.addExifTags(bytes, orientation, result);
         return bytes;
     }
@@ -309,14 +311,4 @@ public class UbifocusFilter implements ImageFilter {
     private native int nativeGetDepthMap(byte[] depthMapBuf, int depthMapWidth, int depthMapHeight);
 
     private native int nativeProcessImage(byte[] buffer, int[] roi, int[] depthMapSize);
-
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
-    }
 }
@@ -24,7 +24,6 @@ import android.util.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.CameraUtil;
 
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -94,11 +93,26 @@ public class MpoInterface {
         return s.size();
     }
 
+    /**
+     * Writes the mpo file with the MP segments serialized up front and the jpeg
+     * data of all images written straight from their arrays. Returns the file
+     * size or -1 on failure.
+     */
     public static int writeMpo(MpoData mpo, String outFilename) {
         if (mpo == null || outFilename == null)
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
 
-        return writeMpo(mpo, getFileWriterStream(outFilename));
+        FileOutputStream out = null;
+        try {
+            MpoSplice splice = MpoSplice.build(mpo);
+            out = new FileOutputStream(outFilename);
+            return splice.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "IO Exception when writing mpo image", e);
+            return -1;
+        } finally {
+            CameraUtil.closeSilently(out);
+        }
     }
 
     /**
@@ -114,25 +128,4 @@ public class MpoInterface {
         }
         return new MpoOutputStream(outStream);
     }
-
-    /**
-     * Returns an FileOutputStream object that writes to a file.
-     *
-     * @param outFileName an String containing a filepath for a file.
-     * @return an FileOutputStream that writes to the outFileName file.
-     * @throws FileNotFoundException
-     */
-    private static OutputStream getFileWriterStream(String outFileName) {
-        if (outFileName == null) {
-            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
-        }
-        OutputStream out = null;
-        try {
-            out = new FileOutputStream(outFileName);
-        } catch (FileNotFoundException e) {
-            CameraUtil.closeSilently(out);
-            Log.w(TAG, "File not found");
-        }
-        return out;
-    }
 }
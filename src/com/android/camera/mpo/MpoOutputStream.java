@@ -328,7 +328,20 @@ class MpoOutputStream extends FilterOutputStream {
         if (DEBUG) {
             Log.v(TAG, "Writing mpo data...");
         }
-        int exifSize = mCurrentImageData.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
+        if (mMpoOffsetStart == -1) {
+            mMpoOffsetStart = mSize + 2 + MpoImageData.APP_HEADER_SIZE;
+        }
+        mSize += writeMpSegment(mMpoData, mCurrentImageData, mMpoOffsetStart, out);
+    }
+
+    /**
+     * Writes the APP2 segment of one image. MP entry offsets are made relative to
+     * mpoOffsetStart, the file offset of the TIFF header in the primary image.
+     * Returns the size of the segment including its marker.
+     */
+    static int writeMpSegment(MpoData mpoData, MpoImageData image, int mpoOffsetStart,
+            OutputStream out) throws IOException {
+        int exifSize = image.calculateAllIfdOffsets() + MpoImageData.APP_HEADER_SIZE;
         if (exifSize > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
@@ -337,28 +350,25 @@ class MpoOutputStream extends FilterOutputStream {
         dataOutputStream.writeShort(JpegHeader.APP2);
         dataOutputStream.writeShort((short) (exifSize));
         dataOutputStream.writeInt(MpoImageData.MP_FORMAT_IDENTIFIER);
-        if (mMpoOffsetStart == -1) {
-            mMpoOffsetStart = mSize + dataOutputStream.size();
-        }
-        if (mCurrentImageData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
+        if (image.getByteOrder() == ByteOrder.BIG_ENDIAN) {
             dataOutputStream.writeShort(TIFF_BIG_ENDIAN);
         } else {
             dataOutputStream.writeShort(TIFF_LITTLE_ENDIAN);
         }
-        dataOutputStream.setByteOrder(mCurrentImageData.getByteOrder());
+        dataOutputStream.setByteOrder(image.getByteOrder());
         dataOutputStream.writeShort(TIFF_HEADER);
         if (exifSize > MpoImageData.MP_HEADER_SIZE + MpoImageData.APP_HEADER_SIZE) {
             dataOutputStream.writeInt(MpoImageData.OFFSET_TO_FIRST_IFD);
-            writeAllTags(dataOutputStream);
+            writeAllTags(mpoData, image, mpoOffsetStart, dataOutputStream);
         } else
             dataOutputStream.writeInt(0);
 
-        mSize += dataOutputStream.size();
+        return 2 + exifSize;
     }
 
-    private void updateIndexIfdOffsets(MpoIfdData indexIfd, int mpoOffset) {
+    private static void updateIndexIfdOffsets(MpoData mpoData, int mpoOffset) {
         // update offsets
-        MpoTag mpEntryTag = mMpoData.getPrimaryMpoImage().getTag((short) MpoInterface.TAG_MP_ENTRY,
+        MpoTag mpEntryTag = mpoData.getPrimaryMpoImage().getTag((short) MpoInterface.TAG_MP_ENTRY,
                 MpoIfdData.TYPE_MP_INDEX_IFD);
         List<MpEntry> mpEntries = mpEntryTag.getMpEntryValue();
         for (int i = 1; i < mpEntries.size(); i++) { // primary offset is always
@@ -370,19 +380,20 @@ class MpoOutputStream extends FilterOutputStream {
         mpEntryTag.setValue(mpEntries);
     }
 
-    private void writeAllTags(OrderedDataOutputStream dataOutputStream) throws IOException {
-        MpoIfdData indexIfd = mCurrentImageData.getIndexIfdData();
+    private static void writeAllTags(MpoData mpoData, MpoImageData image, int mpoOffsetStart,
+            OrderedDataOutputStream dataOutputStream) throws IOException {
+        MpoIfdData indexIfd = image.getIndexIfdData();
         if (indexIfd.getTagCount() > 0) {
-            updateIndexIfdOffsets(indexIfd, mMpoOffsetStart);
+            updateIndexIfdOffsets(mpoData, mpoOffsetStart);
             writeIfd(indexIfd, dataOutputStream);
         }
 
-        MpoIfdData attribIfd = mCurrentImageData.getAttribIfdData();
+        MpoIfdData attribIfd = image.getAttribIfdData();
         if (attribIfd.getTagCount() > 0)
             writeIfd(attribIfd, dataOutputStream);
     }
 
-    private void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
+    private static void writeIfd(MpoIfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
         MpoTag[] tags = ifd.getAllTags();
         dataOutputStream.writeShort((short) tags.length);
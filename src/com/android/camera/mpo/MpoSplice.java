@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.mpo;
+
+import com.android.camera.exif.JpegHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles an MPO file without streaming the images through
+ * {@link MpoOutputStream}. Only the marker segments in front of each frame
+ * header are parsed. The MP APP2 segments are serialized into small header
+ * buffers, with every MP entry offset worked out from the input lengths up
+ * front, and the JPEG bodies are referenced as views of the source arrays,
+ * ready for a gathering write.
+ * <p>
+ * The output is byte-for-byte identical to what MpoOutputStream produces,
+ * including the cleared dual camera crop info of a primary image that has
+ * more than one auxiliary image.
+ */
+class MpoSplice {
+    private static final int HEADER_SIZE_HINT = 512;
+
+    private static final String DC_CROP_INFO = "Qualcomm Dual Camera Attributes";
+
+    private final ByteBuffer[] mBuffers;
+    private final int mTotalLength;
+
+    private MpoSplice(List<ByteBuffer> buffers) {
+        mBuffers = buffers.toArray(new ByteBuffer[buffers.size()]);
+        int total = 0;
+        for (ByteBuffer b : mBuffers) {
+            total += b.remaining();
+        }
+        mTotalLength = total;
+    }
+
+    static MpoSplice build(MpoData mpoData) throws IOException {
+        mpoData.updateAllTags();
+        MpoImageData primary = mpoData.getPrimaryMpoImage();
+        List<ByteBuffer> buffers = new ArrayList<>(4 * (mpoData.getAuxiliaryImageCount() + 1));
+
+        // The MP entries count from the TIFF header of the primary APP2, which
+        // follows the SOI and the APP0/APP1 segments copied ahead of it.
+        byte[] jpeg = primary.getJpegData();
+        int mpoOffsetStart = findMpSegmentOffset(jpeg) + 2 + MpoImageData.APP_HEADER_SIZE;
+        addImage(buffers, mpoData, primary, mpoOffsetStart,
+                mpoData.getAuxiliaryImageCount() > 1);
+        for (MpoImageData image : mpoData.getAuxiliaryMpoImages()) {
+            addImage(buffers, mpoData, image, mpoOffsetStart, false);
+        }
+        return new MpoSplice(buffers);
+    }
+
+    private static void addImage(List<ByteBuffer> buffers, MpoData mpoData,
+            MpoImageData image, int mpoOffsetStart, boolean clearCropInfo) throws IOException {
+        byte[] jpeg = image.getJpegData();
+        int insert = findMpSegmentOffset(jpeg);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE_HINT);
+        MpoOutputStream.writeMpSegment(mpoData, image, mpoOffsetStart, header);
+
+        buffers.add(ByteBuffer.wrap(jpeg, 0, insert));
+        buffers.add(ByteBuffer.wrap(header.toByteArray()));
+        if (!clearCropInfo) {
+            buffers.add(ByteBuffer.wrap(jpeg, insert, jpeg.length - insert));
+            return;
+        }
+
+        // Same walk as the STATE_SKIP_CROP state of MpoOutputStream: copy the
+        // segments up to the frame header, zero the payload of the first one
+        // carrying the crop info.
+        int offset = insert;
+        int end = jpeg.length;
+        while (end - offset >= 4) {
+            short marker = getShort(jpeg, offset);
+            int length = getShort(jpeg, offset + 2) & 0x0000ffff;
+            if (!JpegHeader.isSofMarker(marker)) {
+                // frame header reached, no crop info
+                buffers.add(ByteBuffer.wrap(jpeg, insert, end - insert));
+                return;
+            }
+            if (isDualCamCropInfo(jpeg, offset + 4)) {
+                buffers.add(ByteBuffer.wrap(jpeg, insert, offset + 4 - insert));
+                buffers.add(ByteBuffer.wrap(new byte[Math.max(0, length - 2)]));
+                int resume = Math.min(end, offset + 4 + Math.max(0, length - 2));
+                buffers.add(ByteBuffer.wrap(jpeg, resume, end - resume));
+                return;
+            }
+            offset = Math.min(end, offset + 4 + Math.max(0, length - 2));
+        }
+        // A truncated tail only survives if it is a lone EOI.
+        if (end - offset == 2 && getShort(jpeg, offset) == JpegHeader.EOI) {
+            offset = end;
+        }
+        buffers.add(ByteBuffer.wrap(jpeg, insert, offset - insert));
+    }
+
+    /**
+     * Returns the offset after the SOI and the APP0/APP1 segments, where
+     * MpoOutputStream inserts the APP2 segment.
+     */
+    private static int findMpSegmentOffset(byte[] jpeg) throws IOException {
+        if (jpeg.length < 2 || getShort(jpeg, 0) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+        int offset = 2;
+        while (jpeg.length - offset >= 4) {
+            short marker = getShort(jpeg, offset);
+            if (marker != JpegHeader.APP1 && marker != JpegHeader.APP0) {
+                return offset;
+            }
+            offset += 4 + Math.max(0, (getShort(jpeg, offset + 2) & 0x0000ffff) - 2);
+        }
+        throw new IOException("No frame header found, cannot write mpo data");
+    }
+
+    private static boolean isDualCamCropInfo(byte[] jpeg, int offset) {
+        if (jpeg.length - offset < DC_CROP_INFO.length()) {
+            return false;
+        }
+        for (int i = 0; i < DC_CROP_INFO.length(); i++) {
+            if (DC_CROP_INFO.charAt(i) != (char) jpeg[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static short getShort(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+    }
+
+    int getLength() {
+        return mTotalLength;
+    }
+
+    /**
+     * Writes the MPO file. The parts are all array backed, so they are written
+     * straight from their arrays instead of making the channel copy them into
+     * temporary direct buffers.
+     */
+    int writeTo(FileOutputStream out) throws IOException {
+        for (ByteBuffer b : mBuffers) {
+            if (!b.hasArray()) {
+                return writeTo(out.getChannel());
+            }
+        }
+        return writeTo((OutputStream) out);
+    }
+
+    int writeTo(OutputStream out) throws IOException {
+        for (ByteBuffer b : mBuffers) {
+            out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+        return mTotalLength;
+    }
+
+    /**
+     * Writes the MPO file with as few gathering writes as the channel allows.
+     */
+    int writeTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[mBuffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = mBuffers[i].duplicate();
+        }
+        long written = 0;
+        while (written < mTotalLength) {
+            long n = channel.write(buffers);
+            if (n < 0) {
+                throw new IOException("Channel closed while writing mpo");
+            }
+            written += n;
+        }
+        return mTotalLength;
+    }
+}
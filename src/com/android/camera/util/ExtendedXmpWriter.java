@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds an extended XMP packet out of binary properties, like the GDepth depth map
+ * and the GImage bayer image, and writes it as APP1 extended XMP segments.
+ *
+ * The values are Base64 encoded a block at a time straight into the segments, so
+ * neither the encoded values nor the packet ever exist as a whole in memory. The
+ * packet is encoded twice, once for the MD5 GUID that every segment and the standard
+ * XMP refer to, once to write it.
+ */
+public class ExtendedXmpWriter {
+    private static final String SIGNATURE = "http://ns.adobe.com/xmp/extension/\0";
+    private static final int GUID_SIZE = 32;
+    // Signature, GUID, full length and offset of the portion
+    public static final int HEADER_SIZE = SIGNATURE.length() + GUID_SIZE + 8;
+    // Same portion size as XmpUtil uses
+    public static final int MAX_PORTION_SIZE = 65000;
+    private static final int M_APP1 = 0xe1;
+
+    private static final String PACKET_START = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+            + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+            + "<rdf:Description rdf:about=\"\"";
+    private static final String PACKET_END = "/></rdf:RDF></x:xmpmeta>";
+
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    // Input bytes encoded per block, a multiple of 3 so only the last block pads
+    private static final int BASE64_BLOCK = 3 * 1024;
+
+    private interface Sink {
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+
+    private static class Property {
+        final String mName;
+        final byte[] mValue;
+
+        Property(String name, byte[] value) {
+            mName = name;
+            mValue = value;
+        }
+    }
+
+    private final Map<String, String> mNamespaces = new LinkedHashMap<>();
+    private final List<Property> mProperties = new ArrayList<>();
+    private String mGuid;
+
+    /* Adds a property whose value is the Base64 encoding of value */
+    public void addProperty(String namespace, String prefix, String name, byte[] value) {
+        mNamespaces.put(prefix, namespace);
+        mProperties.add(new Property(prefix + ":" + name, value));
+        mGuid = null;
+    }
+
+    public boolean isEmpty() {
+        return mProperties.isEmpty();
+    }
+
+    /* Length of the serialized packet, without the segment headers */
+    public int getLength() {
+        long length = utf8(PACKET_START).length + utf8(PACKET_END).length;
+        for (Map.Entry<String, String> ns : mNamespaces.entrySet()) {
+            length += utf8(getNamespaceDeclaration(ns.getKey(), ns.getValue())).length;
+        }
+        for (Property p : mProperties) {
+            length += utf8(getPropertyStart(p)).length + getBase64Length(p.mValue.length) + 1;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Extended XMP too large: " + length);
+        }
+        return (int) length;
+    }
+
+    /* Size of the segments written by writeSections(), markers included */
+    public int getSectionsLength() {
+        int length = getLength();
+        int segments = (length + MAX_PORTION_SIZE - 1) / MAX_PORTION_SIZE;
+        return length + segments * (4 + HEADER_SIZE);
+    }
+
+    /* The upper case hex MD5 of the packet, or null if MD5 is not available */
+    public String getGuid() {
+        if (mGuid == null) {
+            try {
+                final MessageDigest md5 = MessageDigest.getInstance("MD5");
+                emit(md5::update);
+                StringBuilder sb = new StringBuilder(GUID_SIZE);
+                for (byte b : md5.digest()) {
+                    sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                            .append(Character.forDigit(b & 0xf, 16));
+                }
+                mGuid = sb.toString().toUpperCase();
+            } catch (NoSuchAlgorithmException | IOException e) {
+                return null;
+            }
+        }
+        return mGuid;
+    }
+
+    /**
+     * Writes the packet as a series of APP1 segments, markers included.
+     *
+     * @return the number of bytes written
+     */
+    public int writeSections(OutputStream out) throws IOException {
+        String guid = getGuid();
+        if (guid == null) {
+            throw new IOException("No MD5 for the extended XMP GUID");
+        }
+        SegmentSink sink = new SegmentSink(out, guid, getLength());
+        emit(sink);
+        if (sink.mOffset != sink.mLength) {
+            throw new IOException("Extended XMP length changed while writing");
+        }
+        return getSectionsLength();
+    }
+
+    private void emit(Sink sink) throws IOException {
+        write(sink, PACKET_START);
+        for (Map.Entry<String, String> ns : mNamespaces.entrySet()) {
+            write(sink, getNamespaceDeclaration(ns.getKey(), ns.getValue()));
+        }
+        byte[] scratch = new byte[getBase64Length(BASE64_BLOCK)];
+        for (Property p : mProperties) {
+            write(sink, getPropertyStart(p));
+            for (int i = 0; i < p.mValue.length; i += BASE64_BLOCK) {
+                int n = Math.min(BASE64_BLOCK, p.mValue.length - i);
+                sink.write(scratch, 0, encodeBase64(p.mValue, i, n, scratch));
+            }
+            write(sink, "\"");
+        }
+        write(sink, PACKET_END);
+    }
+
+    private static String getNamespaceDeclaration(String prefix, String namespace) {
+        return " xmlns:" + prefix + "=\"" + namespace + "\"";
+    }
+
+    private static String getPropertyStart(Property p) {
+        return " " + p.mName + "=\"";
+    }
+
+    private static void write(Sink sink, String s) throws IOException {
+        byte[] b = utf8(s);
+        sink.write(b, 0, b.length);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int getBase64Length(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /* Standard Base64 with padding and without line breaks, returns the output length */
+    static int encodeBase64(byte[] src, int offset, int length, byte[] dst) {
+        int end = offset + length;
+        int o = 0;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int v = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[o++] = BASE64[v >>> 18];
+            dst[o++] = BASE64[(v >>> 12) & 0x3f];
+            dst[o++] = BASE64[(v >>> 6) & 0x3f];
+            dst[o++] = BASE64[v & 0x3f];
+        }
+        if (i < end) {
+            int v = (src[i] & 0xff) << 16;
+            if (i + 1 < end) {
+                v |= (src[i + 1] & 0xff) << 8;
+            }
+            dst[o++] = BASE64[v >>> 18];
+            dst[o++] = BASE64[(v >>> 12) & 0x3f];
+            dst[o++] = i + 1 < end ? BASE64[(v >>> 6) & 0x3f] : (byte) '=';
+            dst[o++] = '=';
+        }
+        return o;
+    }
+
+    /* Cuts the packet into segments, starting a new one every MAX_PORTION_SIZE bytes */
+    private static class SegmentSink implements Sink {
+        final OutputStream mOut;
+        final byte[] mHeader = new byte[4 + HEADER_SIZE];
+        final int mLength;
+        int mOffset;
+        int mLeft;
+
+        SegmentSink(OutputStream out, String guid, int length) {
+            mOut = out;
+            mLength = length;
+            mHeader[0] = (byte) 0xff;
+            mHeader[1] = (byte) M_APP1;
+            byte[] signature = utf8(SIGNATURE);
+            System.arraycopy(signature, 0, mHeader, 4, signature.length);
+            byte[] id = utf8(guid);
+            System.arraycopy(id, 0, mHeader, 4 + signature.length, GUID_SIZE);
+            putInt(mHeader, 4 + signature.length + GUID_SIZE, length);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mLeft == 0) {
+                    startSegment();
+                }
+                int n = Math.min(len, mLeft);
+                mOut.write(b, off, n);
+                off += n;
+                len -= n;
+                mLeft -= n;
+                mOffset += n;
+            }
+        }
+
+        private void startSegment() throws IOException {
+            int portion = Math.min(MAX_PORTION_SIZE, mLength - mOffset);
+            if (portion <= 0) {
+                throw new IOException("Extended XMP longer than announced");
+            }
+            // The segment length counts itself, but not the marker
+            int segmentLength = 2 + HEADER_SIZE + portion;
+            mHeader[2] = (byte) (segmentLength >> 8);
+            mHeader[3] = (byte) segmentLength;
+            putInt(mHeader, mHeader.length - 4, mOffset);
+            mOut.write(mHeader);
+            mLeft = portion;
+        }
+
+        private static void putInt(byte[] b, int pos, int v) {
+            b[pos] = (byte) (v >>> 24);
+            b[pos + 1] = (byte) (v >>> 16);
+            b[pos + 2] = (byte) (v >>> 8);
+            b[pos + 3] = (byte) v;
+        }
+    }
+}
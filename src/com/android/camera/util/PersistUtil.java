@@ -52,6 +52,32 @@ public class PersistUtil {
             SystemProperties.getBoolean("persist.camera.camera2", false);
     private static final boolean PERSIST_CAMERA_ZSL =
             SystemProperties.getBoolean("persist.camera.zsl.disabled", false);
+    private static final int PERSIST_CAMERA_ZSL_POLICY =
+            SystemProperties.getInt("persist.camera.zsl.policy", 0);
+    private static final boolean PERSIST_CAMERA_PARALLEL_JPEG =
+            SystemProperties.getBoolean("persist.camera.jpeg.parallel", false);
+    private static final boolean PERSIST_CAMERA_RAW_PACKED =
+            SystemProperties.getBoolean("persist.camera.raw.packed", false);
+    private static final boolean PERSIST_CAMERA_FRAME_CPU =
+            SystemProperties.getBoolean("persist.camera.frame.cpu", false);
+    private static final int PERSIST_CAMERA_POSTPROC_SLOTS =
+            SystemProperties.getInt("persist.camera.postproc.slots", 2);
+    private static final int PERSIST_CAMERA_POSTPROC_MEMLIMIT =
+            SystemProperties.getInt("persist.camera.postproc.memlimit", 256);
+    private static final boolean PERSIST_CAMERA_POSTPROC_STREAMING =
+            SystemProperties.getBoolean("persist.camera.postproc.streaming", true);
+    private static final String PERSIST_CAMERA_POSTPROC_BUDGETS =
+            SystemProperties.get("persist.camera.postproc.budgets", "");
+    private static final int PERSIST_CAMERA_DEBUG_DUMP_QUEUE =
+            SystemProperties.getInt("persist.camera.debug.dump.queue", 64);
+    private static final boolean PERSIST_CAMERA_DEBUG_DUMP_LZ4 =
+            SystemProperties.getBoolean("persist.camera.debug.dump.lz4", true);
+    private static final int PERSIST_CAMERA_SAVE_WRITERS =
+            SystemProperties.getInt("persist.camera.save.writers", 2);
+    private static final int PERSIST_CAMERA_MEDIASTORE_BATCH =
+            SystemProperties.getInt("persist.camera.mediastore.batch", 8);
+    private static final int PERSIST_CAMERA_MEDIASTORE_WINDOW_MS =
+            SystemProperties.getInt("persist.camera.mediastore.window", 200);
     private static final int PERSIST_CAMERA_CANCEL_TOUCHFOCUS_DELAY =
             SystemProperties.getInt("persist.camera.focus_delay", 5000);
     private static final int PERSIST_CAMERA_DEBUG =
@@ -105,6 +131,61 @@ public class PersistUtil {
         return PERSIST_CAMERA_ZSL;
     }
 
+    public static int getZSLSelectionPolicy() {
+        return PERSIST_CAMERA_ZSL_POLICY;
+    }
+
+    public static boolean isParallelJpegEncodeEnabled() {
+        return PERSIST_CAMERA_PARALLEL_JPEG;
+    }
+
+    public static boolean isRawRowPackingEnabled() {
+        return PERSIST_CAMERA_RAW_PACKED;
+    }
+
+    public static boolean isCpuFrameKernelsEnabled() {
+        return PERSIST_CAMERA_FRAME_CPU;
+    }
+
+    public static int getPostProcSlots() {
+        return PERSIST_CAMERA_POSTPROC_SLOTS;
+    }
+
+    /* In MB */
+    public static int getPostProcMemoryLimit() {
+        return PERSIST_CAMERA_POSTPROC_MEMLIMIT;
+    }
+
+    public static boolean isPostProcStreamingEnabled() {
+        return PERSIST_CAMERA_POSTPROC_STREAMING;
+    }
+
+    /* Per filter stage budgets of the post processor, see ShotDeadlineMonitor */
+    public static String getPostProcBudgets() {
+        return PERSIST_CAMERA_POSTPROC_BUDGETS;
+    }
+
+    /* Data waiting to be dumped, in MB */
+    public static int getDebugDumpQueueLimit() {
+        return PERSIST_CAMERA_DEBUG_DUMP_QUEUE;
+    }
+
+    public static boolean isDebugDumpCompressed() {
+        return PERSIST_CAMERA_DEBUG_DUMP_LZ4;
+    }
+
+    public static int getSaveWriterThreads() {
+        return PERSIST_CAMERA_SAVE_WRITERS;
+    }
+
+    public static int getMediaStoreBatchSize() {
+        return PERSIST_CAMERA_MEDIASTORE_BATCH;
+    }
+
+    public static int getMediaStoreBatchWindowMs() {
+        return PERSIST_CAMERA_MEDIASTORE_WINDOW_MS;
+    }
+
     public static int getCamera2Debug() {
         return PERSIST_CAMERA_DEBUG;
     }
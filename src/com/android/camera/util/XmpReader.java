@@ -0,0 +1,338 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the XMP packets of a jpeg without loading its other segments, the
+ * reading side of {@link ExtendedXmpWriter}.
+ *
+ * The marker segments are walked up to the first SOS. Segments other than
+ * APP1 are skipped, and of the APP1 segments only the signature is read unless
+ * it is standard or extended XMP, so the Exif header and its thumbnail are
+ * never copied. Extended XMP portions are copied straight into the packet
+ * they belong to, chosen by the xmpNote:HasExtendedXMP GUID of the standard
+ * packet.
+ */
+public class XmpReader {
+    private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    private static final String EXTENDED_SIGNATURE = "http://ns.adobe.com/xmp/extension/\0";
+    private static final String HAS_EXTENDED_XMP = "HasExtendedXMP";
+    private static final int GUID_SIZE = 32;
+
+    private static final int M_SOI = 0xd8;
+    private static final int M_APP1 = 0xe1;
+    private static final int M_SOS = 0xda;
+    private static final int M_EOI = 0xd9;
+
+    private static final byte[] XMP_HEADER_BYTES = ascii(XMP_HEADER);
+    private static final byte[] EXTENDED_SIGNATURE_BYTES = ascii(EXTENDED_SIGNATURE);
+    private static final byte[] HAS_EXTENDED_XMP_BYTES = ascii(HAS_EXTENDED_XMP);
+    private static final int PREFIX_SIZE = EXTENDED_SIGNATURE_BYTES.length;
+
+    /* Where the segments come from */
+    private interface Source {
+        void read(byte[] b, int off, int len) throws IOException;
+
+        void skip(long n) throws IOException;
+    }
+
+    private byte[] mStandard;
+    private String mGuid;
+    private byte[] mExtended;
+    private int mExtendedFilled;
+    private long mBytesRead;
+
+    private XmpReader() {
+    }
+
+    /**
+     * Reads the XMP of a jpeg stream, leaving the stream open and positioned
+     * somewhere after the last segment header that was read.
+     */
+    public static XmpReader read(final InputStream in) throws IOException {
+        XmpReader reader = new XmpReader();
+        reader.walk(new Source() {
+            @Override
+            public void read(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = in.read(b, off, len);
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void skip(long n) throws IOException {
+                while (n > 0) {
+                    long skipped = in.skip(n);
+                    if (skipped <= 0) {
+                        // skip() may give up early, read() tells EOF apart
+                        if (in.read() < 0) {
+                            throw new EOFException();
+                        }
+                        skipped = 1;
+                    }
+                    n -= skipped;
+                }
+            }
+        });
+        return reader;
+    }
+
+    /**
+     * Reads the XMP of the jpeg held in the remaining bytes of the buffer. The
+     * position of the buffer is not modified.
+     */
+    public static XmpReader read(ByteBuffer jpeg) throws IOException {
+        final ByteBuffer src = jpeg.duplicate();
+        XmpReader reader = new XmpReader();
+        reader.walk(new Source() {
+            @Override
+            public void read(byte[] b, int off, int len) throws IOException {
+                if (len > src.remaining()) {
+                    throw new EOFException();
+                }
+                src.get(b, off, len);
+            }
+
+            @Override
+            public void skip(long n) throws IOException {
+                if (n > src.remaining()) {
+                    throw new EOFException();
+                }
+                src.position(src.position() + (int) n);
+            }
+        });
+        return reader;
+    }
+
+    /**
+     * Reads the XMP of a jpeg file through a read only mapping, so only the
+     * pages holding segment headers and XMP are ever faulted in.
+     */
+    public static XmpReader read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            CameraUtil.closeSilently(in);
+        }
+    }
+
+    /* The standard packet without the XMP header and packet wrapper end, or null */
+    public byte[] getStandardPacket() {
+        return mStandard;
+    }
+
+    /* The reassembled extended packet, or null if there is none or it is incomplete */
+    public byte[] getExtendedPacket() {
+        if (mExtended == null || mExtendedFilled != mExtended.length) {
+            return null;
+        }
+        return mExtended;
+    }
+
+    /* Bytes copied out of the source, segment headers included */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    private void walk(Source src) throws IOException {
+        byte[] header = new byte[4];
+        read(src, header, 0, 2);
+        if ((header[0] & 0xff) != 0xff || (header[1] & 0xff) != M_SOI) {
+            throw new IOException("Not a jpeg image");
+        }
+        byte[] prefix = new byte[PREFIX_SIZE];
+        while (true) {
+            try {
+                read(src, header, 0, 4);
+                if ((header[0] & 0xff) != 0xff) {
+                    throw new IOException("Invalid jpeg marker");
+                }
+                // Skip padding bytes.
+                while ((header[1] & 0xff) == 0xff) {
+                    System.arraycopy(header, 1, header, 0, 3);
+                    read(src, header, 3, 1);
+                }
+            } catch (EOFException e) {
+                // Like the Section parser, a jpeg without SOS still counts
+                return;
+            }
+            int marker = header[1] & 0xff;
+            if (marker == M_SOS || marker == M_EOI) {
+                return;
+            }
+            int length = ((header[2] & 0xff) << 8 | (header[3] & 0xff)) - 2;
+            if (length < 0) {
+                throw new IOException("Invalid jpeg segment length");
+            }
+            if (marker != M_APP1) {
+                src.skip(length);
+                continue;
+            }
+            int n = Math.min(length, PREFIX_SIZE);
+            read(src, prefix, 0, n);
+            if (mStandard == null && startsWith(prefix, n, XMP_HEADER_BYTES)) {
+                readStandard(src, prefix, n, length);
+            } else if (startsWith(prefix, n, EXTENDED_SIGNATURE_BYTES)
+                    && length >= PREFIX_SIZE + GUID_SIZE + 8) {
+                readExtended(src, length - PREFIX_SIZE);
+            } else {
+                src.skip(length - n);
+            }
+        }
+    }
+
+    private void readStandard(Source src, byte[] prefix, int n, int length)
+            throws IOException {
+        int start = XMP_HEADER_BYTES.length;
+        byte[] packet = new byte[length - start];
+        System.arraycopy(prefix, start, packet, 0, n - start);
+        read(src, packet, n - start, packet.length - (n - start));
+        int end = getContentEnd(packet);
+        mStandard = end == packet.length ? packet : Arrays.copyOf(packet, end);
+        String guid = findGuid(mStandard);
+        if (guid != null && !guid.equals(mGuid)) {
+            // Portions of another packet that came first are of no use
+            mGuid = guid;
+            mExtended = null;
+            mExtendedFilled = 0;
+        }
+    }
+
+    private void readExtended(Source src, int length) throws IOException {
+        byte[] header = new byte[GUID_SIZE + 8];
+        read(src, header, 0, header.length);
+        int portion = length - header.length;
+        String guid = new String(header, 0, GUID_SIZE, "ISO-8859-1");
+        ByteBuffer b = ByteBuffer.wrap(header);
+        int fullLength = b.getInt(GUID_SIZE);
+        int offset = b.getInt(GUID_SIZE + 4);
+        if (mGuid == null && mStandard == null) {
+            // Standard packet not seen yet, go with the first GUID
+            mGuid = guid;
+        }
+        if (!guid.equals(mGuid) || fullLength < 0 || offset < 0
+                || (long) offset + portion > fullLength
+                || (mExtended != null && mExtended.length != fullLength)) {
+            src.skip(portion);
+            return;
+        }
+        if (mExtended == null) {
+            mExtended = new byte[fullLength];
+        }
+        read(src, mExtended, offset, portion);
+        mExtendedFilled += portion;
+    }
+
+    private void read(Source src, byte[] b, int off, int len) throws IOException {
+        src.read(b, off, len);
+        mBytesRead += len;
+    }
+
+    /* Same rule as XmpUtil: cut after the last '>' that does not end a processing instruction */
+    private static int getContentEnd(byte[] data) {
+        for (int i = data.length - 1; i >= 1; --i) {
+            if (data[i] == '>' && data[i - 1] != '?') {
+                return i + 1;
+            }
+        }
+        return data.length;
+    }
+
+    /* Finds the value of xmpNote:HasExtendedXMP, in attribute or element form */
+    private static String findGuid(byte[] packet) {
+        int i = indexOf(packet, HAS_EXTENDED_XMP_BYTES);
+        if (i < 0) {
+            return null;
+        }
+        i += HAS_EXTENDED_XMP_BYTES.length;
+        while (i < packet.length && (packet[i] == '=' || packet[i] == '"' || packet[i] == '\''
+                || packet[i] == '>' || packet[i] == ' ')) {
+            i++;
+        }
+        if (packet.length - i < GUID_SIZE) {
+            return null;
+        }
+        try {
+            return new String(packet, i, GUID_SIZE, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] b, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
 import com.adobe.xmp.options.SerializeOptions;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -39,7 +40,7 @@ import java.util.List;
 
 /**
  * Util class to read/write xmp from a jpeg image file. It only supports jpeg
- * image format, and doesn't support extended xmp now.
+ * image format. Extended xmp is read through {@link XmpReader}.
  * To use it:
  * XMPMeta xmpMeta = XmpUtil.extractOrCreateXMPMeta(filename);
  * xmpMeta.setProperty(PanoConstants.GOOGLE_PANO_NAMESPACE, "property_name", "value");
@@ -86,7 +87,8 @@ public class XmpUtil {
     }
 
     /**
-     * Extracts XMPMeta from JPEG image file.
+     * Extracts XMPMeta from JPEG image file. The file is mapped and only its
+     * segment headers and XMP are read.
      *
      * @param filename JPEG image file name.
      * @return Extracted XMPMeta or null.
@@ -99,40 +101,57 @@ public class XmpUtil {
         }
 
         try {
-            return extractXMPMeta(new FileInputStream(filename));
-        } catch (FileNotFoundException e) {
+            return parsePacket(XmpReader.read(new File(filename)).getStandardPacket());
+        } catch (IOException e) {
             Log.e(TAG, "Could not read file: " + filename, e);
             return null;
         }
     }
 
     /**
-     * Extracts XMPMeta from a JPEG image file stream.
+     * Extracts XMPMeta from a JPEG image file stream. Reading stops at the
+     * first scan segment and the stream is closed.
      *
      * @param is the input stream containing the JPEG image file.
      * @return Extracted XMPMeta or null.
      */
     public static XMPMeta extractXMPMeta(InputStream is) {
-        List<Section> sections = parse(is, true);
-        if (sections == null) {
+        try {
+            return parsePacket(XmpReader.read(is).getStandardPacket());
+        } catch (IOException e) {
+            Log.d(TAG, "Could not parse file.", e);
             return null;
+        } finally {
+            CameraUtil.closeSilently(is);
         }
-        // Now we don't support extended xmp.
-        for (Section section : sections) {
-            if (hasXMPHeader(section.data)) {
-                int end = getXMPContentEnd(section.data);
-                byte[] buffer = new byte[end - XMP_HEADER_SIZE];
-                System.arraycopy(
-                        section.data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
-                try {
-                    return XMPMetaFactory.parseFromBuffer(buffer);
-                } catch (XMPException e) {
-                    Log.d(TAG, "XMP parse error", e);
-                    return null;
-                }
-            }
+    }
+
+    /**
+     * Extracts the extended XMPMeta, the one the standard XMP refers to with
+     * xmpNote:HasExtendedXMP, from a JPEG image file.
+     *
+     * @param filename JPEG image file name.
+     * @return Extracted extended XMPMeta or null.
+     */
+    public static XMPMeta extractExtendedXMPMeta(String filename) {
+        try {
+            return parsePacket(XmpReader.read(new File(filename)).getExtendedPacket());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read file: " + filename, e);
+            return null;
+        }
+    }
+
+    private static XMPMeta parsePacket(byte[] packet) {
+        if (packet == null) {
+            return null;
+        }
+        try {
+            return XMPMetaFactory.parseFromBuffer(packet);
+        } catch (XMPException e) {
+            Log.d(TAG, "XMP parse error", e);
+            return null;
         }
-        return null;
     }
 
     /**
@@ -592,6 +611,66 @@ public class XmpUtil {
         return true;
     }
 
+    /**
+     * Like {@link #writeXMPMeta(InputStream, OutputStream, XMPMeta, XMPMeta)}, but the
+     * extended XMP is streamed into its marker segments by the writer, and the image
+     * is copied from the array without being split into sections. The output stream
+     * is not closed.
+     *
+     * @param jpeg         Input image
+     * @param outputStream Output image data stream
+     * @param standardMeta The main portion of the metadata, written as the standard
+     *                     XMP packet
+     * @param extended     The extended portion of the metadata
+     */
+    public static boolean writeXMPMeta(byte[] jpeg, OutputStream outputStream,
+                                       XMPMeta standardMeta, ExtendedXmpWriter extended) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != M_SOI) {
+            Log.d(TAG, "Not a jpeg image");
+            return false;
+        }
+        String guid = extended.getGuid();
+        if (guid == null) {
+            Log.d(TAG, "get md5 instance failure");
+            return false;
+        }
+        try {
+            standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", guid);
+        } catch (XMPException exception) {
+            Log.d(TAG, "set XMPMeta Property", exception);
+            return false;
+        }
+        Section standardXmpSection = createStandardXMPSection(standardMeta);
+        if (standardXmpSection == null) {
+            Log.e(TAG, "create standard meta section error");
+            return false;
+        }
+
+        // Same place as insertXMPSection(): after the first section if it is Exif.
+        int position = 2;
+        if (jpeg.length >= 6 && (jpeg[2] & 0xff) == 0xff && (jpeg[3] & 0xff) == M_APP1) {
+            position = 4 + ((jpeg[4] & 0xff) << 8 | (jpeg[5] & 0xff));
+            if (position > jpeg.length) {
+                Log.d(TAG, "Truncated jpeg image");
+                return false;
+            }
+        }
+        try {
+            outputStream.write(jpeg, 0, position);
+            outputStream.write(0xff);
+            outputStream.write(standardXmpSection.marker);
+            outputStream.write(standardXmpSection.length >> 8);
+            outputStream.write(standardXmpSection.length & 0xff);
+            outputStream.write(standardXmpSection.data);
+            extended.writeSections(outputStream);
+            outputStream.write(jpeg, position, jpeg.length - position);
+        } catch (IOException e) {
+            Log.d(TAG, "Write to stream failed", e);
+            return false;
+        }
+        return true;
+    }
+
     private static List<Section> insertXMPSection(
             List<Section> sections, List<Section> xmpSections) {
         if (sections == null || sections.size() <= 1) {
@@ -53,7 +53,6 @@ import android.media.ImageReader;
 import android.media.ImageReader.OnImageAvailableListener;
 import android.media.ImageWriter;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemProperties;
@@ -71,21 +70,23 @@ import com.android.camera.PhotoModule.NamedImages.NamedEntity;
 import com.android.camera.SettingsManager;
 import com.android.camera.Storage;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.imageprocessor.DebugDumpService;
+import com.android.camera.imageprocessor.NV21JpegEncoder;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.PersistUtil;
 
 import org.fusion.sdcam.filter.ClearSightNativeEngine.CamSystemCalibrationData;
 import org.fusion.sdcam.filter.ClearSightNativeEngine.ClearsightImage;
+import org.fusion.sdcam.filter.ClearSightStage.StageThread;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class ClearSightImageProcessor {
@@ -96,10 +97,13 @@ public class ClearSightImageProcessor {
     private static final String PERSIST_DUMP_YUV_KEY = "persist.camera.cs.dumpyuv";
     private static final String PERSIST_CS_TIMEOUT_KEY = "persist.camera.cs.timeout";
     private static final String PERSIST_DUMP_DEPTH_KEY = "persist.camera.cs.dumpdepth";
+    private static final String PERSIST_PARALLEL_REGISTER_KEY = "persist.camera.cs.parallelreg";
 
     private static final long DEFAULT_TIMESTAMP_THRESHOLD_MS = 10;
     private static final int DEFAULT_IMAGES_TO_BURST = 4;
     private static final int DEFAULT_CS_TIMEOUT_MS = 300;
+    // Messages a stage may have queued before the stage feeding it waits
+    private static final int STAGE_QUEUE_SIZE = 8;
 
     private static final long MIN_MONO_AREA = 1900000;  // ~1.9 MP
     private static final Size[] MONO_SIZES = {
@@ -118,6 +122,9 @@ public class ClearSightImageProcessor {
     private static final int MSG_CALIBRATION_DATA = 7;
     private static final int MSG_NEW_LENS_FOCUS_DISTANCE_BAYER = 8;
     private static final int MSG_NEW_DEPTH = 9;
+    private static final int MSG_ENCODE_CS = 10;
+
+    private static final int DEFAULT_JPEG_QUALITY = 95;
 
     private static final int CAM_TYPE_BAYER = 0;
     private static final int CAM_TYPE_MONO = 1;
@@ -140,15 +147,16 @@ public class ClearSightImageProcessor {
     private Size mFinalPictureSize;
     private Size mFinalMonoSize;
     private ImageProcessHandler mImageProcessHandler;
-    private ClearsightRegisterHandler mClearsightRegisterHandler;
+    private ClearsightRegisterHandler[] mClearsightRegisterHandler =
+            new ClearsightRegisterHandler[NUM_CAM];
     private ClearsightProcessHandler mClearsightProcessHandler;
     private ImageEncodeHandler mImageEncodeHandler;
     private DepthProcessHandler mDepthProcessHandler;
-    private HandlerThread mImageProcessThread;
-    private HandlerThread mClearsightRegisterThread;
-    private HandlerThread mClearsightProcessThread;
-    private HandlerThread mImageEncodeThread;
-    private HandlerThread mDepthProcessThread;
+    private StageThread mImageProcessThread;
+    private StageThread[] mClearsightRegisterThread = new StageThread[NUM_CAM];
+    private StageThread mClearsightProcessThread;
+    private StageThread mImageEncodeThread;
+    private StageThread mDepthProcessThread;
     private Callback mCallback;
     private CameraCaptureSession[] mCaptureSessions = new CameraCaptureSession[NUM_CAM];
     private MediaSaveService mMediaSaveService;
@@ -160,6 +168,7 @@ public class ClearSightImageProcessor {
     private boolean mDumpImages;
     private boolean mDumpYUV;
     private boolean mDumpDepth;
+    private boolean mParallelRegister;
     private boolean mIsClosing;
     private int mFinishReprocessNum;
 
@@ -187,6 +196,10 @@ public class ClearSightImageProcessor {
         mCsTimeout = SystemProperties.getInt(PERSIST_CS_TIMEOUT_KEY, DEFAULT_CS_TIMEOUT_MS);
         Log.d(TAG, "mCsTimeout: " + mCsTimeout);
 
+        // The native engine is not known to be safe for two registrations at once
+        mParallelRegister = SystemProperties.getBoolean(PERSIST_PARALLEL_REGISTER_KEY, false);
+        Log.d(TAG, "mParallelRegister: " + mParallelRegister);
+
     }
 
     public static void createInstance() {
@@ -218,22 +231,38 @@ public class ClearSightImageProcessor {
                      Context context, OnMediaSavedListener mediaListener) {
         Log.d(TAG, "init() start");
         mIsClosing = false;
-        mImageProcessThread = new HandlerThread("CameraImageProcess");
+        // Bayer and mono frames are registered on their own lanes, joined again
+        // at the end of the capture. Depth generation runs next to registration
+        // and fusion, and no longer waits behind JPEG encoding.
+        mImageProcessThread = new StageThread("CameraImageProcess");
         mImageProcessThread.start();
-        mClearsightRegisterThread = new HandlerThread("ClearsightRegister");
-        mClearsightRegisterThread.start();
-        mClearsightProcessThread = new HandlerThread("ClearsightProcess");
+        if (mParallelRegister) {
+            mClearsightRegisterThread[CAM_TYPE_BAYER] = new StageThread("ClearsightRegisterBayer");
+            mClearsightRegisterThread[CAM_TYPE_BAYER].start();
+            mClearsightRegisterThread[CAM_TYPE_MONO] = new StageThread("ClearsightRegisterMono");
+            mClearsightRegisterThread[CAM_TYPE_MONO].start();
+        } else {
+            mClearsightRegisterThread[CAM_TYPE_BAYER] = new StageThread("ClearsightRegister");
+            mClearsightRegisterThread[CAM_TYPE_BAYER].start();
+            mClearsightRegisterThread[CAM_TYPE_MONO] = mClearsightRegisterThread[CAM_TYPE_BAYER];
+        }
+        mClearsightProcessThread = new StageThread("ClearsightProcess");
         mClearsightProcessThread.start();
-        mImageEncodeThread = new HandlerThread("CameraImageEncode");
+        mImageEncodeThread = new StageThread("CameraImageEncode");
         mImageEncodeThread.start();
-        mDepthProcessThread = new HandlerThread("DepthProcess");
+        mDepthProcessThread = new StageThread("DepthProcess");
         mDepthProcessThread.start();
 
         mImageProcessHandler = new ImageProcessHandler(mImageProcessThread.getLooper());
-        mClearsightRegisterHandler = new ClearsightRegisterHandler(mClearsightRegisterThread.getLooper());
-        mClearsightProcessHandler = new ClearsightProcessHandler(mClearsightProcessThread.getLooper());
-        mImageEncodeHandler = new ImageEncodeHandler(mImageEncodeThread.getLooper());
-        mDepthProcessHandler = new DepthProcessHandler(mImageEncodeThread.getLooper());
+        // A lane holds the frames of one camera for a capture, plus its end
+        for (int i = 0; i < NUM_CAM; i++) {
+            mClearsightRegisterHandler[i] = new ClearsightRegisterHandler(
+                    mClearsightRegisterThread[i], mNumBurstCount + 1);
+        }
+        mClearsightProcessHandler = new ClearsightProcessHandler(
+                mClearsightProcessThread, STAGE_QUEUE_SIZE);
+        mImageEncodeHandler = new ImageEncodeHandler(mImageEncodeThread, STAGE_QUEUE_SIZE);
+        mDepthProcessHandler = new DepthProcessHandler(mDepthProcessThread, STAGE_QUEUE_SIZE);
 
         mFinalPictureSize = new Size(width, height);
         mFinalPictureRatio = (float) width / (float) height;
@@ -265,6 +294,11 @@ public class ClearSightImageProcessor {
     public void close() {
         Log.d(TAG, "close() start");
         mIsClosing = true;
+        // Release stages waiting for room downstream before the threads are joined
+        List<ClearSightStage> stages = getStages();
+        for (ClearSightStage stage : stages) {
+            stage.quit();
+        }
         // use quit instead of quitSafely
         // because we don't want to process any more queued events.
         // just clean up and exit.
@@ -280,15 +314,17 @@ public class ClearSightImageProcessor {
             }
         }
 
-        if (mClearsightRegisterThread != null) {
-            mClearsightRegisterThread.quit();
+        for (int i = 0; i < NUM_CAM; i++) {
+            if (mClearsightRegisterThread[i] != null) {
+                mClearsightRegisterThread[i].quit();
 
-            try {
-                mClearsightRegisterThread.join();
-                mClearsightRegisterThread = null;
-                mClearsightRegisterHandler = null;
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                try {
+                    mClearsightRegisterThread[i].join();
+                    mClearsightRegisterThread[i] = null;
+                    mClearsightRegisterHandler[i] = null;
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
             }
         }
 
@@ -327,6 +363,15 @@ public class ClearSightImageProcessor {
             }
         }
 
+        // Every stage thread is gone, so nothing else holds the images left in their queues
+        for (ClearSightStage stage : stages) {
+            stage.closeDroppedImages();
+        }
+
+        if (mDumpImages || mDumpYUV || mDumpDepth) {
+            DebugDumpService.getInstance().endSession();
+        }
+
         for (int i = 0; i < mImageReader.length; i++) {
             if (null != mImageReader[i]) {
                 mImageReader[i].close();
@@ -448,6 +493,30 @@ public class ClearSightImageProcessor {
         return mIsClosing;
     }
 
+    private List<ClearSightStage> getStages() {
+        List<ClearSightStage> stages = new ArrayList<>();
+        for (ClearSightStage stage : new ClearSightStage[] {
+                mClearsightRegisterHandler[CAM_TYPE_BAYER], mClearsightRegisterHandler[CAM_TYPE_MONO],
+                mDepthProcessHandler, mClearsightProcessHandler, mImageEncodeHandler}) {
+            if (stage != null) {
+                stages.add(stage);
+            }
+        }
+        return stages;
+    }
+
+    /* Queue occupancy and latency of every stage, and source buffer reuse, since init */
+    public String getStageStats() {
+        StringBuilder sb = new StringBuilder();
+        for (ClearSightStage stage : getStages()) {
+            sb.append(stage.getStats()).append('\n');
+        }
+        ClearSightNativeEngine engine = ClearSightNativeEngine.getInstance();
+        sb.append("Source planes: ").append(engine.getPoolHitCount()).append(" reused, ")
+                .append(engine.getPoolMissCount()).append(" allocated");
+        return sb.toString();
+    }
+
     private ImageReader createImageReader(final int cam, int width, int height) {
         ImageReader reader = ImageReader.newInstance(width, height,
                 ImageFormat.YUV_420_888, mNumBurstCount + mNumFrameCount);
@@ -475,103 +544,53 @@ public class ClearSightImageProcessor {
         return reader;
     }
 
-    private void saveAsRGB(byte[] depth, int width, int height) {
-        int[] colors = new int[depth.length];
-        for (int i = 0; i < colors.length; ++i) {
-            colors[i] = (256 + depth[i]) % 256;
-        }
-
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                int c = colors[y * width + x];
-                bitmap.setPixel(x, y, Color.rgb(c, c, c));
-            }
-        }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-        File file = new File("sdcard/depthmap_rgb.jpg");
-        byte[] jpeg = baos.toByteArray();
-        Log.d(TAG, "jpeg.size=" + jpeg.length);
-        OutputStream out = null;
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file));
-            out.write(jpeg, 0, jpeg.length);
-        } catch (Exception e) {
-            Log.d(TAG, e.toString());
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (Exception e) {
-                    Log.d(TAG, e.toString());
-                }
+    private void saveAsRGB(byte[] depth, final int width, final int height) {
+        final byte[] gray = depth.clone();
+        DebugDumpService.getInstance().dump("depthmap_rgb", "jpg", gray.length, () -> {
+            int[] colors = new int[gray.length];
+            for (int i = 0; i < colors.length; ++i) {
+                int c = gray[i] & 0xff;
+                colors[i] = Color.rgb(c, c, c);
             }
-        }
+            Bitmap bitmap = Bitmap.createBitmap(colors, width, height,
+                    Bitmap.Config.ARGB_8888);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
+            bitmap.recycle();
+            return baos.toByteArray();
+        });
     }
 
     private void saveToFile(byte[] bytes, String name, String format) {
-        File file = new File("sdcard/" + name + "." + format);
-        OutputStream out = null;
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file));
-            out.write(bytes, 0, bytes.length);
-        } catch (Exception e) {
-            Log.d(TAG, e.toString());
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (Exception e) {
-                    Log.d(TAG, e.toString());
-                }
-            }
-        }
+        DebugDumpService.getInstance().dump(name, format, bytes);
     }
 
-    public void saveDebugImageAsJpeg(MediaSaveService service, byte[] data,
-                                     int width, int height, boolean isBayer, NamedEntity namedEntity, int count, long ts) {
+    private static String getDebugTitle(NamedEntity namedEntity, boolean isBayer, int count,
+                                        long ts) {
         String type = isBayer ? "b" : "m";
-        long date = (namedEntity == null) ? -1 : namedEntity.date;
-        String title = String.format("%s_%s%02d_%d", namedEntity.title, type, count, ts);
-
-        service.addImage(data, title, date, null,
-                width, height, 0, null, null,
-                service.getContentResolver(), "jpeg");
-    }
-
-    public void saveDebugImageAsJpeg(MediaSaveService service, YuvImage image, boolean isBayer,
-                                     NamedEntity namedEntity, int count, long ts) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        image.compressToJpeg(
-                new Rect(0, 0, image.getWidth(), image.getHeight()), 100, baos);
-
-        saveDebugImageAsJpeg(service, baos.toByteArray(), image.getWidth(), image.getHeight(),
-                isBayer, namedEntity, count, ts);
+        return String.format("%s_%s%02d_%d", namedEntity.title, type, count, ts);
     }
 
-    public void saveDebugImageAsJpeg(MediaSaveService service, Image image, boolean isBayer,
+    public void saveDebugImageAsJpeg(Image image, boolean isBayer,
                                      NamedEntity namedEntity, int count, long ts) {
-        if (image.getFormat() == ImageFormat.YUV_420_888)
-            saveDebugImageAsJpeg(service, createYuvImage(image), isBayer, namedEntity, count, ts);
-        else if (image.getFormat() == ImageFormat.JPEG) {
-            saveDebugImageAsJpeg(service, getJpegData(image), image.getWidth(), image.getHeight(),
-                    isBayer, namedEntity, count, ts);
+        String title = getDebugTitle(namedEntity, isBayer, count, ts);
+        if (image.getFormat() == ImageFormat.YUV_420_888) {
+            DebugDumpService.getInstance().dumpYuvAsJpeg(title, image, 0);
+        } else if (image.getFormat() == ImageFormat.JPEG) {
+            DebugDumpService.getInstance().dumpPlane(title, "jpg", image);
         }
     }
 
     public void saveDebugImageAsNV21(Image image, boolean isBayer, NamedEntity namedEntity, int count, long ts) {
         if (image.getFormat() != ImageFormat.YUV_420_888) {
             Log.d(TAG, "saveDebugImageAsNV21 - invalid param");
+            return;
         }
 
         String type = isBayer ? "b" : "m";
         String title = String.format("%s_%dx%d_NV21_%s%02d_%d", namedEntity.title,
                 image.getWidth(), image.getHeight(), type, count, ts);
-
-        YuvImage yuv = createYuvImage(image);
-        String path = Storage.generateFilepath(title, "yuv");
-        Storage.writeFile(path, yuv.getYuvData(), null, "yuv");
+        DebugDumpService.getInstance().dumpYuv(title, image);
     }
 
     public YuvImage createYuvImage(Image image) {
@@ -691,6 +710,16 @@ public class ClearSightImageProcessor {
         return finalRect;
     }
 
+    private Rect getEncodeCropRect(Image image) {
+        Rect cropRect = image.getCropRect();
+        if (cropRect == null ||
+                cropRect.isEmpty()) {
+            // if no crop rect set, init to default image width + height
+            cropRect = new Rect(0, 0, image.getWidth(), image.getHeight());
+        }
+        return getFinalCropRect(cropRect);
+    }
+
     public interface Callback {
         void onReleaseShutterLock();
 
@@ -754,8 +783,6 @@ public class ClearSightImageProcessor {
                     mNumImagesToProcess[msg.arg1] = msg.arg2;
                     mNamedImages.nameNewImage(System.currentTimeMillis());
                     mNamedEntity = mNamedImages.getNextNameEntity();
-                    mClearsightRegisterHandler.obtainMessage(MSG_START_CAPTURE,
-                            0, 0, mNamedEntity).sendToTarget();
                     mDepthProcessHandler.obtainMessage(MSG_START_CAPTURE).sendToTarget();
                     break;
                 case MSG_END_CAPTURE:
@@ -796,7 +823,7 @@ public class ClearSightImageProcessor {
 
             // set capture done so that any loose frames coming in will be closed
             mCaptureDone = true;
-            mClearsightRegisterHandler.obtainMessage(MSG_END_CAPTURE, 0, 1).sendToTarget();
+            endRegistration(false, true);
         }
 
         private void kickTimeout() {
@@ -1072,14 +1099,13 @@ public class ClearSightImageProcessor {
             int frameCount = isBayer ? ++mReprocessedBayerCount : ++mReprocessedMonoCount;
 
             if (mDumpImages) {
-                saveDebugImageAsJpeg(mMediaSaveService, image, isBayer, mNamedEntity,
-                        frameCount, ts / 1000000);
+                saveDebugImageAsJpeg(image, isBayer, mNamedEntity, frameCount, ts / 1000000);
             }
             if (mDumpYUV) {
                 saveDebugImageAsNV21(image, isBayer, mNamedEntity, frameCount, ts / 1000000);
             }
 
-            mClearsightRegisterHandler.obtainMessage(MSG_NEW_IMG,
+            mClearsightRegisterHandler[camId].obtainMessage(MSG_NEW_IMG,
                     msg.arg1, 0, msg.obj).sendToTarget();
 
             mReprocessingFrames[camId].removeAt(mReprocessingFrames[camId].indexOfValue(ts));
@@ -1115,6 +1141,15 @@ public class ClearSightImageProcessor {
             checkReprocessDone();
         }
 
+        /* Both lanes see the end, the last one to get there finishes the capture */
+        private void endRegistration(boolean hasFailures, boolean timeout) {
+            RegistrationEnd end = new RegistrationEnd(mNamedEntity);
+            for (ClearsightRegisterHandler lane : mClearsightRegisterHandler) {
+                lane.obtainMessage(MSG_END_CAPTURE, hasFailures ? 1 : 0, timeout ? 1 : 0, end)
+                        .sendToTarget();
+            }
+        }
+
         private void checkReprocessDone() {
             Log.d(TAG, "checkReprocessDone capture done: " + mCaptureDone +
                     ", reproc frames[bay]: " + mReprocessingFrames[CAM_TYPE_BAYER].size() +
@@ -1124,7 +1159,7 @@ public class ClearSightImageProcessor {
             if (mCaptureDone && mReprocessingFrames[CAM_TYPE_BAYER].size() == 0
                     && mReprocessingFrames[CAM_TYPE_MONO].size() == 0
                     && mReprocessingRequests.isEmpty()) {
-                mClearsightRegisterHandler.obtainMessage(MSG_END_CAPTURE, mHasFailures ? 1 : 0, 0).sendToTarget();
+                endRegistration(mHasFailures, false);
                 removeMessages(MSG_NEW_REPROC_RESULT);
                 removeMessages(MSG_NEW_REPROC_FAIL);
                 mCaptureDone = false;
@@ -1139,11 +1174,18 @@ public class ClearSightImageProcessor {
         }
     }
 
-    private class ClearsightRegisterHandler extends Handler {
-        private NamedEntity mNamedEntity;
+    private static class RegistrationEnd {
+        final NamedEntity mNamedEntity;
+        final AtomicInteger mLanesLeft = new AtomicInteger(NUM_CAM);
 
-        ClearsightRegisterHandler(Looper looper) {
-            super(looper);
+        RegistrationEnd(NamedEntity namedEntity) {
+            mNamedEntity = namedEntity;
+        }
+    }
+
+    private class ClearsightRegisterHandler extends ClearSightStage {
+        ClearsightRegisterHandler(StageThread thread, int capacity) {
+            super(thread, capacity);
         }
 
         @Override
@@ -1151,13 +1193,14 @@ public class ClearSightImageProcessor {
             if (isClosing()) return;
 
             switch (msg.what) {
-                case MSG_START_CAPTURE:
-                    mNamedEntity = (NamedEntity) msg.obj;
-                    break;
                 case MSG_NEW_IMG:
                     registerImage(msg);
                     break;
                 case MSG_END_CAPTURE:
+                    RegistrationEnd end = (RegistrationEnd) msg.obj;
+                    if (end.mLanesLeft.decrementAndGet() > 0) {
+                        break;
+                    }
                     // Check if timeout
                     if (msg.arg2 == 1) {
                         Log.d(TAG, "ClearsightRegisterHandler - handleTimeout");
@@ -1165,7 +1208,7 @@ public class ClearSightImageProcessor {
                         if (mCallback != null) mCallback.onClearSightFailure(null);
                     } else {
                         mClearsightProcessHandler.obtainMessage(MSG_START_CAPTURE,
-                                msg.arg1, 0, mNamedEntity).sendToTarget();
+                                msg.arg1, 0, end.mNamedEntity).sendToTarget();
                     }
                     break;
             }
@@ -1190,9 +1233,9 @@ public class ClearSightImageProcessor {
         }
     }
 
-    private class ClearsightProcessHandler extends Handler {
-        ClearsightProcessHandler(Looper looper) {
-            super(looper);
+    private class ClearsightProcessHandler extends ClearSightStage {
+        ClearsightProcessHandler(StageThread thread, int capacity) {
+            super(thread, capacity);
         }
 
         @Override
@@ -1233,7 +1276,15 @@ public class ClearSightImageProcessor {
 
                 if (ClearSightNativeEngine.getInstance().processImage(csImage)) {
                     encodeRequest |= ImageEncodeHandler.MASK_CS_ENCODE;
-                    sendReprocessRequest(csRequest, encodeImage, CAM_TYPE_BAYER);
+                    if (canEncodeInSoftware(encodeImage)) {
+                        Byte quality = ClearSightNativeEngine.getInstance()
+                                .getReferenceResult(true).get(CaptureResult.JPEG_QUALITY);
+                        mImageEncodeHandler.obtainMessage(MSG_ENCODE_CS,
+                                quality != null ? quality : DEFAULT_JPEG_QUALITY, 0,
+                                encodeImage).sendToTarget();
+                    } else {
+                        sendReprocessRequest(csRequest, encodeImage, CAM_TYPE_BAYER);
+                    }
                 } else {
                     csImage = null;
                     encodeImage.close();
@@ -1282,19 +1333,27 @@ public class ClearSightImageProcessor {
             return reprocRequest;
         }
 
+        /*
+         * The fused image can skip the reprocess when the software encoder is enabled
+         * and its crop already has the picture size, since the encoder does not scale
+         */
+        private boolean canEncodeInSoftware(Image image) {
+            if (!PersistUtil.isParallelJpegEncodeEnabled()) {
+                return false;
+            }
+            Rect cropRect = getEncodeCropRect(image);
+            return cropRect.width() == mFinalPictureSize.getWidth()
+                    && cropRect.height() == mFinalPictureSize.getHeight()
+                    && cropRect.right <= image.getWidth()
+                    && cropRect.bottom <= image.getHeight();
+        }
+
         private void sendReprocessRequest(CaptureRequest.Builder reprocRequest, Image image, final int camType) {
 
             try {
                 reprocRequest.set(CaptureModule.JpegCropEnableKey, (byte) 1);
 
-                Rect cropRect = image.getCropRect();
-                if (cropRect == null ||
-                        cropRect.isEmpty()) {
-                    // if no crop rect set, init to default image width + height
-                    cropRect = new Rect(0, 0, image.getWidth(), image.getHeight());
-                }
-
-                cropRect = getFinalCropRect(cropRect);
+                Rect cropRect = getEncodeCropRect(image);
                 // has crop rect. apply to jpeg request
                 reprocRequest.set(CaptureModule.JpegCropRectKey,
                         new int[]{cropRect.left, cropRect.top, cropRect.width(), cropRect.height()});
@@ -1341,7 +1400,7 @@ public class ClearSightImageProcessor {
         }
     }
 
-    private class ImageEncodeHandler extends Handler {
+    private class ImageEncodeHandler extends ClearSightStage {
         static final short MASK_CS_ENCODE = 0x01;
         static final short MASK_BAYER_ENCODE = 0x02;
         static final short MASK_MONO_ENCODE = 0x04;
@@ -1352,6 +1411,8 @@ public class ClearSightImageProcessor {
         private Image mMonoImage;
         private Image mBayerImage;
         private Image mClearSightImage;
+        // The fused image when it was encoded here instead of by a reprocess
+        private byte[] mClearSightJpeg;
         private NamedEntity mNamedEntity;
 
         private GDepth.DepthMap mDepthMap;
@@ -1361,8 +1422,8 @@ public class ClearSightImageProcessor {
 
         private long CLEAR_SIGHT_IMAGE_SAVE_DELAY = 500;
 
-        public ImageEncodeHandler(Looper looper) {
-            super(looper);
+        public ImageEncodeHandler(StageThread thread, int capacity) {
+            super(thread, capacity);
         }
 
         @Override
@@ -1391,9 +1452,30 @@ public class ClearSightImageProcessor {
                     processNewGDepth(msg);
                     saveClearSightImage();
                     break;
+                case MSG_ENCODE_CS:
+                    encodeClearSightImage((Image) msg.obj, msg.arg1);
+                    saveClearSightImage();
+                    break;
             }
         }
 
+        private void encodeClearSightImage(Image image, int quality) {
+            Log.d(TAG, "encodeClearSightImage - quality: " + quality);
+            try {
+                YuvImage yuv = createYuvImage(image);
+                int[] strides = yuv.getStrides();
+                mClearSightJpeg = NV21JpegEncoder.getInstance().encode(yuv.getYuvData(),
+                        yuv.getWidth(), yuv.getHeight(), strides[0], strides[1],
+                        getEncodeCropRect(image), quality);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "encodeClearSightImage failed", e);
+                mHasFailure = true;
+            } finally {
+                image.close();
+            }
+            mEncodeResults |= MASK_CS_ENCODE;
+        }
+
         private void processNewEvent(Message msg) {
             if (msg.what == MSG_NEW_IMG) {
                 Log.d(TAG, "processNewEncodeEvent - newImg: " + msg.arg1);
@@ -1401,14 +1483,14 @@ public class ClearSightImageProcessor {
                     mMonoImage = (Image) msg.obj;
                     mEncodeResults |= MASK_MONO_ENCODE;
                     if (mDumpDepth) {
-                        saveToFile(getJpegData(mMonoImage), "mono", "jpg");
+                        DebugDumpService.getInstance().dumpPlane("mono", "jpg", mMonoImage);
                     }
                 } else if (mBayerImage == null) {
                     mBayerImage = (Image) msg.obj;
                     mEncodeResults |= MASK_BAYER_ENCODE;
                     mGImage = new GImage(getJpegData(mBayerImage), "image/jpeg");
                     if (mDumpDepth) {
-                        saveToFile(getJpegData(mBayerImage), "bayer", "jpg");
+                        DebugDumpService.getInstance().dumpPlane("bayer", "jpg", mBayerImage);
                     }
                 } else {
                     mClearSightImage = (Image) msg.obj;
@@ -1447,6 +1529,7 @@ public class ClearSightImageProcessor {
                 // don't save anything and fail
                 Log.d(TAG, "saveClearSightImage has failure - aborting.");
                 if (mCallback != null) mCallback.onClearSightFailure(null);
+                Log.d(TAG, getStageStats());
                 resetParams();
                 return;
             }
@@ -1473,6 +1556,18 @@ public class ClearSightImageProcessor {
                 ExifInterface exif = Exif.getExif(bayerBytes);
                 int orientation = Exif.getOrientation(exif);
 
+                if (mClearSightJpeg != null) {
+                    // Both come from the same reference result, so the tags still apply
+                    try {
+                        clearSightBytes = exif.writeExif(mClearSightJpeg);
+                    } catch (IOException e) {
+                        Log.e(TAG, "saveClearSightImage - exif write failed", e);
+                        clearSightBytes = mClearSightJpeg;
+                    }
+                    width = mFinalPictureSize.getWidth();
+                    height = mFinalPictureSize.getHeight();
+                }
+
                 if (clearSightBytes != null) {
                     if (mCallback != null) mCallback.onClearSightSuccess(clearSightBytes);
                 } else if (bayerBytes != null) {
@@ -1490,6 +1585,7 @@ public class ClearSightImageProcessor {
                         mMediaSavedListener,
                         mMediaSaveService.getContentResolver(), "jpeg");
             }
+            Log.d(TAG, getStageStats());
             resetParams();
         }
 
@@ -1510,6 +1606,7 @@ public class ClearSightImageProcessor {
                 mClearSightImage.close();
                 mClearSightImage = null;
             }
+            mClearSightJpeg = null;
             mNamedEntity = null;
             mHasFailure = false;
             mEncodeRequest = 0;
@@ -1520,12 +1617,12 @@ public class ClearSightImageProcessor {
         }
     }
 
-    private class DepthProcessHandler extends Handler {
+    private class DepthProcessHandler extends ClearSightStage {
         private TotalCaptureResult mReprocessCaptureResult;
         private DDMNativeEngine mDDMNativeEngine;
 
-        public DepthProcessHandler(Looper looper) {
-            super(looper);
+        public DepthProcessHandler(StageThread thread, int capacity) {
+            super(thread, capacity);
             mDDMNativeEngine = new DDMNativeEngine();
         }
 
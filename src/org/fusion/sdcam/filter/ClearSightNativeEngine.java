@@ -36,6 +36,7 @@ import android.media.Image;
 import android.media.Image.Plane;
 import android.util.Log;
 
+import com.android.camera.imageprocessor.NV21BufferArena;
 import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
@@ -78,7 +79,9 @@ public class ClearSightNativeEngine {
     private Image mRefMonoImage;
     private TotalCaptureResult mRefColorResult;
     private TotalCaptureResult mRefMonoResult;
-    private ArrayList<SourceImage> mCache = new ArrayList<>();
+    // Plane buffers of the source images, shared by the bayer and mono
+    // registration lanes. Each lane only touches its own source images.
+    private NV21BufferArena mBufferArena;
     private ArrayList<SourceImage> mSrcColor = new ArrayList<>();
     private ArrayList<SourceImage> mSrcMono = new ArrayList<>();
 
@@ -107,15 +110,25 @@ public class ClearSightNativeEngine {
         mImageHeight = height;
         mYStride = width;
         mVUStride = width;
-        while (frameCount > 0) {
-            cacheSourceImage(new SourceImage(width * height, width * height / 2));
-            frameCount--;
+        // Half of the frames are mono, which only need a Y plane
+        mBufferArena = new NV21BufferArena(frameCount);
+        SourceImage[] warmup = new SourceImage[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            warmup[i] = getNewSourceImage(i % 2 == 0);
         }
+        for (SourceImage image : warmup) {
+            cacheSourceImage(image);
+        }
+        mBufferArena.resetCounters();
     }
 
     public void close() {
         reset();
-        mCache.clear();
+        if (mBufferArena != null) {
+            mBufferArena.dump();
+            mBufferArena.clear();
+            mBufferArena = null;
+        }
         mImageWidth = 0;
         mImageHeight = 0;
         mYStride = 0;
@@ -139,14 +152,30 @@ public class ClearSightNativeEngine {
         setReferenceMonoResult(null);
     }
 
-    private SourceImage getNewSourceImage() {
-        Log.d(TAG, "getNewSourceImage: " + mCache.size());
-        return mCache.remove(0);
+    private SourceImage getNewSourceImage(boolean color) {
+        int ySize = mYStride * mImageHeight;
+        ByteBuffer y = mBufferArena.acquire(ySize);
+        ByteBuffer vu = color ? mBufferArena.acquire(mVUStride * mImageHeight / 2) : null;
+        Log.d(TAG, "getNewSourceImage: leased " + mBufferArena.getLeasedCount());
+        return new SourceImage(y, vu);
     }
 
     private void cacheSourceImage(SourceImage image) {
-        mCache.add(image);
-        Log.d(TAG, "cacheSourceImage: " + mCache.size());
+        mBufferArena.release(image.mY);
+        mBufferArena.release(image.mVU);
+        Log.d(TAG, "cacheSourceImage: leased " + mBufferArena.getLeasedCount());
+    }
+
+    /* Source planes taken from the arena since init() without allocating */
+    public long getPoolHitCount() {
+        NV21BufferArena arena = mBufferArena;
+        return arena == null ? 0 : arena.getReuseCount();
+    }
+
+    /* Source planes that had to be allocated since init() */
+    public long getPoolMissCount() {
+        NV21BufferArena arena = mBufferArena;
+        return arena == null ? 0 : arena.getAllocationCount();
     }
 
     public void setReferenceResult(boolean color, TotalCaptureResult result) {
@@ -182,7 +211,7 @@ public class ClearSightNativeEngine {
         if (mRefColorImage != null) {
             Log.d(TAG, "setRefColorImage");
             Plane[] planes = mRefColorImage.getPlanes();
-            SourceImage newSrc = getNewSourceImage();
+            SourceImage newSrc = getNewSourceImage(true);
             ByteBuffer refY = planes[Y_PLANE].getBuffer();
             ByteBuffer refVU = planes[VU_PLANE].getBuffer();
             refY.rewind();
@@ -206,7 +235,7 @@ public class ClearSightNativeEngine {
         if (mRefMonoImage != null) {
             Log.d(TAG, "setRefMonoImage");
             Plane[] planes = mRefMonoImage.getPlanes();
-            SourceImage newSrc = getNewSourceImage();
+            SourceImage newSrc = getNewSourceImage(false);
             ByteBuffer refY = planes[Y_PLANE].getBuffer();
             refY.rewind();
             newSrc.mY.rewind();
@@ -238,7 +267,7 @@ public class ClearSightNativeEngine {
             return false;
         }
 
-        SourceImage newSrc = getNewSourceImage();
+        SourceImage newSrc = getNewSourceImage(color);
         SourceImage referenceImage = sourceImages.get(0);
         Plane[] planes = image.getPlanes();
         ByteBuffer yBuf = planes[Y_PLANE].getBuffer();
@@ -263,6 +292,8 @@ public class ClearSightNativeEngine {
 
         if (result) {
             sourceImages.add(newSrc);
+        } else {
+            cacheSourceImage(newSrc);
         }
 
         image.close();
@@ -566,9 +597,9 @@ public class ClearSightNativeEngine {
         ByteBuffer mVU;
         float[] mMetadata;
 
-        SourceImage(int ySize, int vuSize) {
-            mY = ByteBuffer.allocateDirect(ySize);
-            mVU = ByteBuffer.allocateDirect(vuSize);
+        SourceImage(ByteBuffer y, ByteBuffer vu) {
+            mY = y;
+            mVU = vu;
             mMetadata = new float[METADATA_SIZE];
         }
     }
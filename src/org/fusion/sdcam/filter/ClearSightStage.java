@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above
+ *    copyright notice, this list of conditions and the following
+ *    disclaimer in the documentation and/or other materials provided
+ *    with the distribution.
+ *  * Neither the name of The Linux Foundation nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.fusion.sdcam.filter;
+
+import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * A handler for one stage of the ClearSight graph, with a bounded queue and
+ * occupancy and latency stats.
+ *
+ * Only hand-offs between stages wait for room in the queue, so a slow stage
+ * holds back the stage feeding it. Images from the camera are already bounded
+ * by their ImageReader and never block the camera threads; they are admitted
+ * and show up as a peak above the capacity instead.
+ *
+ * Removing queued messages would break the accounting, stages only ever send.
+ * Images carried by messages that are refused or dropped when the stage quits are
+ * closed, since their sender handed them over.
+ */
+abstract class ClearSightStage extends Handler {
+    private final String mName;
+    private final int mCapacity;
+    private final Object mLock = new Object();
+    private boolean mQuitting;
+    // Images of messages sent but not dispatched yet
+    private final ArrayList<Image> mQueuedImages = new ArrayList<>();
+    private int mPending;
+    private int mPeakPending;
+    private long mMessages;
+    private long mWaitMs;
+    private long mMaxWaitMs;
+    private long mRunNs;
+    private long mMaxRunNs;
+    private long mBlockedNs;
+
+    /* The thread of a stage, hand-offs from it wait for room downstream */
+    static class StageThread extends HandlerThread {
+        StageThread(String name) {
+            super(name);
+        }
+    }
+
+    ClearSightStage(StageThread thread, int capacity) {
+        super(thread.getLooper());
+        mName = thread.getName();
+        mCapacity = capacity;
+    }
+
+    @Override
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        Object obj = msg.obj;
+        if (!admit()) {
+            closeImage(obj);
+            return false;
+        }
+        track(obj);
+        if (!super.sendMessageAtTime(msg, uptimeMillis)) {
+            untrack(obj);
+            leave();
+            closeImage(obj);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void dispatchMessage(Message msg) {
+        untrack(msg.obj);
+        long waitMs = SystemClock.uptimeMillis() - msg.getWhen();
+        long start = System.nanoTime();
+        try {
+            super.dispatchMessage(msg);
+        } finally {
+            long runNs = System.nanoTime() - start;
+            synchronized (mLock) {
+                mMessages++;
+                mWaitMs += waitMs;
+                mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+                mRunNs += runNs;
+                mMaxRunNs = Math.max(mMaxRunNs, runNs);
+            }
+            leave();
+        }
+    }
+
+    /* Wakes up anyone waiting for room and stops taking messages */
+    void quit() {
+        synchronized (mLock) {
+            mQuitting = true;
+            mLock.notifyAll();
+        }
+        getLooper().quit();
+    }
+
+    /* Closes the images of the messages dropped by quit(), once the thread has exited */
+    void closeDroppedImages() {
+        ArrayList<Image> images;
+        synchronized (mLock) {
+            images = new ArrayList<>(mQueuedImages);
+            mQueuedImages.clear();
+        }
+        for (Image image : images) {
+            image.close();
+        }
+    }
+
+    private void track(Object obj) {
+        if (obj instanceof Image) {
+            synchronized (mLock) {
+                mQueuedImages.add((Image) obj);
+            }
+        }
+    }
+
+    private void untrack(Object obj) {
+        if (obj instanceof Image) {
+            synchronized (mLock) {
+                mQueuedImages.remove(obj);
+            }
+        }
+    }
+
+    private static void closeImage(Object obj) {
+        if (obj instanceof Image) {
+            ((Image) obj).close();
+        }
+    }
+
+    private boolean admit() {
+        Thread current = Thread.currentThread();
+        boolean wait = current instanceof StageThread && current != getLooper().getThread();
+        synchronized (mLock) {
+            if (wait && mPending >= mCapacity) {
+                long start = System.nanoTime();
+                while (mPending >= mCapacity && !mQuitting) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                mBlockedNs += System.nanoTime() - start;
+            }
+            if (mQuitting) {
+                return false;
+            }
+            mPending++;
+            mPeakPending = Math.max(mPeakPending, mPending);
+            return true;
+        }
+    }
+
+    private void leave() {
+        synchronized (mLock) {
+            mPending--;
+            mLock.notifyAll();
+        }
+    }
+
+    String getStats() {
+        synchronized (mLock) {
+            long n = Math.max(1, mMessages);
+            return mName + ": " + mMessages + " msgs, queue " + mPending + " peak "
+                    + mPeakPending + "/" + mCapacity + ", wait avg " + mWaitMs / n
+                    + "ms max " + mMaxWaitMs + "ms, run avg " + mRunNs / n / 1000000
+                    + "ms max " + mMaxRunNs / 1000000 + "ms, upstream blocked "
+                    + mBlockedNs / 1000000 + "ms";
+        }
+    }
+}
@@ -76,6 +76,7 @@ public class GDepth {
     private final String mFormat = FORMAT_8_BIT;
     private DepthMap mDepthMap;
     private String mData;
+    private byte[] mJpeg;
     private int[] mMap;
 
     private GDepth(DepthMap depthMap) {
@@ -149,10 +150,22 @@ public class GDepth {
         return 255;
     }
 
+    /* Base64 of the depth JPEG, built on first use */
     public String getData() {
+        if (mData == null && mJpeg != null) {
+            mData = serializeAsBase64Str(mJpeg);
+        }
         return mData;
     }
 
+    /* The depth map as JPEG, for writers that encode it themselves */
+    public byte[] getJpegData() {
+        if (mJpeg == null && mData != null) {
+            mJpeg = Base64.decode(mData, Base64.DEFAULT);
+        }
+        return mJpeg;
+    }
+
     public Rect getRoi() {
         return mDepthMap.roi;
     }
@@ -166,9 +179,8 @@ public class GDepth {
         bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
         byte[] jpegBytes = outputStream.toByteArray();
         if (jpegBytes != null) {
-            String base64String = serializeAsBase64Str(jpegBytes);
             result = true;
-            mData = base64String;
+            mJpeg = jpegBytes;
         } else {
             Log.e(TAG, "compressToJPEG failure");
         }
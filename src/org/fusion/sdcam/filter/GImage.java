@@ -51,9 +51,10 @@ public class GImage {
 
     private String mMime = "image/jpeg";
     private String mData;
+    private final byte[] mBytes;
 
     public GImage(byte[] data, String mime) {
-        mData = Base64.encodeToString(data, Base64.DEFAULT);
+        mBytes = data;
         mMime = mime;
     }
 
@@ -61,7 +62,15 @@ public class GImage {
         return mMime;
     }
 
+    /* Base64 of the image, built on first use */
     public String getData() {
+        if (mData == null) {
+            mData = Base64.encodeToString(mBytes, Base64.DEFAULT);
+        }
         return mData;
     }
+
+    public byte[] getBytes() {
+        return mBytes;
+    }
 }
@@ -0,0 +1,147 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * A template frame takes a new value only if it has the type of the template
+ * tag and fits in its space; anything else leaves the header untouched.
+ */
+@SmallTest
+public class ExifTemplateTest extends TestCase {
+    private static final byte[] JPEG = {
+            (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9
+    };
+    private static final String MODEL = "Camera";
+
+    private ExifTemplate mTemplate;
+
+    @Override
+    protected void setUp() throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, MODEL));
+        exif.addOrientationTag(90);
+        exif.addISO(100);
+        exif.addFocalLength(new Rational(400, 100));
+        exif.addExposureTime(new Rational(10, 1000));
+        mTemplate = ExifTemplate.compile(exif);
+    }
+
+    public void testAcceptedValuesAreWritten() throws Exception {
+        ExifTemplate.Frame frame = mTemplate.newFrame();
+        assertTrue(frame.setTagValue(ExifInterface.TAG_MODEL, "Cam"));
+        assertTrue(frame.setTagValue(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.BOTTOM_LEFT));
+        assertTrue(frame.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, 0xffff));
+        assertTrue(frame.setTagValue(ExifInterface.TAG_FOCAL_LENGTH, new Rational(473, 100)));
+
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(frame.writeExif(JPEG));
+        // The rest of the template count is padded with NULs
+        assertEquals("Cam\0\0\0\0", exif.getTagStringValue(ExifInterface.TAG_MODEL));
+        assertEquals(Integer.valueOf(ExifInterface.Orientation.BOTTOM_LEFT),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(Integer.valueOf(0xffff),
+                exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+        assertEquals(new Rational(473, 100),
+                exif.getTagRationalValue(ExifInterface.TAG_FOCAL_LENGTH));
+        assertEquals(new Rational(10, 1000),
+                exif.getTagRationalValue(ExifInterface.TAG_EXPOSURE_TIME));
+    }
+
+    public void testStringMustFitWithTerminator() {
+        ExifTemplate.Frame frame = mTemplate.newFrame();
+        byte[] header = frame.getHeader().clone();
+        // The template count includes the NUL, so one more character leaves no room for it
+        assertFalse(frame.setTagValue(ExifInterface.TAG_MODEL, MODEL + "X"));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_MODEL, MODEL + "XY"));
+        assertTrue(Arrays.equals(header, frame.getHeader()));
+        assertTrue(frame.setTagValue(ExifInterface.TAG_MODEL, MODEL));
+    }
+
+    public void testShortValueMustFit() {
+        ExifTemplate.Frame frame = mTemplate.newFrame();
+        byte[] header = frame.getHeader().clone();
+        assertFalse(frame.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, 0x10000));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, -1));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_ORIENTATION, 0x10000));
+        assertTrue(Arrays.equals(header, frame.getHeader()));
+    }
+
+    public void testRationalMustFit() {
+        ExifTemplate.Frame frame = mTemplate.newFrame();
+        byte[] header = frame.getHeader().clone();
+        assertFalse(frame.setTagValue(ExifInterface.TAG_FOCAL_LENGTH, new Rational(-1, 100)));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_FOCAL_LENGTH,
+                new Rational(0x100000000L, 100)));
+        assertTrue(Arrays.equals(header, frame.getHeader()));
+    }
+
+    public void testWrongTypeIsRejected() {
+        ExifTemplate.Frame frame = mTemplate.newFrame();
+        byte[] header = frame.getHeader().clone();
+        assertFalse(frame.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, "100"));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, ""));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_MODEL, 1));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_MODEL, new Rational(1, 1)));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_ORIENTATION, new Rational(1, 1)));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_FOCAL_LENGTH, 4));
+        assertTrue(Arrays.equals(header, frame.getHeader()));
+    }
+
+    public void testMissingTagIsRejected() {
+        ExifTemplate.Frame frame = mTemplate.newFrame();
+        assertFalse(mTemplate.hasTag(ExifInterface.TAG_FLASH));
+        assertFalse(mTemplate.hasTag(ExifInterface.TAG_MAKE));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_FLASH, ExifInterface.Flash.FIRED));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_MAKE, "Make"));
+        assertFalse(frame.setTagValue(ExifInterface.TAG_APERTURE_VALUE, new Rational(18, 10)));
+    }
+
+    public void testCompileAddsOffsetTags() throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.addISO(100);
+        assertNull(exif.getTag(ExifInterface.TAG_EXIF_IFD));
+        ExifTemplate.compile(exif);
+        assertNotNull(exif.getTag(ExifInterface.TAG_EXIF_IFD));
+    }
+
+    public void testFramesDoNotShareBytes() {
+        ExifTemplate.Frame a = mTemplate.newFrame();
+        ExifTemplate.Frame b = mTemplate.newFrame();
+        assertTrue(a.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS, 800));
+        assertFalse(Arrays.equals(a.getHeader(), b.getHeader()));
+        assertTrue(Arrays.equals(b.getHeader(), mTemplate.newFrame().getHeader()));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Counts the ExifTag objects an EXIF header of a typical camera capture keeps
+ * alive when it is read back and written out again. Values read from a file
+ * stay packed in their IFDs until a caller asks for the tag itself.
+ */
+@SmallTest
+public class IfdDataTest extends TestCase {
+    private static final byte[] JPEG = {
+            (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9
+    };
+
+    public void testReadCreatesNoTags() throws Exception {
+        byte[] jpeg = write(buildCameraExif());
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        ExifData data = exif.getExifData();
+        assertTrue(countTags(data) > 20);
+        assertEquals(0, countLiveTags(data));
+
+        // Plain value lookups read the packed values
+        assertEquals(Integer.valueOf(ExifInterface.Orientation.RIGHT_TOP),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(Long.valueOf(4032), exif.getTagLongValue(ExifInterface.TAG_PIXEL_X_DIMENSION));
+        assertEquals("Camera\0", exif.getTagStringValue(ExifInterface.TAG_MODEL));
+        assertEquals(0, countLiveTags(data));
+
+        // Asking for the tag creates that one only
+        ExifTag exposure = exif.getTag(ExifInterface.TAG_EXPOSURE_TIME);
+        assertEquals(new Rational(1, 120), exposure.getValueAsRational(0));
+        assertEquals(1, countLiveTags(data));
+        assertSame(exposure, exif.getTag(ExifInterface.TAG_EXPOSURE_TIME));
+        assertEquals(1, countLiveTags(data));
+    }
+
+    public void testWriteCreatesOnlyOffsetTags() throws Exception {
+        byte[] jpeg = write(buildCameraExif());
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        ExifData data = exif.getExifData();
+
+        byte[] rewritten = write(exif);
+        // The IFD pointers are rebuilt on every write, nothing else is unpacked
+        assertEquals(2, countLiveTags(data));
+        assertTrue(Arrays.equals(jpeg, rewritten));
+    }
+
+    public void testChangesToReadTagsAreWritten() throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(write(buildCameraExif()));
+        assertTrue(exif.setTagValue(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.BOTTOM_LEFT));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_SOFTWARE, "Edited"));
+        exif.deleteTag(ExifInterface.TAG_WHITE_BALANCE);
+
+        ExifInterface reread = new ExifInterface();
+        reread.readExif(write(exif));
+        assertEquals(Integer.valueOf(ExifInterface.Orientation.BOTTOM_LEFT),
+                reread.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals("Edited\0", reread.getTagStringValue(ExifInterface.TAG_SOFTWARE));
+        assertNull(reread.getTag(ExifInterface.TAG_WHITE_BALANCE));
+        assertEquals(exif.getTagStringValue(ExifInterface.TAG_MAKE),
+                reread.getTagStringValue(ExifInterface.TAG_MAKE));
+    }
+
+    public void testTagsAreSortedById() throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(write(buildCameraExif()));
+        for (int ifdId : IfdData.getIfds()) {
+            IfdData ifd = exif.getExifData().getIfdData(ifdId);
+            if (ifd == null) {
+                continue;
+            }
+            for (int i = 1; i < ifd.getTagCount(); i++) {
+                assertTrue((ifd.getTagIdAt(i - 1) & 0xffff) < (ifd.getTagIdAt(i) & 0xffff));
+            }
+        }
+    }
+
+    private static ExifInterface buildCameraExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Vendor"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Camera"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_SOFTWARE, "Camera2"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 4032));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 3024));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 120)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_F_NUMBER, new Rational(180, 100)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_APERTURE_VALUE, new Rational(170, 100)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FOCAL_LENGTH, new Rational(4380, 1000)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 100));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FLASH, (short) 16));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_WHITE_BALANCE, (short) 0));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXIF_VERSION,
+                new byte[] {'0', '2', '2', '0'}));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_COMPONENTS_CONFIGURATION,
+                new byte[] {1, 2, 3, 0}));
+        long now = 1500000000000L;
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, now, utc);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME_ORIGINAL, now, utc);
+        exif.addGpsTags(37.42, -122.08);
+        exif.addGpsDateTimeStampTag(now);
+        return exif;
+    }
+
+    private static byte[] write(ExifInterface exif) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(JPEG, out);
+        return out.toByteArray();
+    }
+
+    private static int countTags(ExifData data) {
+        int count = 0;
+        for (int ifdId : IfdData.getIfds()) {
+            IfdData ifd = data.getIfdData(ifdId);
+            count += ifd == null ? 0 : ifd.getTagCount();
+        }
+        return count;
+    }
+
+    private static int countLiveTags(ExifData data) {
+        int count = 0;
+        for (int ifdId : IfdData.getIfds()) {
+            IfdData ifd = data.getIfdData(ifdId);
+            count += ifd == null ? 0 : ifd.getLiveTagCount();
+        }
+        return count;
+    }
+}
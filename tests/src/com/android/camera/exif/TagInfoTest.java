@@ -0,0 +1,77 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * The built-in tag definitions are shared by all ExifInterface instances and
+ * copied only by an instance that changes them.
+ */
+@SmallTest
+public class TagInfoTest extends TestCase {
+    private static final short TAG_ID_CUSTOM = (short) 0xC4A5;
+
+    public void testInstancesShareDefinitions() {
+        ExifInterface a = new ExifInterface();
+        ExifInterface b = new ExifInterface();
+        assertSame(a.getTagInfo(), b.getTagInfo());
+        assertNotNull(a.buildTag(ExifInterface.TAG_MAKE, "Make"));
+    }
+
+    public void testSetDefinitionCopiesTable() {
+        ExifInterface a = new ExifInterface();
+        ExifInterface b = new ExifInterface();
+        int tag = a.setTagDefinition(TAG_ID_CUSTOM, IfdId.TYPE_IFD_0, ExifTag.TYPE_ASCII,
+                (short) 0, new int[] { IfdId.TYPE_IFD_0 });
+        assertTrue(tag != ExifInterface.TAG_NULL);
+        assertNotSame(a.getTagInfo(), b.getTagInfo());
+        assertNotNull(a.buildTag(tag, "Custom"));
+        assertNull(b.buildTag(tag, "Custom"));
+        assertNull(new ExifInterface().buildTag(tag, "Custom"));
+
+        // Built-in definitions are still there
+        assertNotNull(a.buildTag(ExifInterface.TAG_MAKE, "Make"));
+    }
+
+    public void testRemoveDefinitionCopiesTable() {
+        ExifInterface a = new ExifInterface();
+        ExifInterface b = new ExifInterface();
+        a.removeTagDefinition(ExifInterface.TAG_MAKE);
+        assertNull(a.buildTag(ExifInterface.TAG_MAKE, "Make"));
+        assertNotNull(b.buildTag(ExifInterface.TAG_MAKE, "Make"));
+        assertNotNull(new ExifInterface().buildTag(ExifInterface.TAG_MAKE, "Make"));
+
+        a.resetTagDefinitions();
+        assertSame(b.getTagInfo(), a.getTagInfo());
+        assertNotNull(a.buildTag(ExifInterface.TAG_MAKE, "Make"));
+    }
+}
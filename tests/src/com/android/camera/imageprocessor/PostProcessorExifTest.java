@@ -0,0 +1,126 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.hardware.camera2.CaptureResult;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTemplate;
+import com.android.camera.exif.Rational;
+
+import junit.framework.TestCase;
+
+/**
+ * addExifTags patches the values of the cached template while the capture
+ * results have the same optional tags, and writes a full header and a new
+ * template when they change or a value does not fit the template.
+ */
+@SmallTest
+public class PostProcessorExifTest extends TestCase {
+    private static final byte[] JPEG = {
+            (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9
+    };
+    private static final long TIME = 1500000000000L;
+
+    public void testSameTagsReuseTemplate() throws Exception {
+        ExifInterface exif = read(PostProcessor.addExifTags(JPEG, 90, TIME,
+                CaptureResult.FLASH_MODE_OFF, 4.73f, null, null, 10000000L, 100));
+        ExifTemplate template = PostProcessor.getExifTemplate();
+        assertNotNull(template);
+        assertEquals(Integer.valueOf(100), exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+
+        exif = read(PostProcessor.addExifTags(JPEG, 270, TIME + 1000,
+                CaptureResult.FLASH_MODE_SINGLE, 4.73f, null, null, 33000000L, 800));
+        assertSame(template, PostProcessor.getExifTemplate());
+        assertEquals(Integer.valueOf(ExifInterface.Orientation.RIGHT_BOTTOM),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(Integer.valueOf(ExifInterface.Flash.FIRED),
+                exif.getTagIntValue(ExifInterface.TAG_FLASH));
+        assertEquals(new Rational(33, 1000),
+                exif.getTagRationalValue(ExifInterface.TAG_EXPOSURE_TIME));
+        assertEquals(Integer.valueOf(800), exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+        assertNull(exif.getTag(ExifInterface.TAG_WHITE_BALANCE));
+    }
+
+    public void testChangedTagsReplaceTemplate() throws Exception {
+        PostProcessor.addExifTags(JPEG, 0, TIME, null, null, null, null, null, 100);
+        ExifTemplate template = PostProcessor.getExifTemplate();
+
+        ExifInterface exif = read(PostProcessor.addExifTags(JPEG, 180, TIME, null, null,
+                CaptureResult.CONTROL_AWB_MODE_AUTO, 1.8f, null, 300));
+        ExifTemplate replaced = PostProcessor.getExifTemplate();
+        assertNotSame(template, replaced);
+        assertTrue(replaced.hasTag(ExifInterface.TAG_WHITE_BALANCE));
+        assertTrue(replaced.hasTag(ExifInterface.TAG_APERTURE_VALUE));
+        assertEquals(Integer.valueOf(ExifInterface.Orientation.BOTTOM_LEFT),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(Integer.valueOf(ExifInterface.WhiteBalance.AUTO),
+                exif.getTagIntValue(ExifInterface.TAG_WHITE_BALANCE));
+        assertEquals(new Rational(180, 100),
+                exif.getTagRationalValue(ExifInterface.TAG_APERTURE_VALUE));
+        assertEquals(Integer.valueOf(300), exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+
+        // Back to the first set, which the last template could be patched with but has
+        // tags that must not be written
+        exif = read(PostProcessor.addExifTags(JPEG, 0, TIME, null, null, null, null, null, 200));
+        assertNotSame(replaced, PostProcessor.getExifTemplate());
+        assertEquals(Integer.valueOf(200), exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+        assertNull(exif.getTag(ExifInterface.TAG_WHITE_BALANCE));
+        assertNull(exif.getTag(ExifInterface.TAG_APERTURE_VALUE));
+    }
+
+    public void testValueThatDoesNotFitFallsBack() throws Exception {
+        PostProcessor.addExifTags(JPEG, 0, TIME, null, null, null, null, null, 100);
+        ExifTemplate template = PostProcessor.getExifTemplate();
+
+        // ISO is an unsigned short, so the template cannot take this value
+        ExifInterface exif = read(PostProcessor.addExifTags(JPEG, 90, TIME, null, null, null,
+                null, null, 0x10000));
+        assertNotSame(template, PostProcessor.getExifTemplate());
+        assertEquals(Integer.valueOf(ExifInterface.Orientation.RIGHT_TOP),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertNotNull(exif.getTag(ExifInterface.TAG_MODEL));
+
+        // A value that fits brings back a template that can be patched
+        exif = read(PostProcessor.addExifTags(JPEG, 0, TIME, null, null, null, null, null, 400));
+        assertEquals(Integer.valueOf(400), exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+        template = PostProcessor.getExifTemplate();
+        assertTrue(template.hasTag(ExifInterface.TAG_ISO_SPEED_RATINGS));
+        exif = read(PostProcessor.addExifTags(JPEG, 0, TIME, null, null, null, null, null, 800));
+        assertSame(template, PostProcessor.getExifTemplate());
+        assertEquals(Integer.valueOf(800), exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+    }
+
+    private static ExifInterface read(byte[] jpeg) throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        return exif;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Frames that cannot be scored, like PRIVATE ZSL frames, make the content based
+ * policies fall back to the newest frame instead of ranking every frame the same.
+ */
+@SmallTest
+public class ZSLQueueTest extends TestCase {
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 96;
+
+    public void testUnscoredFramesFallBackToNewest() {
+        ZSLQueue queue = new ZSLQueue(null);
+        ZSLQueue.ImageItem item = new ZSLQueue.ImageItem();
+        assertFalse(item.isScored());
+
+        for (int policy : new int[] {ZSLQueue.POLICY_SHARPEST, ZSLQueue.POLICY_LOWEST_MOTION}) {
+            assertTrue(ZSLQueue.needsFrameScores(policy));
+            // Without scores the policy itself cannot tell frames apart
+            ZSLQueue.SelectionPolicy raw = ZSLQueue.getPolicy(policy);
+            assertEquals(raw.score(item, 100, 0), raw.score(item, 200, 0));
+
+            ZSLQueue.SelectionPolicy chosen = queue.choosePolicy(policy);
+            assertTrue(chosen.score(item, 200, 0) > chosen.score(item, 100, 0));
+        }
+
+        // Policies that do not use scores are kept
+        assertFalse(ZSLQueue.needsFrameScores(ZSLQueue.POLICY_CLOSEST_TO_SHUTTER));
+        ZSLQueue.SelectionPolicy closest =
+                queue.choosePolicy(ZSLQueue.POLICY_CLOSEST_TO_SHUTTER);
+        assertTrue(closest.score(item, 100, 100) > closest.score(item, 200, 100));
+    }
+
+    public void testScorerMarksScoredFrames() {
+        ZSLQueue.FrameScorer scorer = new ZSLQueue.FrameScorer();
+        ByteBuffer luma = ByteBuffer.wrap(noise(WIDTH * HEIGHT));
+
+        ZSLQueue.ImageItem first = new ZSLQueue.ImageItem();
+        scorer.score(luma, WIDTH, 1, WIDTH, HEIGHT, first);
+        assertTrue(first.isScored());
+        assertTrue(first.getSharpness() > 0);
+        // No previous frame to compare with
+        assertEquals(Float.MAX_VALUE, first.getMotion());
+
+        ZSLQueue.ImageItem second = new ZSLQueue.ImageItem();
+        scorer.score(luma, WIDTH, 1, WIDTH, HEIGHT, second);
+        assertTrue(second.isScored());
+        assertEquals(0f, second.getMotion());
+
+        // Too small to sample the grid
+        ZSLQueue.ImageItem small = new ZSLQueue.ImageItem();
+        scorer.score(luma, 32, 1, 32, 24, small);
+        assertFalse(small.isScored());
+        assertEquals(0f, small.getSharpness());
+    }
+
+    private static byte[] noise(int size) {
+        byte[] bytes = new byte[size];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifProbe;
+import com.android.camera.tests.R;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Compares ExifProbe with ExifInterface.readExif() on the test JPEGs in res/raw and on
+ * a capture sized JPEG with a thumbnail, checking that both report the same orientation,
+ * dimensions, date time and thumbnail, and timing each per image.
+ */
+@LargeTest
+public class ExifProbeBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "ExifProbeBenchmark";
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 200;
+
+    public void testRawResources() throws Exception {
+        run("galaxy_nexus", readResource(R.raw.galaxy_nexus));
+        run("jpeg_control", readResource(R.raw.jpeg_control));
+    }
+
+    public void testCapture() throws Exception {
+        // The galaxy_nexus scan data behind a camera style Exif header with a thumbnail
+        byte[] source = readResource(R.raw.galaxy_nexus);
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(270);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1476600000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 2560));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 1920));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Benchmark"));
+        byte[] thumbnail = readResource(R.raw.jpeg_control);
+        exif.setCompressedThumbnail(Arrays.copyOf(thumbnail, 60000));
+        run("capture", exif.writeExif(source));
+    }
+
+    private static void run(String name, byte[] jpeg) throws IOException {
+        ExifInterface exif = null;
+        ExifProbe probe = null;
+        long exifNs = 0;
+        long probeNs = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            long t0 = System.nanoTime();
+            exif = new ExifInterface();
+            exif.readExif(jpeg);
+            int orientation = getOrientation(exif);
+            long t1 = System.nanoTime();
+            probe = ExifProbe.probe(jpeg);
+            int rotation = probe.getRotation();
+            long t2 = System.nanoTime();
+            assertEquals(orientation, rotation);
+            if (i >= WARMUP) {
+                exifNs += t1 - t0;
+                probeNs += t2 - t1;
+            }
+        }
+
+        assertEquals(getInt(exif, ExifInterface.TAG_PIXEL_X_DIMENSION,
+                ExifInterface.TAG_IMAGE_WIDTH), probe.getWidth());
+        assertEquals(getInt(exif, ExifInterface.TAG_PIXEL_Y_DIMENSION,
+                ExifInterface.TAG_IMAGE_LENGTH), probe.getHeight());
+        // ExifInterface keeps the NUL terminator of ASCII values
+        String dateTime = exif.getTagStringValue(ExifInterface.TAG_DATE_TIME);
+        if (dateTime != null && dateTime.endsWith("\0")) {
+            dateTime = dateTime.substring(0, dateTime.length() - 1);
+        }
+        assertEquals(dateTime, probe.getDateTime());
+        byte[] thumbnail = exif.getThumbnail();
+        assertEquals(thumbnail != null, probe.hasThumbnail());
+        if (thumbnail != null) {
+            assertTrue(Arrays.equals(thumbnail, Arrays.copyOfRange(jpeg,
+                    probe.getThumbnailOffset(),
+                    probe.getThumbnailOffset() + probe.getThumbnailLength())));
+        }
+        Log.i(TAG, name + " (" + jpeg.length + " bytes): readExif "
+                + exifNs / ITERATIONS / 1000 + " us, probe " + probeNs / ITERATIONS / 1000
+                + " us");
+    }
+
+    private static int getOrientation(ExifInterface exif) {
+        Integer val = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+        return val == null ? 0 : ExifInterface.getRotationForOrientationValue(val.shortValue());
+    }
+
+    private static int getInt(ExifInterface exif, int tag, int fallback) {
+        Integer val = exif.getTagIntValue(tag);
+        if (val == null || val == 0) {
+            val = exif.getTagIntValue(fallback);
+        }
+        return val == null ? 0 : val;
+    }
+
+    private byte[] readResource(int id) throws IOException {
+        InputStream in = getInstrumentation().getContext().getResources().openRawResource(id);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
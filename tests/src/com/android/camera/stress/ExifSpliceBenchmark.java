@@ -0,0 +1,233 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Compares the streaming ExifOutputStream path with the header splice path on a
+ * synthetic 5 MB JPEG. Reports the bytes pushed through Java-side buffers and the wall
+ * time per image, and checks that both paths produce identical files.
+ */
+@LargeTest
+public class ExifSpliceBenchmark extends TestCase {
+    private static final String TAG = "ExifSpliceBenchmark";
+    private static final int JPEG_SIZE = 5 * 1024 * 1024;
+    private static final int OLD_APP1_SIZE = 1024;
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    public void testFileWrite() throws Exception {
+        byte[] jpeg = buildJpeg(false);
+        File legacyFile = File.createTempFile("exif_legacy", ".jpg");
+        File spliceFile = File.createTempFile("exif_splice", ".jpg");
+        try {
+            long legacyCopied = 0;
+            long legacyNs = 0;
+            long spliceCopied = 0;
+            long spliceNs = 0;
+            // Alternate which path goes first so neither always pays for the
+            // other's page cache writeback.
+            for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+                boolean spliceFirst = (i & 1) == 0;
+                if (spliceFirst) {
+                    spliceNs += timeSplice(jpeg, spliceFile, i >= WARMUP);
+                }
+                long t0 = System.nanoTime();
+                CountingOutputStream out = new CountingOutputStream(
+                        new FileOutputStream(legacyFile));
+                buildExif().writeExif(jpeg, out);
+                out.close();
+                if (i >= WARMUP) {
+                    legacyNs += System.nanoTime() - t0;
+                    legacyCopied += out.getCount();
+                }
+                if (!spliceFirst) {
+                    spliceNs += timeSplice(jpeg, spliceFile, i >= WARMUP);
+                }
+            }
+            // Everything except the freshly serialized header is shared with the source.
+            long spliceSize = buildExif().writeExif(jpeg, spliceFile.getPath());
+            spliceCopied = ITERATIONS * (spliceSize - (jpeg.length - OLD_APP1_SIZE));
+            assertTrue(Arrays.equals(readFile(legacyFile), readFile(spliceFile)));
+            report("file", legacyCopied, legacyNs, spliceCopied, spliceNs);
+        } finally {
+            legacyFile.delete();
+            spliceFile.delete();
+        }
+    }
+
+    public void testInMemory() throws Exception {
+        for (boolean jfif : new boolean[] {false, true}) {
+            byte[] jpeg = buildJpeg(jfif);
+            long legacyCopied = 0;
+            long legacyNs = 0;
+            long spliceCopied = 0;
+            long spliceNs = 0;
+            byte[] legacy = null;
+            byte[] splice = null;
+            for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+                CountingOutputStream out = new CountingOutputStream(new ByteArrayOutputStream());
+                long t0 = System.nanoTime();
+                buildExif().writeExif(jpeg, out);
+                legacy = ((ByteArrayOutputStream) out.getTarget()).toByteArray();
+                long t1 = System.nanoTime();
+                splice = buildExif().writeExif(jpeg);
+                long t2 = System.nanoTime();
+                if (i >= WARMUP) {
+                    // Bytes written into the growing stream plus the final toByteArray().
+                    legacyCopied += out.getCount() + legacy.length;
+                    legacyNs += t1 - t0;
+                    spliceCopied += splice.length;
+                    spliceNs += t2 - t1;
+                }
+            }
+            assertTrue(Arrays.equals(legacy, splice));
+            report(jfif ? "memory/jfif" : "memory", legacyCopied, legacyNs, spliceCopied,
+                    spliceNs);
+        }
+    }
+
+    private static long timeSplice(byte[] jpeg, File file, boolean measure)
+            throws IOException {
+        long t0 = System.nanoTime();
+        buildExif().writeExif(jpeg, file.getPath());
+        return measure ? System.nanoTime() - t0 : 0;
+    }
+
+    private static void report(String name, long legacyCopied, long legacyNs,
+            long spliceCopied, long spliceNs) {
+        Log.i(TAG, name + ": stream " + legacyCopied / ITERATIONS + " bytes copied, "
+                + legacyNs / ITERATIONS / 1000 + " us/image; splice "
+                + spliceCopied / ITERATIONS + " bytes copied, "
+                + spliceNs / ITERATIONS / 1000 + " us/image");
+    }
+
+    private static ExifInterface buildExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(90);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1476600000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Benchmark"));
+        return exif;
+    }
+
+    // SOI, optional JFIF APP0, a dummy APP1 of OLD_APP1_SIZE bytes, random payload, EOI.
+    private static byte[] buildJpeg(boolean jfif) {
+        byte[] jpeg = new byte[JPEG_SIZE];
+        new Random(0x5eed).nextBytes(jpeg);
+        int pos = 0;
+        jpeg[pos++] = (byte) 0xFF;
+        jpeg[pos++] = (byte) 0xD8;
+        if (jfif) {
+            jpeg[pos++] = (byte) 0xFF;
+            jpeg[pos++] = (byte) 0xE0;
+            jpeg[pos++] = 0;
+            jpeg[pos++] = 16;
+            pos += 14;
+        }
+        jpeg[pos++] = (byte) 0xFF;
+        jpeg[pos++] = (byte) 0xE1;
+        jpeg[pos++] = (byte) ((OLD_APP1_SIZE - 2) >> 8);
+        jpeg[pos++] = (byte) (OLD_APP1_SIZE - 2);
+        pos += OLD_APP1_SIZE - 4;
+        jpeg[pos++] = (byte) 0xFF;
+        jpeg[pos] = (byte) 0xDB;
+        jpeg[JPEG_SIZE - 2] = (byte) 0xFF;
+        jpeg[JPEG_SIZE - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = in.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream mTarget;
+        private long mCount;
+
+        CountingOutputStream(OutputStream target) {
+            mTarget = target;
+        }
+
+        OutputStream getTarget() {
+            return mTarget;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mTarget.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mTarget.write(b, off, len);
+            mCount += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTarget.close();
+        }
+    }
+}
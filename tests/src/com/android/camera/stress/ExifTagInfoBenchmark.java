@@ -0,0 +1,130 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.IfdId;
+
+import junit.framework.TestCase;
+
+import java.util.TimeZone;
+
+/**
+ * Cost of creating an ExifInterface and reading a small JPEG with it, as done
+ * once per saved image. Instances share the built-in tag definitions, an
+ * instance that defines a tag of its own pays for a private copy.
+ */
+@LargeTest
+public class ExifTagInfoBenchmark extends TestCase {
+    private static final String TAG = "ExifTagInfoBenchmark";
+    private static final int WARMUP = 1000;
+    private static final int ITERATIONS = 10000;
+    private static final short TAG_ID_CUSTOM = (short) 0xC4A5;
+
+    public void testConstruct() {
+        for (int i = 0; i < WARMUP; i++) {
+            construct(false);
+            construct(true);
+        }
+        long sharedNs = 0;
+        long privateNs = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long t0 = System.nanoTime();
+            construct(false);
+            long t1 = System.nanoTime();
+            construct(true);
+            long t2 = System.nanoTime();
+            sharedNs += t1 - t0;
+            privateNs += t2 - t1;
+        }
+        Log.i(TAG, "construct: shared definitions " + sharedNs / ITERATIONS
+                + " ns, private definitions " + privateNs / ITERATIONS + " ns");
+    }
+
+    public void testConstructAndRead() throws Exception {
+        byte[] jpeg = buildJpeg();
+        for (int i = 0; i < WARMUP; i++) {
+            read(jpeg, false);
+            read(jpeg, true);
+        }
+        long sharedNs = 0;
+        long privateNs = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long t0 = System.nanoTime();
+            read(jpeg, false);
+            long t1 = System.nanoTime();
+            read(jpeg, true);
+            long t2 = System.nanoTime();
+            sharedNs += t1 - t0;
+            privateNs += t2 - t1;
+        }
+        Log.i(TAG, "construct and read " + jpeg.length + " byte jpeg: shared definitions "
+                + sharedNs / ITERATIONS + " ns, private definitions " + privateNs / ITERATIONS
+                + " ns");
+    }
+
+    // Building a tag is the first use of the definitions
+    private static ExifInterface construct(boolean defineTag) {
+        ExifInterface exif = new ExifInterface();
+        if (defineTag) {
+            exif.setTagDefinition(TAG_ID_CUSTOM, IfdId.TYPE_IFD_0, ExifTag.TYPE_ASCII,
+                    (short) 0, new int[] { IfdId.TYPE_IFD_0 });
+        }
+        assertNotNull(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.TOP_LEFT));
+        return exif;
+    }
+
+    private static void read(byte[] jpeg, boolean defineTag) throws Exception {
+        ExifInterface exif = construct(defineTag);
+        exif.readExif(jpeg);
+        assertNotNull(exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+    }
+
+    // A thumbnail sized capture: SOI, a typical camera Exif header, EOI
+    private static byte[] buildJpeg() throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Benchmark"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "TagInfo"));
+        exif.addOrientationTag(90);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 1476600000000L,
+                TimeZone.getTimeZone("UTC"));
+        exif.addFlashTag(false);
+        exif.addISO(400);
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 4032));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 3024));
+        return exif.writeExif(new byte[] {
+                (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9
+        });
+    }
+}
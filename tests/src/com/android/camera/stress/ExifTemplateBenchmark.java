@@ -0,0 +1,139 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTemplate;
+import com.android.camera.exif.Rational;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Per frame Exif cost of a 20 fps longshot: building and serializing a fresh
+ * ExifInterface for every frame against patching a copy of a template. Uses a
+ * small JPEG so the time goes to the header rather than to copying the image,
+ * and checks that both paths write identical files.
+ */
+@LargeTest
+public class ExifTemplateBenchmark extends TestCase {
+    private static final String TAG = "ExifTemplateBenchmark";
+    private static final int JPEG_SIZE = 64 * 1024;
+    private static final int FPS = 20;
+    private static final int FRAMES = 3 * FPS;
+    private static final int WARMUP = 2;
+    private static final long START_TIME = 1476600000000L;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    public void testLongshot() throws Exception {
+        byte[] jpeg = buildJpeg();
+        long legacyNs = 0;
+        long templateNs = 0;
+        for (int round = 0; round < WARMUP + 1; round++) {
+            Random random = new Random(round);
+            ExifTemplate template = ExifTemplate.compile(buildExif(0, random));
+            legacyNs = 0;
+            templateNs = 0;
+            for (int frame = 0; frame < FRAMES; frame++) {
+                long seed = random.nextLong();
+                long t0 = System.nanoTime();
+                byte[] legacy = buildExif(frame, new Random(seed)).writeExif(jpeg);
+                long t1 = System.nanoTime();
+                byte[] patched = patch(template, frame, new Random(seed), jpeg);
+                long t2 = System.nanoTime();
+                legacyNs += t1 - t0;
+                templateNs += t2 - t1;
+                assertTrue(Arrays.equals(legacy, patched));
+            }
+        }
+        double frameBudgetUs = 1000000.0 / FPS;
+        long legacyUs = legacyNs / FRAMES / 1000;
+        long templateUs = templateNs / FRAMES / 1000;
+        Log.i(TAG, String.format("%d frames at %d fps: ExifInterface %d us/frame (%.1f%% of"
+                + " frame), template %d us/frame (%.1f%% of frame)", FRAMES, FPS, legacyUs,
+                legacyUs * 100 / frameBudgetUs, templateUs, templateUs * 100 / frameBudgetUs));
+    }
+
+    // The tags PostProcessor.addExifTags writes, with per frame capture values
+    private static ExifInterface buildExif(int frame, Random random) {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Benchmark"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Longshot"));
+        exif.addOrientationTag(90 * (frame % 4));
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, START_TIME + frame * 1000 / FPS,
+                UTC);
+        exif.addFlashTag(false);
+        exif.addFocalLength(new Rational(438, 100));
+        exif.addWhiteBalanceMode(random.nextInt(2));
+        exif.addAperture(new Rational(180, 100));
+        exif.addExposureTime(new Rational(1 + random.nextInt(66), 1000));
+        exif.addISO(100 + random.nextInt(3100));
+        return exif;
+    }
+
+    private static byte[] patch(ExifTemplate template, int frame, Random random, byte[] jpeg)
+            throws IOException {
+        ExifTemplate.Frame f = template.newFrame();
+        assertTrue(f.setTagValue(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90 * (frame % 4))));
+        assertTrue(f.setDateTimeValue(ExifInterface.TAG_DATE_TIME,
+                START_TIME + frame * 1000 / FPS, UTC));
+        assertTrue(f.setTagValue(ExifInterface.TAG_FLASH, ExifInterface.Flash.DID_NOT_FIRED));
+        assertTrue(f.setTagValue(ExifInterface.TAG_FOCAL_LENGTH, new Rational(438, 100)));
+        // Same mapping as ExifInterface.addWhiteBalanceMode for CONTROL_AWB_MODE values
+        assertTrue(f.setTagValue(ExifInterface.TAG_WHITE_BALANCE, random.nextInt(2) == 1
+                ? ExifInterface.WhiteBalance.AUTO : ExifInterface.WhiteBalance.MANUAL));
+        assertTrue(f.setTagValue(ExifInterface.TAG_APERTURE_VALUE, new Rational(180, 100)));
+        assertTrue(f.setTagValue(ExifInterface.TAG_EXPOSURE_TIME,
+                new Rational(1 + random.nextInt(66), 1000)));
+        assertTrue(f.setTagValue(ExifInterface.TAG_ISO_SPEED_RATINGS,
+                100 + random.nextInt(3100)));
+        return f.writeExif(jpeg);
+    }
+
+    // SOI, a quantization table marker, random payload, EOI.
+    private static byte[] buildJpeg() {
+        byte[] jpeg = new byte[JPEG_SIZE];
+        new Random(0x5eed).nextBytes(jpeg);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        jpeg[3] = (byte) 0xDB;
+        jpeg[JPEG_SIZE - 2] = (byte) 0xFF;
+        jpeg[JPEG_SIZE - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+}
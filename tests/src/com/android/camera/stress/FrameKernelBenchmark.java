@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.CpuFrameKernels;
+import com.android.camera.imageprocessor.NV21Transform;
+import com.android.camera.imageprocessor.ScriptC_YuvToRgb;
+import com.android.camera.imageprocessor.ScriptC_rotator;
+
+/**
+ * Runs the preview rotate and NV21 to RGB kernels at 1080p and 4K preview sizes on the
+ * CPU kernels, single threaded and on all cores, and on the RenderScript kernels they
+ * replace. The CPU colour conversion is checked against a straight per-pixel port of
+ * the script, the rotation is checked in NV21TransformTest.
+ */
+@LargeTest
+public class FrameKernelBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "FrameKernelBenchmark";
+    private static final int[][] SIZES = {{1920, 1080}, {3840, 2160}};
+    private static final int STRIDE_ALIGN = 64;
+    private static final int DEGREE = 90;
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 20;
+
+    public void testCpuKernelsMatchReference() {
+        CpuFrameKernels kernels = new CpuFrameKernels();
+        NV21Transform transform = new NV21Transform();
+        try {
+            int width = 640;
+            int height = 480;
+            int stride = 704;
+            byte[] in = createFrame(stride, height);
+            byte[] rotated = new byte[width * height * 3 / 2];
+            transform.rotateAndMerge(in, stride, width, height, DEGREE, rotated);
+            int[] expected = new int[width * height];
+            int[] actual = new int[width * height];
+            referenceToArgb(rotated, width * height, height, width, expected);
+            kernels.nv21ToArgb(rotated, width * height, height, width, actual);
+            for (int i = 0; i < expected.length; i++) {
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int e = (expected[i] >> shift) & 0xff;
+                    int a = (actual[i] >> shift) & 0xff;
+                    assertTrue("pixel " + i + " " + e + " vs " + a, Math.abs(e - a) <= 1);
+                }
+            }
+        } finally {
+            kernels.shutdown();
+            transform.shutdown();
+        }
+    }
+
+    public void testThroughput() {
+        CpuFrameKernels single = new CpuFrameKernels(1);
+        CpuFrameKernels parallel = new CpuFrameKernels();
+        NV21Transform singleTransform = new NV21Transform(1);
+        NV21Transform parallelTransform = new NV21Transform();
+        RenderScript rs = RenderScript.create(getInstrumentation().getTargetContext());
+        try {
+            for (int[] size : SIZES) {
+                int width = size[0];
+                int height = size[1];
+                int stride = (width + STRIDE_ALIGN - 1) & ~(STRIDE_ALIGN - 1);
+                byte[] in = createFrame(stride, height);
+                long singleNs = measureCpu(singleTransform, single, in, width, height, stride);
+                long parallelNs = measureCpu(parallelTransform, parallel, in, width, height,
+                        stride);
+                long rsNs = measureRs(rs, in, width, height, stride);
+                Log.i(TAG, width + "x" + height
+                        + " cpu 1 thread: " + singleNs / 1000 + "us"
+                        + " cpu " + Runtime.getRuntime().availableProcessors() + " threads: "
+                        + parallelNs / 1000 + "us (" + fps(parallelNs) + " fps)"
+                        + " renderscript: " + rsNs / 1000 + "us (" + fps(rsNs) + " fps)");
+            }
+        } finally {
+            single.shutdown();
+            parallel.shutdown();
+            singleTransform.shutdown();
+            parallelTransform.shutdown();
+            rs.destroy();
+        }
+    }
+
+    private static long fps(long frameNs) {
+        return frameNs == 0 ? 0 : 1000000000L / frameNs;
+    }
+
+    private static long measureCpu(NV21Transform transform, CpuFrameKernels kernels, byte[] in,
+                                   int width, int height, int stride) {
+        byte[] rotated = new byte[width * height * 3 / 2];
+        int[] argb = new int[width * height];
+        long start = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if (i == WARMUP) {
+                start = System.nanoTime();
+            }
+            transform.rotateAndMerge(in, stride, width, height, DEGREE, rotated);
+            kernels.nv21ToArgb(rotated, width * height, height, width, argb);
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static long measureRs(RenderScript rs, byte[] in, int width, int height,
+                                  int stride) {
+        ScriptC_rotator rotator = new ScriptC_rotator(rs);
+        ScriptC_YuvToRgb yuvToRgb = new ScriptC_YuvToRgb(rs);
+        Type.Builder domain = new Type.Builder(rs, Element.U8(rs));
+        domain.setX(stride);
+        domain.setY(height);
+        Allocation domainAllocation = Allocation.createTyped(rs, domain.create());
+        Allocation inAllocation = Allocation.createSized(rs, Element.U8(rs), in.length);
+        Allocation rotatedAllocation = Allocation.createSized(rs, Element.U8(rs), in.length);
+        Type.Builder rgb = new Type.Builder(rs, Element.RGBA_8888(rs));
+        rgb.setX(height);
+        rgb.setY(width);
+        Allocation outAllocation = Allocation.createTyped(rs, rgb.create());
+        rotator.set_gIn(inAllocation);
+        rotator.set_gOut(rotatedAllocation);
+        rotator.set_width(stride);
+        rotator.set_height(height);
+        rotator.set_pad(stride - width);
+        rotator.set_degree(DEGREE);
+        yuvToRgb.set_gIn(rotatedAllocation);
+        yuvToRgb.set_width(height);
+        yuvToRgb.set_height(stride);
+        try {
+            long start = 0;
+            for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+                if (i == WARMUP) {
+                    rs.finish();
+                    start = System.nanoTime();
+                }
+                inAllocation.copyFrom(in);
+                rotator.forEach_rotate90andMerge(domainAllocation);
+                yuvToRgb.forEach_nv21ToRgb(outAllocation);
+            }
+            rs.finish();
+            return (System.nanoTime() - start) / ITERATIONS;
+        } finally {
+            domainAllocation.destroy();
+            inAllocation.destroy();
+            rotatedAllocation.destroy();
+            outAllocation.destroy();
+            rotator.destroy();
+            yuvToRgb.destroy();
+        }
+    }
+
+    /* Per-pixel port of nv21ToRgb. */
+    private static void referenceToArgb(byte[] in, int vuOffset, int width, int height,
+                                        int[] out) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = vuOffset + (x / 2 * 2) + ((y / 2) * width);
+                int yV = in[x + y * width] & 0xff;
+                int vV = (in[index] & 0xff) - 128;
+                int uV = (in[index + 1] & 0xff) - 128;
+                int r = (int) (yV + 1.370705f * vV);
+                int g = (int) (yV - 0.698001f * vV - 0.337633f * uV);
+                int b = (int) (yV + 1.732446f * uV);
+                r = r > 255 ? 255 : r < 0 ? 0 : r;
+                g = g > 255 ? 255 : g < 0 ? 0 : g;
+                b = b > 255 ? 255 : b < 0 ? 0 : b;
+                out[x + y * width] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static byte[] createFrame(int stride, int height) {
+        byte[] nv21 = new byte[stride * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < stride; x++) {
+                nv21[y * stride + x] = (byte) ((x * 7 + y * 3 + ((x ^ y) & 31)) & 0xff);
+            }
+        }
+        int vu = stride * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < stride; x += 2) {
+                nv21[vu + y * stride + x] = (byte) (128 + ((x >> 4) & 63) - 32);
+                nv21[vu + y * stride + x + 1] = (byte) (128 + ((y >> 3) & 63) - 32);
+            }
+        }
+        return nv21;
+    }
+}
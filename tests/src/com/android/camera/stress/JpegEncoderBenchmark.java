@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.NV21JpegEncoder;
+import com.android.camera.imageprocessor.ParallelJpegEncoder;
+import com.android.camera.imageprocessor.YuvImageJpegEncoder;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the YuvImage encoder with the parallel strip encoder on 12 MP and 16 MP
+ * synthetic NV21 frames.
+ */
+@LargeTest
+public class JpegEncoderBenchmark extends TestCase {
+    private static final String TAG = "JpegEncoderBenchmark";
+    private static final int[][] SIZES = {{4000, 3000}, {4608, 3456}};
+    private static final int QUALITY = 85;
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 5;
+
+    public void testEncodeThroughput() {
+        NV21JpegEncoder yuvImage = new YuvImageJpegEncoder();
+        NV21JpegEncoder parallel = new ParallelJpegEncoder();
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] nv21 = createFrame(width, height);
+            Rect roi = new Rect(0, 0, width, height);
+            long yuvImageNs = measure(yuvImage, nv21, width, height, roi);
+            long parallelNs = measure(parallel, nv21, width, height, roi);
+            int yuvImageBytes = yuvImage.encode(nv21, width, height, width, width, roi,
+                    QUALITY).length;
+            int parallelBytes = parallel.encode(nv21, width, height, width, width, roi,
+                    QUALITY).length;
+            Log.i(TAG, width + "x" + height
+                    + " YuvImage: " + yuvImageNs / 1000000 + "ms"
+                    + " parallel: " + parallelNs / 1000000 + "ms"
+                    + " cores: " + Runtime.getRuntime().availableProcessors()
+                    + " YuvImage buffer bytes: " + yuvImageBytes
+                    + " parallel bytes: " + parallelBytes);
+            assertTrue(parallelBytes > 0);
+        }
+    }
+
+    private static long measure(NV21JpegEncoder encoder, byte[] nv21, int width, int height,
+                                Rect roi) {
+        for (int i = 0; i < WARMUP; i++) {
+            encoder.encode(nv21, width, height, width, width, roi, QUALITY);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoder.encode(nv21, width, height, width, width, roi, QUALITY);
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static byte[] createFrame(int width, int height) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * width + x] = (byte) ((x * 7 + y * 3 + ((x ^ y) & 31)) & 0xff);
+            }
+        }
+        int vu = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width; x += 2) {
+                nv21[vu + y * width + x] = (byte) (128 + ((x >> 4) & 63) - 32);
+                nv21[vu + y * width + x + 1] = (byte) (128 + ((y >> 3) & 63) - 32);
+            }
+        }
+        return nv21;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.NV21Transform;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Compares the fused NV21 transform with running mirror, rotation and scaling as one full
+ * frame pass each, the way the separate flip and resize helpers did. Besides the time, the
+ * number of passes and the bytes read and written by them are logged for a 12MP capture.
+ */
+@LargeTest
+public class NV21TransformBenchmark extends TestCase {
+    private static final String TAG = "NV21TransformBenchmark";
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int STRIDE = 4032;
+    private static final int SCALE = 4;
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 10;
+
+    private NV21Transform mTransform;
+    private byte[] mFrame;
+    private Rect mFull;
+    // 16:9 crop out of the 4:3 sensor frame
+    private Rect mRoi;
+
+    @Override
+    protected void setUp() {
+        mTransform = new NV21Transform();
+        mFrame = new byte[nv21Size(STRIDE, HEIGHT)];
+        new Random(7).nextBytes(mFrame);
+        mFull = new Rect(0, 0, WIDTH, HEIGHT);
+        int roiHeight = WIDTH * 9 / 16;
+        int top = ((HEIGHT - roiHeight) / 2) & ~1;
+        mRoi = new Rect(0, top, WIDTH, top + roiHeight);
+    }
+
+    @Override
+    protected void tearDown() {
+        mTransform.shutdown();
+    }
+
+    /* Selfie mirror: flip the whole frame in place, then encode the roi */
+    public void testMirrorCrop() {
+        final byte[] out = new byte[nv21Size(mRoi.width(), mRoi.height())];
+        long separateNs = measure(new Runnable() {
+            @Override
+            public void run() {
+                flipHorizontal(mFrame, STRIDE, HEIGHT, WIDTH);
+            }
+        });
+        long fusedNs = measure(new Runnable() {
+            @Override
+            public void run() {
+                mTransform.apply(mFrame, STRIDE, HEIGHT, mRoi, true, false, 0, out,
+                        mRoi.width(), mRoi.height(), mRoi.width());
+            }
+        });
+        long frame = nv21Size(STRIDE, HEIGHT);
+        long roi = nv21Size(mRoi.width(), mRoi.height());
+        report("mirror+crop", 1, frame, frame, separateNs, roi, roi, fusedNs);
+    }
+
+    /* Reduced size output: mirror, rotate and scale down by SCALE */
+    public void testMirrorRotateScale() {
+        final int outWidth = mRoi.height() / SCALE & ~1;
+        final int outHeight = mRoi.width() / SCALE & ~1;
+        final byte[] rotated = new byte[nv21Size(HEIGHT, WIDTH)];
+        final byte[] separate = new byte[nv21Size(outWidth, outHeight)];
+        final byte[] fused = new byte[separate.length];
+        final Rect rotatedRoi = new Rect(HEIGHT - mRoi.bottom, 0, HEIGHT - mRoi.top, WIDTH);
+        long separateNs = measure(new Runnable() {
+            @Override
+            public void run() {
+                flipHorizontal(mFrame, STRIDE, HEIGHT, WIDTH);
+                mTransform.apply(mFrame, STRIDE, HEIGHT, mFull, false, false, 90, rotated,
+                        HEIGHT, WIDTH, HEIGHT);
+                mTransform.apply(rotated, HEIGHT, WIDTH, rotatedRoi, false, false, 0,
+                        separate, outWidth, outHeight, outWidth);
+            }
+        });
+        long fusedNs = measure(new Runnable() {
+            @Override
+            public void run() {
+                mTransform.apply(mFrame, STRIDE, HEIGHT, mRoi, true, false, 90, fused,
+                        outWidth, outHeight, outWidth);
+            }
+        });
+        long frame = nv21Size(STRIDE, HEIGHT);
+        long rotatedSize = nv21Size(HEIGHT, WIDTH);
+        long roi = nv21Size(mRoi.width(), mRoi.height());
+        long out = separate.length;
+        report("mirror+rotate+scale", 3, frame + frame + roi, frame + rotatedSize + out,
+                separateNs, roi, out, fusedNs);
+    }
+
+    private static int nv21Size(int stride, int height) {
+        return stride * height * 3 / 2;
+    }
+
+    private static long measure(Runnable run) {
+        long start = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if (i == WARMUP) {
+                start = System.nanoTime();
+            }
+            run.run();
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static void report(String what, int separatePasses, long separateRead,
+                               long separateWritten, long separateNs, long fusedRead,
+                               long fusedWritten, long fusedNs) {
+        Log.i(TAG, what + " separate: passes " + separatePasses + ", read "
+                + separateRead / 1024 + "KB, wrote " + separateWritten / 1024 + "KB, "
+                + separateNs / 1000 + "us; fused: passes 1, read " + fusedRead / 1024
+                + "KB, wrote " + fusedWritten / 1024 + "KB, " + fusedNs / 1000 + "us");
+    }
+
+    /* Port of the horizontal case of nativeFlipNV21 */
+    private static void flipHorizontal(byte[] buf, int stride, int height, int width) {
+        int ySize = stride * height;
+        for (int x = 0; x < width / 2; x++) {
+            for (int y = 0; y < height; y++) {
+                byte t = buf[y * stride + x];
+                buf[y * stride + x] = buf[y * stride + width - 1 - x];
+                buf[y * stride + width - 1 - x] = t;
+            }
+        }
+        for (int x = 0; x < width / 2; x += 2) {
+            for (int y = 0; y < height / 2; y++) {
+                int a = ySize + y * stride + x;
+                int b = ySize + y * stride + width - 2 - x;
+                byte v = buf[a];
+                byte u = buf[a + 1];
+                buf[a] = buf[b];
+                buf[a + 1] = buf[b + 1];
+                buf[b] = v;
+                buf[b + 1] = u;
+            }
+        }
+    }
+}
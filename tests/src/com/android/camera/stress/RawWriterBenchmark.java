@@ -0,0 +1,152 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.MappedRawWriter;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Saves a synthetic RAW10 frame plus a JPEG the old way, through a heap copy and a
+ * FileOutputStream, and through MappedRawWriter. Reports throughput and how far the used
+ * heap rises above its starting point while each path runs.
+ */
+@LargeTest
+public class RawWriterBenchmark extends TestCase {
+    private static final String TAG = "RawWriterBenchmark";
+    private static final int WIDTH = 4208;
+    private static final int HEIGHT = 3120;
+    private static final int ROW_BYTES = WIDTH * 10 / 8;
+    private static final int ROW_STRIDE = (ROW_BYTES + 63) & ~63;
+    private static final int JPEG_SIZE = 5 * 1024 * 1024;
+    private static final int ITERATIONS = 5;
+
+    private static class HeapSampler extends Thread {
+        private final long mBaseline;
+        private volatile boolean mRunning = true;
+        private volatile long mPeak;
+
+        HeapSampler() {
+            Runtime rt = Runtime.getRuntime();
+            mBaseline = rt.totalMemory() - rt.freeMemory();
+        }
+
+        @Override
+        public void run() {
+            Runtime rt = Runtime.getRuntime();
+            while (mRunning) {
+                long used = rt.totalMemory() - rt.freeMemory();
+                if (used > mPeak) {
+                    mPeak = used;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long finish() throws InterruptedException {
+            mRunning = false;
+            join();
+            return Math.max(0, mPeak - mBaseline);
+        }
+    }
+
+    public void testRawPlusJpeg() throws Exception {
+        ByteBuffer plane = ByteBuffer.allocateDirect(ROW_STRIDE * (HEIGHT - 1) + ROW_BYTES);
+        for (int i = 0; i < plane.capacity(); i += 4096) {
+            plane.put(i, (byte) i);
+        }
+        byte[] jpeg = new byte[JPEG_SIZE];
+        File raw = File.createTempFile("raw_bench", ".raw");
+        File jpg = File.createTempFile("raw_bench", ".jpg");
+        try {
+            long rawBytes = (long) ROW_BYTES * HEIGHT;
+
+            System.gc();
+            HeapSampler sampler = new HeapSampler();
+            sampler.start();
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                ByteBuffer src = plane.duplicate();
+                byte[] data = new byte[src.remaining()];
+                src.get(data);
+                writeFile(raw, data);
+                writeFile(jpg, jpeg);
+            }
+            long heapNs = System.nanoTime() - t0;
+            long heapPeak = sampler.finish();
+
+            System.gc();
+            sampler = new HeapSampler();
+            sampler.start();
+            t0 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                assertEquals(rawBytes, MappedRawWriter.write(raw.getPath(), plane, ROW_BYTES,
+                        ROW_STRIDE, HEIGHT));
+                writeFile(jpg, jpeg);
+            }
+            long mappedNs = System.nanoTime() - t0;
+            long mappedPeak = sampler.finish();
+            assertEquals(rawBytes, raw.length());
+
+            long total = (rawBytes + JPEG_SIZE) * ITERATIONS;
+            Log.i(TAG, "heap copy: " + mbPerSecond(total, heapNs) + " MB/s, peak heap +"
+                    + heapPeak / 1024 + " KB");
+            Log.i(TAG, "mapped: " + mbPerSecond(total, mappedNs) + " MB/s, peak heap +"
+                    + mappedPeak / 1024 + " KB");
+        } finally {
+            raw.delete();
+            jpg.delete();
+        }
+    }
+
+    private static long mbPerSecond(long bytes, long ns) {
+        return (long) (bytes / (1024.0 * 1024.0) / (ns / 1e9));
+    }
+
+    private static void writeFile(File f, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.util.XmpReader;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares reading the XMP packet of a 12 MB panorama with the Section parser that
+ * XmpUtil.extractXMPMeta used before, with XmpReader on a file stream and with
+ * XmpReader on a mapped file. Reports the bytes copied out of the file, the number
+ * of read calls and the wall time per image. XMP parsing is left out, it costs the
+ * same for all three.
+ */
+@LargeTest
+public class XmpReaderBenchmark extends TestCase {
+    private static final String TAG = "XmpReaderBenchmark";
+    private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    private static final int SCAN_SIZE = 12 * 1024 * 1024;
+    private static final int EXIF_SIZE = 64000;
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 20;
+
+    public void testPanorama() throws Exception {
+        File file = File.createTempFile("xmp_pano", ".jpg");
+        try {
+            byte[] expected = writePanorama(file);
+            long[] legacy = new long[3];
+            long[] stream = new long[3];
+            long[] mapped = new long[3];
+            for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+                boolean measure = i >= WARMUP;
+
+                CountingInputStream in = new CountingInputStream(new FileInputStream(file));
+                long t0 = System.nanoTime();
+                byte[] packet = readLegacy(in);
+                long t1 = System.nanoTime();
+                in.close();
+                assertTrue(Arrays.equals(expected, packet));
+                if (measure) {
+                    add(legacy, in.mBytes, in.mCalls, t1 - t0);
+                }
+
+                in = new CountingInputStream(new FileInputStream(file));
+                t0 = System.nanoTime();
+                packet = XmpReader.read(in).getStandardPacket();
+                t1 = System.nanoTime();
+                in.close();
+                assertTrue(Arrays.equals(expected, packet));
+                if (measure) {
+                    add(stream, in.mBytes, in.mCalls, t1 - t0);
+                }
+
+                t0 = System.nanoTime();
+                XmpReader reader = XmpReader.read(file);
+                t1 = System.nanoTime();
+                assertTrue(Arrays.equals(expected, reader.getStandardPacket()));
+                if (measure) {
+                    add(mapped, reader.getBytesRead(), 0, t1 - t0);
+                }
+            }
+            report("sections", legacy);
+            report("stream", stream);
+            report("mapped", mapped);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void add(long[] totals, long bytes, long calls, long ns) {
+        totals[0] += bytes;
+        totals[1] += calls;
+        totals[2] += ns;
+    }
+
+    private static void report(String name, long[] totals) {
+        Log.i(TAG, name + ": " + totals[0] / ITERATIONS + " bytes read in "
+                + totals[1] / ITERATIONS + " calls, " + totals[2] / ITERATIONS / 1000
+                + " us/image");
+    }
+
+    /*
+     * The meta only walk of XmpUtil.parse() followed by the XMP header check of
+     * extractXMPMeta(), as they were before XmpReader.
+     */
+    private static byte[] readLegacy(InputStream is) throws IOException {
+        if (is.read() != 0xff || is.read() != 0xd8) {
+            return null;
+        }
+        byte[] xmp = null;
+        int c;
+        while ((c = is.read()) != -1) {
+            if (c != 0xff) {
+                return null;
+            }
+            while ((c = is.read()) == 0xff) {
+            }
+            if (c == -1 || c == 0xda) {
+                break;
+            }
+            int length = is.read() << 8 | is.read();
+            if (c == 0xe1) {
+                byte[] data = new byte[length - 2];
+                is.read(data, 0, length - 2);
+                if (xmp == null && data.length >= XMP_HEADER.length()
+                        && new String(data, 0, XMP_HEADER.length(), "UTF-8").equals(XMP_HEADER)) {
+                    xmp = data;
+                }
+            } else {
+                is.skip(length - 2);
+            }
+        }
+        if (xmp == null) {
+            return null;
+        }
+        int end = xmp.length;
+        for (int i = xmp.length - 1; i >= 1; --i) {
+            if (xmp[i] == '>' && xmp[i - 1] != '?') {
+                end = i + 1;
+                break;
+            }
+        }
+        return Arrays.copyOfRange(xmp, XMP_HEADER.length(), end);
+    }
+
+    // SOI, Exif APP1 with a thumbnail sized payload, GPano XMP, DQT, SOF0, SOS, scan, EOI.
+    private static byte[] writePanorama(File file) throws IOException {
+        String packet = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF"
+                + " xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+                + "<rdf:Description rdf:about=\"\""
+                + " xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\""
+                + " GPano:UsePanoramaViewer=\"True\" GPano:ProjectionType=\"equirectangular\""
+                + " GPano:CroppedAreaImageWidthPixels=\"8192\""
+                + " GPano:CroppedAreaImageHeightPixels=\"1536\""
+                + " GPano:FullPanoWidthPixels=\"8192\" GPano:FullPanoHeightPixels=\"4096\""
+                + " GPano:CroppedAreaLeftPixels=\"0\" GPano:CroppedAreaTopPixels=\"1280\"/>"
+                + "</rdf:RDF></x:xmpmeta>";
+        Random random = new Random(0x5eed);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] {(byte) 0xFF, (byte) 0xD8});
+            byte[] exif = new byte[EXIF_SIZE];
+            random.nextBytes(exif);
+            System.arraycopy("Exif\0\0".getBytes("ISO-8859-1"), 0, exif, 0, 6);
+            writeSegment(out, 0xE1, exif);
+            writeSegment(out, 0xE1, (XMP_HEADER + packet).getBytes("UTF-8"));
+            writeSegment(out, 0xDB, new byte[130]);
+            writeSegment(out, 0xC0, new byte[15]);
+            writeSegment(out, 0xDA, new byte[10]);
+            byte[] scan = new byte[SCAN_SIZE];
+            random.nextBytes(scan);
+            out.write(scan);
+            out.write(new byte[] {(byte) 0xFF, (byte) 0xD9});
+        } finally {
+            out.close();
+        }
+        return packet.getBytes("UTF-8");
+    }
+
+    private static void writeSegment(FileOutputStream out, int marker, byte[] data)
+            throws IOException {
+        out.write(new byte[] {(byte) 0xFF, (byte) marker, (byte) ((data.length + 2) >> 8),
+                (byte) (data.length + 2)});
+        out.write(data);
+    }
+
+    /* Counts the bytes and calls that reach the file, skip() seeks and is not counted */
+    private static class CountingInputStream extends FilterInputStream {
+        long mBytes;
+        long mCalls;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            mCalls++;
+            int b = in.read();
+            if (b >= 0) {
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            mCalls++;
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                mBytes += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.ZSLRing;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives synthetic image and metadata arrival with jitter through ZSLRing and reports
+ * pairing latency, drop rate and selection cost for buffer sizes 5 to 32.
+ */
+@LargeTest
+public class ZSLRingBenchmark extends TestCase {
+    private static final String TAG = "ZSLRingBenchmark";
+    private static final int[] BUFFER_SIZES = {5, 8, 16, 32};
+    private static final int FRAME_COUNT = 3000;
+    private static final long FRAME_INTERVAL_NS = 33333333L;
+    private static final int MAX_JITTER_US = 4000;
+    private static final int META_LOSS_PERCENT = 1;
+
+    public void testPairingLatencyAndDrops() throws Exception {
+        for (int size : BUFFER_SIZES) {
+            runOnce(size);
+        }
+    }
+
+    private void runOnce(int size) throws Exception {
+        final AtomicLong released = new AtomicLong();
+        final ZSLRing<Long, Long> ring = new ZSLRing<>(size, new ZSLRing.Releaser<Long, Long>() {
+            @Override
+            public void releaseImage(Long image) {
+                released.incrementAndGet();
+            }
+
+            @Override
+            public void releaseMeta(Long meta) {
+            }
+        });
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread imageThread = new Thread(() -> produce(ring, start, true, 1));
+        Thread metaThread = new Thread(() -> produce(ring, start, false, 2));
+        imageThread.start();
+        metaThread.start();
+
+        long selectNs = 0;
+        int selections = 0;
+        start.countDown();
+        while (imageThread.isAlive() || metaThread.isAlive()) {
+            long begin = System.nanoTime();
+            for (int age = 0; age < ring.capacity(); age++) {
+                ZSLRing.Slot<Long, Long> slot = ring.get(age);
+                if (slot != null && slot.isPaired()) {
+                    break;
+                }
+            }
+            selectNs += System.nanoTime() - begin;
+            selections++;
+            Thread.sleep(5);
+        }
+        imageThread.join();
+        metaThread.join();
+        ring.close();
+
+        long paired = ring.getPairedCount();
+        Log.i(TAG, "size=" + size
+                + " paired=" + paired
+                + " pairRate=" + (paired * 100f / FRAME_COUNT) + "%"
+                + " droppedImages=" + ring.getDroppedImageCount()
+                + " droppedMetas=" + ring.getDroppedMetaCount()
+                + " avgPairingUs=" + ring.getAveragePairingLatencyNs() / 1000
+                + " maxPairingUs=" + ring.getMaxPairingLatencyNs() / 1000
+                + " avgSelectNs=" + (selections == 0 ? 0 : selectNs / selections));
+        assertEquals(FRAME_COUNT, released.get());
+        assertTrue(paired >= FRAME_COUNT * (100 - META_LOSS_PERCENT * 2) / 100);
+    }
+
+    private static void produce(ZSLRing<Long, Long> ring, CountDownLatch start,
+                                boolean image, long seed) {
+        Random random = new Random(seed);
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            return;
+        }
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            long timestamp = (i + 1) * FRAME_INTERVAL_NS;
+            if (image) {
+                ring.offerImage(timestamp, timestamp);
+            } else if (random.nextInt(100) >= META_LOSS_PERCENT) {
+                ring.offerMeta(timestamp, timestamp);
+            }
+            // Compressed timeline: 1/100 of the real frame interval plus jitter
+            long sleepUs = FRAME_INTERVAL_NS / 100000 + random.nextInt(MAX_JITTER_US / 10);
+            try {
+                Thread.sleep(sleepUs / 1000, (int) (sleepUs % 1000) * 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
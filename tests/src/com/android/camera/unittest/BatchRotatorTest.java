@@ -0,0 +1,255 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.MediaStore.Images;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.ImageTaskManager;
+import com.android.camera.data.BatchRotator;
+import com.android.camera.exif.ExifInterface;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class BatchRotatorTest extends TestCase {
+    private static final String AUTHORITY = "com.android.camera.tests.media";
+    private static final Uri TABLE = Uri.parse("content://" + AUTHORITY + "/images");
+    private static final int THREADS = 2;
+
+    private FakeProvider mProvider;
+    private MockContentResolver mResolver;
+    private BatchRotator mRotator;
+    private final ArrayList<File> mFiles = new ArrayList<>();
+
+    private static class FakeProvider extends MockContentProvider {
+        // MediaStore rows by id: path, orientation, mime type
+        final Map<String, Object[]> mRows = new HashMap<>();
+        final Map<String, ContentValues> mUpdates = new HashMap<>();
+        volatile String mBrokenId;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            String id = uri.getLastPathSegment();
+            if (id.equals(mBrokenId)) {
+                throw new IllegalStateException("broken row");
+            }
+            MatrixCursor cursor = new MatrixCursor(projection);
+            synchronized (this) {
+                Object[] row = mRows.get(id);
+                if (row != null) {
+                    cursor.addRow(row);
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            synchronized (this) {
+                mUpdates.put(uri.getLastPathSegment(), values);
+            }
+            return 1;
+        }
+    }
+
+    private static class Reports implements ImageTaskManager.TaskListener {
+        final CountDownLatch mLatch;
+        final List<Uri> mQueued = new ArrayList<>();
+        final Map<Uri, String> mRotatedPaths = new HashMap<>();
+        final Map<Uri, String> mFailedPaths = new HashMap<>();
+        final List<Integer> mProgress = new ArrayList<>();
+
+        Reports(int count) {
+            mLatch = new CountDownLatch(count);
+        }
+
+        @Override
+        public synchronized void onTaskQueued(String filePath, Uri imageUri) {
+            assertNull(filePath);
+            mQueued.add(imageUri);
+        }
+
+        @Override
+        public synchronized void onTaskDone(String filePath, Uri imageUri) {
+            assertFalse(mRotatedPaths.containsKey(imageUri));
+            mRotatedPaths.put(imageUri, filePath);
+        }
+
+        @Override
+        public synchronized void onTaskProgress(String filePath, Uri imageUri, int progress) {
+            assertFalse(mFailedPaths.containsKey(imageUri));
+            if (!mRotatedPaths.containsKey(imageUri)) {
+                mFailedPaths.put(imageUri, filePath);
+            } else {
+                assertEquals(mRotatedPaths.get(imageUri), filePath);
+            }
+            mProgress.add(progress);
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mLatch.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mProvider = new FakeProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(AUTHORITY, mProvider);
+        mRotator = new BatchRotator(mResolver, THREADS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRotator.shutdown();
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    public void testRotatesJpegsAndUpdatesRows() throws Exception {
+        String first = addJpeg("1", 0);
+        String second = addJpeg("2", 270);
+        Uri firstUri = uri("1");
+        Uri secondUri = uri("2");
+
+        Reports reports = new Reports(2);
+        mRotator.rotate(Arrays.asList(firstUri, secondUri), true, reports);
+        reports.await();
+
+        assertEquals(Arrays.asList(firstUri, secondUri), reports.mQueued);
+        assertTrue(reports.mFailedPaths.isEmpty());
+        // The listener gets the file from the row, not the path of the content uri
+        assertEquals(first, reports.mRotatedPaths.get(firstUri));
+        assertEquals(second, reports.mRotatedPaths.get(secondUri));
+        assertEquals(Arrays.asList(50, 100), sorted(reports.mProgress));
+
+        assertEquals(90, (int) mProvider.mUpdates.get("1").getAsInteger(
+                Images.Media.ORIENTATION));
+        assertEquals(0, (int) mProvider.mUpdates.get("2").getAsInteger(
+                Images.Media.ORIENTATION));
+        assertEquals(new File(first).length(),
+                (long) mProvider.mUpdates.get("1").getAsLong(Images.Media.SIZE));
+        assertEquals(ExifInterface.Orientation.RIGHT_TOP, readOrientation(first));
+        assertEquals(ExifInterface.Orientation.TOP_LEFT, readOrientation(second));
+    }
+
+    public void testReportsEveryFailure() throws Exception {
+        String jpeg = addJpeg("1", 90);
+        mProvider.mRows.put("2", new Object[] {"/no/such/file.jpg", 0,
+                "image/jpeg"});
+        mProvider.mRows.put("3", new Object[] {jpeg, 0, "image/png"});
+        mProvider.mBrokenId = "4";
+        List<Uri> uris = Arrays.asList(uri("1"), uri("2"), uri("3"), uri("4"), uri("5"));
+
+        Reports reports = new Reports(uris.size());
+        mRotator.rotate(uris, false, reports);
+        reports.await();
+
+        assertEquals(uris, reports.mQueued);
+        assertEquals(1, reports.mRotatedPaths.size());
+        assertEquals(jpeg, reports.mRotatedPaths.get(uri("1")));
+        assertEquals(0, (int) mProvider.mUpdates.get("1").getAsInteger(
+                Images.Media.ORIENTATION));
+        assertEquals(4, reports.mFailedPaths.size());
+        assertEquals("/no/such/file.jpg", reports.mFailedPaths.get(uri("2")));
+        assertEquals(jpeg, reports.mFailedPaths.get(uri("3")));
+        // A row that cannot be read has no path
+        assertNull(reports.mFailedPaths.get(uri("4")));
+        assertNull(reports.mFailedPaths.get(uri("5")));
+        assertTrue(reports.mFailedPaths.containsKey(uri("5")));
+        assertEquals(Arrays.asList(20, 40, 60, 80, 100), sorted(reports.mProgress));
+        assertEquals(1, mProvider.mUpdates.size());
+    }
+
+    private static Uri uri(String id) {
+        return Uri.parse(TABLE + "/" + id);
+    }
+
+    private String addJpeg(String id, int orientation) throws IOException {
+        File file = File.createTempFile("batch_rotator", ".jpg");
+        mFiles.add(file);
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(orientation);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(exif.writeExif(buildImage()));
+        } finally {
+            out.close();
+        }
+        mProvider.mRows.put(id, new Object[] {file.getPath(), orientation, "image/jpeg"});
+        return file.getPath();
+    }
+
+    // SOI, a quantization table segment, a payload and EOI
+    private static byte[] buildImage() {
+        byte[] jpeg = new byte[1024];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        jpeg[3] = (byte) 0xDB;
+        jpeg[jpeg.length - 2] = (byte) 0xFF;
+        jpeg[jpeg.length - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static int readOrientation(String path) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(path);
+        return exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+    }
+
+    private static List<Integer> sorted(List<Integer> values) {
+        ArrayList<Integer> copy = new ArrayList<>(values);
+        Collections.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.DebugDumpService;
+import com.android.camera.imageprocessor.Lz4FrameWriter;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class DebugDumpServiceTest extends TestCase {
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = File.createTempFile("dump", "");
+        mRoot.delete();
+        mRoot.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testLz4RoundTrip() throws IOException {
+        Random random = new Random(7);
+        byte[] noise = new byte[100000];
+        random.nextBytes(noise);
+        // Flat areas with a little sensor noise, and more than one block
+        byte[] frame = new byte[5 * 1024 * 1024 + 123];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (((i / 4096) & 0x3f) + (random.nextInt(8) == 0 ? 1 : 0));
+        }
+        byte[][] inputs = {
+                new byte[0], new byte[] { 42 }, new byte[64 * 1024], noise, frame,
+                "abcabcabcabcabcabcabcabcabcabcabcabc".getBytes()
+        };
+        Lz4FrameWriter writer = new Lz4FrameWriter();
+        for (byte[] input : inputs) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long stored = writer.write(out, input, 0, input.length);
+            assertEquals(out.size(), stored);
+            assertTrue(Arrays.equals(input, Lz4FrameWriter.decode(out.toByteArray())));
+        }
+    }
+
+    public void testLz4ShrinksFlatFrames() throws IOException {
+        byte[] frame = new byte[1024 * 1024];
+        Arrays.fill(frame, 0, frame.length / 2, (byte) 16);
+        Arrays.fill(frame, frame.length / 2, frame.length, (byte) 128);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Lz4FrameWriter().write(out, frame, 0, frame.length);
+        assertTrue(out.size() < frame.length / 100);
+    }
+
+    public void testWritesSessionWithManifest() throws Exception {
+        DebugDumpService service = new DebugDumpService(mRoot, 1024 * 1024, true);
+        byte[] yuv = new byte[64 * 48 * 3 / 2];
+        assertTrue(service.dump("frame", "nv21", yuv));
+        assertTrue(service.dump("depth", "txt", "1 2 3".getBytes()));
+        assertTrue(service.dump("encoded", "jpg", 16, () -> new byte[] { 1, 2, 3, 4 }));
+        service.endSession();
+        assertTrue(service.waitForIdle(5000));
+
+        File[] sessions = mRoot.listFiles();
+        assertEquals(1, sessions.length);
+        File session = sessions[0];
+        assertTrue(Arrays.equals(yuv, Lz4FrameWriter.decode(
+                read(new File(session, "frame.nv21.lz4")))));
+        assertEquals("1 2 3", new String(read(new File(session, "depth.txt"))));
+        assertEquals(4, read(new File(session, "encoded.jpg")).length);
+
+        List<String> lines = readLines(new File(session, "manifest.txt"));
+        assertEquals(5, lines.size());
+        assertTrue(lines.get(1).startsWith("frame\tnv21+lz4\t"));
+        assertTrue(lines.get(2).startsWith("depth\ttxt\t"));
+        assertTrue(lines.get(3).startsWith("encoded\tjpg\t"));
+        assertEquals("# dropped 0 dumps, 0 bytes", lines.get(4));
+
+        DebugDumpService.Stats stats = service.getStats();
+        assertEquals(3, stats.written);
+        assertEquals(0, stats.dropped);
+        assertEquals(yuv.length + 5 + 4, stats.rawBytes);
+    }
+
+    public void testDropsWhenQueueIsFull() throws Exception {
+        DebugDumpService service = new DebugDumpService(mRoot, 1000, false);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // The first dump is always taken, even above the limit
+        assertTrue(service.dump("slow", "bin", 2000, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new byte[10];
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertFalse(service.dump("a", "bin", new byte[100]));
+        assertFalse(service.dump("b", "bin", new byte[200]));
+        release.countDown();
+        assertTrue(service.waitForIdle(5000));
+        assertTrue(service.dump("c", "bin", new byte[100]));
+        service.endSession();
+        assertTrue(service.waitForIdle(5000));
+
+        DebugDumpService.Stats stats = service.getStats();
+        assertEquals(2, stats.written);
+        assertEquals(2, stats.dropped);
+        assertEquals(300, stats.droppedBytes);
+        assertEquals(2000, stats.peakQueuedBytes);
+        List<String> lines = readLines(new File(mRoot.listFiles()[0], "manifest.txt"));
+        assertEquals("# dropped 2 dumps, 300 bytes", lines.get(lines.size() - 1));
+    }
+
+    public void testFailedEncoderIsCounted() throws Exception {
+        DebugDumpService service = new DebugDumpService(mRoot, 1024, false);
+        assertTrue(service.dump("broken", "bin", 10, () -> {
+            throw new IOException("no data");
+        }));
+        assertTrue(service.waitForIdle(5000));
+        assertEquals(1, service.getStats().failed);
+        assertEquals(0, service.getStats().written);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifRewriter;
+import com.android.camera.exif.ExifTag;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Checks that ExifRewriter patches the orientation in place when the tag is present,
+ * and otherwise writes the same file as ExifInterface.forceRewriteExif.
+ */
+@SmallTest
+public class ExifRewriterTest extends TestCase {
+    private static final int IMAGE_SIZE = 100000;
+
+    private File mFile;
+    private File mReference;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("exif_rewriter", ".jpg");
+        mReference = File.createTempFile("exif_rewriter_reference", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mReference.delete();
+    }
+
+    public void testPatchesExistingTagInPlace() throws Exception {
+        byte[] jpeg = buildJpeg(true);
+        writeFile(mFile, jpeg);
+        writeFile(mReference, jpeg);
+
+        assertEquals(ExifRewriter.RESULT_IN_PLACE,
+                ExifRewriter.rewrite(mFile.getPath(), orientation(180)));
+        new ExifInterface().forceRewriteExif(mReference.getPath(), orientation(180));
+        byte[] rewritten = readFile(mFile);
+        assertEquals(jpeg.length, rewritten.length);
+        assertTrue(Arrays.equals(readFile(mReference), rewritten));
+        assertEquals(ExifInterface.Orientation.BOTTOM_LEFT, readOrientation(rewritten));
+    }
+
+    public void testRewritesHeaderForNewTag() throws Exception {
+        byte[] jpeg = buildJpeg(false);
+        writeFile(mFile, jpeg);
+        writeFile(mReference, jpeg);
+
+        assertEquals(ExifRewriter.RESULT_HEADER_REWRITTEN,
+                ExifRewriter.rewrite(mFile.getPath(), orientation(90)));
+        new ExifInterface().forceRewriteExif(mReference.getPath(), orientation(90));
+        byte[] rewritten = readFile(mFile);
+        assertTrue(rewritten.length > jpeg.length);
+        assertTrue(Arrays.equals(readFile(mReference), rewritten));
+        assertEquals(ExifInterface.Orientation.RIGHT_TOP, readOrientation(rewritten));
+
+        // The image data follows the new header unchanged
+        byte[] tail = Arrays.copyOfRange(rewritten, rewritten.length - IMAGE_SIZE,
+                rewritten.length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(jpeg, jpeg.length - IMAGE_SIZE,
+                jpeg.length), tail));
+        assertFalse(new File(mFile.getPath() + ".exif.tmp").exists());
+    }
+
+    public void testAddsExifToPlainJpeg() throws Exception {
+        byte[] jpeg = buildImage();
+        writeFile(mFile, jpeg);
+
+        assertEquals(ExifRewriter.RESULT_HEADER_REWRITTEN,
+                ExifRewriter.rewrite(mFile.getPath(), orientation(270)));
+        byte[] rewritten = readFile(mFile);
+        assertEquals(ExifInterface.Orientation.RIGHT_BOTTOM, readOrientation(rewritten));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(jpeg, 2, jpeg.length),
+                Arrays.copyOfRange(rewritten, rewritten.length - jpeg.length + 2,
+                        rewritten.length)));
+    }
+
+    private static Collection<ExifTag> orientation(int degrees) {
+        ExifInterface exif = new ExifInterface();
+        return Collections.singletonList(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(degrees)));
+    }
+
+    private static int readOrientation(byte[] jpeg) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        return exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+    }
+
+    private static byte[] buildJpeg(boolean withOrientation) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Rewriter"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Test"));
+        if (withOrientation) {
+            exif.addOrientationTag(0);
+        }
+        exif.addISO(200);
+        return exif.writeExif(buildImage());
+    }
+
+    // SOI, a quantization table segment, random payload and EOI
+    private static byte[] buildImage() {
+        byte[] jpeg = new byte[IMAGE_SIZE + 2];
+        new Random(25).nextBytes(jpeg);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        jpeg[3] = (byte) 0xDB;
+        jpeg[jpeg.length - 2] = (byte) 0xFF;
+        jpeg[jpeg.length - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = in.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.android.camera.util.ExtendedXmpWriter;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class ExtendedXmpWriterTest extends TestCase {
+    private static final String DEPTH_NS = "http://ns.google.com/photos/1.0/depthmap/";
+    private static final String IMAGE_NS = "http://ns.google.com/photos/1.0/image/";
+    private static final String SIGNATURE = "http://ns.adobe.com/xmp/extension/\0";
+
+    public void testSegmentsCarryGuidLengthAndOffsets() throws Exception {
+        Random random = new Random(3);
+        byte[] depth = new byte[3001];
+        byte[] image = new byte[200000];
+        random.nextBytes(depth);
+        random.nextBytes(image);
+        ExtendedXmpWriter writer = new ExtendedXmpWriter();
+        writer.addProperty(DEPTH_NS, "GDepth", "Data", depth);
+        writer.addProperty(IMAGE_NS, "GImage", "Data", image);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = writer.writeSections(out);
+        assertEquals(out.size(), written);
+        assertEquals(writer.getSectionsLength(), written);
+
+        String guid = writer.getGuid();
+        byte[] packet = reassemble(out.toByteArray(), guid, writer.getLength());
+        assertEquals(guid, md5(packet));
+
+        String xmp = new String(packet, "UTF-8");
+        assertTrue(Arrays.equals(depth, Base64.decode(getValue(xmp, "GDepth:Data"),
+                Base64.DEFAULT)));
+        assertTrue(Arrays.equals(image, Base64.decode(getValue(xmp, "GImage:Data"),
+                Base64.DEFAULT)));
+        assertTrue(xmp.contains("xmlns:GDepth=\"" + DEPTH_NS + "\""));
+        assertTrue(xmp.endsWith("/></rdf:RDF></x:xmpmeta>"));
+    }
+
+    public void testBase64MatchesPlatform() throws Exception {
+        Random random = new Random(5);
+        int[] lengths = { 0, 1, 2, 3, 4, 5, 3 * 1024 - 1, 3 * 1024, 3 * 1024 + 1, 3 * 1024 + 2,
+                10000 };
+        for (int length : lengths) {
+            byte[] value = new byte[length];
+            random.nextBytes(value);
+            ExtendedXmpWriter writer = new ExtendedXmpWriter();
+            writer.addProperty(IMAGE_NS, "GImage", "Data", value);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.writeSections(out);
+            String xmp = new String(reassemble(out.toByteArray(), writer.getGuid(),
+                    writer.getLength()), "UTF-8");
+            assertEquals("length " + length, Base64.encodeToString(value, Base64.NO_WRAP),
+                    getValue(xmp, "GImage:Data"));
+        }
+    }
+
+    public void testGuidFollowsContent() {
+        ExtendedXmpWriter a = new ExtendedXmpWriter();
+        a.addProperty(IMAGE_NS, "GImage", "Data", new byte[] { 1, 2, 3 });
+        ExtendedXmpWriter b = new ExtendedXmpWriter();
+        b.addProperty(IMAGE_NS, "GImage", "Data", new byte[] { 1, 2, 4 });
+        assertEquals(32, a.getGuid().length());
+        assertFalse(a.getGuid().equals(b.getGuid()));
+        assertEquals(a.getGuid().toUpperCase(), a.getGuid());
+    }
+
+    /* Checks every segment header and returns the packet they carry */
+    private static byte[] reassemble(byte[] sections, String guid, int fullLength)
+            throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(sections);
+        byte[] packet = new byte[fullLength];
+        int expectedOffset = 0;
+        while (in.hasRemaining()) {
+            assertEquals((short) 0xffe1, in.getShort());
+            int segmentLength = in.getShort() & 0xffff;
+            int portion = segmentLength - 2 - ExtendedXmpWriter.HEADER_SIZE;
+            assertTrue(portion > 0 && portion <= ExtendedXmpWriter.MAX_PORTION_SIZE);
+            byte[] signature = new byte[SIGNATURE.length()];
+            in.get(signature);
+            assertEquals(SIGNATURE, new String(signature, "UTF-8"));
+            byte[] id = new byte[32];
+            in.get(id);
+            assertEquals(guid, new String(id, "UTF-8"));
+            assertEquals(fullLength, in.getInt());
+            assertEquals(expectedOffset, in.getInt());
+            in.get(packet, expectedOffset, portion);
+            expectedOffset += portion;
+        }
+        assertEquals(fullLength, expectedOffset);
+        return packet;
+    }
+
+    private static String getValue(String xmp, String name) {
+        int start = xmp.indexOf(" " + name + "=\"") + name.length() + 3;
+        return xmp.substring(start, xmp.indexOf('"', start));
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+            sb.append(String.format("%02X", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
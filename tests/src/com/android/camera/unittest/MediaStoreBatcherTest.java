@@ -0,0 +1,227 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.BaseColumns;
+import android.provider.MediaStore.MediaColumns;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.MediaStoreBatcher;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class MediaStoreBatcherTest extends TestCase {
+    private static final String AUTHORITY = "com.android.camera.tests.media";
+    private static final Uri TABLE = Uri.parse("content://" + AUTHORITY + "/images");
+
+    private HandlerThread mThread;
+    private FakeProvider mProvider;
+    private MockContentResolver mResolver;
+
+    private static class FakeProvider extends MockContentProvider {
+        final ArrayList<String> mTitles = new ArrayList<>();
+        final ArrayList<String> mPaths = new ArrayList<>();
+        volatile int mBatches;
+        volatile boolean mFailBatches;
+        // Rows a failing batch inserts before it throws, like a provider without
+        // a transaction
+        volatile int mFailAfter;
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            synchronized (this) {
+                mTitles.add(values.getAsString("title"));
+                mPaths.add(values.getAsString(MediaColumns.DATA));
+                return ContentUris.withAppendedId(uri, mTitles.size());
+            }
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(new String[] {BaseColumns._ID});
+            synchronized (this) {
+                int index = mPaths.indexOf(selectionArgs[0]);
+                if (index >= 0) {
+                    cursor.addRow(new Object[] {index + 1});
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+                throws OperationApplicationException {
+            ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+            for (int i = 0; i < ops.size(); i++) {
+                if (mFailBatches && i == mFailAfter) {
+                    throw new OperationApplicationException("rejected");
+                }
+                results[i] = ops.get(i).apply(this, results, i);
+            }
+            mBatches++;
+            return results;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mThread = new HandlerThread("MediaStoreBatcherTest");
+        mThread.start();
+        mProvider = new FakeProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(AUTHORITY, mProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+    }
+
+    private static ContentValues row(int i) {
+        ContentValues values = new ContentValues();
+        values.put("title", "IMG_" + i);
+        values.put(MediaColumns.DATA, "/sdcard/DCIM/Camera/IMG_" + i + ".jpg");
+        return values;
+    }
+
+    public void testFlushByCountKeepsOrder() throws Exception {
+        MediaStoreBatcher batcher = new MediaStoreBatcher(TABLE, 4, 60000,
+                mThread.getLooper());
+        final CountDownLatch latch = new CountDownLatch(8);
+        final CountDownLatch queued = new CountDownLatch(1);
+        final ArrayList<Uri> uris = new ArrayList<>();
+        // Hold the flush until every row is queued, so they all go in one flush
+        new Handler(mThread.getLooper()).post(() -> {
+            try {
+                queued.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 8; i++) {
+            batcher.insert(mResolver, row(i), new MediaStoreBatcher.Callback() {
+                @Override
+                public void onInserted(Uri uri) {
+                    uris.add(uri);
+                    latch.countDown();
+                }
+            });
+        }
+        queued.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // One flush of 8 rows is split into batches of at most 4
+        assertEquals(2, mProvider.mBatches);
+        assertEquals(2, batcher.getBatchCount());
+        assertEquals(8, batcher.getRowCount());
+        for (int i = 0; i < 8; i++) {
+            assertEquals("IMG_" + i, mProvider.mTitles.get(i));
+            assertEquals(i + 1, ContentUris.parseId(uris.get(i)));
+        }
+    }
+
+    public void testFlushByTimeWindow() throws Exception {
+        MediaStoreBatcher batcher = new MediaStoreBatcher(TABLE, 100, 50,
+                mThread.getLooper());
+        final CountDownLatch latch = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            batcher.insert(mResolver, row(i), new MediaStoreBatcher.Callback() {
+                @Override
+                public void onInserted(Uri uri) {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mProvider.mBatches);
+        assertEquals(0, batcher.getPendingCount());
+    }
+
+    public void testRejectedBatchFallsBackToSingleInserts() throws Exception {
+        mProvider.mFailBatches = true;
+        MediaStoreBatcher batcher = new MediaStoreBatcher(TABLE, 100, 60000,
+                mThread.getLooper());
+        final ArrayList<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            batcher.insert(mResolver, row(i), new MediaStoreBatcher.Callback() {
+                @Override
+                public void onInserted(Uri uri) {
+                    uris.add(uri);
+                }
+            });
+        }
+        batcher.flush();
+        assertEquals(0, mProvider.mBatches);
+        assertEquals(3, uris.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, ContentUris.parseId(uris.get(i)));
+        }
+    }
+
+    public void testPartialBatchOnlyRetriesMissingRows() throws Exception {
+        mProvider.mFailBatches = true;
+        mProvider.mFailAfter = 2;
+        MediaStoreBatcher batcher = new MediaStoreBatcher(TABLE, 100, 60000,
+                mThread.getLooper());
+        final ArrayList<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            batcher.insert(mResolver, row(i), new MediaStoreBatcher.Callback() {
+                @Override
+                public void onInserted(Uri uri) {
+                    uris.add(uri);
+                }
+            });
+        }
+        batcher.flush();
+        assertEquals(0, mProvider.mBatches);
+        assertEquals(4, mProvider.mTitles.size());
+        assertEquals(4, uris.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("IMG_" + i, mProvider.mTitles.get(i));
+            assertEquals(i + 1, ContentUris.parseId(uris.get(i)));
+        }
+    }
+}
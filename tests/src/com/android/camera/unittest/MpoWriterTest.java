@@ -0,0 +1,201 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.mpo.MpoData;
+import com.android.camera.mpo.MpoImageData;
+import com.android.camera.mpo.MpoInterface;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that writing an MPO to a file, which splices the MP segments in front of the
+ * untouched jpeg data, produces the same bytes as the MpoOutputStream path.
+ */
+@SmallTest
+public class MpoWriterTest extends TestCase {
+    private static final byte[] CROP_INFO = "Qualcomm Dual Camera Attributes".getBytes();
+    private static final int CROP_SEGMENT_SIZE = 200;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("mpo_writer", ".mpo");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    public void testClearSightMatchesStream() throws Exception {
+        Random random = new Random(19);
+        byte[] cs = buildJpeg(random, 300000, true, true);
+        byte[] bayer = buildJpeg(random, 200000, false, true);
+        byte[] mono = buildJpeg(random, 100000, true, false);
+
+        byte[] stream = writeStream(cs, bayer, mono);
+        int size = MpoInterface.writeMpo(buildMpo(cs, bayer, mono), mFile.getPath());
+        byte[] spliced = readFile(mFile);
+        assertEquals(spliced.length, size);
+        assertTrue(Arrays.equals(stream, spliced));
+
+        // The crop info of the primary is cleared, the bayer image keeps its own.
+        assertEquals(-1, indexOf(spliced, 0, bayer.length, CROP_INFO));
+        assertTrue(indexOf(spliced, cs.length, spliced.length, CROP_INFO) > 0);
+    }
+
+    public void testBayerPrimaryMatchesStream() throws Exception {
+        Random random = new Random(20);
+        byte[] bayer = buildJpeg(random, 250000, true, true);
+        byte[] mono = buildJpeg(random, 120000, false, false);
+
+        byte[] stream = writeStream(null, bayer, mono);
+        MpoInterface.writeMpo(buildMpo(null, bayer, mono), mFile.getPath());
+        byte[] spliced = readFile(mFile);
+        assertTrue(Arrays.equals(stream, spliced));
+        // Nothing is cleared with a single auxiliary image.
+        assertTrue(indexOf(spliced, 0, bayer.length, CROP_INFO) > 0);
+    }
+
+    public void testEntriesPointAtImages() throws Exception {
+        Random random = new Random(21);
+        byte[] cs = buildJpeg(random, 40000, true, true);
+        byte[] bayer = buildJpeg(random, 30000, true, true);
+        byte[] mono = buildJpeg(random, 20000, false, false);
+        MpoInterface.writeMpo(buildMpo(cs, bayer, mono), mFile.getPath());
+        ByteBuffer mpo = ByteBuffer.wrap(readFile(mFile));
+
+        // Offsets in the MP entries count from the TIFF header after "MPF\0".
+        int app2 = indexOf(mpo.array(), 0, mpo.limit(), new byte[] {(byte) 0xFF, (byte) 0xE2});
+        int tiff = app2 + 8;
+        int entries = indexOf(mpo.array(), tiff, mpo.limit(),
+                new byte[] {(byte) 0xB0, 0x02, 0x00, 0x07, 0x00, 0x00, 0x00, 0x30});
+        int entryData = tiff + mpo.getInt(entries + 8);
+        int end = 0;
+        for (int i = 0; i < 3; i++) {
+            int imageSize = mpo.getInt(entryData + i * 16 + 4);
+            int imageOffset = mpo.getInt(entryData + i * 16 + 8);
+            int start = i == 0 ? 0 : tiff + imageOffset;
+            assertEquals(end, start);
+            assertEquals((short) 0xFFD8, mpo.getShort(start));
+            end = start + imageSize;
+        }
+        assertEquals(mpo.limit(), end);
+    }
+
+    private static MpoData buildMpo(byte[] cs, byte[] bayer, byte[] mono) {
+        MpoData mpo = new MpoData();
+        MpoImageData bayerImage = new MpoImageData(bayer, ByteOrder.BIG_ENDIAN);
+        MpoImageData monoImage = new MpoImageData(mono, ByteOrder.BIG_ENDIAN);
+        if (cs == null) {
+            mpo.addAuxiliaryMpoImage(monoImage);
+            mpo.setPrimaryMpoImage(bayerImage);
+        } else {
+            mpo.addAuxiliaryMpoImage(bayerImage);
+            mpo.addAuxiliaryMpoImage(monoImage);
+            mpo.setPrimaryMpoImage(new MpoImageData(cs, ByteOrder.BIG_ENDIAN));
+        }
+        return mpo;
+    }
+
+    private static byte[] writeStream(byte[] cs, byte[] bayer, byte[] mono) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(MpoInterface.writeMpo(buildMpo(cs, bayer, mono), out) > 0);
+        return out.toByteArray();
+    }
+
+    // SOI, optional JFIF APP0, APP1, DQT, optional crop info APP7, SOF0, random data, EOI.
+    private static byte[] buildJpeg(Random random, int size, boolean jfif, boolean cropInfo) {
+        byte[] jpeg = new byte[size];
+        random.nextBytes(jpeg);
+        ByteBuffer b = ByteBuffer.wrap(jpeg);
+        b.putShort((short) 0xFFD8);
+        if (jfif) {
+            b.putShort((short) 0xFFE0).putShort((short) 16);
+            b.position(b.position() + 14);
+        }
+        b.putShort((short) 0xFFE1).putShort((short) 1000);
+        b.position(b.position() + 998);
+        b.putShort((short) 0xFFDB).putShort((short) 67);
+        b.position(b.position() + 65);
+        if (cropInfo) {
+            b.putShort((short) 0xFFE7).putShort((short) CROP_SEGMENT_SIZE);
+            b.put(CROP_INFO);
+            b.position(b.position() + CROP_SEGMENT_SIZE - 2 - CROP_INFO.length);
+        }
+        b.putShort((short) 0xFFC0).putShort((short) 17);
+        jpeg[size - 2] = (byte) 0xFF;
+        jpeg[size - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        for (int i = from; i <= to - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int pos = 0;
+            while (pos < data.length) {
+                int n = in.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
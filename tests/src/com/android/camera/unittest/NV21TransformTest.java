@@ -0,0 +1,268 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.NV21Transform;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class NV21TransformTest extends TestCase {
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+    private static final int STRIDE = 320;
+
+    private NV21Transform mTransform;
+    private byte[] mSrc;
+
+    @Override
+    protected void setUp() {
+        mTransform = new NV21Transform(3);
+        mSrc = new byte[STRIDE * HEIGHT * 3 / 2];
+        new Random(13).nextBytes(mSrc);
+    }
+
+    @Override
+    protected void tearDown() {
+        mTransform.shutdown();
+    }
+
+    public void testMatchesReference() {
+        Rect roi = new Rect(18, 6, 278, 186);
+        int[][] scales = {{1, 1}, {1, 2}, {2, 3}, {3, 2}};
+        for (int degree = 0; degree < 360; degree += 90) {
+            for (int mirror = 0; mirror < 4; mirror++) {
+                for (int[] scale : scales) {
+                    int width = NV21Transform.getRotatedWidth(roi, degree) * scale[0] / scale[1];
+                    int height = NV21Transform.getRotatedHeight(roi, degree) * scale[0]
+                            / scale[1];
+                    String what = degree + " mirror " + mirror + " scale " + scale[0] + "/"
+                            + scale[1];
+                    assertTransform(what, roi, (mirror & 1) != 0, (mirror & 2) != 0, degree,
+                            width & ~1, height & ~1, (width & ~1) + 16);
+                }
+            }
+        }
+    }
+
+    public void testIdentityIsCrop() {
+        Rect roi = new Rect(20, 10, 260, 170);
+        int width = roi.width();
+        int height = roi.height();
+        byte[] dst = transform(mSrc, STRIDE, HEIGHT, roi, false, false, 0, width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(mSrc[(roi.top + y) * STRIDE + roi.left + x], dst[y * width + x]);
+            }
+        }
+        int srcVu = STRIDE * HEIGHT;
+        int dstVu = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(mSrc[srcVu + (roi.top / 2 + y) * STRIDE + roi.left + x],
+                        dst[dstVu + y * width + x]);
+            }
+        }
+    }
+
+    public void testInverseTransformsRestoreImage() {
+        Rect full = new Rect(0, 0, WIDTH, HEIGHT);
+        byte[] crop = transform(mSrc, STRIDE, HEIGHT, full, false, false, 0, WIDTH, HEIGHT);
+
+        byte[] mirrored = transform(mSrc, STRIDE, HEIGHT, full, true, true, 0, WIDTH, HEIGHT);
+        byte[] back = transform(mirrored, WIDTH, HEIGHT, full, true, true, 0, WIDTH, HEIGHT);
+        assertTrue(Arrays.equals(crop, back));
+
+        byte[] rotated = transform(mSrc, STRIDE, HEIGHT, full, false, false, 90, HEIGHT, WIDTH);
+        back = transform(rotated, HEIGHT, WIDTH, new Rect(0, 0, HEIGHT, WIDTH), false, false,
+                270, WIDTH, HEIGHT);
+        assertTrue(Arrays.equals(crop, back));
+
+        // A vertical mirror turned by 90 degrees is a transpose
+        byte[] transposed = transform(mSrc, STRIDE, HEIGHT, full, false, true, 90, HEIGHT,
+                WIDTH);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < HEIGHT; x++) {
+                assertEquals(mSrc[x * STRIDE + y], transposed[y * HEIGHT + x]);
+            }
+        }
+    }
+
+    public void testDownscaleAveragesBlocks() {
+        byte[] src = new byte[4 * 2 * 3 / 2];
+        byte[] luma = {10, 20, 30, 40, 50, 60, 70, 80};
+        System.arraycopy(luma, 0, src, 0, luma.length);
+        src[8] = 100;
+        src[9] = 110;
+        src[10] = 120;
+        src[11] = 1;
+        byte[] dst = transform(src, 4, 2, new Rect(0, 0, 4, 2), false, false, 0, 2, 2);
+        assertEquals(15, dst[0]);
+        assertEquals(35, dst[1]);
+        assertEquals(55, dst[2]);
+        assertEquals(75, dst[3]);
+        assertEquals(110, dst[4]);
+        assertEquals(56, dst[5]);
+    }
+
+    public void testOffsetsMatchZeroOffset() {
+        Rect roi = new Rect(18, 6, 278, 186);
+        int width = roi.height();
+        int height = roi.width();
+        int srcOffset = 7;
+        int dstOffset = 5;
+        byte[] src = new byte[srcOffset + mSrc.length];
+        System.arraycopy(mSrc, 0, src, srcOffset, mSrc.length);
+        byte[] expected = transform(mSrc, STRIDE, HEIGHT, roi, true, false, 90, width, height);
+        byte[] actual = new byte[dstOffset + expected.length + 3];
+        mTransform.apply(src, srcOffset, STRIDE, HEIGHT, roi, true, false, 90, actual,
+                dstOffset, width, height, width);
+        assertTrue(Arrays.equals(expected,
+                Arrays.copyOfRange(actual, dstOffset, dstOffset + expected.length)));
+        for (int i = 0; i < dstOffset; i++) {
+            assertEquals(0, actual[i]);
+        }
+    }
+
+    /*
+     * The CPU preview path against a port of rotate90andMerge, with the padding columns
+     * of the stride. The script writes chroma at width * height of the padded width and
+     * puts U one pair early at 0 and 270 degrees, only the visible bytes are compared.
+     */
+    public void testRotateAndMergeMatchesRotator() {
+        int pad = STRIDE - WIDTH;
+        for (int degree = 0; degree < 360; degree += 90) {
+            byte[] expected = new byte[STRIDE * HEIGHT * 3 / 2];
+            byte[] actual = new byte[WIDTH * HEIGHT * 3 / 2];
+            rotate90andMerge(mSrc, expected, STRIDE, HEIGHT, pad, degree);
+            mTransform.rotateAndMerge(mSrc, STRIDE, WIDTH, HEIGHT, degree, actual);
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                assertEquals("luma " + i + " at " + degree, expected[i], actual[i]);
+            }
+            boolean earlyU = degree == 0 || degree == 270;
+            for (int row = 0; row < WIDTH / 2; row++) {
+                int e = STRIDE * HEIGHT + row * HEIGHT;
+                int a = WIDTH * HEIGHT + row * HEIGHT;
+                for (int x = 0; x < HEIGHT; x += 2) {
+                    String what = "chroma " + row + "," + x + " at " + degree;
+                    assertEquals(what, expected[e + x], actual[a + x]);
+                    if (!earlyU) {
+                        assertEquals(what, expected[e + x + 1], actual[a + x + 1]);
+                    } else if (x + 3 < HEIGHT) {
+                        assertEquals(what, expected[e + x + 1], actual[a + x + 3]);
+                    }
+                }
+            }
+        }
+    }
+
+    /* Per-pixel port of rotate90andMerge in rotator.rs, width being the padded stride */
+    private static void rotate90andMerge(byte[] in, byte[] out, int width, int height,
+                                         int pad, int degree) {
+        int ySize = width * height;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                byte yValue = in[x + y * width];
+                if (degree == 180) {
+                    if (x >= width - pad) {
+                        continue;
+                    }
+                    out[(width - 1 - x - pad) * height + height - 1 - y] = yValue;
+                } else if (degree == 90) {
+                    out[x * height + height - 1 - y] = yValue;
+                } else if (degree == 270) {
+                    if (x >= width - pad) {
+                        continue;
+                    }
+                    out[(width - 1 - x - pad) * height + y] = yValue;
+                } else {
+                    if (x >= width - pad) {
+                        continue;
+                    }
+                    out[x * height + y] = yValue;
+                }
+
+                if (x % 2 == 0 && y % 2 == 0) {
+                    int index = ySize + x + (y / 2) * width;
+                    byte vValue = in[index];
+                    byte uValue = in[index + 1];
+                    if (degree == 180) {
+                        int row = ySize + (width - 2 - x - pad) / 2 * height;
+                        out[row + height - 1 - y] = uValue;
+                        out[row + height - 1 - y - 1] = vValue;
+                    } else if (degree == 90) {
+                        int row = ySize + x / 2 * height;
+                        out[row + height - 1 - y] = uValue;
+                        out[row + height - 1 - y - 1] = vValue;
+                    } else if (degree == 270) {
+                        int row = ySize + (width - 1 - x - pad) / 2 * height;
+                        out[row + y - 1] = uValue;
+                        out[row + y] = vValue;
+                    } else {
+                        int row = ySize + x / 2 * height;
+                        out[row + y - 1] = uValue;
+                        out[row + y] = vValue;
+                    }
+                }
+            }
+        }
+    }
+
+    private void assertTransform(String what, Rect roi, boolean mirrorHorizontal,
+                                 boolean mirrorVertical, int degree, int width, int height,
+                                 int stride) {
+        byte[] expected = new byte[stride * height * 3 / 2];
+        byte[] actual = new byte[expected.length];
+        NV21Transform.applyReference(mSrc, STRIDE, HEIGHT, roi, mirrorHorizontal,
+                mirrorVertical, degree, expected, width, height, stride);
+        mTransform.apply(mSrc, STRIDE, HEIGHT, roi, mirrorHorizontal, mirrorVertical, degree,
+                actual, width, height, stride);
+        for (int y = 0; y < height * 3 / 2; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * stride + x;
+                assertEquals(what + " at " + x + "," + y, expected[i], actual[i]);
+            }
+        }
+    }
+
+    private byte[] transform(byte[] src, int stride, int height, Rect roi,
+                             boolean mirrorHorizontal, boolean mirrorVertical, int degree,
+                             int dstWidth, int dstHeight) {
+        byte[] dst = new byte[dstWidth * dstHeight * 3 / 2];
+        mTransform.apply(src, stride, height, roi, mirrorHorizontal, mirrorVertical, degree,
+                dst, dstWidth, dstHeight, dstWidth);
+        return dst;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.ParallelJpegEncoder;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class ParallelJpegEncoderTest extends TestCase {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int STRIDE = 352;
+
+    public void testOffsetMatchesZeroOffset() {
+        byte[] nv21 = new byte[STRIDE * HEIGHT * 3 / 2];
+        new Random(7).nextBytes(nv21);
+        int offset = 9;
+        byte[] shifted = new byte[offset + nv21.length];
+        System.arraycopy(nv21, 0, shifted, offset, nv21.length);
+        // Garbage in front of the frame must not leak into the picture
+        Arrays.fill(shifted, 0, offset, (byte) 0x55);
+        Rect roi = new Rect(16, 8, 304, 232);
+
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder(2);
+        byte[] expected = encoder.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE, roi, 90);
+        byte[] actual = encoder.encode(shifted, offset, WIDTH, HEIGHT, STRIDE, STRIDE, roi,
+                90);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.SaveScheduler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class SaveSchedulerTest extends TestCase {
+    private ExecutorService mCallbacks;
+    private SaveScheduler mScheduler;
+
+    private static class Request extends SaveScheduler.SaveRequest {
+        final int mIndex;
+        final CountDownLatch mRelease;
+        final ArrayList<Integer> mSaved;
+        final CountDownLatch mDone;
+
+        Request(int index, CountDownLatch release, ArrayList<Integer> saved,
+                CountDownLatch done) {
+            this(SaveScheduler.PRIORITY_USER_VISIBLE, index, release, saved, done);
+        }
+
+        Request(int priority, int index, CountDownLatch release, ArrayList<Integer> saved,
+                CountDownLatch done) {
+            super(priority, 1);
+            mIndex = index;
+            mRelease = release;
+            mSaved = saved;
+            mDone = done;
+        }
+
+        @Override
+        protected boolean writeFile() {
+            try {
+                mRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        @Override
+        protected Uri insert() {
+            return Uri.parse("content://media/" + mIndex);
+        }
+
+        @Override
+        protected void onSaved(Uri uri) {
+            mSaved.add(uri == null ? -1 : mIndex);
+            mDone.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mCallbacks = Executors.newSingleThreadExecutor();
+        mScheduler = new SaveScheduler(2, 100, mCallbacks);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.shutdown();
+        mCallbacks.shutdown();
+    }
+
+    public void testCallbacksFollowSubmissionOrder() throws Exception {
+        ArrayList<Integer> saved = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(0);
+        assertTrue(mScheduler.submit(new Request(0, first, saved, done)));
+        assertTrue(mScheduler.submit(new Request(1, second, saved, done)));
+        // The second request is written and inserted first but must wait for the first.
+        Thread.sleep(100);
+        first.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        mCallbacks.submit(() -> { }).get();
+        assertEquals(0, (int) saved.get(0));
+        assertEquals(1, (int) saved.get(1));
+    }
+
+    public void testUserVisibleIsNotHeldByBurst() throws Exception {
+        ArrayList<Integer> saved = new ArrayList<>();
+        CountDownLatch visibleDone = new CountDownLatch(1);
+        CountDownLatch burstDone = new CountDownLatch(1);
+        CountDownLatch burst = new CountDownLatch(1);
+        assertTrue(mScheduler.submit(new Request(SaveScheduler.PRIORITY_BURST, 0, burst,
+                saved, burstDone)));
+        assertTrue(mScheduler.submit(new Request(1, new CountDownLatch(0), saved,
+                visibleDone)));
+        // Delivered while the earlier burst frame is still being written.
+        assertTrue(visibleDone.await(5, TimeUnit.SECONDS));
+        burst.countDown();
+        assertTrue(burstDone.await(5, TimeUnit.SECONDS));
+        mCallbacks.submit(() -> { }).get();
+        assertEquals(1, (int) saved.get(0));
+        assertEquals(0, (int) saved.get(1));
+    }
+
+    public void testLostInsertIsSkipped() throws Exception {
+        mScheduler.shutdown();
+        mScheduler = new SaveScheduler(2, 100, mCallbacks, 200);
+        final ArrayList<Integer> saved = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(2);
+        final SaveScheduler.InsertDone[] lost = new SaveScheduler.InsertDone[1];
+        final CountDownLatch inserting = new CountDownLatch(1);
+        assertTrue(mScheduler.submit(new Request(0, new CountDownLatch(0), saved, done) {
+            @Override
+            protected void insert(SaveScheduler.InsertDone insertDone) {
+                // Never completes on its own.
+                lost[0] = insertDone;
+                inserting.countDown();
+            }
+        }));
+        assertTrue(mScheduler.submit(new Request(1, new CountDownLatch(0), saved, done)));
+        assertTrue(inserting.await(5, TimeUnit.SECONDS));
+        Thread.sleep(1000);
+        mCallbacks.submit(() -> { }).get();
+        assertEquals(1, saved.size());
+        assertEquals(1, (int) saved.get(0));
+
+        // A completion that shows up late is still delivered.
+        lost[0].onInserted(Uri.parse("content://media/0"));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        mCallbacks.submit(() -> { }).get();
+        assertEquals(0, (int) saved.get(1));
+        assertEquals(0, mScheduler.getStats().bytesInFlight);
+    }
+
+    public void testShutdownInsertsQueuedRequests() throws Exception {
+        ArrayList<Integer> saved = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mScheduler.submit(new Request(i, release, saved, done)));
+        }
+        mScheduler.shutdown();
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        mCallbacks.submit(() -> { }).get();
+        assertEquals(3, saved.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, (int) saved.get(i));
+        }
+        assertEquals(0, mScheduler.getStats().bytesInFlight);
+    }
+
+    public void testSubmitAfterShutdownIsRefused() throws Exception {
+        ArrayList<Integer> saved = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        mScheduler.shutdown();
+        assertFalse(mScheduler.submit(new Request(0, new CountDownLatch(0), saved, done)));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, mScheduler.getStats().bytesInFlight);
+        assertEquals(0, mScheduler.getStats().queueDepth);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.ShotDeadlineMonitor;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class ShotDeadlineMonitorTest extends TestCase {
+    private static final int FILTERS = 3;
+
+    private FakeClockMonitor mMonitor;
+    private final CountDownLatch mMissed = new CountDownLatch(1);
+    private final AtomicInteger mMissedStage = new AtomicInteger(-1);
+
+    private static class FakeClockMonitor extends ShotDeadlineMonitor {
+        volatile long mNowNs = 1;
+
+        FakeClockMonitor(long[][] budgetsMs, Listener listener) {
+            super(budgetsMs, listener);
+        }
+
+        @Override
+        protected long nowNs() {
+            return mNowNs;
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        long[][] budgets = new long[FILTERS][ShotDeadlineMonitor.STAGE_COUNT];
+        mMonitor = new FakeClockMonitor(budgets, (shot, stage) -> {
+            mMissedStage.set(stage);
+            mMissed.countDown();
+        });
+    }
+
+    @Override
+    protected void tearDown() {
+        mMonitor.shutdown();
+    }
+
+    public void testApplyBudgets() {
+        mMonitor.applyBudgets("1.filter=8000, *.encode=1500,2.bogus=1,x.exif=2,9.save=3");
+        assertEquals(8000, mMonitor.getBudget(1, ShotDeadlineMonitor.STAGE_FILTER));
+        assertEquals(0, mMonitor.getBudget(2, ShotDeadlineMonitor.STAGE_FILTER));
+        for (int i = 0; i < FILTERS; i++) {
+            assertEquals(1500, mMonitor.getBudget(i, ShotDeadlineMonitor.STAGE_ENCODE));
+            assertEquals(0, mMonitor.getBudget(i, ShotDeadlineMonitor.STAGE_EXIF));
+        }
+    }
+
+    public void testMissedDeadline() throws InterruptedException {
+        mMonitor.setBudget(1, ShotDeadlineMonitor.STAGE_FILTER, 20);
+        ShotDeadlineMonitor.Shot shot = mMonitor.begin(1);
+        mMonitor.startStage(shot, ShotDeadlineMonitor.STAGE_FILTER);
+        assertTrue(mMissed.await(2, TimeUnit.SECONDS));
+        assertEquals(ShotDeadlineMonitor.STAGE_FILTER, mMissedStage.get());
+        assertTrue(shot.hasMissed(ShotDeadlineMonitor.STAGE_FILTER));
+        assertEquals(1, mMonitor.getMissedCount(ShotDeadlineMonitor.STAGE_FILTER));
+
+        mMonitor.mNowNs += 1000;
+        mMonitor.endStage(shot, ShotDeadlineMonitor.STAGE_FILTER);
+        mMonitor.finish(shot);
+        assertTrue(shot.getDurationNs(ShotDeadlineMonitor.STAGE_FILTER) > 0);
+        assertEquals(1, mMonitor.getRecordedCount());
+    }
+
+    public void testStageInBudget() throws InterruptedException {
+        mMonitor.setBudget(0, ShotDeadlineMonitor.STAGE_ENCODE, 50);
+        ShotDeadlineMonitor.Shot shot = mMonitor.begin(0);
+        mMonitor.startStage(shot, ShotDeadlineMonitor.STAGE_ENCODE);
+        mMonitor.endStage(shot, ShotDeadlineMonitor.STAGE_ENCODE);
+        mMonitor.startStage(shot, ShotDeadlineMonitor.STAGE_SAVE);
+        mMonitor.setBudget(0, ShotDeadlineMonitor.STAGE_EXIF, 50);
+        ShotDeadlineMonitor.Shot dropped = mMonitor.begin(0);
+        mMonitor.startStage(dropped, ShotDeadlineMonitor.STAGE_EXIF);
+        mMonitor.cancel(dropped);
+        mMonitor.finish(shot);
+        assertFalse(mMissed.await(150, TimeUnit.MILLISECONDS));
+        assertEquals(1, mMonitor.getRecordedCount());
+        assertEquals(1, mMonitor.getDroppedCount());
+        // The save stage never ended and is left out
+        assertEquals(-1, shot.getDurationNs(ShotDeadlineMonitor.STAGE_SAVE));
+        assertNull(mMonitor.getStageStats(ShotDeadlineMonitor.STAGE_SAVE));
+    }
+
+    public void testExtraBudget() throws InterruptedException {
+        mMonitor.setBudget(0, ShotDeadlineMonitor.STAGE_FRAMES, 20);
+        ShotDeadlineMonitor.Shot shot = mMonitor.begin(0);
+        mMonitor.startStage(shot, ShotDeadlineMonitor.STAGE_FRAMES, 5000);
+        assertFalse(mMissed.await(150, TimeUnit.MILLISECONDS));
+        mMonitor.endStage(shot, ShotDeadlineMonitor.STAGE_FRAMES);
+        assertFalse(shot.hasMissed(ShotDeadlineMonitor.STAGE_FRAMES));
+    }
+
+    public void testShutdownDropsDeadlines() throws InterruptedException {
+        mMonitor.setBudget(0, ShotDeadlineMonitor.STAGE_FILTER, 50);
+        ShotDeadlineMonitor.Shot shot = mMonitor.begin(0);
+        mMonitor.startStage(shot, ShotDeadlineMonitor.STAGE_FILTER);
+        mMonitor.shutdown();
+        assertFalse(mMissed.await(150, TimeUnit.MILLISECONDS));
+        // Deadlines work again after a shutdown
+        mMonitor.setBudget(0, ShotDeadlineMonitor.STAGE_ENCODE, 20);
+        ShotDeadlineMonitor.Shot next = mMonitor.begin(0);
+        mMonitor.startStage(next, ShotDeadlineMonitor.STAGE_ENCODE);
+        assertTrue(mMissed.await(2, TimeUnit.SECONDS));
+        assertEquals(ShotDeadlineMonitor.STAGE_ENCODE, mMissedStage.get());
+    }
+
+    public void testRingKeepsLastShots() {
+        for (int i = 0; i < ShotDeadlineMonitor.RING_SIZE + 10; i++) {
+            ShotDeadlineMonitor.Shot shot = mMonitor.begin(0);
+            mMonitor.startStage(shot, ShotDeadlineMonitor.STAGE_FILTER);
+            mMonitor.mNowNs += i % 20 == 19 ? 30000000 : 1000000;
+            mMonitor.endStage(shot, ShotDeadlineMonitor.STAGE_FILTER);
+            mMonitor.finish(shot);
+        }
+        assertEquals(ShotDeadlineMonitor.RING_SIZE, mMonitor.getRecordedCount());
+        long[] stats = mMonitor.getStageStats(ShotDeadlineMonitor.STAGE_FILTER);
+        // Three slow shots out of 64 in the ring stay above the 95th percentile
+        assertEquals(1000, stats[0]);
+        assertEquals((61 * 1000 + 3 * 30000) / 64, stats[1]);
+        assertEquals(1000, stats[2]);
+        assertTrue(mMonitor.dump().contains("filter"));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.util.ExtendedXmpWriter;
+import com.android.camera.util.XmpReader;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class XmpReaderTest extends TestCase {
+    private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    private static final String DEPTH_NS = "http://ns.google.com/photos/1.0/depthmap/";
+    private static final int EXIF_SIZE = 60000;
+
+    public void testSkipsExifAndStopsAtScan() throws Exception {
+        String packet = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF/></x:xmpmeta>";
+        byte[] jpeg = buildJpeg(packet + "<?xpacket end=\"w\"?>", null, 1000000);
+
+        XmpReader reader = XmpReader.read(new ByteArrayInputStream(jpeg));
+        assertEquals(packet, new String(reader.getStandardPacket(), "UTF-8"));
+        assertNull(reader.getExtendedPacket());
+        // Segment headers, the Exif signature and the packet, nothing else.
+        assertTrue(reader.getBytesRead() < 1000);
+
+        File file = File.createTempFile("xmp_reader", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(jpeg);
+            out.close();
+            XmpReader mapped = XmpReader.read(file);
+            assertTrue(Arrays.equals(reader.getStandardPacket(), mapped.getStandardPacket()));
+            assertEquals(reader.getBytesRead(), mapped.getBytesRead());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testReassemblesExtendedXmp() throws Exception {
+        byte[] depth = new byte[150000];
+        new Random(7).nextBytes(depth);
+        ExtendedXmpWriter writer = new ExtendedXmpWriter();
+        writer.addProperty(DEPTH_NS, "GDepth", "Data", depth);
+        ByteArrayOutputStream sections = new ByteArrayOutputStream();
+        writer.writeSections(sections);
+        byte[] packet = getPayload(sections.toByteArray());
+
+        // A stray portion of another packet must not end up in the result.
+        ExtendedXmpWriter other = new ExtendedXmpWriter();
+        other.addProperty(DEPTH_NS, "GDepth", "Data", new byte[100]);
+        sections.reset();
+        other.writeSections(sections);
+        writer.writeSections(sections);
+
+        String standard = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF><rdf:Description"
+                + " xmpNote:HasExtendedXMP=\"" + writer.getGuid() + "\"/></rdf:RDF></x:xmpmeta>";
+        byte[] jpeg = buildJpeg(standard, sections.toByteArray(), 10000);
+
+        XmpReader reader = XmpReader.read(ByteBuffer.wrap(jpeg));
+        assertTrue(Arrays.equals(packet, reader.getExtendedPacket()));
+    }
+
+    // SOI, Exif APP1, standard XMP APP1, extended XMP, DQT, SOS, scan data, EOI.
+    private static byte[] buildJpeg(String standard, byte[] extended, int scanSize)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xD8});
+        writeSegment(out, 0xE1, "Exif\0\0".getBytes("ISO-8859-1"), EXIF_SIZE);
+        byte[] xmp = (XMP_HEADER + standard).getBytes("UTF-8");
+        writeSegment(out, 0xE1, xmp, xmp.length);
+        if (extended != null) {
+            out.write(extended);
+        }
+        writeSegment(out, 0xDB, new byte[0], 65);
+        writeSegment(out, 0xDA, new byte[0], 10);
+        byte[] scan = new byte[scanSize];
+        new Random(1).nextBytes(scan);
+        out.write(scan);
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xD9});
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] start,
+            int size) {
+        out.write(0xFF);
+        out.write(marker);
+        out.write((size + 2) >> 8);
+        out.write(size + 2);
+        out.write(start, 0, start.length);
+        out.write(new byte[size - start.length], 0, size - start.length);
+    }
+
+    /* Concatenates the portions of the APP1 segments written by ExtendedXmpWriter */
+    private static byte[] getPayload(byte[] sections) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int header = 4 + ExtendedXmpWriter.HEADER_SIZE;
+        int pos = 0;
+        while (pos < sections.length) {
+            int length = (sections[pos + 2] & 0xff) << 8 | (sections[pos + 3] & 0xff);
+            out.write(sections, pos + header, length + 2 - header);
+            pos += length + 2;
+        }
+        return out.toByteArray();
+    }
+}
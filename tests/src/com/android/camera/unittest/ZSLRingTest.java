@@ -0,0 +1,219 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.imageprocessor.ZSLRing;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+
+@SmallTest
+public class ZSLRingTest extends TestCase {
+    private static final int CAPACITY = 4;
+
+    private static class Part {
+        final long mTimestamp;
+
+        Part(long timestamp) {
+            mTimestamp = timestamp;
+        }
+    }
+
+    // Counts how often every part was released, a part must never go twice
+    private static class Releases implements ZSLRing.Releaser<Part, Part> {
+        final Map<Part, Integer> mImages = new IdentityHashMap<>();
+        final Map<Part, Integer> mMetas = new IdentityHashMap<>();
+
+        @Override
+        public synchronized void releaseImage(Part image) {
+            Integer count = mImages.get(image);
+            mImages.put(image, count == null ? 1 : count + 1);
+        }
+
+        @Override
+        public synchronized void releaseMeta(Part meta) {
+            Integer count = mMetas.get(meta);
+            mMetas.put(meta, count == null ? 1 : count + 1);
+        }
+    }
+
+    private Releases mReleases;
+    private ZSLRing<Part, Part> mRing;
+
+    @Override
+    protected void setUp() throws Exception {
+        mReleases = new Releases();
+        mRing = new ZSLRing<>(CAPACITY, mReleases);
+    }
+
+    public void testPairsEitherOrder() {
+        Part image = new Part(100);
+        Part meta = new Part(100);
+        assertTrue(mRing.offerImage(100, image));
+        assertFalse(mRing.get(0).isPaired());
+        assertTrue(mRing.offerMeta(100, meta));
+        // Meta first
+        assertTrue(mRing.offerMeta(200, new Part(200)));
+        assertTrue(mRing.offerImage(200, new Part(200)));
+
+        assertEquals(2, mRing.getPairedCount());
+        ZSLRing.Slot<Part, Part> slot = mRing.get(1);
+        assertTrue(slot.isPaired());
+        assertEquals(100, slot.getTimestamp());
+        assertSame(image, slot.getImage());
+        assertSame(meta, slot.getMeta());
+        assertEquals(200, mRing.get(0).getTimestamp());
+        assertNull(mRing.get(2));
+    }
+
+    public void testSecondPartForSameSideIsDropped() {
+        Part first = new Part(100);
+        Part second = new Part(100);
+        assertTrue(mRing.offerImage(100, first));
+        assertFalse(mRing.offerImage(100, second));
+
+        assertSame(first, mRing.get(0).getImage());
+        assertEquals(1, (int) mReleases.mImages.get(second));
+        assertEquals(1, mRing.getDroppedImageCount());
+    }
+
+    public void testEvictsOldestSlot() {
+        Part[] images = new Part[CAPACITY + 2];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new Part(i);
+            assertTrue(mRing.offerImage(i, images[i]));
+        }
+
+        // The two oldest never got their metadata
+        assertEquals(1, (int) mReleases.mImages.get(images[0]));
+        assertEquals(1, (int) mReleases.mImages.get(images[1]));
+        assertEquals(2, mReleases.mImages.size());
+        assertEquals(2, mRing.getDroppedImageCount());
+        assertEquals(images.length - 1, mRing.get(0).getTimestamp());
+        assertEquals(2, mRing.get(CAPACITY - 1).getTimestamp());
+
+        // A late meta for an evicted timestamp does not revive it
+        Part late = new Part(0);
+        mRing.offerMeta(0, late);
+        assertEquals(3, mReleases.mImages.size());
+        assertFalse(mRing.get(0).isPaired());
+    }
+
+    public void testTakeHandsOverOwnership() {
+        Part image = new Part(100);
+        Part meta = new Part(100);
+        mRing.offerImage(100, image);
+        assertFalse(mRing.take(mRing.get(0)));
+        mRing.offerMeta(100, meta);
+
+        ZSLRing.Slot<Part, Part> slot = mRing.get(0);
+        assertTrue(mRing.take(slot));
+        assertFalse(mRing.take(slot));
+        assertNull(mRing.get(0));
+
+        // Neither eviction nor close releases a taken slot
+        for (int i = 0; i < CAPACITY * 2; i++) {
+            mRing.offerImage(200 + i, new Part(200 + i));
+        }
+        mRing.close();
+        assertNull(mReleases.mImages.get(image));
+        assertNull(mReleases.mMetas.get(meta));
+
+        // A taken timestamp is not paired again
+        assertFalse(mRing.offerMeta(300, new Part(300)));
+    }
+
+    public void testCloseReleasesEverything() {
+        Part image = new Part(100);
+        Part meta = new Part(100);
+        Part lone = new Part(200);
+        mRing.offerImage(100, image);
+        mRing.offerMeta(100, meta);
+        mRing.offerMeta(200, lone);
+        mRing.close();
+
+        assertEquals(1, (int) mReleases.mImages.get(image));
+        assertEquals(1, (int) mReleases.mMetas.get(meta));
+        assertEquals(1, (int) mReleases.mMetas.get(lone));
+        // Paired parts are released, but only the lone one was dropped
+        assertEquals(0, mRing.getDroppedImageCount());
+        assertEquals(1, mRing.getDroppedMetaCount());
+
+        Part afterClose = new Part(300);
+        assertFalse(mRing.offerImage(300, afterClose));
+        assertEquals(1, (int) mReleases.mImages.get(afterClose));
+    }
+
+    public void testConcurrentSidesPairEveryTimestampOnce() throws Exception {
+        final int frames = 5000;
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final List<Part> images = new ArrayList<>();
+        final List<Part> metas = new ArrayList<>();
+        for (int i = 0; i < frames; i++) {
+            images.add(new Part(i));
+            metas.add(new Part(i));
+        }
+        final Throwable[] error = new Throwable[1];
+        Thread imageSide = new Thread(() -> {
+            try {
+                for (int i = 0; i < frames; i++) {
+                    // Both sides insert the same timestamp at the same time
+                    barrier.await();
+                    mRing.offerImage(i, images.get(i));
+                }
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        });
+        imageSide.start();
+        for (int i = 0; i < frames; i++) {
+            barrier.await();
+            mRing.offerMeta(i, metas.get(i));
+        }
+        imageSide.join();
+        assertNull(error[0]);
+        mRing.close();
+
+        // Two slots for one timestamp would leave both unpaired
+        assertEquals(frames, mRing.getPairedCount());
+        assertEquals(0, mRing.getDroppedImageCount());
+        assertEquals(0, mRing.getDroppedMetaCount());
+        for (int i = 0; i < frames; i++) {
+            assertEquals(1, (int) mReleases.mImages.get(images.get(i)));
+            assertEquals(1, (int) mReleases.mMetas.get(metas.get(i)));
+        }
+    }
+}